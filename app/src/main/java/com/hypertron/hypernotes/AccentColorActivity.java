@@ -12,15 +12,15 @@ import androidx.appcompat.app.AppCompatActivity;
 import yuku.ambilwarna.AmbilWarnaDialog; // External color picker library
 
 public class AccentColorActivity extends AppCompatActivity {
-    private static final String PREFS_NAME = "HyperNotesPrefs";
-    private static final String KEY_ACCENT_COLOR = "accent_color";
-    private static final String KEY_ACCENT_LIGHT = "accent_light";
-    private static final String KEY_ACCENT_DARK = "accent_dark";
+    static final String PREFS_NAME = "HyperNotesPrefs";
+    static final String KEY_ACCENT_COLOR = "accent_color";
+    static final String KEY_ACCENT_LIGHT = "accent_light";
+    static final String KEY_ACCENT_DARK = "accent_dark";
 
     // Default accent color (teal)
-    private static final int DEFAULT_ACCENT = Color.parseColor("#03DAC5");
-    private static final int DEFAULT_ACCENT_LIGHT = Color.parseColor("#4DEFE0");
-    private static final int DEFAULT_ACCENT_DARK = Color.parseColor("#00B5A3");
+    static final int DEFAULT_ACCENT = Color.parseColor("#03DAC5");
+    static final int DEFAULT_ACCENT_LIGHT = Color.parseColor("#4DEFE0");
+    static final int DEFAULT_ACCENT_DARK = Color.parseColor("#00B5A3");
 
     private int selectedColor;
     private int accentLight;
@@ -32,6 +32,8 @@ public class AccentColorActivity extends AppCompatActivity {
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
+        // Shown in place of MainActivity on the first run, and timed as part of that cold start
+        StartupTrace.begin("accentCreate");
         super.onCreate(savedInstanceState);
 
         // Check if dark mode is enabled
@@ -102,6 +104,8 @@ public class AccentColorActivity extends AppCompatActivity {
         
         // Initialize with selected/default color
         colorPreview.setBackgroundColor(selectedColor);
+        StartupTrace.end("accentCreate");
+        StartupTrace.finishOnFirstFrame(this);
     }
 
     private void selectColor(int color) {
@@ -156,64 +160,48 @@ public class AccentColorActivity extends AppCompatActivity {
      * Generate a lighter variant of a color
      */
     public static int getLighterVariant(int color) {
-        float[] hsv = new float[3];
-        Color.colorToHSV(color, hsv);
-        
-        // Increase brightness while preserving hue and saturation
-        hsv[2] = Math.min(hsv[2] + 0.2f, 1.0f);
-        
-        return Color.HSVToColor(hsv);
+        return ColorMath.lighter(color);
     }
     
     /**
      * Generate a darker variant of a color
      */
     public static int getDarkerVariant(int color) {
-        float[] hsv = new float[3];
-        Color.colorToHSV(color, hsv);
-        
-        // Slightly increase saturation for richer color
-        hsv[1] = Math.min(hsv[1] + 0.1f, 1.0f);
-        
-        // Decrease brightness
-        hsv[2] = Math.max(hsv[2] - 0.2f, 0.0f);
-        
-        return Color.HSVToColor(hsv);
+        return ColorMath.darker(color);
     }
     
     /**
      * Calculate readable text color (white or black) based on background color
      */
     public static int getReadableTextColor(int backgroundColor) {
-        // Calculate luminance to determine if text should be white or black
-        double luminance = (0.299 * Color.red(backgroundColor) + 
-                            0.587 * Color.green(backgroundColor) + 
-                            0.114 * Color.blue(backgroundColor)) / 255;
-                            
-        return luminance > 0.5 ? Color.BLACK : Color.WHITE;
+        return ColorMath.readableTextColor(backgroundColor);
+    }
+    
+    /**
+     * Whether {@code key} is one of the accent color preferences.
+     */
+    static boolean isAccentKey(String key) {
+        return KEY_ACCENT_COLOR.equals(key) || KEY_ACCENT_LIGHT.equals(key) || KEY_ACCENT_DARK.equals(key);
     }
     
     /**
-     * Get the accent color from SharedPreferences
+     * Get the accent color, as cached by {@link PaletteService}
      */
     public static int getAccentColor(android.content.Context context) {
-        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, MODE_PRIVATE);
-        return prefs.getInt(KEY_ACCENT_COLOR, DEFAULT_ACCENT);
+        return PaletteService.getInstance(context).get(context).getAccent();
     }
     
     /**
      * Get the light variant of the accent color
      */
     public static int getAccentLight(android.content.Context context) {
-        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, MODE_PRIVATE);
-        return prefs.getInt(KEY_ACCENT_LIGHT, DEFAULT_ACCENT_LIGHT);
+        return PaletteService.getInstance(context).get(context).getAccentLight();
     }
     
     /**
      * Get the dark variant of the accent color
      */
     public static int getAccentDark(android.content.Context context) {
-        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, MODE_PRIVATE);
-        return prefs.getInt(KEY_ACCENT_DARK, DEFAULT_ACCENT_DARK);
+        return PaletteService.getInstance(context).get(context).getAccentDark();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,40 @@
+package com.hypertron.hypernotes;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Replaces files whole, so a crash leaves either the old contents or the new.
+ * The new contents go to a temporary file next to the target, which is synced
+ * to disk before it is renamed over the target.
+ */
+public final class AtomicFiles {
+
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    public interface Contents {
+        void writeTo(DataOutputStream out) throws IOException;
+    }
+
+    private AtomicFiles() {}
+
+    /**
+     * Durably replace {@code file}, or create it, with what {@code contents} writes.
+     */
+    public static void replace(File file, Contents contents) throws IOException {
+        File temp = new File(file.getPath() + TEMP_SUFFIX);
+        try (FileOutputStream stream = new FileOutputStream(temp)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream, 64 * 1024));
+            contents.writeTo(out);
+            out.flush();
+            stream.getFD().sync();
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Cannot replace " + file);
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package com.hypertron.hypernotes;
+
+/**
+ * Plain-Java color helpers behind the accent color variants.
+ *
+ * The HSV conversions follow {@code android.graphics.Color.colorToHSV} and
+ * {@code HSVToColor} (Skia's rounding included), so results match the
+ * framework while the math can run, and be benchmarked, on a plain JVM.
+ */
+public final class ColorMath {
+    public static final int BLACK = 0xFF000000;
+    public static final int WHITE = 0xFFFFFFFF;
+
+    private ColorMath() {
+    }
+
+    public static int red(int color) { return (color >> 16) & 0xFF; }
+    public static int green(int color) { return (color >> 8) & 0xFF; }
+    public static int blue(int color) { return color & 0xFF; }
+
+    /**
+     * Lighter variant of a color: same hue and saturation, brighter value.
+     */
+    public static int lighter(int color) {
+        float[] hsv = new float[3];
+        colorToHsv(color, hsv);
+        hsv[2] = Math.min(hsv[2] + 0.2f, 1.0f);
+        return hsvToColor(hsv);
+    }
+
+    /**
+     * Darker variant of a color, slightly more saturated for a richer tone.
+     */
+    public static int darker(int color) {
+        float[] hsv = new float[3];
+        colorToHsv(color, hsv);
+        hsv[1] = Math.min(hsv[1] + 0.1f, 1.0f);
+        hsv[2] = Math.max(hsv[2] - 0.2f, 0.0f);
+        return hsvToColor(hsv);
+    }
+
+    /**
+     * Black or white, whichever reads better on {@code backgroundColor}.
+     */
+    public static int readableTextColor(int backgroundColor) {
+        double luminance = (0.299 * red(backgroundColor)
+                + 0.587 * green(backgroundColor)
+                + 0.114 * blue(backgroundColor)) / 255;
+        return luminance > 0.5 ? BLACK : WHITE;
+    }
+
+    /**
+     * {@code color} with its alpha replaced by {@code alpha} (0-255).
+     */
+    public static int withAlpha(int color, int alpha) {
+        return (color & 0x00FFFFFF) | (alpha << 24);
+    }
+
+    public static void colorToHsv(int color, float[] hsv) {
+        int r = red(color);
+        int g = green(color);
+        int b = blue(color);
+        int max = Math.max(r, Math.max(g, b));
+        int min = Math.min(r, Math.min(g, b));
+        int delta = max - min;
+
+        hsv[2] = max / 255f;
+        if (delta == 0) {
+            hsv[0] = 0;
+            hsv[1] = 0;
+            return;
+        }
+        hsv[1] = (float) delta / max;
+
+        float hue;
+        if (r == max) {
+            hue = (float) (g - b) / delta;
+        } else if (g == max) {
+            hue = 2 + (float) (b - r) / delta;
+        } else {
+            hue = 4 + (float) (r - g) / delta;
+        }
+        hue *= 60;
+        if (hue < 0) {
+            hue += 360;
+        }
+        hsv[0] = hue;
+    }
+
+    public static int hsvToColor(float[] hsv) {
+        float s = clamp(hsv[1]);
+        float v = clamp(hsv[2]);
+        int value = Math.round(v * 255);
+        if (s <= 1f / 4096) {
+            return 0xFF000000 | (value << 16) | (value << 8) | value;
+        }
+
+        float hx = hsv[0] < 0 || hsv[0] >= 360 ? 0 : hsv[0] / 60;
+        int sector = (int) Math.floor(hx);
+        float f = hx - sector;
+        int p = Math.round((1 - s) * v * 255);
+        int q = Math.round((1 - s * f) * v * 255);
+        int t = Math.round((1 - s * (1 - f)) * v * 255);
+
+        int r;
+        int g;
+        int b;
+        switch (sector) {
+            case 0: r = value; g = t; b = p; break;
+            case 1: r = q; g = value; b = p; break;
+            case 2: r = p; g = value; b = t; break;
+            case 3: r = p; g = q; b = value; break;
+            case 4: r = t; g = p; b = value; break;
+            default: r = value; g = p; b = q; break;
+        }
+        return 0xFF000000 | (r << 16) | (g << 8) | b;
+    }
+
+    private static float clamp(float value) {
+        return Math.max(0f, Math.min(1f, value));
+    }
+}
@@ -263,14 +263,11 @@ public class CreateNoteActivity extends AppCompatActivity {
             colorResId = colorResIds[selectedColorIndex];
         }
         
-        // Set card background color
-        int color;
-        if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.M) {
-            color = getResources().getColor(colorResId, getTheme());
-        } else {
-            color = getResources().getColor(colorResId);
-        }
-        previewCardView.setCardBackgroundColor(color);
+        // Set card colors
+        ThemePalette palette = PaletteService.getInstance(this).get(this);
+        previewCardView.setCardBackgroundColor(palette.noteColor(colorResId));
+        tvPreviewTitle.setTextColor(palette.noteTextColor(colorResId));
+        tvPreviewIcon.setTextColor(palette.noteTextColor(colorResId));
         
         // Get symbol (random or selected)
         String symbol;
@@ -314,16 +311,25 @@ public class CreateNoteActivity extends AppCompatActivity {
             title = getString(R.string.untitled_note);
         }
         
-        // Prepare data to return to MainActivity
-        Intent resultIntent = new Intent();
-        resultIntent.putExtra("title", title);
-        resultIntent.putExtra("content", content);
-        resultIntent.putExtra("colorIndex", selectedColorIndex);
-        resultIntent.putExtra("symbolIndex", selectedSymbolIndex);
+        int[] colorResIds = NoteRepository.getColorResourceIds();
+        int colorIndex = selectedColorIndex;
+        if (colorIndex == -1) {
+            colorIndex = new Random().nextInt(colorResIds.length);
+        }
+        
+        NoteRepository repository = NoteRepository.getInstance(this);
+        Note note = new Note(repository.newNoteId(), title, content, System.currentTimeMillis(),
+                colorResIds[colorIndex]);
+        note.setSymbolIndex(selectedSymbolIndex);
         if (customEmoji != null) {
-            resultIntent.putExtra("customEmoji", customEmoji);
+            note.setCustomEmoji(customEmoji);
         }
         
+        // Saved here and handed back by id only; a large body would overflow the result Intent
+        repository.saveNote(note);
+        Intent resultIntent = new Intent();
+        resultIntent.putExtra(NoteRepository.EXTRA_NOTE_ID, note.getId());
+        
         // Set result and finish
         setResult(RESULT_OK, resultIntent);
         finish();
@@ -371,14 +377,8 @@ public class CreateNoteActivity extends AppCompatActivity {
                 holder.colorView.setText("");
                 int colorResId = colorResourceIds[colorIndex];
                 
-                // Handle deprecated getColor method
-                int color;
-                if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.M) {
-                    color = context.getResources().getColor(colorResId, context.getTheme());
-                } else {
-                    color = context.getResources().getColor(colorResId);
-                }
-                holder.colorView.setBackgroundColor(color);
+                holder.colorView.setBackgroundColor(
+                    PaletteService.getInstance(context).get(context).noteColor(colorResId));
             }
             
             holder.itemView.setOnClickListener(v -> {
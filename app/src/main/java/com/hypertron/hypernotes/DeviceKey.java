@@ -0,0 +1,144 @@
+package com.hypertron.hypernotes;
+
+import android.security.keystore.KeyGenParameterSpec;
+import android.security.keystore.KeyProperties;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.SecureRandom;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * The key notes are encrypted with, bound to this device.
+ *
+ * Every operation with a keystore key is a call into the keystore service, far
+ * too slow to make per chunk, so notes are sealed with an ordinary AES data
+ * key instead. Only the data key is encrypted with the keystore key, and it is
+ * kept in a file next to the notes, so it is unwrapped once per process start.
+ * The keystore key can't be exported, so neither the file nor a copy of the
+ * notes is any use on another device.
+ */
+public final class DeviceKey {
+
+    private static final String KEYSTORE = "AndroidKeyStore";
+    private static final String ALIAS = "hypernotes.notes";
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+
+    private static final int MAGIC = 0x484E4B59; // "HNKY"
+    private static final int FORMAT_VERSION = 1;
+
+    private static final int DATA_KEY_BYTES = 32;
+
+    private DeviceKey() {}
+
+    /**
+     * The data key is there but the keystore key it was wrapped with is gone,
+     * as after a restore onto another device or a reset of the keystore. The
+     * notes can't be read again; the only way on is to start over.
+     */
+    public static final class LostKeyException extends IOException {
+        LostKeyException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * A cipher with the data key kept in {@code file}, creating both the
+     * keystore key and the data key the first time.
+     *
+     * @throws LostKeyException if the keystore key the data key was wrapped with is gone
+     */
+    public static NoteCipher open(File file) throws IOException {
+        try {
+            KeyStore keyStore = KeyStore.getInstance(KEYSTORE);
+            keyStore.load(null);
+            SecretKey wrappingKey = (SecretKey) keyStore.getKey(ALIAS, null);
+            if (file.exists()) {
+                if (wrappingKey == null) {
+                    throw new LostKeyException("Notes were encrypted with a key this device does not have");
+                }
+                return new NoteCipher(unwrap(file, wrappingKey));
+            }
+            if (wrappingKey == null) {
+                wrappingKey = createWrappingKey();
+            }
+            byte[] dataKey = new byte[DATA_KEY_BYTES];
+            new SecureRandom().nextBytes(dataKey);
+            wrap(file, wrappingKey, dataKey);
+            return new NoteCipher(new SecretKeySpec(dataKey, "AES"));
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Cannot open the note key", e);
+        }
+    }
+
+    private static SecretKey createWrappingKey() throws GeneralSecurityException {
+        KeyGenerator generator = KeyGenerator.getInstance(KeyProperties.KEY_ALGORITHM_AES, KEYSTORE);
+        generator.init(new KeyGenParameterSpec.Builder(ALIAS,
+                KeyProperties.PURPOSE_ENCRYPT | KeyProperties.PURPOSE_DECRYPT)
+                .setBlockModes(KeyProperties.BLOCK_MODE_GCM)
+                .setEncryptionPaddings(KeyProperties.ENCRYPTION_PADDING_NONE)
+                .setKeySize(256)
+                .build());
+        return generator.generateKey();
+    }
+
+    // The keystore picks the nonce itself, so it is stored ahead of the wrapped key
+    private static void wrap(File file, SecretKey wrappingKey, byte[] dataKey)
+            throws IOException, GeneralSecurityException {
+        Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+        cipher.init(Cipher.ENCRYPT_MODE, wrappingKey);
+        byte[] nonce = cipher.getIV();
+        byte[] wrapped = cipher.doFinal(dataKey);
+
+        File directory = file.getParentFile();
+        if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        AtomicFiles.replace(file, out -> {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(nonce.length);
+            out.write(nonce);
+            out.writeInt(wrapped.length);
+            out.write(wrapped);
+        });
+    }
+
+    private static SecretKey unwrap(File file, SecretKey wrappingKey) throws IOException, GeneralSecurityException {
+        byte[] nonce;
+        byte[] wrapped;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+                throw new IOException("Not a note key: " + file);
+            }
+            nonce = readBytes(in, 64);
+            wrapped = readBytes(in, 256);
+        } catch (EOFException e) {
+            throw new IOException("Truncated note key: " + file, e);
+        }
+        Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+        cipher.init(Cipher.DECRYPT_MODE, wrappingKey, new GCMParameterSpec(128, nonce));
+        return new SecretKeySpec(cipher.doFinal(wrapped), "AES");
+    }
+
+    private static byte[] readBytes(DataInputStream in, int limit) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > limit) {
+            throw new IOException("Bad note key length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+}
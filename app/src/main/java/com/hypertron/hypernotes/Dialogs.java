@@ -2,8 +2,11 @@ package com.hypertron.hypernotes;
 
 import android.content.Context;
 import android.content.DialogInterface;
+import android.text.Editable;
 import android.text.InputFilter;
 import android.text.InputType;
+import android.text.TextWatcher;
+import android.view.inputmethod.EditorInfo;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.Window;
@@ -24,6 +27,12 @@ import android.widget.ArrayAdapter;
 
 import android.graphics.drawable.ColorDrawable;
 
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
 public class Dialogs {
 
     public interface ColorSelectionListener {
@@ -38,10 +47,27 @@ public class Dialogs {
         void onNoteAdded(String title, String content, int colorIndex, int symbolIndex, String customEmoji);
     }
     
+    public interface RevisionSelectionListener {
+        void onRevisionSelected(NoteHistory.Revision revision);
+    }
+    
+    public interface ChoiceListener {
+        void onChoice(int which);
+    }
+    
+    public interface QuickOpenListener {
+        void onNoteChosen(long id);
+    }
+    
     public interface NoteOptionsListener {
         void onNoteEdit(int position);
         void onNoteDelete(int position);
     }
+    
+    public interface KeyLostListener {
+        void onReset();
+        void onClose();
+    }
 
     /**
      * Show dialog for selecting a color
@@ -294,6 +320,99 @@ public class Dialogs {
         });
     }
     
+    /**
+     * Show a list of options with the current one checked
+     */
+    public static void showChoiceDialog(Context context, int titleResId, String[] options, int checked,
+                                        ChoiceListener listener) {
+        AlertDialog.Builder builder = new AlertDialog.Builder(context);
+        builder.setTitle(titleResId);
+        builder.setSingleChoiceItems(options, checked, new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialog, int which) {
+                if (listener != null && which != checked) {
+                    listener.onChoice(which);
+                }
+                dialog.dismiss();
+            }
+        });
+        
+        AlertDialog dialog = builder.create();
+        // Add this to ensure rounded corners
+        if (dialog.getWindow() != null) {
+            dialog.getWindow().setBackgroundDrawableResource(R.drawable.dialog_background);
+        }
+        dialog.show();
+    }
+    
+    /**
+     * Show the quick-open palette: titles matching what's typed so far, best first
+     */
+    public static void showQuickOpenDialog(Context context, NoteRepository repository,
+                                           QuickOpenListener listener) {
+        AlertDialog.Builder builder = new AlertDialog.Builder(context);
+        View dialogView = LayoutInflater.from(context).inflate(R.layout.dialog_quick_open, null);
+        builder.setView(dialogView);
+        
+        EditText etQuery = dialogView.findViewById(R.id.etQuickOpen);
+        ListView listResults = dialogView.findViewById(R.id.listQuickOpen);
+        List<Note> results = new ArrayList<>();
+        ArrayAdapter<String> adapter = new ArrayAdapter<>(context, android.R.layout.simple_list_item_1,
+                new ArrayList<>());
+        listResults.setAdapter(adapter);
+        
+        AlertDialog dialog = builder.create();
+        if (dialog.getWindow() != null) {
+            dialog.getWindow().setBackgroundDrawableResource(R.drawable.dialog_background);
+        }
+        
+        listResults.setOnItemClickListener((parent, view, position, id) -> {
+            dialog.dismiss();
+            if (listener != null) {
+                listener.onNoteChosen(results.get(position).getId());
+            }
+        });
+        
+        etQuery.setOnEditorActionListener((view, actionId, event) -> {
+            if (actionId != EditorInfo.IME_ACTION_GO || results.isEmpty()) {
+                return false;
+            }
+            dialog.dismiss();
+            if (listener != null) {
+                listener.onNoteChosen(results.get(0).getId());
+            }
+            return true;
+        });
+        
+        etQuery.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
+            
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+            }
+            
+            @Override
+            public void afterTextChanged(Editable s) {
+                repository.quickOpen(s.toString(), (query, notes) -> {
+                    // Drop results for a query the user has already typed past
+                    if (!query.equals(etQuery.getText().toString())) {
+                        return;
+                    }
+                    results.clear();
+                    results.addAll(notes);
+                    adapter.clear();
+                    for (Note note : notes) {
+                        adapter.add(note.getTitle());
+                    }
+                });
+            }
+        });
+        
+        dialog.show();
+    }
+    
     /**
      * Show options dialog for a note
      */
@@ -325,6 +444,38 @@ public class Dialogs {
         dialog.show();
     }
     
+    /**
+     * Show dialog listing saved versions of a note, newest first
+     */
+    public static void showRevisionsDialog(Context context, List<NoteHistory.Revision> revisions,
+                                           RevisionSelectionListener listener) {
+        SimpleDateFormat dateFormat = new SimpleDateFormat("MMM dd, yyyy HH:mm", Locale.getDefault());
+        String[] items = new String[revisions.size()];
+        for (int i = 0; i < items.length; i++) {
+            NoteHistory.Revision revision = revisions.get(items.length - 1 - i);
+            items[i] = dateFormat.format(new Date(revision.timestamp)) + " · " + revision.title;
+        }
+        
+        AlertDialog.Builder builder = new AlertDialog.Builder(context);
+        builder.setTitle(R.string.note_history);
+        builder.setItems(items, new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialog, int which) {
+                if (listener != null) {
+                    listener.onRevisionSelected(revisions.get(items.length - 1 - which));
+                }
+            }
+        });
+        builder.setNegativeButton(R.string.cancel, null);
+        
+        AlertDialog dialog = builder.create();
+        // Add this to ensure rounded corners
+        if (dialog.getWindow() != null) {
+            dialog.getWindow().setBackgroundDrawableResource(R.drawable.dialog_background);
+        }
+        dialog.show();
+    }
+    
     /**
      * Show confirmation dialog for deleting a note
      */
@@ -351,4 +502,35 @@ public class Dialogs {
         }
         dialog.show();
     }
-}
\ No newline at end of file
+    
+    /**
+     * Show the dialog offering to start over when the notes' key is gone; it can't be dismissed
+     */
+    public static void showKeyLostDialog(Context context, KeyLostListener listener) {
+        AlertDialog.Builder builder = new AlertDialog.Builder(context);
+        builder.setTitle(R.string.key_lost_title);
+        builder.setMessage(R.string.key_lost_message);
+        builder.setCancelable(false);
+        
+        builder.setPositiveButton(R.string.key_lost_reset, new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialog, int which) {
+                listener.onReset();
+            }
+        });
+        
+        builder.setNegativeButton(R.string.close, new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialog, int which) {
+                listener.onClose();
+            }
+        });
+        
+        AlertDialog dialog = builder.create();
+        // Add this to ensure rounded corners
+        if (dialog.getWindow() != null) {
+            dialog.getWindow().setBackgroundDrawableResource(R.drawable.dialog_background);
+        }
+        dialog.show();
+    }
+}
@@ -0,0 +1,29 @@
+package com.hypertron.hypernotes;
+
+import android.text.Editable;
+import android.text.TextWatcher;
+
+/**
+ * Mirrors every edit made in a text field into a {@link NoteDocument}, so the
+ * document always matches the field without ever copying its whole text.
+ */
+public class DocumentTextWatcher implements TextWatcher {
+    private final NoteDocument document;
+
+    public DocumentTextWatcher(NoteDocument document) {
+        this.document = document;
+    }
+
+    @Override
+    public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+    }
+
+    @Override
+    public void onTextChanged(CharSequence s, int start, int before, int count) {
+        document.replace(start, before, s, start, start + count);
+    }
+
+    @Override
+    public void afterTextChanged(Editable s) {
+    }
+}
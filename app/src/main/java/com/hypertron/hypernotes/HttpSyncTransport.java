@@ -0,0 +1,77 @@
+package com.hypertron.hypernotes;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * Carries {@link NoteSync} exchanges to a server as HTTPS POSTs, one request
+ * and one response body per exchange, each carrying the account's token as
+ * a bearer credential. Plain http is refused: the notes and the token would
+ * both go out in the clear.
+ */
+public class HttpSyncTransport implements NoteSync.Transport {
+
+    private static final String CONTENT_TYPE = "application/octet-stream";
+    private static final int CONNECT_TIMEOUT_MS = 15_000;
+    private static final int READ_TIMEOUT_MS = 60_000;
+    // Far more than a full exchange of notes, deflated
+    private static final int MAX_RESPONSE_BYTES = 64 * 1024 * 1024;
+
+    private final URL url;
+    private final String token;
+
+    public HttpSyncTransport(String url, String token) throws IOException {
+        this.url = new URL(url);
+        if (!"https".equalsIgnoreCase(this.url.getProtocol())) {
+            throw new IOException("Sync server isn't https: " + url);
+        }
+        this.token = token;
+    }
+
+    /**
+     * Whether {@code url} is one this transport will sync with.
+     */
+    public static boolean isSecure(String url) {
+        return url.regionMatches(true, 0, "https://", 0, "https://".length());
+    }
+
+    @Override
+    public byte[] exchange(byte[] request) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        try {
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+            connection.setReadTimeout(READ_TIMEOUT_MS);
+            connection.setFixedLengthStreamingMode(request.length);
+            connection.setRequestProperty("Content-Type", CONTENT_TYPE);
+            connection.setRequestProperty("Authorization", "Bearer " + token);
+            try (OutputStream out = connection.getOutputStream()) {
+                out.write(request);
+            }
+
+            int status = connection.getResponseCode();
+            if (status != HttpURLConnection.HTTP_OK) {
+                throw new IOException("Sync server answered " + status);
+            }
+            try (InputStream in = connection.getInputStream()) {
+                ByteArrayOutputStream response = new ByteArrayOutputStream();
+                byte[] buffer = new byte[8192];
+                int read;
+                while ((read = in.read(buffer)) > 0) {
+                    if (response.size() > MAX_RESPONSE_BYTES - read) {
+                        throw new IOException("Sync response too long");
+                    }
+                    response.write(buffer, 0, read);
+                }
+                return response.toByteArray();
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package com.hypertron.hypernotes;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-size histogram of durations in nanoseconds, for timing hot paths.
+ *
+ * Buckets are log-linear, as in HdrHistogram: each power of two is split into
+ * {@code 2^SUB_BITS} equal buckets, so a bucket is never wider than 1/8 of the
+ * values in it. Reported quantiles are bucket midpoints, within about 6% of the
+ * true value. Durations from 0 up to about 73 minutes fit; longer ones count as
+ * 73 minutes.
+ *
+ * Like {@link StripedCounter}, each thread records into its own stripe of one
+ * flat array, so {@link #record} takes no lock, allocates nothing, and threads
+ * seldom contend. Snapshots merge the stripes while recording carries on.
+ */
+public final class LatencyHistogram {
+    private static final int SUB_BITS = 3;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    // Largest exponent kept: 2^42 ns is about 73 minutes
+    private static final int MAX_EXPONENT = 42;
+    private static final long MAX_VALUE = (1L << (MAX_EXPONENT + 1)) - 1;
+    static final int BUCKET_COUNT = (MAX_EXPONENT - SUB_BITS + 2) * SUB_COUNT;
+
+    // Each stripe is the buckets, then the sum and the max, padded to a cache line
+    private static final int SUM = BUCKET_COUNT;
+    private static final int MAX = BUCKET_COUNT + 1;
+    private static final int STRIDE = (BUCKET_COUNT + 2 + 7) & ~7;
+
+    private final AtomicLongArray cells;
+    private final int stripes;
+    private final int mask;
+
+    public LatencyHistogram() {
+        this.stripes = StripedCounter.stripeCount();
+        this.cells = new AtomicLongArray(stripes * STRIDE);
+        this.mask = stripes - 1;
+    }
+
+    /**
+     * Record a duration in nanoseconds.
+     */
+    public void record(long nanos) {
+        long value = Math.max(0, Math.min(nanos, MAX_VALUE));
+        int base = ((int) Thread.currentThread().getId() & mask) * STRIDE;
+        cells.getAndIncrement(base + bucketOf(value));
+        cells.getAndAdd(base + SUM, value);
+        long max = cells.get(base + MAX);
+        while (value > max && !cells.compareAndSet(base + MAX, max, value)) {
+            max = cells.get(base + MAX);
+        }
+    }
+
+    /**
+     * Record the time since {@code startNanos}, a reading of {@link System#nanoTime}.
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    public Snapshot snapshot() {
+        long[] counts = new long[BUCKET_COUNT];
+        long sum = 0;
+        long max = 0;
+        for (int stripe = 0; stripe < stripes; stripe++) {
+            int base = stripe * STRIDE;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                counts[i] += cells.get(base + i);
+            }
+            sum += cells.get(base + SUM);
+            max = Math.max(max, cells.get(base + MAX));
+        }
+        return new Snapshot(counts, sum, max);
+    }
+
+    public void reset() {
+        for (int i = 0; i < cells.length(); i++) {
+            cells.set(i, 0);
+        }
+    }
+
+    static int bucketOf(long value) {
+        if (value < SUB_COUNT) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_COUNT - 1);
+        return (exponent - SUB_BITS + 1) * SUB_COUNT + sub;
+    }
+
+    static long lowerBound(int bucket) {
+        if (bucket < SUB_COUNT) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_COUNT + SUB_BITS - 1;
+        return (long) (SUB_COUNT + bucket % SUB_COUNT) << (exponent - SUB_BITS);
+    }
+
+    static long width(int bucket) {
+        return bucket < SUB_COUNT ? 1 : 1L << (bucket / SUB_COUNT - 1);
+    }
+
+    /**
+     * The histogram's contents at one moment.
+     */
+    public static final class Snapshot {
+        private final long[] counts;
+        private final long count;
+        private final long sum;
+        private final long max;
+
+        Snapshot(long[] counts, long sum, long max) {
+            long count = 0;
+            for (long bucketCount : counts) {
+                count += bucketCount;
+            }
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        public long getCount() { return count; }
+        public long getMax() { return max; }
+
+        public long getMean() {
+            return count == 0 ? 0 : sum / count;
+        }
+
+        /**
+         * Duration that {@code quantile} (0 to 1) of the recorded durations don't exceed.
+         */
+        public long valueAt(double quantile) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(quantile * count));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(lowerBound(i) + width(i) / 2, max);
+                }
+            }
+            return max;
+        }
+    }
+}
@@ -4,59 +4,135 @@ import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.res.ColorStateList;
 import android.content.res.Configuration;
+import android.graphics.drawable.ColorDrawable;
 import android.os.Bundle;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
+import android.widget.ImageButton;
+import android.widget.TextView;
 import android.widget.Toast;
 import androidx.activity.result.ActivityResultLauncher;
 import androidx.activity.result.contract.ActivityResultContracts;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.appcompat.app.AppCompatDelegate;
+import androidx.appcompat.widget.SearchView;
 import androidx.appcompat.widget.Toolbar;
 import androidx.recyclerview.widget.RecyclerView;
 import androidx.recyclerview.widget.StaggeredGridLayoutManager;
+import com.google.android.material.appbar.AppBarLayout;
 import com.google.android.material.floatingactionbutton.FloatingActionButton;
+
 import java.util.ArrayList;
-import java.util.List;
-import java.util.Random;
 
 public class MainActivity extends AppCompatActivity {
 
     private static final String PREFS_NAME = "HyperNotesPrefs";
     private static final String KEY_FIRST_RUN = "first_run";
     private static final String KEY_THEME_MODE = "theme_mode";
+    private static final String KEY_SORT_ORDER = "sort_order";
+    // Left this long after the first frame, the search index builds while nothing else is going on
+    private static final long SEARCH_INDEX_DELAY_MS = 3000;
     
     private RecyclerView recyclerView;
+    private NoteRepository noteRepository;
     private NoteAdapter noteAdapter;
-    private List<Note> notesList;
+    private final NoteListDiffer noteDiffer = new NoteListDiffer();
+    private NoteList notesList;
+    // Order and filters of the grid; only the order outlives the screen
+    private NoteView noteView = NoteView.DEFAULT;
+    // A newly created note to bring into view once the grid has it
+    private long scrollToNoteId = -1;
+    private String searchQuery = "";
     private FloatingActionButton fabAdd;
     private FloatingActionButton fabTheme;
+    private AppBarLayout appBar;
+    private Toolbar toolbar;
+    private TextView toolbarTitle;
+    private ImageButton menuButton;
+    // Palette the screen is currently colored with
+    private ThemePalette palette;
     
     private ActivityResultLauncher<Intent> createNoteLauncher;
     
     @Override
     protected void onCreate(Bundle savedInstanceState) {
-        if (isFirstRun()) {
+        // Each cold start phase is timed; see StartupTrace
+        StartupTrace.begin("isFirstRun");
+        boolean firstRun = isFirstRun();
+        StartupTrace.end("isFirstRun");
+        StartupTrace.setFirstRun(firstRun);
+        if (firstRun) {
+            StartupTrace.begin("accentBounce");
             startActivity(new Intent(this, AccentColorActivity.class));
             finish();
+            StartupTrace.end("accentBounce");
             return;
         }
         
+        StartupTrace.begin("superOnCreate");
         super.onCreate(savedInstanceState);
+        StartupTrace.end("superOnCreate");
+        
+        StartupTrace.begin("inflate");
         setContentView(R.layout.activity_main);
         
-        Toolbar toolbar = findViewById(R.id.toolbar_layout);
+        toolbar = findViewById(R.id.toolbar_layout);
         setSupportActionBar(toolbar);
+        appBar = findViewById(R.id.appBar);
+        toolbarTitle = findViewById(R.id.toolbar_title);
+        menuButton = findViewById(R.id.menu_button);
         
         recyclerView = findViewById(R.id.recyclerView);
         fabAdd = findViewById(R.id.fabAdd);
         fabTheme = findViewById(R.id.fabTheme);
+        StartupTrace.end("inflate");
+        
+        StartupTrace.begin("openRepository");
+        if (NoteRepository.isKeyLost(this)) {
+            StartupTrace.end("openRepository");
+            showKeyLostDialog();
+            return;
+        }
+        noteRepository = NoteRepository.getInstance(this);
+        StartupTrace.end("openRepository");
         
         registerActivityResultLaunchers();
-        applyAccentColors();
+        StartupTrace.begin("setupRecyclerView");
         setupRecyclerView();
+        StartupTrace.end("setupRecyclerView");
+        
+        StartupTrace.begin("applyPalette");
+        applyPalette(PaletteService.getInstance(this).get(this));
+        StartupTrace.end("applyPalette");
         setupClickListeners();
+        StartupTrace.finishOnFirstFrame(this);
+        recyclerView.postDelayed(() -> noteRepository.prepareSearch(), SEARCH_INDEX_DELAY_MS);
+    }
+    
+    /**
+     * The notes can't be read on this device any more; starting over with an
+     * empty store is the only way on, and a sync brings back what was synced.
+     */
+    private void showKeyLostDialog() {
+        Dialogs.showKeyLostDialog(this, new Dialogs.KeyLostListener() {
+            @Override
+            public void onReset() {
+                NoteRepository.resetStore(MainActivity.this, success -> {
+                    if (success) {
+                        recreate();
+                    } else {
+                        Toast.makeText(MainActivity.this, R.string.error_resetting_notes, Toast.LENGTH_LONG).show();
+                        finish();
+                    }
+                });
+            }
+            
+            @Override
+            public void onClose() {
+                finish();
+            }
+        });
     }
     
     private void registerActivityResultLaunchers() {
@@ -64,34 +140,16 @@ public class MainActivity extends AppCompatActivity {
             new ActivityResultContracts.StartActivityForResult(),
             result -> {
                 if (result.getResultCode() == RESULT_OK && result.getData() != null) {
-                    Intent data = result.getData();
-                    String title = data.getStringExtra("title");
-                    String content = data.getStringExtra("content");
-                    int colorIndex = data.getIntExtra("colorIndex", -1);
-                    int symbolIndex = data.getIntExtra("symbolIndex", -1);
-                    String customEmoji = data.getStringExtra("customEmoji");
-                    
-                    int colorResId;
-                    if (colorIndex == -1) {
-                        int[] colorResIds = getColorResourceIds();
-                        colorResId = colorResIds[new Random().nextInt(colorResIds.length)];
-                    } else {
-                        int[] colorResIds = getColorResourceIds();
-                        colorResId = colorResIds[colorIndex];
+                    // CreateNoteActivity has already saved the note; only its id comes back
+                    Note newNote = noteRepository.getNote(
+                        result.getData().getLongExtra(NoteRepository.EXTRA_NOTE_ID, -1));
+                    if (newNote == null || notesList.positionOf(newNote.getId()) >= 0) {
+                        return;
                     }
                     
-                    long newId = System.currentTimeMillis();
-                    Note newNote = new Note(newId, title, content, System.currentTimeMillis(), colorResId);
-                    
-                    // Set the symbol index and custom emoji
-                    newNote.setSymbolIndex(symbolIndex);
-                    if (customEmoji != null) {
-                        newNote.setCustomEmoji(customEmoji);
-                    }
-                    
-                    notesList.add(0, newNote);
-                    noteAdapter.notifyItemInserted(0);
-                    recyclerView.scrollToPosition(0);
+                    // Where it lands depends on the sort order and filters, so leave
+                    // placing it to the refresh in onResume, which follows right after
+                    scrollToNoteId = newNote.getId();
                     
                     Toast.makeText(MainActivity.this, "Note created", Toast.LENGTH_SHORT).show();
                 }
@@ -108,20 +166,54 @@ public class MainActivity extends AppCompatActivity {
         return isFirstRun;
     }
     
-    private void applyAccentColors() {
-        int accentColor = AccentColorActivity.getAccentColor(this);
+    /**
+     * Color the screen with {@code palette}, re-tinting the views already on it.
+     */
+    private void applyPalette(ThemePalette palette) {
+        if (palette == this.palette) {
+            return;
+        }
+        this.palette = palette;
         
-        if (fabAdd != null) {
-            fabAdd.setBackgroundTintList(ColorStateList.valueOf(accentColor));
+        getWindow().setBackgroundDrawable(new ColorDrawable(palette.getBackground()));
+        getWindow().setStatusBarColor(palette.getToolbar());
+        if (appBar != null) {
+            appBar.setBackgroundColor(palette.getToolbar());
+        }
+        if (toolbar != null) {
+            toolbar.setBackgroundColor(palette.getToolbar());
+        }
+        if (toolbarTitle != null) {
+            toolbarTitle.setTextColor(palette.getOnToolbar());
+        }
+        if (menuButton != null) {
+            menuButton.setImageTintList(ColorStateList.valueOf(palette.getOnToolbar()));
         }
         
+        ColorStateList accent = ColorStateList.valueOf(palette.getAccent());
+        if (fabAdd != null) {
+            fabAdd.setBackgroundTintList(accent);
+        }
         if (fabTheme != null) {
-            fabTheme.setBackgroundTintList(ColorStateList.valueOf(accentColor));
+            fabTheme.setBackgroundTintList(accent);
+        }
+        
+        if (noteAdapter != null) {
+            noteAdapter.setPalette(palette);
         }
     }
     
     private void setupRecyclerView() {
-        notesList = new ArrayList<>();
+        SharedPreferences prefs = getSharedPreferences(PREFS_NAME, MODE_PRIVATE);
+        noteView = NoteView.DEFAULT.withSort(prefs.getInt(KEY_SORT_ORDER, NoteView.SORT_MODIFIED));
+        if (noteView.isDefault()) {
+            notesList = noteRepository.getNotes();
+        } else {
+            // Other orders are sorted on first use, too slow for the main thread;
+            // start empty rather than flash the notes in the wrong order
+            notesList = new NoteList(null, new int[0], new ArrayList<>(), 0);
+            showView(noteView);
+        }
         noteAdapter = new NoteAdapter(this, notesList);
         
         int orientation = getResources().getConfiguration().orientation;
@@ -141,19 +233,6 @@ public class MainActivity extends AppCompatActivity {
         fabTheme.setOnClickListener(v -> toggleThemeMode());
     }
     
-    private int[] getColorResourceIds() {
-        return new int[] {
-            R.color.note_blue,
-            R.color.note_green,
-            R.color.note_yellow,
-            R.color.note_orange,
-            R.color.note_red,
-            R.color.note_purple,
-            R.color.note_pink,
-            R.color.note_teal
-        };
-    }
-    
     private void toggleThemeMode() {
         int currentNightMode = getResources().getConfiguration().uiMode & 
                                 Configuration.UI_MODE_NIGHT_MASK;
@@ -165,16 +244,75 @@ public class MainActivity extends AppCompatActivity {
         SharedPreferences prefs = getSharedPreferences(PREFS_NAME, MODE_PRIVATE);
         prefs.edit().putInt(KEY_THEME_MODE, newMode).apply();
         
+        // MainActivity handles uiMode changes itself, so this lands in
+        // onConfigurationChanged instead of recreating the screen and its grid
         AppCompatDelegate.setDefaultNightMode(newMode);
-        recreate();
+    }
+    
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+        super.onConfigurationChanged(newConfig);
+        applyPalette(PaletteService.getInstance(this).get(PaletteService.isDark(newConfig)));
     }
     
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
+        if (noteRepository == null) {
+            return false;
+        }
         getMenuInflater().inflate(R.menu.menu_main, menu);
+        setupSearch(menu.findItem(R.id.action_search));
         return true;
     }
     
+    private void setupSearch(MenuItem searchItem) {
+        SearchView searchView = (SearchView) searchItem.getActionView();
+        searchView.setQueryHint(getString(R.string.search_hint));
+        searchView.setOnQueryTextListener(new SearchView.OnQueryTextListener() {
+            @Override
+            public boolean onQueryTextSubmit(String query) {
+                runSearch(query);
+                return true;
+            }
+            
+            @Override
+            public boolean onQueryTextChange(String newText) {
+                runSearch(newText);
+                return true;
+            }
+        });
+        
+        searchItem.setOnActionExpandListener(new MenuItem.OnActionExpandListener() {
+            @Override
+            public boolean onMenuItemActionExpand(MenuItem item) {
+                // In case the index isn't underway yet; typing follows at once
+                noteRepository.prepareSearch();
+                return true;
+            }
+            
+            @Override
+            public boolean onMenuItemActionCollapse(MenuItem item) {
+                runSearch("");
+                return true;
+            }
+        });
+    }
+    
+    private void runSearch(String query) {
+        searchQuery = query.trim();
+        if (searchQuery.isEmpty()) {
+            noteAdapter.setNotes(notesList);
+            return;
+        }
+        
+        noteRepository.search(searchQuery, noteView, (resultQuery, results) -> {
+            // Drop results for a query the user has already typed past
+            if (resultQuery.equals(searchQuery)) {
+                noteAdapter.setNotes(results);
+            }
+        });
+    }
+    
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
         int id = item.getItemId();
@@ -182,22 +320,117 @@ public class MainActivity extends AppCompatActivity {
         if (id == R.id.action_settings) {
             startActivity(new Intent(this, SettingsActivity.class));
             return true;
+        } else if (id == R.id.action_quick_open) {
+            Dialogs.showQuickOpenDialog(this, noteRepository, noteId -> {
+                Intent intent = new Intent(this, NoteEditorActivity.class);
+                intent.putExtra(NoteRepository.EXTRA_NOTE_ID, noteId);
+                startActivity(intent);
+            });
+            return true;
+        } else if (id == R.id.action_sort) {
+            Dialogs.showChoiceDialog(this, R.string.action_sort,
+                    getResources().getStringArray(R.array.sort_options), noteView.getSort(),
+                    which -> {
+                        getSharedPreferences(PREFS_NAME, MODE_PRIVATE).edit()
+                                .putInt(KEY_SORT_ORDER, which).apply();
+                        showView(noteView.withSort(which));
+                    });
+            return true;
+        } else if (id == R.id.action_filter_color) {
+            Dialogs.showChoiceDialog(this, R.string.action_filter_color,
+                    withAllOption(R.string.all_colors, getResources().getStringArray(R.array.palette_color_names)),
+                    noteView.getColorIndex() + 1,
+                    which -> showView(noteView.withColor(which - 1)));
+            return true;
+        } else if (id == R.id.action_filter_symbol) {
+            String[] symbols = getResources().getStringArray(R.array.note_symbols);
+            Dialogs.showChoiceDialog(this, R.string.action_filter_symbol,
+                    withAllOption(R.string.all_symbols, symbols), noteView.getSymbolIndex() + 1,
+                    which -> showView(noteView.withSymbol(which - 1, symbols.length)));
+            return true;
         } else if (id == R.id.action_change_accent) {
             startActivity(new Intent(this, AccentColorActivity.class));
             return true;
-        } else if (id == R.id.action_search) {
-            return true;
         }
         
         return super.onOptionsItemSelected(item);
     }
     
+    /**
+     * Options for a filter dialog: "all" first, so option i is filter value i - 1.
+     */
+    private String[] withAllOption(int allResId, String[] values) {
+        String[] options = new String[values.length + 1];
+        options[0] = getString(allResId);
+        System.arraycopy(values, 0, options, 1, values.length);
+        return options;
+    }
+    
+    /**
+     * Show the grid in another order or with other filters. The whole list is
+     * replaced rather than diffed, since most notes move.
+     */
+    private void showView(NoteView view) {
+        noteView = view;
+        noteDiffer.replace(() -> noteRepository.getNotes(view), (newList, update) -> {
+            notesList = newList;
+            if (!searchQuery.isEmpty()) {
+                runSearch(searchQuery);
+                return;
+            }
+            noteAdapter.setNotes(newList, update);
+            recyclerView.scrollToPosition(0);
+        });
+    }
+    
     @Override
     protected void onResume() {
         super.onResume();
         if (noteAdapter != null) {
-            noteAdapter.notifyDataSetChanged();
+            refreshNotes();
+        }
+        // A no-op unless the accent changed while away
+        applyPalette(PaletteService.getInstance(this).get(this));
+    }
+    
+    /**
+     * Reload the notes shown in the grid and rebind only the cards that changed.
+     */
+    private void refreshNotes() {
+        if (!searchQuery.isEmpty()) {
+            runSearch(searchQuery);
+            return;
+        }
+        
+        NoteView view = noteView;
+        // Behind the fold of a note just left in the editor, which is queued as it closes
+        noteDiffer.diff(notesList, () -> noteRepository.getNotesAfterWrites(view), (newList, update) -> {
+            if (!searchQuery.isEmpty()) {
+                return;
+            }
+            notesList = newList;
+            noteAdapter.setNotes(newList, update);
+            scrollToNewNote();
+        });
+    }
+    
+    private void scrollToNewNote() {
+        if (scrollToNoteId < 0) {
+            return;
+        }
+        int position = notesList.positionOf(scrollToNoteId);
+        scrollToNoteId = -1;
+        // Filtered out notes have no position
+        if (position >= 0) {
+            recyclerView.scrollToPosition(position);
+        }
+    }
+    
+    @Override
+    protected void onStop() {
+        super.onStop();
+        if (noteRepository != null) {
+            noteRepository.checkpointIfNeeded();
         }
-        applyAccentColors();
     }
 }
\ No newline at end of file
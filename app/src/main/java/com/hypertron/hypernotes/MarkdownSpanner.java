@@ -0,0 +1,203 @@
+package com.hypertron.hypernotes;
+
+import android.graphics.Typeface;
+import android.text.Editable;
+import android.text.Spannable;
+import android.text.Spanned;
+import android.text.TextWatcher;
+import android.text.style.BackgroundColorSpan;
+import android.text.style.ForegroundColorSpan;
+import android.text.style.RelativeSizeSpan;
+import android.text.style.StrikethroughSpan;
+import android.text.style.StyleSpan;
+import android.text.style.TypefaceSpan;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Styles the Markdown in a text field as it is edited.
+ *
+ * A {@link NoteMarkdown} follows the edits and says which blocks changed;
+ * only those blocks have their spans replaced, and every other block keeps
+ * the spans it was given. Even in a changed block most spans usually survive:
+ * the field moves spans along with the text, so where a re-parsed run lands
+ * exactly on an old span of the same style the old span is kept instead of
+ * being removed and added again.
+ */
+public class MarkdownSpanner implements TextWatcher, NoteMarkdown.Listener {
+
+    // Past this many old runs, pairing them with new ones costs more than replacing them all
+    private static final int MAX_MATCHED_RUNS = 256;
+    private static final float[] HEADING_SIZES = {1.6f, 1.4f, 1.25f, 1.15f, 1.05f, 1f};
+
+    private final NoteMarkdown markdown;
+    private final int accentColor;
+    private final int markupColor;
+    private final int quoteColor;
+    private final int codeBackground;
+
+    // Blocks the last edit replaced, styled once the field has finished changing
+    private final ArrayList<NoteMarkdown.Block> removed = new ArrayList<>();
+    private final ArrayList<NoteMarkdown.Block> added = new ArrayList<>();
+
+    // Spans of the removed blocks, with the style and place of each, up for reuse
+    private int[] staleRuns = new int[64 * 3];
+    private Object[] staleSpans = new Object[64 * 2];
+
+    /**
+     * Style all of {@code text} now; add the spanner as a watcher of the same
+     * field to keep it styled.
+     */
+    public MarkdownSpanner(Spannable text, int textColor, int accentColor) {
+        this.accentColor = accentColor;
+        this.markupColor = ColorMath.withAlpha(textColor, 0x66);
+        this.quoteColor = ColorMath.withAlpha(textColor, 0xAA);
+        this.codeBackground = ColorMath.withAlpha(textColor, 0x1A);
+        markdown = new NoteMarkdown(text);
+        for (int i = 0; i < markdown.getBlockCount(); i++) {
+            apply(text, markdown.getBlock(i), 0);
+        }
+    }
+
+    @Override
+    public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+    }
+
+    @Override
+    public void onTextChanged(CharSequence s, int start, int before, int count) {
+        markdown.edit(s, start, before, count, this);
+    }
+
+    @Override
+    public void onBlocksChanged(List<NoteMarkdown.Block> removedBlocks, List<NoteMarkdown.Block> addedBlocks) {
+        removed.addAll(removedBlocks);
+        added.addAll(addedBlocks);
+    }
+
+    @Override
+    public void afterTextChanged(Editable s) {
+        if (removed.isEmpty() && added.isEmpty()) {
+            return;
+        }
+        int staleCount = collectStale(s);
+        for (NoteMarkdown.Block block : added) {
+            apply(s, block, staleCount);
+        }
+        // Whatever nobody took up goes
+        for (int i = 0; i < staleCount; i++) {
+            if (staleRuns[i * 3] != 0) {
+                removeSpans(s, staleSpans, i * 2);
+            }
+        }
+        removed.clear();
+        added.clear();
+    }
+
+    // Gather the spans of removed blocks where they are now, or drop them all if there are too many to pair
+    private int collectStale(Spannable text) {
+        int count = 0;
+        for (NoteMarkdown.Block block : removed) {
+            count += block.getRunCount();
+        }
+        if (count > MAX_MATCHED_RUNS) {
+            for (NoteMarkdown.Block block : removed) {
+                Object[] spans = (Object[]) block.getSpans();
+                for (int i = 0; spans != null && i < spans.length; i += 2) {
+                    removeSpans(text, spans, i);
+                }
+            }
+            return 0;
+        }
+        if (staleRuns.length < count * 3) {
+            staleRuns = new int[count * 3];
+            staleSpans = new Object[count * 2];
+        }
+        int stale = 0;
+        for (NoteMarkdown.Block block : removed) {
+            Object[] spans = (Object[]) block.getSpans();
+            if (spans == null) {
+                continue;
+            }
+            for (int run = 0; run < block.getRunCount(); run++, stale++) {
+                staleRuns[stale * 3] = block.getRunStyle(run);
+                staleRuns[stale * 3 + 1] = text.getSpanStart(spans[run * 2]);
+                staleRuns[stale * 3 + 2] = text.getSpanEnd(spans[run * 2]);
+                staleSpans[stale * 2] = spans[run * 2];
+                staleSpans[stale * 2 + 1] = spans[run * 2 + 1];
+            }
+        }
+        return stale;
+    }
+
+    private void apply(Spannable text, NoteMarkdown.Block block, int staleCount) {
+        Object[] spans = new Object[block.getRunCount() * 2];
+        for (int run = 0; run < block.getRunCount(); run++) {
+            int style = block.getRunStyle(run);
+            int start = block.getRunStart(run);
+            int end = block.getRunEnd(run);
+            int reuse = -1;
+            for (int i = 0; i < staleCount; i++) {
+                if (staleRuns[i * 3] == style && staleRuns[i * 3 + 1] == start && staleRuns[i * 3 + 2] == end) {
+                    reuse = i;
+                    break;
+                }
+            }
+            if (reuse >= 0) {
+                spans[run * 2] = staleSpans[reuse * 2];
+                spans[run * 2 + 1] = staleSpans[reuse * 2 + 1];
+                // Taken
+                staleRuns[reuse * 3] = 0;
+                continue;
+            }
+            createSpans(style, spans, run * 2);
+            text.setSpan(spans[run * 2], start, end, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+            if (spans[run * 2 + 1] != null) {
+                text.setSpan(spans[run * 2 + 1], start, end, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+            }
+        }
+        block.setSpans(spans);
+    }
+
+    // One or two spans for a run, into spans[at] and spans[at + 1]
+    private void createSpans(int style, Object[] spans, int at) {
+        switch (style) {
+            case NoteMarkdown.EMPHASIS:
+                spans[at] = new StyleSpan(Typeface.ITALIC);
+                break;
+            case NoteMarkdown.STRONG:
+                spans[at] = new StyleSpan(Typeface.BOLD);
+                break;
+            case NoteMarkdown.STRIKETHROUGH:
+                spans[at] = new StrikethroughSpan();
+                break;
+            case NoteMarkdown.CODE:
+            case NoteMarkdown.CODE_BLOCK:
+                spans[at] = new TypefaceSpan("monospace");
+                spans[at + 1] = new BackgroundColorSpan(codeBackground);
+                break;
+            case NoteMarkdown.LIST_MARKER:
+                spans[at] = new ForegroundColorSpan(accentColor);
+                spans[at + 1] = new StyleSpan(Typeface.BOLD);
+                break;
+            case NoteMarkdown.QUOTE:
+                spans[at] = new ForegroundColorSpan(quoteColor);
+                spans[at + 1] = new StyleSpan(Typeface.ITALIC);
+                break;
+            case NoteMarkdown.MARKUP:
+                spans[at] = new ForegroundColorSpan(markupColor);
+                break;
+            default:
+                spans[at] = new RelativeSizeSpan(HEADING_SIZES[style - NoteMarkdown.HEADING_1]);
+                spans[at + 1] = new StyleSpan(Typeface.BOLD);
+                break;
+        }
+    }
+
+    private static void removeSpans(Spannable text, Object[] spans, int at) {
+        text.removeSpan(spans[at]);
+        if (spans[at + 1] != null) {
+            text.removeSpan(spans[at + 1]);
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package com.hypertron.hypernotes;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The app's named counters and latency histograms.
+ *
+ * Code that records a metric looks it up once and keeps it in a static field.
+ * The hot path then touches only the {@link StripedCounter} or
+ * {@link LatencyHistogram} itself, never this registry:
+ *
+ * <pre>
+ * private static final LatencyHistogram BIND_TIME = Metrics.histogram("adapter.bind");
+ * ...
+ * long start = System.nanoTime();
+ * ...
+ * BIND_TIME.recordSince(start);
+ * </pre>
+ *
+ * Names are dotted, area first, so related metrics sort together in reports.
+ */
+public final class Metrics {
+    private static final Map<String, StripedCounter> counters = new ConcurrentHashMap<>();
+    private static final Map<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+
+    private Metrics() {
+    }
+
+    /**
+     * The counter named {@code name}, created on first use.
+     */
+    public static StripedCounter counter(String name) {
+        return counters.computeIfAbsent(name, key -> new StripedCounter());
+    }
+
+    /**
+     * The histogram named {@code name}, created on first use.
+     */
+    public static LatencyHistogram histogram(String name) {
+        return histograms.computeIfAbsent(name, key -> new LatencyHistogram());
+    }
+
+    /**
+     * Every metric as a plain-text table: count, p50, p90, p99, max and mean
+     * of each histogram, then the value of each counter.
+     */
+    public static String report() {
+        StringBuilder out = new StringBuilder(1024);
+        out.append(String.format(Locale.US, "%-24s %8s %9s %9s %9s %9s %9s%n",
+                "histogram", "count", "p50", "p90", "p99", "max", "mean"));
+        for (String name : sorted(histograms)) {
+            LatencyHistogram.Snapshot snapshot = histograms.get(name).snapshot();
+            out.append(String.format(Locale.US, "%-24s %8d %9s %9s %9s %9s %9s%n",
+                    name, snapshot.getCount(),
+                    formatNanos(snapshot.valueAt(0.50)),
+                    formatNanos(snapshot.valueAt(0.90)),
+                    formatNanos(snapshot.valueAt(0.99)),
+                    formatNanos(snapshot.getMax()),
+                    formatNanos(snapshot.getMean())));
+        }
+        out.append(String.format(Locale.US, "%n%-24s %8s%n", "counter", "value"));
+        for (String name : sorted(counters)) {
+            out.append(String.format(Locale.US, "%-24s %8d%n", name, counters.get(name).sum()));
+        }
+        return out.toString();
+    }
+
+    /**
+     * Write {@link #report} to {@code file}, replacing it.
+     */
+    public static void dumpTo(File file) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(report().getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * Zero every metric, e.g. to measure one scenario on its own.
+     */
+    public static void reset() {
+        for (StripedCounter counter : counters.values()) {
+            counter.reset();
+        }
+        for (LatencyHistogram histogram : histograms.values()) {
+            histogram.reset();
+        }
+    }
+
+    private static List<String> sorted(Map<String, ?> metrics) {
+        List<String> names = new ArrayList<>(metrics.keySet());
+        Collections.sort(names);
+        return names;
+    }
+
+    static String formatNanos(long nanos) {
+        if (nanos < 1_000) {
+            return nanos + "ns";
+        } else if (nanos < 1_000_000) {
+            return String.format(Locale.US, "%.1fus", nanos / 1e3);
+        } else if (nanos < 1_000_000_000) {
+            return String.format(Locale.US, "%.1fms", nanos / 1e6);
+        }
+        return String.format(Locale.US, "%.2fs", nanos / 1e9);
+    }
+}
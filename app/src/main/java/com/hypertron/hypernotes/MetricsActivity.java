@@ -0,0 +1,91 @@
+package com.hypertron.hypernotes;
+
+import android.os.Bundle;
+import android.view.Menu;
+import android.view.MenuItem;
+import android.widget.TextView;
+import android.widget.Toast;
+import androidx.appcompat.app.ActionBar;
+import androidx.appcompat.app.AppCompatActivity;
+import androidx.appcompat.widget.Toolbar;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Debug screen showing the {@link Metrics} report, reached by tapping the
+ * version in Settings a few times.
+ */
+public class MetricsActivity extends AppCompatActivity {
+    private static final String DUMP_FILE = "metrics.txt";
+
+    private TextView tvMetrics;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_metrics);
+
+        Toolbar toolbar = findViewById(R.id.toolbar);
+        setSupportActionBar(toolbar);
+        ActionBar actionBar = getSupportActionBar();
+        if (actionBar != null) {
+            actionBar.setDisplayHomeAsUpEnabled(true);
+            actionBar.setTitle(R.string.metrics);
+        }
+
+        tvMetrics = findViewById(R.id.tvMetrics);
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        showReport();
+    }
+
+    private void showReport() {
+        tvMetrics.setText(Metrics.report());
+    }
+
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        getMenuInflater().inflate(R.menu.menu_metrics, menu);
+        return true;
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        int id = item.getItemId();
+
+        if (id == android.R.id.home) {
+            onBackPressed();
+            return true;
+        } else if (id == R.id.action_refresh_metrics) {
+            showReport();
+            return true;
+        } else if (id == R.id.action_dump_metrics) {
+            dumpReport();
+            return true;
+        } else if (id == R.id.action_reset_metrics) {
+            Metrics.reset();
+            showReport();
+            return true;
+        }
+
+        return super.onOptionsItemSelected(item);
+    }
+
+    /**
+     * Write the report where adb can pull it, falling back to internal storage.
+     */
+    private void dumpReport() {
+        File directory = getExternalFilesDir(null);
+        File file = new File(directory != null ? directory : getFilesDir(), DUMP_FILE);
+        try {
+            Metrics.dumpTo(file);
+            Toast.makeText(this, getString(R.string.metrics_dumped, file.getPath()), Toast.LENGTH_LONG).show();
+        } catch (IOException e) {
+            Toast.makeText(this, R.string.error_dumping_metrics, Toast.LENGTH_SHORT).show();
+        }
+    }
+}
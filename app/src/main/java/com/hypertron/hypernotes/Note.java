@@ -8,6 +8,8 @@ public class Note {
     private int colorResId;
     private int symbolIndex;
     private String customEmoji;
+    private int version;
+    private NoteCard card;
 
     // Constructor with colorResId
     public Note(long id, String title, String content, long timestamp, int colorResId) {
@@ -28,9 +30,15 @@ public class Note {
     public int getColorResId() { return colorResId; }
     public int getSymbolIndex() { return symbolIndex; }
     public String getCustomEmoji() { return customEmoji; }
+    // Bumped by NoteStore on every save, so equal versions mean equal contents
+    public int getVersion() { return version; }
+    // Display model cached by NoteCardRenderer; never persisted
+    public NoteCard getCard() { return card; }
     
     // Setter methods
     public void setColorResId(int colorResId) { this.colorResId = colorResId; }
     public void setSymbolIndex(int symbolIndex) { this.symbolIndex = symbolIndex; }
     public void setCustomEmoji(String customEmoji) { this.customEmoji = customEmoji; }
+    public void setVersion(int version) { this.version = version; }
+    public void setCard(NoteCard card) { this.card = card; }
 }
\ No newline at end of file
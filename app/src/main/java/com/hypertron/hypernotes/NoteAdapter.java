@@ -1,8 +1,8 @@
 package com.hypertron.hypernotes;
 
 import android.content.Context;
-import android.content.res.Resources;
-import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -11,21 +11,159 @@ import android.widget.TextView;
 import androidx.annotation.NonNull;
 import androidx.cardview.widget.CardView;
 import androidx.recyclerview.widget.RecyclerView;
+import androidx.recyclerview.widget.StaggeredGridLayoutManager;
 
-import java.util.List;
-import java.util.Locale;
-import java.util.Date;
-import java.util.Random;
-import java.text.SimpleDateFormat;
+import java.util.BitSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import android.content.Intent;
 
 public class NoteAdapter extends RecyclerView.Adapter<NoteAdapter.NoteViewHolder> {
+    // Pages decoded ahead of and behind the visible range
+    private static final int PREFETCH_PAGES = 1;
+
+    private static final ExecutorService pageLoader = Executors.newSingleThreadExecutor();
+
+    private static final LatencyHistogram BIND_TIME = Metrics.histogram("adapter.bind");
+    private static final LatencyHistogram PAGE_DECODE_TIME = Metrics.histogram("adapter.pageDecode");
+    private static final StripedCounter PLACEHOLDER_BINDS = Metrics.counter("adapter.placeholderBinds");
+
     private Context context;
-    private List<Note> notes;
+    private NoteList notes;
+    private final NoteCardRenderer cardRenderer;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final BitSet pendingPages = new BitSet();
+    private final BitSet placeholders = new BitSet();
+    private RecyclerView recyclerView;
 
-    public NoteAdapter(Context context, List<Note> notes) {
+    private final RecyclerView.OnScrollListener windowTracker = new RecyclerView.OnScrollListener() {
+        @Override
+        public void onScrolled(@NonNull RecyclerView recyclerView, int dx, int dy) {
+            updateWindow();
+        }
+    };
+
+    public NoteAdapter(Context context, NoteList notes) {
         this.context = context;
         this.notes = notes;
+        this.cardRenderer = new NoteCardRenderer(context);
+    }
+
+    /**
+     * Show a different list, e.g. search results instead of every note.
+     */
+    public void setNotes(NoteList notes) {
+        setNotes(notes, NoteListDiffer.Update.FULL_REFRESH);
+    }
+
+    /**
+     * Show a new version of the current list, rebinding only what {@code update} says changed.
+     */
+    public void setNotes(NoteList notes, NoteListDiffer.Update update) {
+        this.notes = notes;
+        pendingPages.clear();
+        placeholders.clear();
+        update.dispatchTo(this);
+    }
+
+    public NoteList getNotes() {
+        return notes;
+    }
+
+    /**
+     * Recolor the cards for another theme or accent, in place.
+     */
+    public void setPalette(ThemePalette palette) {
+        cardRenderer.setPalette(palette);
+        notifyItemRangeChanged(0, getItemCount());
+    }
+
+    @Override
+    public void onAttachedToRecyclerView(@NonNull RecyclerView recyclerView) {
+        this.recyclerView = recyclerView;
+        recyclerView.addOnScrollListener(windowTracker);
+    }
+
+    @Override
+    public void onDetachedFromRecyclerView(@NonNull RecyclerView recyclerView) {
+        recyclerView.removeOnScrollListener(windowTracker);
+        this.recyclerView = null;
+    }
+
+    /**
+     * Keep decoded pages around the visible range and drop the rest.
+     */
+    private void updateWindow() {
+        if (recyclerView == null || notes.isEmpty()
+                || !(recyclerView.getLayoutManager() instanceof StaggeredGridLayoutManager)) {
+            return;
+        }
+        StaggeredGridLayoutManager layoutManager = (StaggeredGridLayoutManager) recyclerView.getLayoutManager();
+        int firstVisible = Integer.MAX_VALUE;
+        int lastVisible = RecyclerView.NO_POSITION;
+        for (int position : layoutManager.findFirstVisibleItemPositions(null)) {
+            if (position != RecyclerView.NO_POSITION) {
+                firstVisible = Math.min(firstVisible, position);
+            }
+        }
+        for (int position : layoutManager.findLastVisibleItemPositions(null)) {
+            lastVisible = Math.max(lastVisible, position);
+        }
+        if (lastVisible == RecyclerView.NO_POSITION) {
+            return;
+        }
+
+        int firstPage = Math.max(0, NoteList.pageOf(firstVisible) - PREFETCH_PAGES);
+        int lastPage = Math.min(NoteList.pageOf(notes.size() - 1), NoteList.pageOf(lastVisible) + PREFETCH_PAGES);
+        notes.retainPages(firstPage, lastPage);
+        for (int page = firstPage; page <= lastPage; page++) {
+            requestPage(page);
+        }
+    }
+
+    /**
+     * Decode a page on the loader thread and rebind any cards shown as placeholders meanwhile.
+     */
+    private void requestPage(int page) {
+        if (notes.isPageLoaded(page) || pendingPages.get(page)) {
+            return;
+        }
+        pendingPages.set(page);
+        NoteList list = notes;
+        int epoch = list.getCacheEpoch();
+        int[] rows = list.rowsForPage(page);
+        NoteSnapshot snapshot = list.getSnapshot();
+
+        pageLoader.execute(() -> {
+            long decodeStart = System.nanoTime();
+            Note[] decoded = NoteList.decodePage(snapshot, rows);
+            for (Note note : decoded) {
+                if (note != null) {
+                    note.setCard(cardRenderer.render(note));
+                }
+            }
+            PAGE_DECODE_TIME.recordSince(decodeStart);
+            mainHandler.post(() -> {
+                if (list != notes) {
+                    return;
+                }
+                pendingPages.clear(page);
+                list.installPage(page, decoded, epoch);
+                if (epoch != list.getCacheEpoch()) {
+                    // Positions moved while decoding; start over with the current layout
+                    updateWindow();
+                    return;
+                }
+                int start = page * NoteList.PAGE_SIZE;
+                int end = Math.min(start + NoteList.PAGE_SIZE, list.size());
+                for (int position = placeholders.nextSetBit(start);
+                     position >= 0 && position < end;
+                     position = placeholders.nextSetBit(position + 1)) {
+                    placeholders.clear(position);
+                    notifyItemChanged(position);
+                }
+            });
+        });
     }
 
     @NonNull
@@ -37,50 +175,37 @@ public class NoteAdapter extends RecyclerView.Adapter<NoteAdapter.NoteViewHolder
 
     @Override
     public void onBindViewHolder(NoteViewHolder holder, int position) {
-        Note note = notes.get(position);
-        
-        // Set title
-        holder.tvTitle.setText(note.getTitle());
-        
-        // Format and set time
-        SimpleDateFormat sdf = new SimpleDateFormat("MMM dd, yyyy", Locale.getDefault());
-        holder.tvTime.setText(sdf.format(new Date(note.getTimestamp())));
-        
-        // Set symbol/emoji
-        String symbol;
-        if (note.getCustomEmoji() != null) {
-            // Use custom emoji if available
-            symbol = note.getCustomEmoji();
-        } else {
-            try {
-                String[] symbols = context.getResources().getStringArray(R.array.note_symbols);
-                int symbolIndex = note.getSymbolIndex();
-                
-                // If symbolIndex is -1 (random) or out of bounds, use a random symbol
-                if (symbolIndex == -1 || symbolIndex >= symbols.length) {
-                    symbolIndex = new Random().nextInt(symbols.length);
-                }
-                
-                symbol = symbols[symbolIndex];
-            } catch (Resources.NotFoundException e) {
-                symbol = "📝"; // Fallback symbol
+        long start = System.nanoTime();
+        Note note = notes.getIfLoaded(position);
+        if (note == null) {
+            if (recyclerView != null && recyclerView.getScrollState() != RecyclerView.SCROLL_STATE_IDLE) {
+                // Don't decode on the main thread mid-scroll; the page arrives in a moment
+                bindPlaceholder(holder);
+                placeholders.set(position);
+                requestPage(NoteList.pageOf(position));
+                PLACEHOLDER_BINDS.increment();
+                return;
             }
+            note = notes.get(position);
         }
-        
-        holder.tvIcon.setText(symbol);
-        
-        // IMPORTANT: Remove any typeface setting that might prevent emoji display
-        // holder.tvIcon.setTypeface(Typeface.create("sans-serif", Typeface.NORMAL));
-        
-        // Set card color
-        int colorResId = note.getColorResId();
-        int color;
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
-            color = context.getResources().getColor(colorResId, context.getTheme());
-        } else {
-            color = context.getResources().getColor(colorResId);
-        }
-        holder.cardView.setCardBackgroundColor(color);
+        placeholders.clear(position);
+
+        // Everything below is precomputed; binding only copies fields into views
+        NoteCard card = cardRenderer.cardFor(note);
+        holder.tvTitle.setText(note.getTitle());
+        holder.tvTime.setText(card.getDate());
+        holder.tvIcon.setText(card.getSymbol());
+        holder.cardView.setCardBackgroundColor(card.getColor());
+        holder.tvTitle.setTextColor(card.getTextColor());
+        holder.tvIcon.setTextColor(card.getTextColor());
+        holder.tvTime.setTextColor(card.getSecondaryTextColor());
+        BIND_TIME.recordSince(start);
+    }
+    
+    private void bindPlaceholder(NoteViewHolder holder) {
+        holder.tvTitle.setText("");
+        holder.tvTime.setText("");
+        holder.tvIcon.setText("");
     }
     
     // Helper method to determine if a color is dark
@@ -116,7 +241,7 @@ public class NoteAdapter extends RecyclerView.Adapter<NoteAdapter.NoteViewHolder
                 if (position != RecyclerView.NO_POSITION) {
                     Note note = notes.get(position);
                     Intent intent = new Intent(context, NoteEditorActivity.class);
-                    intent.putExtra("noteId", note.getId());
+                    intent.putExtra(NoteRepository.EXTRA_NOTE_ID, note.getId());
                     context.startActivity(intent);
                 }
             });
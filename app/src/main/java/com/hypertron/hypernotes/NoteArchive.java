@@ -0,0 +1,357 @@
+package com.hypertron.hypernotes;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * A zip of notes, one Markdown file each, for moving notes in and out of the app.
+ *
+ * Each note is {@code notes/<id>.md}: a front matter block with its metadata,
+ * then its body exactly as written:
+ *
+ * <pre>
+ * ---
+ * id: 1700000000000
+ * modified: 1700000042000
+ * title: Groceries
+ * color: 2
+ * symbol: 5
+ * emoji: 📌
+ * ---
+ * Milk, eggs, ...
+ * </pre>
+ *
+ * Times are epoch milliseconds, the color is an index into the palette, and a
+ * negative symbol means random. {@code emoji} is only there for notes with a
+ * custom one. Backslashes and line breaks in the title are escaped as in Java.
+ *
+ * Any other {@code .md} file reads as a note with no id, titled after the
+ * file, so a zip of plain Markdown files imports too.
+ *
+ * Both directions stream: only the note at hand is ever in memory.
+ */
+public final class NoteArchive {
+    private static final String NOTES_DIR = "notes/";
+    private static final String EXTENSION = ".md";
+    private static final String FENCE = "---";
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private NoteArchive() {
+    }
+
+    /**
+     * Writes notes to an archive one at a time.
+     */
+    public static final class Writer implements Closeable {
+        private final ZipOutputStream zip;
+        private final java.io.Writer text;
+        private final int[] colorResIds;
+        private final char[] buffer = new char[8192];
+
+        /**
+         * @param colorResIds palette the notes' colorResId values are drawn from
+         */
+        public Writer(OutputStream out, int[] colorResIds) {
+            this.zip = new ZipOutputStream(new BufferedOutputStream(out, BUFFER_SIZE));
+            this.text = new BufferedWriter(new OutputStreamWriter(
+                    new UnclosedOutputStream(zip), StandardCharsets.UTF_8), 8192);
+            this.colorResIds = colorResIds;
+        }
+
+        /**
+         * Add a note, with its body read from {@code content} to the end.
+         * The note's own content, if any, is ignored.
+         */
+        public void add(Note note, java.io.Reader content) throws IOException {
+            ZipEntry entry = new ZipEntry(NOTES_DIR + note.getId() + EXTENSION);
+            entry.setTime(note.getTimestamp());
+            zip.putNextEntry(entry);
+
+            text.write(FENCE + "\n");
+            text.write("id: " + note.getId() + "\n");
+            text.write("modified: " + note.getTimestamp() + "\n");
+            text.write("title: " + escape(note.getTitle()) + "\n");
+            text.write("color: " + colorIndexOf(note.getColorResId()) + "\n");
+            text.write("symbol: " + note.getSymbolIndex() + "\n");
+            if (note.getCustomEmoji() != null) {
+                text.write("emoji: " + escape(note.getCustomEmoji()) + "\n");
+            }
+            text.write(FENCE + "\n");
+            if (content != null) {
+                int read;
+                while ((read = content.read(buffer)) > 0) {
+                    text.write(buffer, 0, read);
+                }
+            }
+            text.flush();
+            zip.closeEntry();
+        }
+
+        private int colorIndexOf(int colorResId) {
+            for (int i = 0; i < colorResIds.length; i++) {
+                if (colorResIds[i] == colorResId) {
+                    return i;
+                }
+            }
+            return 0;
+        }
+
+        @Override
+        public void close() throws IOException {
+            zip.close();
+        }
+    }
+
+    /**
+     * Reads notes from an archive one at a time.
+     */
+    public static final class Reader implements Closeable {
+        private final CountingInputStream counter;
+        private final ZipInputStream zip;
+        private final int[] colorResIds;
+        private final char[] buffer = new char[8192];
+
+        public Reader(InputStream in, int[] colorResIds) {
+            this.counter = new CountingInputStream(in);
+            this.zip = new ZipInputStream(new BufferedInputStream(counter, BUFFER_SIZE));
+            this.colorResIds = colorResIds;
+        }
+
+        /**
+         * The next note, with its content, or null past the last one. Its id is
+         * 0 when the file didn't say, and may be taken already; that's up to the
+         * caller. Entries other than Markdown files are skipped.
+         */
+        public Note next() throws IOException {
+            ZipEntry entry;
+            while ((entry = zip.getNextEntry()) != null) {
+                String name = entry.getName();
+                if (!entry.isDirectory() && name.toLowerCase(Locale.ROOT).endsWith(EXTENSION)) {
+                    return read(name);
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Compressed bytes consumed so far, for progress against the archive's size.
+         */
+        public long getBytesRead() {
+            return counter.count;
+        }
+
+        private Note read(String name) throws IOException {
+            BufferedReader in = new BufferedReader(new InputStreamReader(
+                    new UnclosedInputStream(zip), StandardCharsets.UTF_8), 8192);
+
+            long id = 0;
+            long modified = -1;
+            String title = null;
+            int colorIndex = 0;
+            int symbolIndex = -1;
+            String emoji = null;
+
+            if (startsWithFence(in)) {
+                in.readLine();
+                String line;
+                while ((line = in.readLine()) != null && !FENCE.equals(line)) {
+                    int colon = line.indexOf(':');
+                    if (colon < 0) {
+                        continue;
+                    }
+                    String key = line.substring(0, colon).trim();
+                    // Only the one space after the colon, so titles keep their own
+                    String value = line.substring(colon + 1);
+                    if (value.startsWith(" ")) {
+                        value = value.substring(1);
+                    }
+                    switch (key) {
+                        case "id":
+                            id = parseLong(value, 0);
+                            break;
+                        case "modified":
+                            modified = parseLong(value, -1);
+                            break;
+                        case "title":
+                            title = unescape(value);
+                            break;
+                        case "color":
+                            colorIndex = (int) parseLong(value, 0);
+                            break;
+                        case "symbol":
+                            symbolIndex = (int) parseLong(value, -1);
+                            break;
+                        case "emoji":
+                            emoji = unescape(value);
+                            break;
+                        default:
+                            // Unknown keys are from a newer version; skip them
+                            break;
+                    }
+                }
+            }
+
+            StringBuilder content = new StringBuilder();
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                content.append(buffer, 0, read);
+            }
+
+            if (title == null) {
+                int slash = name.lastIndexOf('/');
+                title = name.substring(slash + 1, name.length() - EXTENSION.length());
+            }
+            if (modified < 0) {
+                modified = System.currentTimeMillis();
+            }
+            int colorResId = colorIndex >= 0 && colorIndex < colorResIds.length
+                    ? colorResIds[colorIndex] : colorResIds[0];
+            Note note = new Note(Math.max(id, 0), title, content.toString(), modified, colorResId);
+            note.setSymbolIndex(symbolIndex);
+            note.setCustomEmoji(emoji);
+            return note;
+        }
+
+        @Override
+        public void close() throws IOException {
+            zip.close();
+        }
+    }
+
+    /**
+     * Whether the text starts with a front matter fence line, without consuming anything.
+     */
+    private static boolean startsWithFence(BufferedReader in) throws IOException {
+        char[] start = new char[FENCE.length() + 2];
+        in.mark(start.length);
+        int length = 0;
+        int read;
+        while (length < start.length && (read = in.read(start, length, start.length - length)) > 0) {
+            length += read;
+        }
+        in.reset();
+        String head = new String(start, 0, length);
+        return head.startsWith(FENCE + "\n") || head.startsWith(FENCE + "\r\n");
+    }
+
+    private static long parseLong(String value, long fallback) {
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return fallback;
+        }
+    }
+
+    static String escape(String value) {
+        if (value == null) {
+            return "";
+        }
+        StringBuilder out = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\') {
+                out.append("\\\\");
+            } else if (c == '\n') {
+                out.append("\\n");
+            } else if (c == '\r') {
+                out.append("\\r");
+            } else {
+                out.append(c);
+            }
+        }
+        return out.toString();
+    }
+
+    static String unescape(String value) {
+        if (value.indexOf('\\') < 0) {
+            return value;
+        }
+        StringBuilder out = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' && i + 1 < value.length()) {
+                char next = value.charAt(++i);
+                out.append(next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+            } else {
+                out.append(c);
+            }
+        }
+        return out.toString();
+    }
+
+    // Entries are written and read through their own streams, which must not close the zip
+
+    private static final class UnclosedOutputStream extends FilterOutputStream {
+        UnclosedOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] bytes, int off, int len) throws IOException {
+            out.write(bytes, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+
+    private static final class UnclosedInputStream extends FilterInputStream {
+        UnclosedInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static final class CountingInputStream extends FilterInputStream {
+        long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] bytes, int off, int len) throws IOException {
+            int read = super.read(bytes, off, len);
+            if (read > 0) {
+                count += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package com.hypertron.hypernotes;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.text.Editable;
+import android.text.TextWatcher;
+import android.widget.EditText;
+
+/**
+ * Saves a note as it is edited: once typing pauses for a moment, and whenever
+ * the screen is left. Only the edits since the last save are written, to the
+ * note's journal, so the cost doesn't grow with the size of the note.
+ */
+public class NoteAutosaver implements TextWatcher {
+    private static final long IDLE_DELAY_MS = 2000;
+
+    private final NoteRepository repository;
+    private final Note note;
+    private final EditText titleField;
+    private final NoteDocument document;
+    private final String untitled;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Runnable idleSave = this::save;
+    private String savedTitle;
+
+    /**
+     * @param note the note being edited, without content; a new note is created on the first save
+     * @param document the body, already tracking {@code contentField}
+     */
+    public NoteAutosaver(NoteRepository repository, Note note, EditText titleField, EditText contentField,
+                         NoteDocument document, String untitled) {
+        this.repository = repository;
+        this.note = note;
+        this.titleField = titleField;
+        this.document = document;
+        this.untitled = untitled;
+        this.savedTitle = titleField.getText().toString().trim();
+        titleField.addTextChangedListener(this);
+        contentField.addTextChangedListener(this);
+    }
+
+    /**
+     * Save now if anything changed since the last save.
+     */
+    public void save() {
+        handler.removeCallbacks(idleSave);
+        String title = titleField.getText().toString().trim();
+        if (!document.isModified() && title.equals(savedTitle)) {
+            return;
+        }
+        repository.autosave(note, title.isEmpty() ? untitled : title, document);
+        savedTitle = title;
+    }
+
+    /**
+     * Save, then fold the journal into the note's record in the background.
+     */
+    public void close() {
+        save();
+        repository.foldJournal(note.getId());
+    }
+
+    @Override
+    public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+    }
+
+    @Override
+    public void onTextChanged(CharSequence s, int start, int before, int count) {
+    }
+
+    @Override
+    public void afterTextChanged(Editable s) {
+        handler.removeCallbacks(idleSave);
+        handler.postDelayed(idleSave, IDLE_DELAY_MS);
+    }
+}
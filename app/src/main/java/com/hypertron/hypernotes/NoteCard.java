@@ -0,0 +1,56 @@
+package com.hypertron.hypernotes;
+
+/**
+ * Everything a grid card shows for one version of a note, resolved ahead of
+ * time by {@link NoteCardRenderer} so binding a card is plain field assignment.
+ */
+public final class NoteCard {
+    private final int version;
+    private final String date;
+    private final String symbol;
+    private final ThemePalette palette;
+    private final int color;
+    private final int textColor;
+    private final int secondaryTextColor;
+
+    public NoteCard(int version, String date, String symbol, ThemePalette palette, int colorResId) {
+        this.version = version;
+        this.date = date;
+        this.symbol = symbol;
+        this.palette = palette;
+        this.color = palette.noteColor(colorResId);
+        this.textColor = palette.noteTextColor(colorResId);
+        this.secondaryTextColor = palette.noteSecondaryTextColor(colorResId);
+    }
+
+    /**
+     * This card with its colors taken from another palette, e.g. after the theme changed.
+     */
+    public NoteCard withPalette(ThemePalette palette, int colorResId) {
+        return new NoteCard(version, date, symbol, palette, colorResId);
+    }
+
+    // Note version this card was rendered from
+    public int getVersion() { return version; }
+    public String getDate() { return date; }
+    public String getSymbol() { return symbol; }
+    // Palette the colors below were resolved from
+    public ThemePalette getPalette() { return palette; }
+    // Resolved ARGB card background
+    public int getColor() { return color; }
+    // Title and symbol color that reads well on the background
+    public int getTextColor() { return textColor; }
+    public int getSecondaryTextColor() { return secondaryTextColor; }
+
+    /**
+     * Index into the symbol array for a note, deriving one from the id when the
+     * note asks for a random symbol so a card keeps its icon across rebinds.
+     */
+    public static int symbolIndexFor(Note note, int symbolCount) {
+        int symbolIndex = note.getSymbolIndex();
+        if (symbolIndex < 0 || symbolIndex >= symbolCount) {
+            symbolIndex = Math.floorMod(Long.hashCode(note.getId()), symbolCount);
+        }
+        return symbolIndex;
+    }
+}
@@ -0,0 +1,75 @@
+package com.hypertron.hypernotes;
+
+import android.content.Context;
+import android.content.res.Resources;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Builds {@link NoteCard}s: formats the date, picks the symbol and takes the
+ * card colors from the current {@link ThemePalette}. Resources are looked up
+ * once, and the work is meant to run off the main thread as pages are decoded.
+ */
+public class NoteCardRenderer {
+    private static final String FALLBACK_SYMBOL = "📝";
+
+    private final String[] symbols;
+    private final SimpleDateFormat dateFormat = new SimpleDateFormat("MMM dd, yyyy", Locale.getDefault());
+    private final Date date = new Date();
+    // Set on the main thread, read by the page loader
+    private volatile ThemePalette palette;
+
+    public NoteCardRenderer(Context context) {
+        this.palette = PaletteService.getInstance(context).get(context);
+        String[] loaded;
+        try {
+            loaded = context.getResources().getStringArray(R.array.note_symbols);
+        } catch (Resources.NotFoundException e) {
+            loaded = new String[0];
+        }
+        this.symbols = loaded;
+    }
+
+    /**
+     * Color cards from now on with {@code palette}. Cards already rendered are
+     * recolored as they are next bound, without formatting them again.
+     */
+    public void setPalette(ThemePalette palette) {
+        this.palette = palette;
+    }
+
+    /**
+     * The card for the note's current version, rendering and caching it on the note if needed.
+     */
+    public NoteCard cardFor(Note note) {
+        NoteCard card = note.getCard();
+        ThemePalette current = palette;
+        if (card == null || card.getVersion() != note.getVersion()) {
+            card = render(note);
+            note.setCard(card);
+        } else if (card.getPalette() != current) {
+            card = card.withPalette(current, note.getColorResId());
+            note.setCard(card);
+        }
+        return card;
+    }
+
+    // SimpleDateFormat isn't thread-safe, and pages may be rendered while the main thread binds
+    public synchronized NoteCard render(Note note) {
+        date.setTime(note.getTimestamp());
+        return new NoteCard(note.getVersion(), dateFormat.format(date), symbolFor(note), palette,
+                note.getColorResId());
+    }
+
+    private String symbolFor(Note note) {
+        if (note.getCustomEmoji() != null) {
+            return note.getCustomEmoji();
+        }
+        if (symbols.length == 0) {
+            return FALLBACK_SYMBOL;
+        }
+        return symbols[NoteCard.symbolIndexFor(note, symbols.length)];
+    }
+}
@@ -0,0 +1,326 @@
+package com.hypertron.hypernotes;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+/**
+ * Authenticated encryption of note data at rest, in chunks that are sealed
+ * and opened independently.
+ *
+ * A sealed chunk is its nonce, the AES-GCM ciphertext and the tag, so any one
+ * of them can be read and checked without touching the rest of the file. The
+ * caller names every chunk by a context and an index, which are authenticated
+ * along with it: a chunk moved to another file or record, or put in another
+ * place in the same one, fails to open just like a modified one.
+ *
+ * The data key is a plain AES key held in memory, so sealing runs at the
+ * speed of the platform's own AES-GCM; {@link DeviceKey} keeps it on disk
+ * wrapped by a key that never leaves the device's keystore.
+ *
+ * Nonces are a random prefix drawn per instance followed by a counter
+ * starting at a random value, so they don't repeat under one key and sealing
+ * a chunk costs no call into SecureRandom. Thread-safe.
+ */
+public final class NoteCipher {
+
+    public static final int NONCE_SIZE = 12;
+    public static final int TAG_SIZE = 16;
+    // Bytes a sealed chunk takes on top of its plaintext
+    public static final int OVERHEAD = NONCE_SIZE + TAG_SIZE;
+
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+
+    private final SecretKey key;
+    private final SecureRandom random = new SecureRandom();
+    private final int noncePrefix;
+    private final AtomicLong nonceCounter;
+
+    // Cipher objects aren't thread-safe, and fetching one per chunk costs as much as sealing a small one
+    private final ThreadLocal<Worker> workers = new ThreadLocal<Worker>() {
+        @Override
+        protected Worker initialValue() {
+            return new Worker();
+        }
+    };
+
+    private static final class Worker {
+        final Cipher cipher;
+        // context (8) + index (8)
+        final byte[] aad = new byte[16];
+
+        Worker() {
+            try {
+                cipher = Cipher.getInstance(TRANSFORMATION);
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("AES-GCM is not available", e);
+            }
+        }
+
+        byte[] aad(long context, long index) {
+            writeLong(aad, 0, context);
+            writeLong(aad, 8, index);
+            return aad;
+        }
+    }
+
+    /**
+     * @param key a 128 or 256-bit AES key, such as the one {@link DeviceKey} unwraps
+     */
+    public NoteCipher(SecretKey key) {
+        this.key = key;
+        this.noncePrefix = random.nextInt();
+        this.nonceCounter = new AtomicLong(random.nextLong());
+    }
+
+    /**
+     * A random value, for naming the chunks of a new file apart from those of every other.
+     */
+    public long newContext() {
+        return random.nextLong();
+    }
+
+    /**
+     * Size of {@code plainLength} bytes sealed in chunks of {@code chunkSize}.
+     */
+    public static long sealedLength(long plainLength, int chunkSize) {
+        long chunks = (plainLength + chunkSize - 1) / chunkSize;
+        return plainLength + chunks * OVERHEAD;
+    }
+
+    /**
+     * Seal {@code length} bytes as a single chunk into {@code out}, which
+     * needs room for {@link #OVERHEAD} bytes more than the plaintext.
+     *
+     * @return size of the sealed chunk
+     */
+    public int seal(long context, long index, byte[] in, int offset, int length, byte[] out, int outOffset) {
+        Worker worker = workers.get();
+        writeInt(out, outOffset, noncePrefix);
+        writeLong(out, outOffset + 4, nonceCounter.getAndIncrement());
+        try {
+            worker.cipher.init(Cipher.ENCRYPT_MODE, key,
+                    new GCMParameterSpec(TAG_SIZE * 8, out, outOffset, NONCE_SIZE));
+            worker.cipher.updateAAD(worker.aad(context, index));
+            return NONCE_SIZE + worker.cipher.doFinal(in, offset, length, out, outOffset + NONCE_SIZE);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Cannot seal note data", e);
+        }
+    }
+
+    public byte[] seal(long context, long index, byte[] in, int offset, int length) {
+        byte[] out = new byte[length + OVERHEAD];
+        seal(context, index, in, offset, length, out, 0);
+        return out;
+    }
+
+    /**
+     * Open a chunk sealed under the same context and index into {@code out},
+     * which needs room for {@code length - OVERHEAD} bytes.
+     *
+     * @return size of the plaintext
+     * @throws IOException if the chunk was modified, truncated or sealed for another place
+     */
+    public int open(long context, long index, byte[] in, int offset, int length, byte[] out, int outOffset)
+            throws IOException {
+        if (length < OVERHEAD) {
+            throw new IOException("Truncated sealed chunk");
+        }
+        Worker worker = workers.get();
+        try {
+            worker.cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_SIZE * 8, in, offset, NONCE_SIZE));
+            worker.cipher.updateAAD(worker.aad(context, index));
+            return worker.cipher.doFinal(in, offset + NONCE_SIZE, length - NONCE_SIZE, out, outOffset);
+        } catch (AEADBadTagException e) {
+            throw new IOException("Note data failed authentication", e);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Cannot open note data", e);
+        }
+    }
+
+    public byte[] open(long context, long index, byte[] in, int offset, int length) throws IOException {
+        if (length < OVERHEAD) {
+            throw new IOException("Truncated sealed chunk");
+        }
+        byte[] out = new byte[length - OVERHEAD];
+        open(context, index, in, offset, length, out, 0);
+        return out;
+    }
+
+    /**
+     * A stream sealing what is written to it in chunks of {@code chunkSize},
+     * numbered from 0 under {@code context}, onto {@code out}.
+     */
+    public SealingStream sealing(OutputStream out, long context, int chunkSize) {
+        return new SealingStream(this, out, context, chunkSize);
+    }
+
+    /**
+     * A stream of the {@code plainLength} bytes that {@link #sealing} sealed
+     * onto {@code in} under {@code context}, opened one chunk at a time.
+     */
+    public InputStream opening(InputStream in, long context, int chunkSize, long plainLength) {
+        return new OpeningStream(this, in, context, chunkSize, plainLength);
+    }
+
+    public static final class SealingStream extends OutputStream {
+        private final NoteCipher cipher;
+        private final OutputStream out;
+        private final long context;
+        private final byte[] plain;
+        private final byte[] sealed;
+        private int buffered;
+        private long index;
+
+        private SealingStream(NoteCipher cipher, OutputStream out, long context, int chunkSize) {
+            this.cipher = cipher;
+            this.out = out;
+            this.context = context;
+            this.plain = new byte[chunkSize];
+            this.sealed = new byte[chunkSize + OVERHEAD];
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            plain[buffered++] = (byte) b;
+            if (buffered == plain.length) {
+                sealChunk(plain, 0, buffered);
+                buffered = 0;
+            }
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            while (length > 0) {
+                if (buffered == 0 && length >= plain.length) {
+                    // Whole chunks are sealed straight from the caller's array
+                    sealChunk(buffer, offset, plain.length);
+                    offset += plain.length;
+                    length -= plain.length;
+                    continue;
+                }
+                int count = Math.min(length, plain.length - buffered);
+                System.arraycopy(buffer, offset, plain, buffered, count);
+                buffered += count;
+                offset += count;
+                length -= count;
+                if (buffered == plain.length) {
+                    sealChunk(plain, 0, buffered);
+                    buffered = 0;
+                }
+            }
+        }
+
+        private void sealChunk(byte[] buffer, int offset, int length) throws IOException {
+            out.write(sealed, 0, cipher.seal(context, index++, buffer, offset, length, sealed, 0));
+        }
+
+        /**
+         * Seal the last, partial chunk. The underlying stream is left open.
+         */
+        public void finish() throws IOException {
+            if (buffered > 0) {
+                sealChunk(plain, 0, buffered);
+                buffered = 0;
+            }
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            finish();
+            out.close();
+        }
+    }
+
+    private static final class OpeningStream extends InputStream {
+        private final NoteCipher cipher;
+        private final InputStream in;
+        private final long context;
+        private final byte[] sealed;
+        private final byte[] plain;
+        private long remaining;
+        private long index;
+        private int position;
+        private int limit;
+
+        OpeningStream(NoteCipher cipher, InputStream in, long context, int chunkSize, long plainLength) {
+            this.cipher = cipher;
+            this.in = in;
+            this.context = context;
+            this.remaining = plainLength;
+            int largest = (int) Math.min(chunkSize, plainLength);
+            this.sealed = new byte[largest + OVERHEAD];
+            this.plain = new byte[largest];
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (position == limit && !nextChunk()) {
+                return -1;
+            }
+            return plain[position++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            if (position == limit && !nextChunk()) {
+                return -1;
+            }
+            int count = Math.min(length, limit - position);
+            System.arraycopy(plain, position, buffer, offset, count);
+            position += count;
+            return count;
+        }
+
+        private boolean nextChunk() throws IOException {
+            if (remaining == 0) {
+                return false;
+            }
+            int length = (int) Math.min(plain.length, remaining);
+            int sealedLength = length + OVERHEAD;
+            for (int read = 0; read < sealedLength; ) {
+                int count = in.read(sealed, read, sealedLength - read);
+                if (count < 0) {
+                    throw new EOFException("Truncated sealed chunk");
+                }
+                read += count;
+            }
+            limit = cipher.open(context, index++, sealed, 0, sealedLength, plain, 0);
+            position = 0;
+            remaining -= length;
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    private static void writeLong(byte[] target, int offset, long value) {
+        for (int i = 7; i >= 0; i--) {
+            target[offset + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+    private static void writeInt(byte[] target, int offset, int value) {
+        target[offset] = (byte) (value >>> 24);
+        target[offset + 1] = (byte) (value >>> 16);
+        target[offset + 2] = (byte) (value >>> 8);
+        target[offset + 3] = (byte) value;
+    }
+}
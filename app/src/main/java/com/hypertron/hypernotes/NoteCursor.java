@@ -0,0 +1,204 @@
+package com.hypertron.hypernotes;
+
+import android.database.AbstractCursor;
+import android.database.Cursor;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Cursor over a window of a note list, for {@link NoteProvider}.
+ *
+ * Rows are read from the list only as the cursor reaches them, so over a
+ * {@link NoteList} at most a few pages of notes are ever decoded, however
+ * long the list. Bodies are read from the repository one row at a time, and
+ * only if the cursor has a {@link NoteProvider#COLUMN_CONTENT} column.
+ *
+ * Like any cursor, not thread-safe; the list it reads is its own copy.
+ */
+public class NoteCursor extends AbstractCursor {
+
+    private final List<Note> notes;
+    private final int offset;
+    private final int count;
+    private final String[] columns;
+    // What each column holds, one of the COLUMN_ constants' indexes below
+    private final int[] kinds;
+    private final NoteRepository repository;
+    private final int[] colorResIds;
+    private final int[] colors;
+    private final String[] symbols;
+
+    // Body of the row last asked for, since a window fill reads a column more than once
+    private int contentPosition = -1;
+    private String content;
+
+    private static final int KIND_ID = 0;
+    private static final int KIND_TITLE = 1;
+    private static final int KIND_MODIFIED = 2;
+    private static final int KIND_CREATED = 3;
+    private static final int KIND_COLOR = 4;
+    private static final int KIND_SYMBOL = 5;
+    private static final int KIND_CONTENT = 6;
+
+    /**
+     * @param offset position in {@code notes} of the cursor's first row
+     * @param columns columns, each one of {@link NoteProvider#ALL_COLUMNS}
+     * @param colors ARGB color for each of {@code colorResIds}
+     */
+    NoteCursor(List<Note> notes, int offset, int count, String[] columns, NoteRepository repository,
+               int[] colorResIds, int[] colors, String[] symbols) {
+        this.notes = notes;
+        this.offset = offset;
+        this.count = count;
+        this.columns = columns;
+        this.repository = repository;
+        this.colorResIds = colorResIds;
+        this.colors = colors;
+        this.symbols = symbols;
+        this.kinds = new int[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            kinds[i] = kindOf(columns[i]);
+        }
+    }
+
+    private static int kindOf(String column) {
+        switch (column) {
+            case NoteProvider.COLUMN_ID:
+                return KIND_ID;
+            case NoteProvider.COLUMN_TITLE:
+                return KIND_TITLE;
+            case NoteProvider.COLUMN_MODIFIED:
+                return KIND_MODIFIED;
+            case NoteProvider.COLUMN_CREATED:
+                return KIND_CREATED;
+            case NoteProvider.COLUMN_COLOR:
+                return KIND_COLOR;
+            case NoteProvider.COLUMN_SYMBOL:
+                return KIND_SYMBOL;
+            case NoteProvider.COLUMN_CONTENT:
+                return KIND_CONTENT;
+            default:
+                throw new IllegalArgumentException("Unknown column " + column);
+        }
+    }
+
+    @Override
+    public int getCount() {
+        return count;
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return columns;
+    }
+
+    @Override
+    public int getType(int column) {
+        switch (kinds[column]) {
+            case KIND_ID:
+            case KIND_MODIFIED:
+            case KIND_CREATED:
+            case KIND_COLOR:
+                return Cursor.FIELD_TYPE_INTEGER;
+            default:
+                return getString(column) != null ? Cursor.FIELD_TYPE_STRING : Cursor.FIELD_TYPE_NULL;
+        }
+    }
+
+    @Override
+    public String getString(int column) {
+        Note note = note();
+        switch (kinds[column]) {
+            case KIND_TITLE:
+                return note.getTitle();
+            case KIND_SYMBOL:
+                if (note.getCustomEmoji() != null) {
+                    return note.getCustomEmoji();
+                }
+                return symbols.length > 0 ? symbols[NoteCard.symbolIndexFor(note, symbols.length)] : null;
+            case KIND_CONTENT:
+                return content(note);
+            default:
+                return Long.toString(getLong(column));
+        }
+    }
+
+    @Override
+    public long getLong(int column) {
+        Note note = note();
+        switch (kinds[column]) {
+            case KIND_ID:
+            case KIND_CREATED:
+                // Ids are creation times
+                return note.getId();
+            case KIND_MODIFIED:
+                return note.getTimestamp();
+            case KIND_COLOR:
+                return colorOf(note.getColorResId());
+            default:
+                String value = getString(column);
+                try {
+                    return value != null ? Long.parseLong(value) : 0;
+                } catch (NumberFormatException e) {
+                    return 0;
+                }
+        }
+    }
+
+    @Override
+    public int getInt(int column) {
+        return (int) getLong(column);
+    }
+
+    @Override
+    public short getShort(int column) {
+        return (short) getLong(column);
+    }
+
+    @Override
+    public float getFloat(int column) {
+        return getLong(column);
+    }
+
+    @Override
+    public double getDouble(int column) {
+        return getLong(column);
+    }
+
+    @Override
+    public boolean isNull(int column) {
+        return getType(column) == Cursor.FIELD_TYPE_NULL;
+    }
+
+    private Note note() {
+        int position = getPosition();
+        if (position < 0 || position >= count) {
+            throw new IllegalStateException("Cursor is at " + position + " of " + count);
+        }
+        return notes.get(offset + position);
+    }
+
+    private String content(Note note) {
+        int position = getPosition();
+        if (position != contentPosition) {
+            try {
+                content = repository.getContent(note.getId());
+            } catch (IOException e) {
+                // Shown as no body rather than failing the whole window
+                content = null;
+            }
+            contentPosition = position;
+        }
+        return content;
+    }
+
+    private int colorOf(int colorResId) {
+        for (int i = 0; i < colorResIds.length; i++) {
+            if (colorResIds[i] == colorResId) {
+                return colors[i];
+            }
+        }
+        return colors[0];
+    }
+}
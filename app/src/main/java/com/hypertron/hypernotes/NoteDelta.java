@@ -0,0 +1,230 @@
+package com.hypertron.hypernotes;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Text deltas: a target text encoded as copies out of a base text plus the
+ * literal text that isn't found there.
+ *
+ * Matching works like rsync's: the base is indexed in fixed-size blocks by a
+ * rolling hash, and the target is scanned one character at a time looking for
+ * a block it shares with the base, which is then extended both ways. A few
+ * edits anywhere in a long text thus cost a handful of copy instructions and
+ * the new text itself, and moved paragraphs are found too.
+ */
+public final class NoteDelta {
+
+    private static final int BLOCK = 16;
+    private static final int HASH_BASE = 31;
+
+    // Instruction tags
+    private static final byte COPY = 0;
+    private static final byte INSERT = 1;
+    private static final byte END = 2;
+
+    private NoteDelta() {
+    }
+
+    /**
+     * Encode {@code target} against {@code base}.
+     */
+    public static byte[] encode(String base, String target) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            int baseLength = base.length();
+            int targetLength = target.length();
+
+            // Edits are usually local, so take the common ends off before hashing anything
+            int prefix = 0;
+            int limit = Math.min(baseLength, targetLength);
+            while (prefix < limit && base.charAt(prefix) == target.charAt(prefix)) {
+                prefix++;
+            }
+            int suffix = 0;
+            limit -= prefix;
+            while (suffix < limit
+                    && base.charAt(baseLength - 1 - suffix) == target.charAt(targetLength - 1 - suffix)) {
+                suffix++;
+            }
+
+            if (prefix > 0) {
+                writeCopy(out, 0, prefix);
+            }
+            encodeMiddle(out, base, target, prefix, targetLength - suffix);
+            if (suffix > 0) {
+                writeCopy(out, baseLength - suffix, suffix);
+            }
+            out.writeByte(END);
+        } catch (IOException e) {
+            // Not thrown by an in-memory stream
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Rebuild the target text from {@code base} and a delta made by {@link #encode}.
+     *
+     * @throws IOException if the delta is malformed or doesn't fit the base
+     */
+    public static String apply(String base, DataInputStream delta) throws IOException {
+        StringBuilder target = new StringBuilder(base.length());
+        while (true) {
+            byte tag = delta.readByte();
+            if (tag == END) {
+                return target.toString();
+            } else if (tag == COPY) {
+                int offset = readVarint(delta);
+                int length = readVarint(delta);
+                if (offset < 0 || length < 0 || offset + length > base.length() || offset + length < 0) {
+                    throw new IOException("Delta copies outside its base");
+                }
+                target.append(base, offset, offset + length);
+            } else if (tag == INSERT) {
+                int length = readVarint(delta);
+                for (int i = 0; i < length; i++) {
+                    target.append((char) readVarint(delta));
+                }
+            } else {
+                throw new IOException("Bad delta instruction " + tag);
+            }
+        }
+    }
+
+    private static void encodeMiddle(DataOutputStream out, String base, String target, int from, int to)
+            throws IOException {
+        int baseLength = base.length();
+        if (to - from < BLOCK || baseLength < BLOCK) {
+            writeInsert(out, target, from, to);
+            return;
+        }
+
+        // Open-addressed table from block hash to the offset of the first base block with that hash
+        int blocks = baseLength / BLOCK;
+        int capacity = Integer.highestOneBit(blocks * 2 - 1) << 1;
+        int mask = capacity - 1;
+        int[] hashes = new int[capacity];
+        int[] offsets = new int[capacity];
+        Arrays.fill(offsets, -1);
+        for (int offset = 0; offset + BLOCK <= baseLength; offset += BLOCK) {
+            int hash = hash(base, offset);
+            int slot = mix(hash) & mask;
+            while (offsets[slot] >= 0 && hashes[slot] != hash) {
+                slot = (slot + 1) & mask;
+            }
+            if (offsets[slot] < 0) {
+                hashes[slot] = hash;
+                offsets[slot] = offset;
+            }
+        }
+
+        int power = 1;
+        for (int i = 1; i < BLOCK; i++) {
+            power *= HASH_BASE;
+        }
+
+        int literal = from;
+        int position = from;
+        int hash = hash(target, position);
+        while (position + BLOCK <= to) {
+            int match = find(hashes, offsets, mask, hash, base, target, position);
+            if (match >= 0) {
+                // Grow the match back over pending literal text and forward as far as it goes
+                int start = position;
+                int baseStart = match;
+                while (start > literal && baseStart > 0 && target.charAt(start - 1) == base.charAt(baseStart - 1)) {
+                    start--;
+                    baseStart--;
+                }
+                int end = position + BLOCK;
+                int baseEnd = match + BLOCK;
+                while (end < to && baseEnd < baseLength && target.charAt(end) == base.charAt(baseEnd)) {
+                    end++;
+                    baseEnd++;
+                }
+                writeInsert(out, target, literal, start);
+                writeCopy(out, baseStart, end - start);
+                literal = end;
+                position = end;
+                if (position + BLOCK <= to) {
+                    hash = hash(target, position);
+                }
+                continue;
+            }
+            if (position + BLOCK < to) {
+                hash = (hash - target.charAt(position) * power) * HASH_BASE + target.charAt(position + BLOCK);
+            }
+            position++;
+        }
+        writeInsert(out, target, literal, to);
+    }
+
+    // Offset of a base block equal to target[position, position + BLOCK), or -1
+    private static int find(int[] hashes, int[] offsets, int mask, int hash, String base, String target,
+                            int position) {
+        int slot = mix(hash) & mask;
+        while (offsets[slot] >= 0) {
+            if (hashes[slot] == hash && base.regionMatches(offsets[slot], target, position, BLOCK)) {
+                return offsets[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    private static int hash(String text, int offset) {
+        int hash = 0;
+        for (int i = offset; i < offset + BLOCK; i++) {
+            hash = hash * HASH_BASE + text.charAt(i);
+        }
+        return hash;
+    }
+
+    // Spreads the polynomial hash over the low bits used to pick a slot
+    private static int mix(int hash) {
+        hash *= 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+
+    private static void writeCopy(DataOutputStream out, int offset, int length) throws IOException {
+        out.writeByte(COPY);
+        writeVarint(out, offset);
+        writeVarint(out, length);
+    }
+
+    private static void writeInsert(DataOutputStream out, String text, int start, int end) throws IOException {
+        if (start >= end) {
+            return;
+        }
+        // Char by char rather than UTF-8, since a match can end between the halves of a surrogate pair
+        out.writeByte(INSERT);
+        writeVarint(out, end - start);
+        for (int i = start; i < end; i++) {
+            writeVarint(out, text.charAt(i));
+        }
+    }
+
+    private static void writeVarint(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int readVarint(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Bad varint in delta");
+    }
+}
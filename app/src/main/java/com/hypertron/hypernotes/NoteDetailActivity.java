@@ -9,16 +9,17 @@ import android.widget.Toast;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.appcompat.widget.Toolbar;
 import com.google.android.material.floatingactionbutton.FloatingActionButton;
-import java.util.Date;
 
 public class NoteDetailActivity extends AppCompatActivity {
 
     private EditText etTitle;
     private EditText etContent;
-    private String noteTitle;
-    private String noteContent;
-    private long noteTimestamp;
-    private int notePosition;
+    private FloatingActionButton fabSave;
+    private NoteRepository noteRepository;
+    private Note note;
+    // Body being edited; the text field's edits are mirrored into it as they happen
+    private NoteDocument document;
+    private NoteAutosaver autosaver;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -34,18 +35,22 @@ public class NoteDetailActivity extends AppCompatActivity {
         // Initialize views
         etTitle = findViewById(R.id.etTitle);
         etContent = findViewById(R.id.etContent);
-        FloatingActionButton fabSave = findViewById(R.id.fabSave);
+        fabSave = findViewById(R.id.fabSave);
 
-        // Get note data from intent
-        Intent intent = getIntent();
-        noteTitle = intent.getStringExtra("note_title");
-        noteContent = intent.getStringExtra("note_content");
-        noteTimestamp = intent.getLongExtra("note_timestamp", System.currentTimeMillis());
-        notePosition = intent.getIntExtra("note_position", -1);
-
-        // Set note data to views
-        etTitle.setText(noteTitle);
-        etContent.setText(noteContent);
+        // Only the id comes in the intent; the note itself is read from the repository
+        noteRepository = NoteRepository.getInstance(this);
+        long id = getIntent().getLongExtra(NoteRepository.EXTRA_NOTE_ID, -1);
+        // Registered before reading, so no import or sync replaces the note from here on
+        noteRepository.editorOpened(id);
+        note = noteRepository.getNote(id);
+        if (note == null) {
+            noteRepository.editorClosed(id);
+            Toast.makeText(this, R.string.error_loading_note, Toast.LENGTH_SHORT).show();
+            finish();
+            return;
+        }
+        etTitle.setText(note.getTitle());
+        loadContent();
 
         // Set up save button
         fabSave.setOnClickListener(new View.OnClickListener() {
@@ -56,26 +61,83 @@ public class NoteDetailActivity extends AppCompatActivity {
         });
     }
 
-    private void saveNote() {
-        String title = etTitle.getText().toString().trim();
-        String content = etContent.getText().toString().trim();
+    private void loadContent() {
+        // Saving before the whole body has streamed in would truncate the note
+        etContent.setEnabled(false);
+        fabSave.setEnabled(false);
+        noteRepository.loadContent(note.getId(), new NoteRepository.ContentCallback() {
+            @Override
+            public void onContentChunk(String chunk) {
+                if (!isDestroyed()) {
+                    etContent.append(chunk);
+                }
+            }
 
-        if (title.isEmpty()) {
-            title = getString(R.string.untitled_note);
-        }
+            @Override
+            public void onContentLoaded(boolean complete) {
+                if (isDestroyed()) {
+                    return;
+                }
+                if (!complete) {
+                    Toast.makeText(NoteDetailActivity.this, R.string.error_loading_note, Toast.LENGTH_SHORT).show();
+                    finish();
+                    return;
+                }
+                document = new NoteDocument(etContent.getText());
+                etContent.addTextChangedListener(new DocumentTextWatcher(document));
+                etContent.addTextChangedListener(new MarkdownSpanner(etContent.getText(),
+                        etContent.getCurrentTextColor(), AccentColorActivity.getAccentColor(NoteDetailActivity.this)));
+                autosaver = new NoteAutosaver(noteRepository, note, etTitle, etContent, document,
+                        getString(R.string.untitled_note));
+                etContent.setEnabled(true);
+                fabSave.setEnabled(true);
+            }
+        });
+    }
 
-        // Create intent to return data
+    private void saveNote() {
+        // Writes only what changed since the last autosave, if anything, and folds it in
+        autosaver.close();
+
+        // Return only the id; the caller reads the saved note from the repository
         Intent resultIntent = new Intent();
-        resultIntent.putExtra("note_title", title);
-        resultIntent.putExtra("note_content", content);
-        resultIntent.putExtra("note_timestamp", System.currentTimeMillis());
-        resultIntent.putExtra("note_position", notePosition);
+        resultIntent.putExtra(NoteRepository.EXTRA_NOTE_ID, note.getId());
 
         setResult(RESULT_OK, resultIntent);
         finish();
         Toast.makeText(this, "Note saved", Toast.LENGTH_SHORT).show();
     }
 
+    @Override
+    protected void onPause() {
+        super.onPause();
+        if (autosaver == null) {
+            return;
+        }
+        if (isFinishing()) {
+            // Folded now, ahead of the reload of the list this returns to; onStop comes too late
+            autosaver.close();
+        } else {
+            autosaver.save();
+        }
+    }
+
+    @Override
+    protected void onStop() {
+        super.onStop();
+        if (autosaver != null) {
+            autosaver.close();
+        }
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (note != null) {
+            noteRepository.editorClosed(note.getId());
+        }
+    }
+
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
         if (item.getItemId() == android.R.id.home) {
@@ -0,0 +1,291 @@
+package com.hypertron.hypernotes;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A preset deflate dictionary trained on the user's own notes.
+ *
+ * Notes are short, and deflate on its own finds little to reuse within a few
+ * hundred bytes of prose. Starting every note from a window that already holds
+ * the phrases the user keeps writing lets even a short note refer back to
+ * them, which is where most of the saving comes from.
+ *
+ * Training picks the segments of the sample text whose 8-byte substrings recur
+ * most often across the corpus, one per stretch of the samples so the whole
+ * corpus is represented, in the manner of zstd's fast cover trainer. Dictionary
+ * text is laid out least useful first, since deflate codes nearer matches in
+ * fewer bits.
+ *
+ * Content is stored as raw deflate, without zlib's header and checksum, since
+ * every record already carries a CRC.
+ *
+ * The dictionary is made of the notes' own text, so a store that encrypts its
+ * notes seals the dictionary file with the same {@link NoteCipher}.
+ */
+public final class NoteDictionary {
+
+    // Deflate can't refer back further than its 32K window
+    public static final int MAX_SIZE = 32 * 1024;
+
+    private static final int MAGIC = 0x484E4443; // "HNDC"
+    private static final int FORMAT_VERSION = 1;
+    // The dictionary bytes sealed in place of the plain bytes and their CRC
+    private static final int SEALED_VERSION = 2;
+
+    // Substring length counted while training, and the length of the segments picked
+    private static final int DMER = 8;
+    private static final int SEGMENT = 64;
+    private static final int TABLE_BITS = 20;
+
+    private final int id;
+    private final byte[] bytes;
+    private final long trainedBytes;
+    private Deflater deflater;
+
+    private NoteDictionary(int id, byte[] bytes, long trainedBytes) {
+        this.id = id;
+        this.bytes = bytes;
+        this.trainedBytes = trainedBytes;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public int size() {
+        return bytes.length;
+    }
+
+    /**
+     * Size of the corpus the dictionary was trained on, to tell when it has drifted.
+     */
+    public long getTrainedBytes() {
+        return trainedBytes;
+    }
+
+    /**
+     * Train a dictionary of at most {@link #MAX_SIZE} bytes from sample note bodies.
+     *
+     * @param corpusBytes size of the whole corpus the samples were drawn from
+     */
+    public static NoteDictionary train(int id, List<byte[]> samples, long corpusBytes) {
+        int total = 0;
+        for (byte[] sample : samples) {
+            total += sample.length;
+        }
+        byte[] all = new byte[total];
+        int at = 0;
+        for (byte[] sample : samples) {
+            System.arraycopy(sample, 0, all, at, sample.length);
+            at += sample.length;
+        }
+        if (total <= MAX_SIZE) {
+            // Small enough to keep whole
+            return new NoteDictionary(id, all, corpusBytes);
+        }
+
+        int[] frequencies = new int[1 << TABLE_BITS];
+        for (int i = 0; i + DMER <= total; i++) {
+            frequencies[dmerHash(all, i)]++;
+        }
+
+        // One segment per epoch, each the best of its stretch of the samples
+        int segments = MAX_SIZE / SEGMENT;
+        int epoch = Math.max(total / segments, SEGMENT);
+        List<long[]> picked = new ArrayList<>();
+        for (int begin = 0; begin + SEGMENT <= total; begin += epoch) {
+            int end = Math.min(begin + epoch, total);
+            int bestStart = -1;
+            long bestScore = 0;
+            long score = 0;
+            for (int i = begin; i + DMER <= end; i++) {
+                score += useful(frequencies[dmerHash(all, i)]);
+                int first = i - (SEGMENT - DMER);
+                if (first > begin) {
+                    score -= useful(frequencies[dmerHash(all, first - 1)]);
+                }
+                if (first >= begin && score > bestScore) {
+                    bestScore = score;
+                    bestStart = first;
+                }
+            }
+            if (bestStart < 0) {
+                continue;
+            }
+            // Its substrings are covered now; don't pick them again
+            for (int i = bestStart; i + DMER <= bestStart + SEGMENT; i++) {
+                frequencies[dmerHash(all, i)] = 0;
+            }
+            picked.add(new long[] {bestScore, bestStart});
+        }
+
+        Collections.sort(picked, (a, b) -> Long.compare(a[0], b[0]));
+        ByteArrayOutputStream out = new ByteArrayOutputStream(MAX_SIZE);
+        int skip = Math.max(picked.size() - segments, 0);
+        for (int i = skip; i < picked.size(); i++) {
+            out.write(all, (int) picked.get(i)[1], SEGMENT);
+        }
+        return new NoteDictionary(id, out.toByteArray(), corpusBytes);
+    }
+
+    // A substring seen only once tells us nothing about the rest of the corpus
+    private static int useful(int frequency) {
+        return frequency > 1 ? frequency : 0;
+    }
+
+    private static int dmerHash(byte[] bytes, int offset) {
+        long dmer = 0;
+        for (int i = offset; i < offset + DMER; i++) {
+            dmer = (dmer << 8) | (bytes[i] & 0xFF);
+        }
+        return (int) ((dmer * 0x9E3779B97F4A7C15L) >>> (64 - TABLE_BITS));
+    }
+
+    /**
+     * Compress {@code raw} against this dictionary. Not thread-safe.
+     */
+    public byte[] compress(byte[] raw) {
+        if (deflater == null) {
+            deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        }
+        deflater.reset();
+        if (bytes.length > 0) {
+            deflater.setDictionary(bytes);
+        }
+        deflater.setInput(raw);
+        deflater.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 2 + 16);
+        byte[] buffer = new byte[8192];
+        while (!deflater.finished()) {
+            out.write(buffer, 0, deflater.deflate(buffer));
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Decompress what {@link #compress} made of a body of {@code rawLength} bytes.
+     */
+    public byte[] decompress(byte[] packed, int offset, int length, int rawLength) throws IOException {
+        Inflater inflater = newInflater();
+        try {
+            inflater.setInput(packed, offset, length);
+            byte[] raw = new byte[rawLength];
+            int done = 0;
+            while (done < rawLength) {
+                int count = inflater.inflate(raw, done, rawLength - done);
+                if (count == 0 && (inflater.finished() || inflater.needsInput())) {
+                    throw new IOException("Truncated compressed note");
+                }
+                done += count;
+            }
+            return raw;
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed note", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * An inflater primed with this dictionary, for streaming a compressed body.
+     */
+    public Inflater newInflater() {
+        Inflater inflater = new Inflater(true);
+        if (bytes.length > 0) {
+            inflater.setDictionary(bytes);
+        }
+        return inflater;
+    }
+
+    /**
+     * Durably write the dictionary to {@code file}, replacing it atomically.
+     */
+    public void writeTo(File file) throws IOException {
+        writeTo(file, null);
+    }
+
+    /**
+     * Durably write the dictionary to {@code file}, replacing it atomically,
+     * sealed with {@code cipher} unless it is null.
+     */
+    public void writeTo(File file, NoteCipher cipher) throws IOException {
+        AtomicFiles.replace(file, out -> {
+            out.writeInt(MAGIC);
+            out.writeInt(cipher != null ? SEALED_VERSION : FORMAT_VERSION);
+            out.writeInt(id);
+            out.writeLong(trainedBytes);
+            if (cipher != null) {
+                // Sealed under its id and training size, so neither can be swapped for another dictionary's
+                byte[] sealed = cipher.seal(id, trainedBytes, bytes, 0, bytes.length);
+                out.writeInt(sealed.length);
+                out.write(sealed);
+            } else {
+                CRC32 crc = new CRC32();
+                crc.update(bytes, 0, bytes.length);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+                out.writeInt((int) crc.getValue());
+            }
+        });
+    }
+
+    /**
+     * Read a dictionary written by {@link #writeTo}.
+     */
+    public static NoteDictionary read(File file) throws IOException {
+        return read(file, null);
+    }
+
+    /**
+     * Read a dictionary written by {@link #writeTo}, sealed or not.
+     *
+     * @param cipher what a sealed dictionary was written with, or null to accept only plain ones
+     */
+    public static NoteDictionary read(File file, NoteCipher cipher) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a note dictionary: " + file);
+            }
+            int version = in.readInt();
+            if (version == SEALED_VERSION && cipher == null) {
+                throw new IOException("Note dictionary is encrypted: " + file);
+            }
+            if (version != FORMAT_VERSION && version != SEALED_VERSION) {
+                throw new IOException("Unsupported note dictionary version " + version);
+            }
+            int id = in.readInt();
+            long trainedBytes = in.readLong();
+            int length = in.readInt();
+            int limit = version == SEALED_VERSION ? MAX_SIZE + NoteCipher.OVERHEAD : MAX_SIZE;
+            if (length < 0 || length > limit) {
+                throw new IOException("Bad dictionary length " + length);
+            }
+            byte[] bytes = new byte[length];
+            in.readFully(bytes);
+            if (version == SEALED_VERSION) {
+                return new NoteDictionary(id, cipher.open(id, trainedBytes, bytes, 0, length), trainedBytes);
+            }
+            CRC32 crc = new CRC32();
+            crc.update(bytes, 0, length);
+            if ((int) crc.getValue() != in.readInt()) {
+                throw new IOException("Corrupt note dictionary: " + file);
+            }
+            return new NoteDictionary(id, bytes, trainedBytes);
+        } catch (EOFException e) {
+            throw new IOException("Truncated note dictionary: " + file, e);
+        }
+    }
+}
@@ -0,0 +1,410 @@
+package com.hypertron.hypernotes;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Piece table holding the body of a note while it is edited.
+ *
+ * The text is never stored in one piece: it is a sequence of pieces, each a
+ * slice of either the original body or an append-only buffer of everything
+ * typed since. The pieces live in a treap ordered by position, so inserting,
+ * deleting and finding a character all take O(log n) in the number of pieces,
+ * however long the note is. Typing at one spot keeps extending the same piece.
+ *
+ * The document also remembers which ranges changed since {@link #markSaved()},
+ * and which stretch of the saved text each one replaced, so saving can write
+ * only those edits. Not thread-safe.
+ */
+public class NoteDocument implements CharSequence {
+
+    private final String original;
+    private final StringBuilder added = new StringBuilder();
+    private Piece root;
+    private int seed = 0x2545F491;
+
+    // Used by split() to return both halves without allocating
+    private Piece splitLeft;
+    private Piece splitRight;
+
+    // Past this many changed ranges the closest ones are merged, keeping edits O(1) to record
+    private static final int MAX_CHANGED_RANGES = 64;
+
+    // Ranges changed since the last save, sorted and disjoint, as CHANGE_STRIDE ints each:
+    // [start, end) in current positions, then the [start, end) of saved text they replaced
+    private static final int CHANGE_STRIDE = 4;
+    private int[] changes = new int[(MAX_CHANGED_RANGES + 1) * CHANGE_STRIDE];
+    private int[] changeScratch = new int[(MAX_CHANGED_RANGES + 1) * CHANGE_STRIDE];
+    private int changeCount;
+
+    private static final class Piece {
+        final boolean inAdded;
+        final int start;
+        int length;
+        final int priority;
+        Piece left;
+        Piece right;
+        // Characters in this subtree
+        int total;
+
+        Piece(boolean inAdded, int start, int length, int priority) {
+            this.inAdded = inAdded;
+            this.start = start;
+            this.length = length;
+            this.priority = priority;
+            this.total = length;
+        }
+    }
+
+    public NoteDocument(CharSequence text) {
+        original = text.toString();
+        if (!original.isEmpty()) {
+            root = new Piece(false, 0, original.length(), nextPriority());
+        }
+    }
+
+    @Override
+    public int length() {
+        return total(root);
+    }
+
+    @Override
+    public char charAt(int index) {
+        checkRange(index, index + 1);
+        Piece node = root;
+        while (true) {
+            int leftTotal = total(node.left);
+            if (index < leftTotal) {
+                node = node.left;
+            } else if (index < leftTotal + node.length) {
+                return bufferOf(node).charAt(node.start + index - leftTotal);
+            } else {
+                index -= leftTotal + node.length;
+                node = node.right;
+            }
+        }
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        checkRange(start, end);
+        StringBuilder out = new StringBuilder(end - start);
+        appendRange(root, start, end, out);
+        return out.toString();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder out = new StringBuilder(length());
+        appendRange(root, 0, length(), out);
+        return out.toString();
+    }
+
+    /**
+     * Write {@code [start, end)} to {@code out} piece by piece, without building the text first.
+     */
+    public void writeTo(Writer out, int start, int end) throws IOException {
+        checkRange(start, end);
+        writeRange(root, start, end, out);
+    }
+
+    public void insert(int position, CharSequence text) {
+        replace(position, 0, text, 0, text.length());
+    }
+
+    public void delete(int position, int count) {
+        replace(position, count, "", 0, 0);
+    }
+
+    /**
+     * Replace {@code removed} characters at {@code position} with {@code text[textStart, textEnd)}.
+     */
+    public void replace(int position, int removed, CharSequence text, int textStart, int textEnd) {
+        checkRange(position, position + removed);
+        int inserted = textEnd - textStart;
+        if (removed == 0 && inserted == 0) {
+            return;
+        }
+
+        split(root, position);
+        Piece before = splitLeft;
+        split(splitRight, removed);
+        Piece after = splitRight;
+
+        if (inserted > 0) {
+            if (!extendTail(before, inserted)) {
+                before = merge(before, new Piece(true, added.length(), inserted, nextPriority()));
+            }
+            added.append(text, textStart, textEnd);
+        }
+        root = merge(before, after);
+        recordChange(position, removed, inserted);
+    }
+
+    /**
+     * Whether anything changed since the last {@link #markSaved()}.
+     */
+    public boolean isModified() {
+        return changeCount > 0;
+    }
+
+    /**
+     * Edits that turn the text as of the last save into the current text, as
+     * {@code [start, end, replaced, ...]} triples: the current text in
+     * {@code [start, end)} took the place of {@code replaced} saved characters.
+     * Triples are sorted and disjoint, so applying them in order to the saved
+     * text, each at {@code start}, reproduces the current text. Nearby edits
+     * may be reported merged, so not everything inside a range really changed.
+     */
+    public int[] getChanges() {
+        int[] triples = new int[changeCount * 3];
+        for (int i = 0; i < changeCount; i++) {
+            int at = i * CHANGE_STRIDE;
+            triples[3 * i] = changes[at];
+            triples[3 * i + 1] = changes[at + 1];
+            triples[3 * i + 2] = changes[at + 3] - changes[at + 2];
+        }
+        return triples;
+    }
+
+    public void markSaved() {
+        changeCount = 0;
+    }
+
+    // If the piece ending at the split point is the newest typing, grow it instead of adding a piece
+    private boolean extendTail(Piece node, int count) {
+        if (node == null) {
+            return false;
+        }
+        Piece last = node;
+        while (last.right != null) {
+            last = last.right;
+        }
+        if (!last.inAdded || last.start + last.length != added.length()) {
+            return false;
+        }
+        for (Piece step = node; step != null; step = step.right) {
+            step.total += count;
+        }
+        last.length += count;
+        return true;
+    }
+
+    /**
+     * Split {@code node} so the first {@code position} characters end up in
+     * {@link #splitLeft} and the rest in {@link #splitRight}.
+     */
+    private void split(Piece node, int position) {
+        if (node == null) {
+            splitLeft = null;
+            splitRight = null;
+            return;
+        }
+        int leftTotal = total(node.left);
+        if (position <= leftTotal) {
+            split(node.left, position);
+            node.left = splitRight;
+            update(node);
+            splitRight = node;
+        } else if (position >= leftTotal + node.length) {
+            split(node.right, position - leftTotal - node.length);
+            node.right = splitLeft;
+            update(node);
+            splitLeft = node;
+        } else {
+            // The split falls inside this piece; both halves keep its priority so the heap order holds
+            int cut = position - leftTotal;
+            Piece head = new Piece(node.inAdded, node.start, cut, node.priority);
+            Piece tail = new Piece(node.inAdded, node.start + cut, node.length - cut, node.priority);
+            head.left = node.left;
+            tail.right = node.right;
+            update(head);
+            update(tail);
+            splitLeft = head;
+            splitRight = tail;
+        }
+    }
+
+    private static Piece merge(Piece left, Piece right) {
+        if (left == null) {
+            return right;
+        }
+        if (right == null) {
+            return left;
+        }
+        if (left.priority >= right.priority) {
+            left.right = merge(left.right, right);
+            update(left);
+            return left;
+        }
+        right.left = merge(left, right.left);
+        update(right);
+        return right;
+    }
+
+    private void recordChange(int position, int removed, int inserted) {
+        // Where the edit's ends fall in the saved text, valid only if they aren't inside an earlier change
+        int removedEnd = position + removed;
+        int deltaBeforeStart = 0;
+        int deltaBeforeEnd = 0;
+        boolean startInGap = true;
+        boolean endInGap = true;
+        for (int i = 0; i < changeCount; i++) {
+            int at = i * CHANGE_STRIDE;
+            int start = changes[at];
+            int end = changes[at + 1];
+            int delta = (end - start) - (changes[at + 3] - changes[at + 2]);
+            if (end <= position) {
+                deltaBeforeStart += delta;
+            } else if (start < position) {
+                startInGap = false;
+            }
+            if (end <= removedEnd) {
+                deltaBeforeEnd += delta;
+            } else if (start < removedEnd) {
+                endInGap = false;
+            }
+        }
+
+        int newStart = position;
+        int newEnd = position + inserted;
+        int oldStart = startInGap ? position - deltaBeforeStart : Integer.MAX_VALUE;
+        int oldEnd = endInGap ? removedEnd - deltaBeforeEnd : Integer.MIN_VALUE;
+        int[] merged = changeScratch;
+        int kept = 0;
+        boolean placed = false;
+        for (int i = 0; i < changeCount; i++) {
+            int at = i * CHANGE_STRIDE;
+            int start = shiftStart(changes[at], position, removed, inserted);
+            int end = shiftEnd(changes[at + 1], position, removed, inserted);
+            if (end < newStart) {
+                kept = putChange(merged, kept, start, end, changes[at + 2], changes[at + 3]);
+            } else if (start > newEnd) {
+                if (!placed) {
+                    kept = putChange(merged, kept, newStart, newEnd, oldStart, oldEnd);
+                    placed = true;
+                }
+                kept = putChange(merged, kept, start, end, changes[at + 2], changes[at + 3]);
+            } else {
+                // Overlaps or touches the edit; fold it in
+                newStart = Math.min(newStart, start);
+                newEnd = Math.max(newEnd, end);
+                oldStart = Math.min(oldStart, changes[at + 2]);
+                oldEnd = Math.max(oldEnd, changes[at + 3]);
+            }
+        }
+        if (!placed) {
+            kept = putChange(merged, kept, newStart, newEnd, oldStart, oldEnd);
+        }
+        changeScratch = changes;
+        changes = merged;
+        changeCount = kept / CHANGE_STRIDE;
+
+        if (changeCount > MAX_CHANGED_RANGES) {
+            // Merge the two ranges with the smallest gap between them
+            int closest = 0;
+            for (int i = 1; i < changeCount - 1; i++) {
+                if (gapAfter(i) < gapAfter(closest)) {
+                    closest = i;
+                }
+            }
+            int at = closest * CHANGE_STRIDE;
+            changes[at + 1] = changes[at + CHANGE_STRIDE + 1];
+            changes[at + 3] = changes[at + CHANGE_STRIDE + 3];
+            System.arraycopy(changes, at + 2 * CHANGE_STRIDE, changes, at + CHANGE_STRIDE,
+                    (changeCount - closest - 2) * CHANGE_STRIDE);
+            changeCount--;
+        }
+    }
+
+    private int gapAfter(int change) {
+        int at = change * CHANGE_STRIDE;
+        return changes[at + CHANGE_STRIDE] - changes[at + 1];
+    }
+
+    private static int putChange(int[] target, int at, int start, int end, int oldStart, int oldEnd) {
+        target[at] = start;
+        target[at + 1] = end;
+        target[at + 2] = oldStart;
+        target[at + 3] = oldEnd;
+        return at + CHANGE_STRIDE;
+    }
+
+    private static int shiftStart(int offset, int position, int removed, int inserted) {
+        if (offset < position) {
+            return offset;
+        }
+        return offset <= position + removed ? position : offset - removed + inserted;
+    }
+
+    private static int shiftEnd(int offset, int position, int removed, int inserted) {
+        if (offset <= position) {
+            return offset;
+        }
+        return offset <= position + removed ? position + inserted : offset - removed + inserted;
+    }
+
+    private void appendRange(Piece node, int start, int end, StringBuilder out) {
+        if (node == null || start >= end) {
+            return;
+        }
+        int leftTotal = total(node.left);
+        if (start < leftTotal) {
+            appendRange(node.left, start, Math.min(end, leftTotal), out);
+        }
+        int from = Math.max(start - leftTotal, 0);
+        int to = Math.min(end - leftTotal, node.length);
+        if (from < to) {
+            out.append(bufferOf(node), node.start + from, node.start + to);
+        }
+        int rightStart = leftTotal + node.length;
+        if (end > rightStart) {
+            appendRange(node.right, Math.max(start - rightStart, 0), end - rightStart, out);
+        }
+    }
+
+    private void writeRange(Piece node, int start, int end, Writer out) throws IOException {
+        if (node == null || start >= end) {
+            return;
+        }
+        int leftTotal = total(node.left);
+        if (start < leftTotal) {
+            writeRange(node.left, start, Math.min(end, leftTotal), out);
+        }
+        int from = Math.max(start - leftTotal, 0);
+        int to = Math.min(end - leftTotal, node.length);
+        if (from < to) {
+            out.append(bufferOf(node), node.start + from, node.start + to);
+        }
+        int rightStart = leftTotal + node.length;
+        if (end > rightStart) {
+            writeRange(node.right, Math.max(start - rightStart, 0), end - rightStart, out);
+        }
+    }
+
+    private CharSequence bufferOf(Piece piece) {
+        return piece.inAdded ? added : original;
+    }
+
+    private static int total(Piece node) {
+        return node != null ? node.total : 0;
+    }
+
+    private static void update(Piece node) {
+        node.total = total(node.left) + node.length + total(node.right);
+    }
+
+    // xorshift; priorities only need to look random to keep the treap balanced
+    private int nextPriority() {
+        seed ^= seed << 13;
+        seed ^= seed >>> 17;
+        seed ^= seed << 5;
+        return seed;
+    }
+
+    private void checkRange(int start, int end) {
+        if (start < 0 || end < start || end > length()) {
+            throw new IndexOutOfBoundsException("Range [" + start + ", " + end + ") of " + length());
+        }
+    }
+}
@@ -11,6 +11,7 @@ import androidx.appcompat.widget.Toolbar;
 import android.content.SharedPreferences;
 import android.content.res.ColorStateList;
 import com.google.android.material.floatingactionbutton.FloatingActionButton;
+import java.util.Random;
 
 public class NoteEditorActivity extends AppCompatActivity {
 
@@ -18,8 +19,15 @@ public class NoteEditorActivity extends AppCompatActivity {
     private EditText editContent;
     private FloatingActionButton fabSave;
     
+    private NoteRepository noteRepository;
     private long noteId = -1;
     private boolean isNewNote = true;
+    // Note being edited, without content, and whether its whole body is in the editor yet
+    private Note note;
+    private boolean contentLoaded = true;
+    // Body being edited; the text field's edits are mirrored into it as they happen
+    private NoteDocument document;
+    private NoteAutosaver autosaver;
     
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -42,14 +50,25 @@ public class NoteEditorActivity extends AppCompatActivity {
         // Apply accent color
         applyAccentColors();
         
+        noteRepository = NoteRepository.getInstance(this);
+        
         // Get data from intent
         Intent intent = getIntent();
-        if (intent != null && intent.hasExtra("note_id")) {
-            noteId = intent.getLongExtra("note_id", -1);
+        if (intent != null && intent.hasExtra(NoteRepository.EXTRA_NOTE_ID)) {
+            noteId = intent.getLongExtra(NoteRepository.EXTRA_NOTE_ID, -1);
             isNewNote = false;
             loadNote(noteId);
         }
         
+        if (isNewNote) {
+            // Created in the store by the first autosave
+            int[] colorResIds = NoteRepository.getColorResourceIds();
+            note = new Note(noteRepository.newNoteId(), "", null, System.currentTimeMillis(),
+                    colorResIds[new Random().nextInt(colorResIds.length)]);
+            noteRepository.editorOpened(note.getId());
+            trackContent();
+        }
+        
         // Set up save button
         fabSave.setOnClickListener(view -> saveNote());
     }
@@ -65,18 +84,92 @@ public class NoteEditorActivity extends AppCompatActivity {
     }
     
     private void loadNote(long id) {
-        // In a real app, you would load note data from database
-        // For demonstration, we'll just set some placeholder text
+        // Registered before reading, so no import or sync replaces the note from here on
+        noteRepository.editorOpened(id);
+        note = noteRepository.getNote(id);
+        if (note == null) {
+            noteRepository.editorClosed(id);
+            Toast.makeText(this, R.string.error_loading_note, Toast.LENGTH_SHORT).show();
+            finish();
+            return;
+        }
+        editTitle.setText(note.getTitle());
         
-        // This should be replaced with actual database query in a real app
-        editTitle.setText("Note Title");
-        editContent.setText("Note content goes here...");
+        // The body streams in; hold off editing and saving until all of it is here
+        contentLoaded = false;
+        editContent.setEnabled(false);
+        fabSave.setEnabled(false);
+        noteRepository.loadContent(id, new NoteRepository.ContentCallback() {
+            @Override
+            public void onContentChunk(String chunk) {
+                if (!isDestroyed()) {
+                    editContent.append(chunk);
+                }
+            }
+            
+            @Override
+            public void onContentLoaded(boolean complete) {
+                if (isDestroyed()) {
+                    return;
+                }
+                if (!complete) {
+                    // Saving a partial body would truncate the note
+                    Toast.makeText(NoteEditorActivity.this, R.string.error_loading_note, Toast.LENGTH_SHORT).show();
+                    finish();
+                    return;
+                }
+                contentLoaded = true;
+                trackContent();
+                editContent.setEnabled(true);
+                fabSave.setEnabled(true);
+            }
+        });
+    }
+    
+    // Start mirroring the body into a document, from the text the field holds now, styling its
+    // Markdown and autosaving it
+    private void trackContent() {
+        document = new NoteDocument(editContent.getText());
+        editContent.addTextChangedListener(new DocumentTextWatcher(document));
+        editContent.addTextChangedListener(new MarkdownSpanner(editContent.getText(),
+                editContent.getCurrentTextColor(), AccentColorActivity.getAccentColor(this)));
+        autosaver = new NoteAutosaver(noteRepository, note, editTitle, editContent, document,
+                getString(R.string.untitled_note));
+    }
+    
+    @Override
+    protected void onPause() {
+        super.onPause();
+        if (autosaver == null) {
+            return;
+        }
+        if (isFinishing()) {
+            // Folded now, ahead of the reload of the list this returns to; onStop comes too late
+            autosaver.close();
+        } else {
+            autosaver.save();
+        }
+    }
+    
+    @Override
+    protected void onStop() {
+        super.onStop();
+        if (autosaver != null) {
+            autosaver.close();
+        }
+    }
+    
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (note != null) {
+            noteRepository.editorClosed(note.getId());
+        }
     }
     
     private void saveNote() {
-        // Get title and content
+        // Get title; the body is read from the document below
         String title = editTitle.getText().toString().trim();
-        String content = editContent.getText().toString().trim();
         
         // Validate inputs
         if (title.isEmpty()) {
@@ -84,8 +177,11 @@ public class NoteEditorActivity extends AppCompatActivity {
             return;
         }
         
-        // In a real app, you would save to database here
-        // For demonstration, we'll just show a success message
+        if (!contentLoaded) {
+            return;
+        }
+        // Writes only what changed since the last autosave, if anything, and folds it in
+        autosaver.close();
         
         Toast.makeText(this, R.string.note_saved, Toast.LENGTH_SHORT).show();
         
@@ -93,6 +189,34 @@ public class NoteEditorActivity extends AppCompatActivity {
         finish();
     }
     
+    private void showHistory() {
+        if (autosaver == null) {
+            return;
+        }
+        noteRepository.getRevisions(note.getId(), revisions -> {
+            if (isDestroyed()) {
+                return;
+            }
+            if (revisions == null || revisions.isEmpty()) {
+                Toast.makeText(this, R.string.no_revisions, Toast.LENGTH_SHORT).show();
+                return;
+            }
+            Dialogs.showRevisionsDialog(this, revisions, revision ->
+                    noteRepository.loadRevision(note.getId(), revision.number, content -> {
+                        if (isDestroyed()) {
+                            return;
+                        }
+                        if (content == null) {
+                            Toast.makeText(this, R.string.error_loading_note, Toast.LENGTH_SHORT).show();
+                            return;
+                        }
+                        // Restored as an ordinary edit, so it autosaves and can itself be undone from history
+                        editTitle.setText(revision.title);
+                        editContent.setText(content);
+                    }));
+        });
+    }
+    
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         getMenuInflater().inflate(R.menu.menu_editor, menu);
@@ -109,6 +233,11 @@ public class NoteEditorActivity extends AppCompatActivity {
             return true;
         }
         
+        if (id == R.id.action_history) {
+            showHistory();
+            return true;
+        }
+        
         return super.onOptionsItemSelected(item);
     }
 }
\ No newline at end of file
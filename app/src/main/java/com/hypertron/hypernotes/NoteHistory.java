@@ -0,0 +1,450 @@
+package com.hypertron.hypernotes;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Every saved version of every note, one append-only file per note.
+ *
+ * Most revisions are stored as a {@link NoteDelta} against the revision before
+ * it, so hundreds of small edits to a long note cost little more than the note
+ * itself. Every so often a compressed keyframe holding the whole text starts a
+ * new chain; at most {@code maxChain} deltas follow a keyframe, which bounds
+ * the work needed to load any revision. A new chain is also started early if
+ * the deltas in the current one add up to more than the text, as a keyframe is
+ * then both smaller and faster to load.
+ *
+ * Records are checksummed like the log in {@link NoteStore}, so a revision torn
+ * by a crash is dropped and overwritten by the next one. They are sealed
+ * with the store's {@link NoteCipher} under the file's own context and the
+ * revision's number, and the checksum covers the sealed bytes. Histories an
+ * older version kept in the clear are sealed when they are next read, or
+ * all at once by {@link #sealAll()}.
+ */
+public class NoteHistory {
+
+    public static final int DEFAULT_MAX_CHAIN = 64;
+
+    private static final String SUFFIX = ".nhr";
+
+    private static final int MAGIC = 0x484E4852; // "HNHR"
+    private static final int FORMAT_VERSION = 2;
+    // Records in the clear, as older versions kept them
+    private static final int PLAIN_FORMAT_VERSION = 1;
+    // Left in the directory once every history in it is sealed
+    private static final String SEALED_MARKER = "sealed";
+
+    // magic (4) + version (4) + note id (8) + context (8)
+    private static final int FILE_HEADER_SIZE = 24;
+    private static final int PLAIN_FILE_HEADER_SIZE = 16;
+    // length (4) + checksum (4)
+    private static final int RECORD_HEADER_SIZE = 8;
+
+    private static final byte KEYFRAME = 0;
+    private static final byte DELTA = 1;
+
+    private final File directory;
+    private final int maxChain;
+    private final NoteCipher cipher;
+    private final CRC32 crc = new CRC32();
+
+    // Revisions and latest text of the note last appended to, so a run of saves doesn't reread them
+    private long cachedId = -1;
+    private List<Revision> cachedRevisions;
+    private String cachedContent;
+
+    /**
+     * One saved version of a note.
+     */
+    public static final class Revision {
+        // Position in the note's history, starting at 0
+        public final int number;
+        public final long timestamp;
+        public final String title;
+
+        final boolean keyframe;
+        final long offset;
+        final int size;
+        // Of the file, the same for every revision in it
+        final long context;
+
+        Revision(int number, long timestamp, String title, boolean keyframe, long offset, int size, long context) {
+            this.number = number;
+            this.timestamp = timestamp;
+            this.title = title;
+            this.keyframe = keyframe;
+            this.offset = offset;
+            this.size = size;
+            this.context = context;
+        }
+    }
+
+    /**
+     * @param maxChain most deltas ever applied to load a revision; 0 stores every revision whole
+     */
+    public NoteHistory(File directory, int maxChain, NoteCipher cipher) {
+        this.directory = directory;
+        this.maxChain = maxChain;
+        this.cipher = cipher;
+    }
+
+    /**
+     * Record a new revision of note {@code id}. Nothing is written if it matches the latest one.
+     */
+    public synchronized void append(long id, long timestamp, String title, String content) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        content = content != null ? content : "";
+        List<Revision> revisions = revisions(id);
+        String previous = null;
+        if (!revisions.isEmpty()) {
+            Revision latest = revisions.get(revisions.size() - 1);
+            previous = cachedId == id ? cachedContent : load(id, revisions, latest.number);
+            if (previous.equals(content) && latest.title.equals(title)) {
+                return;
+            }
+        }
+
+        // Length and delta bytes of the chain the new revision would extend
+        int chain = 0;
+        long chainBytes = 0;
+        for (int i = revisions.size() - 1; i >= 0 && !revisions.get(i).keyframe; i--) {
+            chain++;
+            chainBytes += revisions.get(i).size;
+        }
+        byte[] data = null;
+        boolean keyframe = previous == null || chain >= maxChain;
+        if (!keyframe) {
+            data = NoteDelta.encode(previous, content);
+            keyframe = chainBytes + data.length > content.length();
+        }
+        if (keyframe) {
+            data = deflate(content.getBytes(StandardCharsets.UTF_8));
+        }
+
+        ByteArrayOutputStream payload = new ByteArrayOutputStream(data.length + 64);
+        DataOutputStream out = new DataOutputStream(payload);
+        out.writeByte(keyframe ? KEYFRAME : DELTA);
+        out.writeLong(timestamp);
+        writeString(out, title != null ? title : "");
+        out.write(data);
+        long context = revisions.isEmpty() ? cipher.newContext() : revisions.get(0).context;
+        byte[] bytes = cipher.seal(context, revisions.size(), payload.toByteArray(), 0, payload.size());
+        crc.reset();
+        crc.update(bytes, 0, bytes.length);
+
+        long end = FILE_HEADER_SIZE;
+        if (!revisions.isEmpty()) {
+            Revision latest = revisions.get(revisions.size() - 1);
+            end = latest.offset + RECORD_HEADER_SIZE + latest.size;
+        }
+        try (RandomAccessFile file = new RandomAccessFile(fileOf(id), "rw")) {
+            if (revisions.isEmpty()) {
+                file.setLength(0);
+                file.writeInt(MAGIC);
+                file.writeInt(FORMAT_VERSION);
+                file.writeLong(id);
+                file.writeLong(context);
+            }
+            // Over any torn tail. Not synced: the note itself is already durable in the store,
+            // and a revision lost to a crash is caught by its checksum
+            file.seek(end);
+            file.writeInt(bytes.length);
+            file.writeInt((int) crc.getValue());
+            file.write(bytes);
+            file.setLength(file.getFilePointer());
+        }
+
+        revisions.add(new Revision(revisions.size(), timestamp, title != null ? title : "", keyframe, end, bytes.length,
+                context));
+        cachedId = id;
+        cachedRevisions = revisions;
+        cachedContent = content;
+    }
+
+    /**
+     * Revisions of note {@code id}, oldest first.
+     */
+    public synchronized List<Revision> list(long id) throws IOException {
+        return Collections.unmodifiableList(new ArrayList<>(revisions(id)));
+    }
+
+    /**
+     * Text of revision {@code number} of note {@code id}.
+     */
+    public synchronized String load(long id, int number) throws IOException {
+        List<Revision> revisions = revisions(id);
+        if (number < 0 || number >= revisions.size()) {
+            throw new IOException("No revision " + number + " of note " + id);
+        }
+        return load(id, revisions, number);
+    }
+
+    /**
+     * Forget the history of note {@code id}.
+     */
+    public synchronized void discard(long id) {
+        if (cachedId == id) {
+            cachedId = -1;
+            cachedRevisions = null;
+            cachedContent = null;
+        }
+        fileOf(id).delete();
+    }
+
+    /**
+     * Seal every history still kept in the clear by an older version. Quick
+     * once it has run, as it leaves a marker behind; appends and reads can go
+     * on meanwhile.
+     */
+    public void sealAll() throws IOException {
+        File marker = new File(directory, SEALED_MARKER);
+        if (marker.exists()) {
+            return;
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        String[] names = directory.list();
+        for (int i = 0; names != null && i < names.length; i++) {
+            if (!names[i].endsWith(SUFFIX)) {
+                continue;
+            }
+            long id;
+            try {
+                id = Long.parseLong(names[i].substring(0, names[i].length() - SUFFIX.length()));
+            } catch (NumberFormatException e) {
+                // Not one of ours
+                continue;
+            }
+            synchronized (this) {
+                File path = fileOf(id);
+                if (versionOf(path, id) == PLAIN_FORMAT_VERSION) {
+                    seal(id, path);
+                }
+            }
+        }
+        if (!marker.createNewFile() && !marker.exists()) {
+            throw new IOException("Cannot create " + marker);
+        }
+    }
+
+    private String load(long id, List<Revision> revisions, int number) throws IOException {
+        int first = number;
+        while (!revisions.get(first).keyframe) {
+            first--;
+        }
+        try (RandomAccessFile file = new RandomAccessFile(fileOf(id), "r")) {
+            String text = null;
+            for (int i = first; i <= number; i++) {
+                Revision revision = revisions.get(i);
+                byte[] sealed = readPayload(file, revision.offset, revision.size);
+                if (sealed == null) {
+                    throw new IOException("Corrupt revision " + i + " of note " + id);
+                }
+                byte[] payload = cipher.open(revision.context, i, sealed, 0, sealed.length);
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+                in.readByte();
+                in.readLong();
+                readString(in);
+                text = i == first
+                        ? new String(inflate(in), StandardCharsets.UTF_8)
+                        : NoteDelta.apply(text, in);
+            }
+            return text;
+        }
+    }
+
+    // Revisions up to the first torn or corrupt record; empty if there is no history
+    private List<Revision> revisions(long id) throws IOException {
+        if (cachedId == id) {
+            return cachedRevisions;
+        }
+        File path = fileOf(id);
+        if (versionOf(path, id) == PLAIN_FORMAT_VERSION) {
+            seal(id, path);
+        }
+        List<Revision> revisions = new ArrayList<>();
+        if (path.length() < FILE_HEADER_SIZE) {
+            return revisions;
+        }
+        try (RandomAccessFile file = new RandomAccessFile(path, "r")) {
+            if (file.readInt() != MAGIC || file.readInt() != FORMAT_VERSION || file.readLong() != id) {
+                return revisions;
+            }
+            long context = file.readLong();
+            long offset = FILE_HEADER_SIZE;
+            long length = file.length();
+            while (offset + RECORD_HEADER_SIZE <= length) {
+                file.seek(offset);
+                int size = file.readInt();
+                if (size <= 0 || offset + RECORD_HEADER_SIZE + size > length) {
+                    break;
+                }
+                byte[] sealed = readPayload(file, offset, size);
+                if (sealed == null) {
+                    break;
+                }
+                byte[] payload;
+                try {
+                    payload = cipher.open(context, revisions.size(), sealed, 0, size);
+                } catch (IOException e) {
+                    // Intact but not sealed here as this revision; nothing past it can be trusted either
+                    break;
+                }
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+                boolean keyframe = in.readByte() == KEYFRAME;
+                if (!keyframe && revisions.isEmpty()) {
+                    break;
+                }
+                revisions.add(new Revision(revisions.size(), in.readLong(), readString(in), keyframe, offset, size,
+                        context));
+                offset += RECORD_HEADER_SIZE + size;
+            }
+        } catch (EOFException e) {
+            // Torn header; keep what was read
+        }
+        return revisions;
+    }
+
+    // Format version of a history of note id, or -1 if the file isn't one
+    private static int versionOf(File path, long id) throws IOException {
+        if (path.length() < PLAIN_FILE_HEADER_SIZE) {
+            return -1;
+        }
+        try (RandomAccessFile file = new RandomAccessFile(path, "r")) {
+            if (file.readInt() != MAGIC) {
+                return -1;
+            }
+            int version = file.readInt();
+            return file.readLong() == id ? version : -1;
+        }
+    }
+
+    /**
+     * Replace a history kept in the clear with the same records sealed, under
+     * a new context, up to the first torn one. Synced before the rename, so a
+     * crash leaves one whole history or the other.
+     */
+    private void seal(long id, File path) throws IOException {
+        long context = cipher.newContext();
+        try (RandomAccessFile file = new RandomAccessFile(path, "r")) {
+            AtomicFiles.replace(path, out -> writeSealed(id, context, file, out));
+        }
+    }
+
+    // The records of a plain history, sealed under a new header, up to the first torn one
+    private void writeSealed(long id, long context, RandomAccessFile file, DataOutputStream out)
+            throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT_VERSION);
+        out.writeLong(id);
+        out.writeLong(context);
+        long offset = PLAIN_FILE_HEADER_SIZE;
+        long length = file.length();
+        for (int number = 0; offset + RECORD_HEADER_SIZE <= length; number++) {
+            file.seek(offset);
+            int size = file.readInt();
+            if (size <= 0 || offset + RECORD_HEADER_SIZE + size > length) {
+                break;
+            }
+            byte[] payload = readPayload(file, offset, size);
+            if (payload == null) {
+                break;
+            }
+            byte[] sealed = cipher.seal(context, number, payload, 0, size);
+            crc.reset();
+            crc.update(sealed, 0, sealed.length);
+            out.writeInt(sealed.length);
+            out.writeInt((int) crc.getValue());
+            out.write(sealed);
+            offset += RECORD_HEADER_SIZE + size;
+        }
+    }
+
+    // Payload of the record at offset, or null if it doesn't match its checksum
+    private byte[] readPayload(RandomAccessFile file, long offset, int size) throws IOException {
+        file.seek(offset + 4);
+        int checksum = file.readInt();
+        byte[] payload = new byte[size];
+        file.readFully(payload);
+        crc.reset();
+        crc.update(payload, 0, size);
+        return (int) crc.getValue() == checksum ? payload : null;
+    }
+
+    private static byte[] deflate(byte[] data) {
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2 + 64);
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] inflate(DataInputStream in) throws IOException {
+        byte[] compressed = new byte[in.available()];
+        in.readFully(compressed);
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(compressed.length * 3);
+            byte[] buffer = new byte[8192];
+            while (!inflater.finished()) {
+                int count = inflater.inflate(buffer);
+                // An empty body inflates to nothing and is finished at once
+                if (count == 0 && !inflater.finished() && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Truncated keyframe");
+                }
+                out.write(buffer, 0, count);
+            }
+            return out.toByteArray();
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt keyframe", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private File fileOf(long id) {
+        return new File(directory, id + SUFFIX);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > in.available()) {
+            throw new IOException("Bad string length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
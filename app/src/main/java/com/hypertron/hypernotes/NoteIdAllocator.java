@@ -0,0 +1,28 @@
+package com.hypertron.hypernotes;
+
+/**
+ * Hands out note ids.
+ *
+ * An id is the creation time in milliseconds, as it always has been, but
+ * bumped past the highest id handed out or seen so far. Notes created in the
+ * same millisecond, or while the clock steps back, still get distinct ids
+ * that increase in creation order.
+ */
+public final class NoteIdAllocator {
+
+    private long last;
+
+    /**
+     * Note that {@code id} is taken, so it is never handed out again.
+     */
+    public synchronized void observe(long id) {
+        if (id > last) {
+            last = id;
+        }
+    }
+
+    public synchronized long next() {
+        last = Math.max(System.currentTimeMillis(), last + 1);
+        return last;
+    }
+}
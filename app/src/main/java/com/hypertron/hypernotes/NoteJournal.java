@@ -0,0 +1,383 @@
+package com.hypertron.hypernotes;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Per-note journals of small edits, so autosaving a big note writes only
+ * what changed instead of the whole body.
+ *
+ * A journal belongs to one version of a note's record in the {@link NoteStore}
+ * (its base) and holds checksummed entries, each a list of replacements to
+ * apply in order. Once the edits are folded into a new record the base
+ * version moves on and the old journal is ignored, so a crash at any point
+ * either keeps the edits in the journal or has them in the record, never both.
+ *
+ * Entries are sealed with the store's {@link NoteCipher}, each under the
+ * journal's own context and its place in the journal. The checksum covers
+ * the sealed bytes, so a torn entry is still told apart from a tampered one.
+ */
+public class NoteJournal {
+
+    private static final String SUFFIX = ".jnl";
+
+    private static final int MAGIC = 0x484E4A4C; // "HNJL"
+    private static final int FORMAT_VERSION = 2;
+    // Entries in the clear; still read, so edits left by an older version are folded
+    private static final int PLAIN_FORMAT_VERSION = 1;
+
+    // magic (4) + version (4) + note id (8) + base version (4) + context (8)
+    private static final int FILE_HEADER_SIZE = 28;
+    private static final int PLAIN_FILE_HEADER_SIZE = 20;
+    // length (4) + checksum (4)
+    private static final int ENTRY_HEADER_SIZE = 8;
+
+    private final File directory;
+    private final NoteCipher cipher;
+    private final CRC32 crc = new CRC32();
+
+    // What a journal's header says about its entries
+    private static final class Header {
+        static final Header PLAIN = new Header(false, 0, PLAIN_FILE_HEADER_SIZE);
+
+        final boolean sealed;
+        final long context;
+        final int size;
+
+        Header(boolean sealed, long context, int size) {
+            this.sealed = sealed;
+            this.context = context;
+            this.size = size;
+        }
+    }
+
+    /**
+     * One autosave: a new title, if it changed, and body edits against the text
+     * left by the previous entry.
+     */
+    public static final class Entry {
+        final String title;
+        final int[] starts;
+        final int[] replaced;
+        final String[] texts;
+
+        Entry(String title, int[] starts, int[] replaced, String[] texts) {
+            this.title = title;
+            this.starts = starts;
+            this.replaced = replaced;
+            this.texts = texts;
+        }
+
+        /**
+         * The edits made to {@code document} since it was last saved. Copies only the changed text.
+         *
+         * @param title the new title, or null if it is unchanged
+         */
+        public static Entry capture(String title, NoteDocument document) {
+            int[] changes = document.getChanges();
+            int count = changes.length / 3;
+            int[] starts = new int[count];
+            int[] replaced = new int[count];
+            String[] texts = new String[count];
+            for (int i = 0; i < count; i++) {
+                starts[i] = changes[3 * i];
+                replaced[i] = changes[3 * i + 2];
+                texts[i] = document.subSequence(changes[3 * i], changes[3 * i + 1]).toString();
+            }
+            return new Entry(title, starts, replaced, texts);
+        }
+
+        public boolean isEmpty() {
+            return title == null && starts.length == 0;
+        }
+    }
+
+    /**
+     * A note's text once its journal is applied.
+     */
+    public static final class Replay {
+        // Latest journaled title, or null if no entry changed it
+        public final String title;
+        public final String content;
+
+        Replay(String title, String content) {
+            this.title = title;
+            this.content = content;
+        }
+    }
+
+    public NoteJournal(File directory, NoteCipher cipher) {
+        this.directory = directory;
+        this.cipher = cipher;
+    }
+
+    /**
+     * Append an entry to the journal of note {@code id} and make it durable.
+     * A journal kept for another base version is replaced.
+     *
+     * @return size of the journal afterwards, in bytes
+     */
+    public synchronized long append(long id, int baseVersion, Entry entry) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        long[] tail = validTail(fileOf(id), id, baseVersion);
+        try (RandomAccessFile file = new RandomAccessFile(fileOf(id), "rw")) {
+            if (tail == null) {
+                tail = new long[] {cipher.newContext(), FILE_HEADER_SIZE, 0};
+                file.setLength(0);
+                file.writeInt(MAGIC);
+                file.writeInt(FORMAT_VERSION);
+                file.writeLong(id);
+                file.writeInt(baseVersion);
+                file.writeLong(tail[0]);
+            }
+
+            ByteArrayOutputStream payload = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(payload);
+            writeString(out, entry.title);
+            out.writeInt(entry.starts.length);
+            for (int i = 0; i < entry.starts.length; i++) {
+                out.writeInt(entry.starts[i]);
+                out.writeInt(entry.replaced[i]);
+                writeString(out, entry.texts[i]);
+            }
+            byte[] bytes = cipher.seal(tail[0], tail[2], payload.toByteArray(), 0, payload.size());
+            crc.reset();
+            crc.update(bytes, 0, bytes.length);
+
+            // Written over any torn tail left by a crash
+            file.seek(tail[1]);
+            file.writeInt(bytes.length);
+            file.writeInt((int) crc.getValue());
+            file.write(bytes);
+            file.setLength(file.getFilePointer());
+            file.getFD().sync();
+            return file.length();
+        }
+    }
+
+    /**
+     * Apply the journal of note {@code id} to {@code base}, the content of the
+     * note's record at {@code baseVersion}. Returns null if there is no journal
+     * for that version.
+     *
+     * @throws IOException if the journal can't be read, or holds entries that
+     *         fail authentication or edits that don't fit the base; such a
+     *         journal is of no use, so it is discarded
+     */
+    public synchronized Replay replay(long id, int baseVersion, String base) throws IOException {
+        File file = fileOf(id);
+        if (!file.exists()) {
+            return null;
+        }
+        List<Entry> entries = new ArrayList<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            Header header = readHeader(in, id, baseVersion);
+            if (header == null) {
+                // Left over from an older record; the next append or fold replaces it
+                return null;
+            }
+            long remaining = file.length() - header.size;
+            byte[] payload;
+            while ((payload = readPayload(in, remaining)) != null) {
+                remaining -= ENTRY_HEADER_SIZE + payload.length;
+                entries.add(decodeEntry(open(id, header, entries.size(), payload)));
+            }
+        }
+
+        NoteDocument document = new NoteDocument(base != null ? base : "");
+        String title = null;
+        for (Entry entry : entries) {
+            if (entry.title != null) {
+                title = entry.title;
+            }
+            for (int i = 0; i < entry.starts.length; i++) {
+                String text = entry.texts[i];
+                int start = entry.starts[i];
+                int replaced = entry.replaced[i];
+                if (start < 0 || replaced < 0 || start > document.length() - replaced) {
+                    discard(id);
+                    throw new IOException("Corrupt journal of note " + id);
+                }
+                document.replace(start, replaced, text, 0, text.length());
+            }
+        }
+        return new Replay(title, document.toString());
+    }
+
+    /**
+     * Ids of the notes that have a journal, current or stale.
+     */
+    public synchronized List<Long> ids() {
+        List<Long> ids = new ArrayList<>();
+        String[] names = directory.list();
+        if (names == null) {
+            return ids;
+        }
+        for (String name : names) {
+            if (name.endsWith(SUFFIX)) {
+                try {
+                    ids.add(Long.parseLong(name.substring(0, name.length() - SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    // Not one of ours
+                }
+            }
+        }
+        return ids;
+    }
+
+    public synchronized boolean exists(long id) {
+        return fileOf(id).exists();
+    }
+
+    /**
+     * Size of the journal of note {@code id} in bytes, or -1 if there is none.
+     * It only grows until the journal is replaced or discarded.
+     */
+    public synchronized long length(long id) {
+        File file = fileOf(id);
+        return file.exists() ? file.length() : -1;
+    }
+
+    /**
+     * Forget the journal of note {@code id}, once its edits are in the note's record.
+     */
+    public synchronized void discard(long id) {
+        fileOf(id).delete();
+    }
+
+    /**
+     * The context of a sealed journal for this base, the offset just past its
+     * last intact entry and the number of entries, or null if the file isn't
+     * one. A plaintext journal isn't appended to, but replaced.
+     */
+    private long[] validTail(File file, long id, int baseVersion) throws IOException {
+        if (file.length() < FILE_HEADER_SIZE) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            Header header = readHeader(in, id, baseVersion);
+            if (header == null || !header.sealed) {
+                return null;
+            }
+            long end = header.size;
+            long entries = 0;
+            byte[] payload;
+            while ((payload = readPayload(in, file.length() - end)) != null) {
+                end += ENTRY_HEADER_SIZE + payload.length;
+                entries++;
+            }
+            return new long[] {header.context, end, entries};
+        }
+    }
+
+    // Null if the file isn't a journal for this base
+    private Header readHeader(DataInputStream in, long id, int baseVersion) throws IOException {
+        try {
+            if (in.readInt() != MAGIC) {
+                return null;
+            }
+            int version = in.readInt();
+            if (version != FORMAT_VERSION && version != PLAIN_FORMAT_VERSION
+                    || in.readLong() != id || in.readInt() != baseVersion) {
+                return null;
+            }
+            return version == FORMAT_VERSION ? new Header(true, in.readLong(), FILE_HEADER_SIZE) : Header.PLAIN;
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    // An entry that passes its checksum but not authentication wasn't torn, but tampered with
+    private byte[] open(long id, Header header, int index, byte[] payload) throws IOException {
+        if (!header.sealed) {
+            return payload;
+        }
+        try {
+            return cipher.open(header.context, index, payload, 0, payload.length);
+        } catch (IOException e) {
+            discard(id);
+            throw new IOException("Corrupt journal of note " + id, e);
+        }
+    }
+
+    private static Entry decodeEntry(byte[] payload) throws IOException {
+        DataInputStream entry = new DataInputStream(new ByteArrayInputStream(payload));
+        String title = readString(entry);
+        int count = entry.readInt();
+        // Each edit takes at least 12 bytes
+        if (count < 0 || count > entry.available() / 12) {
+            throw new IOException("Corrupt journal entry");
+        }
+        int[] starts = new int[count];
+        int[] replaced = new int[count];
+        String[] texts = new String[count];
+        for (int i = 0; i < count; i++) {
+            starts[i] = entry.readInt();
+            replaced[i] = entry.readInt();
+            texts[i] = readString(entry);
+        }
+        return new Entry(title, starts, replaced, texts);
+    }
+
+    // Reads and checks one entry of the {@code remaining} bytes left in the file, returning
+    // its payload, or null at the end or a torn / corrupt entry
+    private byte[] readPayload(DataInputStream in, long remaining) throws IOException {
+        try {
+            int length = in.readInt();
+            int checksum = in.readInt();
+            // A torn header can claim any length; don't allocate for more than the file holds
+            if (length <= 0 || length > remaining - ENTRY_HEADER_SIZE) {
+                return null;
+            }
+            byte[] payload = new byte[length];
+            in.readFully(payload);
+            crc.reset();
+            crc.update(payload, 0, length);
+            return (int) crc.getValue() == checksum ? payload : null;
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    private File fileOf(long id) {
+        return new File(directory, id + SUFFIX);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        // Only ever read from an entry's payload, which is all in memory
+        if (length > in.available()) {
+            throw new IOException("Corrupt journal entry");
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
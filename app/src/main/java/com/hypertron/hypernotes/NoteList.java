@@ -0,0 +1,272 @@
+package com.hypertron.hypernotes;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * Display list of notes that keeps only a bounded number of decoded pages in memory.
+ *
+ * Each position either points at a {@link NoteSnapshot} row or at a note held
+ * directly (notes written after the snapshot, or inserted through this list).
+ * Snapshot rows are decoded a page at a time, either synchronously by
+ * {@link #get(int)} or off the main thread via {@link #rowsForPage(int)} and
+ * {@link #installPage(int, Note[], int)}. At most {@link #MAX_RESIDENT_PAGES}
+ * pages are kept, so memory per note is a single int no matter how long the list is.
+ *
+ * Positions can be looked up by note id through {@link #positionOf(long)},
+ * from an index built on first use and dropped whenever positions move.
+ *
+ * Not thread-safe; only the snapshot is read from other threads.
+ */
+public class NoteList extends AbstractList<Note> implements RandomAccess {
+
+    public static final int PAGE_SIZE = 32;
+    public static final int MAX_RESIDENT_PAGES = 12;
+
+    private final NoteSnapshot snapshot;
+    private final List<Note> held;
+    private int[] rows;
+    private int size;
+
+    private Note[][] pages;
+    private final int[] residentPages = new int[MAX_RESIDENT_PAGES];
+    private int residentCount;
+    private int residentNext;
+    private int cacheEpoch;
+    // Id to position, or null until someone asks
+    private LongIntMap positions;
+
+    /**
+     * @param rows snapshot row per position, or {@code ~i} for the i-th note of {@code held}
+     */
+    NoteList(NoteSnapshot snapshot, int[] rows, List<Note> held, int size) {
+        this.snapshot = snapshot;
+        this.rows = rows;
+        this.held = new ArrayList<>(held);
+        this.size = size;
+        this.pages = new Note[pageOf(Math.max(size, 1) - 1) + 1][];
+    }
+
+    @Override
+    public Note get(int index) {
+        checkIndex(index);
+        Note note = getIfLoaded(index);
+        if (note == null) {
+            int page = pageOf(index);
+            installPage(page, decodePage(snapshot, rowsForPage(page)), cacheEpoch);
+            note = pages[page][index - page * PAGE_SIZE];
+        }
+        return note;
+    }
+
+    /**
+     * The note at {@code index} if it can be had without decoding, otherwise null.
+     */
+    public Note getIfLoaded(int index) {
+        checkIndex(index);
+        int row = rows[index];
+        if (row < 0) {
+            return held.get(~row);
+        }
+        Note[] page = pages[pageOf(index)];
+        return page != null ? page[index % PAGE_SIZE] : null;
+    }
+
+    /**
+     * Position of the note with this id, or -1 if it isn't in the list. O(1)
+     * once the index is built, which reads ids only and decodes no notes.
+     */
+    public int positionOf(long id) {
+        if (positions == null) {
+            positions = new LongIntMap(size);
+            for (int position = 0; position < size; position++) {
+                int row = rows[position];
+                Note note = row < 0 ? held.get(~row) : null;
+                positions.put(row >= 0 ? snapshot.getId(row) : note.getId(), position);
+            }
+        }
+        return positions.get(id, -1);
+    }
+
+    public static int pageOf(int index) {
+        return index / PAGE_SIZE;
+    }
+
+    public boolean isPageLoaded(int page) {
+        return page >= 0 && page < pages.length && pages[page] != null;
+    }
+
+    /**
+     * Counter that changes whenever positions move, invalidating pages decoded earlier.
+     */
+    public int getCacheEpoch() {
+        return cacheEpoch;
+    }
+
+    /**
+     * Snapshot rows backing a page, for decoding with {@link #decodePage}; held notes show as -1.
+     */
+    public int[] rowsForPage(int page) {
+        int start = page * PAGE_SIZE;
+        int end = Math.min(start + PAGE_SIZE, size);
+        int[] pageRows = new int[Math.max(end - start, 0)];
+        for (int i = start; i < end; i++) {
+            pageRows[i - start] = Math.max(rows[i], -1);
+        }
+        return pageRows;
+    }
+
+    public NoteSnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Copy of the ids and versions at every position, safe to read on another thread.
+     */
+    public Keys keys() {
+        return new Keys(snapshot, Arrays.copyOf(rows, size), new ArrayList<>(held));
+    }
+
+    /**
+     * Ids and versions of a {@link NoteList} at one point in time, read without decoding notes.
+     */
+    public static final class Keys {
+        private final NoteSnapshot snapshot;
+        private final int[] rows;
+        private final List<Note> held;
+
+        private Keys(NoteSnapshot snapshot, int[] rows, List<Note> held) {
+            this.snapshot = snapshot;
+            this.rows = rows;
+            this.held = held;
+        }
+
+        public int size() {
+            return rows.length;
+        }
+
+        public long getId(int position) {
+            int row = rows[position];
+            return row >= 0 ? snapshot.getId(row) : held.get(~row).getId();
+        }
+
+        public int getVersion(int position) {
+            int row = rows[position];
+            return row >= 0 ? snapshot.getVersion(row) : held.get(~row).getVersion();
+        }
+    }
+
+    /**
+     * Decode snapshot rows. Only reads the immutable snapshot, so it is safe off the main thread.
+     */
+    public static Note[] decodePage(NoteSnapshot snapshot, int[] pageRows) {
+        Note[] notes = new Note[PAGE_SIZE];
+        for (int i = 0; i < pageRows.length; i++) {
+            if (pageRows[i] >= 0) {
+                notes[i] = snapshot.getNote(pageRows[i]);
+            }
+        }
+        return notes;
+    }
+
+    /**
+     * Cache a decoded page, evicting the oldest one if too many are resident.
+     * Ignored if positions have moved since {@code epoch} was read.
+     */
+    public void installPage(int page, Note[] notes, int epoch) {
+        if (epoch != cacheEpoch || page < 0 || page >= pages.length || pages[page] != null) {
+            return;
+        }
+        if (residentCount == MAX_RESIDENT_PAGES) {
+            pages[residentPages[residentNext]] = null;
+        } else {
+            residentCount++;
+        }
+        pages[page] = notes;
+        residentPages[residentNext] = page;
+        residentNext = (residentNext + 1) % MAX_RESIDENT_PAGES;
+    }
+
+    /**
+     * Drop every decoded page outside {@code [firstPage, lastPage]}.
+     */
+    public void retainPages(int firstPage, int lastPage) {
+        int kept = 0;
+        for (int i = 0; i < residentCount; i++) {
+            int page = residentPages[(residentNext - residentCount + i + MAX_RESIDENT_PAGES) % MAX_RESIDENT_PAGES];
+            if (page >= firstPage && page <= lastPage) {
+                residentPages[kept++] = page;
+            } else {
+                pages[page] = null;
+            }
+        }
+        residentCount = kept;
+        residentNext = kept % MAX_RESIDENT_PAGES;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public Note set(int index, Note note) {
+        Note previous = get(index);
+        held.add(note);
+        rows[index] = ~(held.size() - 1);
+        if (positions != null && previous.getId() != note.getId()) {
+            positions = null;
+        }
+        return previous;
+    }
+
+    @Override
+    public void add(int index, Note note) {
+        if (index < 0 || index > size) {
+            throw new IndexOutOfBoundsException("Index " + index + ", size " + size);
+        }
+        if (size == rows.length) {
+            rows = Arrays.copyOf(rows, Math.max(16, size + (size >> 1)));
+        }
+        System.arraycopy(rows, index, rows, index + 1, size - index);
+        held.add(note);
+        rows[index] = ~(held.size() - 1);
+        size++;
+        positionsMoved();
+    }
+
+    @Override
+    public Note remove(int index) {
+        Note previous = get(index);
+        int row = rows[index];
+        if (row < 0) {
+            held.set(~row, null);
+        }
+        System.arraycopy(rows, index + 1, rows, index, size - index - 1);
+        size--;
+        positionsMoved();
+        return previous;
+    }
+
+    private void positionsMoved() {
+        modCount++;
+        cacheEpoch++;
+        positions = null;
+        Arrays.fill(pages, null);
+        int pageCount = pageOf(Math.max(size, 1) - 1) + 1;
+        if (pageCount > pages.length) {
+            pages = new Note[pageCount + 8][];
+        }
+        residentCount = 0;
+        residentNext = 0;
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index + ", size " + size);
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package com.hypertron.hypernotes;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import androidx.recyclerview.widget.DiffUtil;
+import androidx.recyclerview.widget.ListUpdateCallback;
+import androidx.recyclerview.widget.RecyclerView;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+
+/**
+ * Works out how a displayed {@link NoteList} changed, off the main thread.
+ *
+ * Notes are matched by id and compared by version, so only notes that were
+ * actually saved since show up as changed. The unchanged head and tail of the
+ * two lists are skipped up front, which leaves {@link DiffUtil} a small window
+ * in the common case of a handful of edits.
+ */
+public class NoteListDiffer {
+
+    // Past this many added or removed notes a full rebind is cheaper than diffing
+    private static final int MAX_SIZE_CHANGE = 2000;
+
+    private static final ExecutorService diffThread = Executors.newSingleThreadExecutor();
+
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private int latestRequest;
+
+    public interface Callback {
+        /**
+         * Called on the main thread once {@code newList} is ready to be shown.
+         */
+        void onDiffReady(NoteList newList, Update update);
+    }
+
+    /**
+     * Load a new list with {@code loader} on the diff thread and compare it with {@code oldList}.
+     * Only the most recent request is delivered; older ones are dropped.
+     */
+    public void diff(NoteList oldList, Supplier<NoteList> loader, Callback callback) {
+        int request = ++latestRequest;
+        int epoch = oldList.getCacheEpoch();
+        NoteList.Keys oldKeys = oldList.keys();
+        diffThread.execute(() -> {
+            NoteList newList = loader.get();
+            Update update = compute(oldKeys, newList.keys());
+            mainHandler.post(() -> {
+                if (request != latestRequest) {
+                    return;
+                }
+                if (epoch != oldList.getCacheEpoch()) {
+                    // The old list moved under us, so the diff no longer lines up with it
+                    diff(oldList, loader, callback);
+                    return;
+                }
+                callback.onDiffReady(newList, update);
+            });
+        });
+    }
+
+    /**
+     * Load a list to replace the displayed one outright, e.g. in another sort
+     * order, where diffing would only find that everything moved. Supersedes,
+     * and is superseded by, {@link #diff} requests.
+     */
+    public void replace(Supplier<NoteList> loader, Callback callback) {
+        int request = ++latestRequest;
+        diffThread.execute(() -> {
+            NoteList newList = loader.get();
+            mainHandler.post(() -> {
+                if (request == latestRequest) {
+                    callback.onDiffReady(newList, Update.FULL_REFRESH);
+                }
+            });
+        });
+    }
+
+    private static Update compute(NoteList.Keys oldKeys, NoteList.Keys newKeys) {
+        int oldSize = oldKeys.size();
+        int newSize = newKeys.size();
+        if (Math.abs(oldSize - newSize) > MAX_SIZE_CHANGE) {
+            return Update.FULL_REFRESH;
+        }
+
+        int head = 0;
+        int limit = Math.min(oldSize, newSize);
+        while (head < limit && same(oldKeys, head, newKeys, head)) {
+            head++;
+        }
+        int tail = 0;
+        limit -= head;
+        while (tail < limit && same(oldKeys, oldSize - 1 - tail, newKeys, newSize - 1 - tail)) {
+            tail++;
+        }
+        if (head == oldSize && head == newSize) {
+            return Update.NONE;
+        }
+
+        int offset = head;
+        int oldCount = oldSize - head - tail;
+        int newCount = newSize - head - tail;
+        DiffUtil.DiffResult result = DiffUtil.calculateDiff(new DiffUtil.Callback() {
+            @Override
+            public int getOldListSize() {
+                return oldCount;
+            }
+
+            @Override
+            public int getNewListSize() {
+                return newCount;
+            }
+
+            @Override
+            public boolean areItemsTheSame(int oldPosition, int newPosition) {
+                return oldKeys.getId(offset + oldPosition) == newKeys.getId(offset + newPosition);
+            }
+
+            @Override
+            public boolean areContentsTheSame(int oldPosition, int newPosition) {
+                return oldKeys.getVersion(offset + oldPosition) == newKeys.getVersion(offset + newPosition);
+            }
+        }, true);
+        return new Update(result, offset);
+    }
+
+    private static boolean same(NoteList.Keys oldKeys, int oldPosition, NoteList.Keys newKeys, int newPosition) {
+        return oldKeys.getId(oldPosition) == newKeys.getId(newPosition)
+                && oldKeys.getVersion(oldPosition) == newKeys.getVersion(newPosition);
+    }
+
+    /**
+     * Changes between two lists, ready to be dispatched to an adapter.
+     */
+    public static final class Update {
+        public static final Update NONE = new Update(null, 0);
+        public static final Update FULL_REFRESH = new Update(null, -1);
+
+        private final DiffUtil.DiffResult result;
+        private final int offset;
+
+        private Update(DiffUtil.DiffResult result, int offset) {
+            this.result = result;
+            this.offset = offset;
+        }
+
+        public void dispatchTo(RecyclerView.Adapter<?> adapter) {
+            if (this == FULL_REFRESH) {
+                adapter.notifyDataSetChanged();
+                return;
+            }
+            if (result == null) {
+                return;
+            }
+            result.dispatchUpdatesTo(new ListUpdateCallback() {
+                @Override
+                public void onInserted(int position, int count) {
+                    adapter.notifyItemRangeInserted(offset + position, count);
+                }
+
+                @Override
+                public void onRemoved(int position, int count) {
+                    adapter.notifyItemRangeRemoved(offset + position, count);
+                }
+
+                @Override
+                public void onMoved(int fromPosition, int toPosition) {
+                    adapter.notifyItemMoved(offset + fromPosition, offset + toPosition);
+                }
+
+                @Override
+                public void onChanged(int position, int count, Object payload) {
+                    adapter.notifyItemRangeChanged(offset + position, count, payload);
+                }
+            });
+        }
+    }
+}
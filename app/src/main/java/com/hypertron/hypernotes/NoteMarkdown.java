@@ -0,0 +1,536 @@
+package com.hypertron.hypernotes;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Markdown structure of a note body, kept up to date edit by edit.
+ *
+ * The body is cut into blocks covering it end to end: headings, list items,
+ * quotes, fenced code, paragraphs and the blank lines between them. Each block
+ * carries its style runs, such as a heading, a code span or the stars around
+ * strong text, found once when the block is parsed.
+ *
+ * Where a block ends depends only on its own lines and the one after, so an
+ * edit re-parses from the block before it and stops as soon as a block ends
+ * where an old one began past the edit; everything from there on is the same
+ * text parsed the same way, and is kept with only its position moved. A
+ * keystroke re-parses one or two blocks however long the note is. Blocks the
+ * edit left exactly as they were keep their identity too, so the styling
+ * attached to them through {@link Block#setSpans} stays put.
+ *
+ * This covers the common subset of Markdown, not all of CommonMark: ATX
+ * headings, bullet and numbered lists, quotes, fenced code, code spans,
+ * emphasis, strong and strikethrough. Not thread-safe.
+ */
+public final class NoteMarkdown {
+
+    // Styles of a run; a heading of level n is HEADING_1 + n - 1
+    public static final int HEADING_1 = 1;
+    public static final int HEADING_6 = 6;
+    public static final int EMPHASIS = 7;
+    public static final int STRONG = 8;
+    public static final int STRIKETHROUGH = 9;
+    public static final int CODE = 10;
+    public static final int CODE_BLOCK = 11;
+    public static final int LIST_MARKER = 12;
+    public static final int QUOTE = 13;
+    // The syntax itself: heading hashes, quote markers, backticks and emphasis delimiters
+    public static final int MARKUP = 14;
+
+    /**
+     * Told which blocks an edit replaced. The lists are reused by the next edit.
+     */
+    public interface Listener {
+        void onBlocksChanged(List<Block> removed, List<Block> added);
+    }
+
+    /**
+     * A run of whole lines parsed together, and its style runs.
+     */
+    public static final class Block {
+        int start;
+        final int length;
+        // Style, start and end of each run, relative to the block's start
+        final int[] runs;
+        private Object spans;
+
+        Block(int start, int length, int[] runs) {
+            this.start = start;
+            this.length = length;
+            this.runs = runs;
+        }
+
+        public int getStart() { return start; }
+        public int getEnd() { return start + length; }
+        public int getRunCount() { return runs.length / RUN_STRIDE; }
+        public int getRunStyle(int run) { return runs[run * RUN_STRIDE]; }
+        public int getRunStart(int run) { return start + runs[run * RUN_STRIDE + 1]; }
+        public int getRunEnd(int run) { return start + runs[run * RUN_STRIDE + 2]; }
+
+        /**
+         * Whatever the renderer made of this block's runs, kept for as long as the block lives.
+         */
+        public Object getSpans() { return spans; }
+        public void setSpans(Object spans) { this.spans = spans; }
+
+        boolean sameAs(Block other) {
+            if (start != other.start || length != other.length || runs.length != other.runs.length) {
+                return false;
+            }
+            for (int i = 0; i < runs.length; i++) {
+                if (runs[i] != other.runs[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private static final int RUN_STRIDE = 3;
+
+    private static final int LINE_BLANK = 0;
+    private static final int LINE_TEXT = 1;
+    private static final int LINE_HEADING = 2;
+    private static final int LINE_FENCE = 3;
+    private static final int LINE_LIST = 4;
+    private static final int LINE_QUOTE = 5;
+
+    private final ArrayList<Block> blocks = new ArrayList<>();
+    private final ArrayList<Block> parsedBlocks = new ArrayList<>();
+    private final ArrayList<Block> removedBlocks = new ArrayList<>();
+    private final ArrayList<Block> addedBlocks = new ArrayList<>();
+
+    // Filled by classify() for the line it looked at
+    private int markerStart;
+    private int markerEnd;
+    private int headingLevel;
+    private char fenceChar;
+    private int fenceLength;
+
+    // Runs of the block being parsed
+    private int[] runs = new int[16 * RUN_STRIDE];
+    private int runCount;
+
+    // Emphasis delimiter runs of the block being parsed: the character, where
+    // its unused part starts, how much of it is unused, and how it may be used
+    private char[] delimiterChars = new char[16];
+    private int[] delimiterStarts = new int[16];
+    private int[] delimiterLengths = new int[16];
+    private boolean[] delimiterOpens = new boolean[16];
+    private boolean[] delimiterCloses = new boolean[16];
+    private int delimiterCount;
+
+    public NoteMarkdown(CharSequence text) {
+        int length = text.length();
+        for (int offset = 0; offset < length; ) {
+            Block block = parseBlock(text, offset);
+            blocks.add(block);
+            offset = block.getEnd();
+        }
+    }
+
+    public int getBlockCount() {
+        return blocks.size();
+    }
+
+    public Block getBlock(int index) {
+        return blocks.get(index);
+    }
+
+    /**
+     * Catch up with {@code text}, in which {@code removed} characters at
+     * {@code position} were just replaced by {@code inserted} others, as a
+     * {@code TextWatcher} reports it.
+     */
+    public void edit(CharSequence text, int position, int removed, int inserted, Listener listener) {
+        if (removed == 0 && inserted == 0) {
+            return;
+        }
+        int first = 0;
+        int last = -1;
+        if (!blocks.isEmpty()) {
+            // The block before may have ended only because of the line the edit changed
+            first = Math.max(0, blockAt(position) - 1);
+            last = blockAt(position + removed);
+        }
+        int delta = inserted - removed;
+        for (int i = last + 1; i < blocks.size(); i++) {
+            blocks.get(i).start += delta;
+        }
+
+        ArrayList<Block> parsed = parsedBlocks;
+        parsed.clear();
+        int editEnd = position + inserted;
+        int length = text.length();
+        int offset = first < blocks.size() ? blocks.get(first).start : 0;
+        int next = last + 1;
+        boolean synced = false;
+        while (offset < length) {
+            Block block = parseBlock(text, offset);
+            parsed.add(block);
+            offset = block.getEnd();
+            if (offset >= editEnd) {
+                while (next < blocks.size() && blocks.get(next).start < offset) {
+                    next++;
+                }
+                if (next < blocks.size() && blocks.get(next).start == offset) {
+                    synced = true;
+                    break;
+                }
+            }
+        }
+        if (!synced) {
+            next = blocks.size();
+        }
+
+        // Keep the old block wherever the new one is identical, so its spans stay
+        // too; only blocks that really changed are reported. Spans of a block the
+        // edit touched have moved with the text, so those are never kept.
+        List<Block> replaced = blocks.subList(first, next);
+        removedBlocks.clear();
+        addedBlocks.clear();
+        int old = 0;
+        for (int i = 0; i < parsed.size(); i++) {
+            Block block = parsed.get(i);
+            while (old < replaced.size() && replaced.get(old).start < block.start) {
+                removedBlocks.add(replaced.get(old++));
+            }
+            if (old < replaced.size() && replaced.get(old).sameAs(block)
+                    && (first + old > last || replaced.get(old).getEnd() <= position)) {
+                parsed.set(i, replaced.get(old++));
+            } else {
+                addedBlocks.add(block);
+            }
+        }
+        while (old < replaced.size()) {
+            removedBlocks.add(replaced.get(old++));
+        }
+        replaced.clear();
+        blocks.addAll(first, parsed);
+        parsed.clear();
+
+        if (!removedBlocks.isEmpty() || !addedBlocks.isEmpty()) {
+            listener.onBlocksChanged(removedBlocks, addedBlocks);
+        }
+    }
+
+    // Index of the block holding offset, or the last block if it is the end of the text
+    private int blockAt(int offset) {
+        int low = 0;
+        int high = blocks.size() - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (blocks.get(middle).start <= offset) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return low;
+    }
+
+    private Block parseBlock(CharSequence text, int start) {
+        int length = text.length();
+        runCount = 0;
+        int lineEnd = lineEnd(text, start);
+        int end = nextLine(lineEnd, length);
+        int textEnd = lineEnd;
+        switch (classify(text, start, lineEnd)) {
+            case LINE_BLANK:
+                while (end < length) {
+                    lineEnd = lineEnd(text, end);
+                    if (classify(text, end, lineEnd) != LINE_BLANK) {
+                        break;
+                    }
+                    end = nextLine(lineEnd, length);
+                }
+                break;
+            case LINE_HEADING:
+                addRun(MARKUP, markerStart, markerEnd);
+                addRun(HEADING_1 + headingLevel - 1, markerStart, lineEnd);
+                inline(text, markerEnd, lineEnd);
+                break;
+            case LINE_FENCE: {
+                // Runs to the closing fence, or to the end of the note if there is none yet
+                char opening = fenceChar;
+                int openingLength = fenceLength;
+                while (end < length) {
+                    lineEnd = lineEnd(text, end);
+                    boolean closing = classify(text, end, lineEnd) == LINE_FENCE
+                            && fenceChar == opening && fenceLength >= openingLength
+                            && isBlank(text, markerEnd, lineEnd);
+                    textEnd = lineEnd;
+                    end = nextLine(lineEnd, length);
+                    if (closing) {
+                        break;
+                    }
+                }
+                addRun(CODE_BLOCK, start, textEnd);
+                break;
+            }
+            case LINE_LIST: {
+                addRun(LIST_MARKER, markerStart, markerEnd);
+                int contentStart = markerEnd;
+                while (end < length) {
+                    lineEnd = lineEnd(text, end);
+                    if (classify(text, end, lineEnd) != LINE_TEXT) {
+                        break;
+                    }
+                    textEnd = lineEnd;
+                    end = nextLine(lineEnd, length);
+                }
+                inline(text, contentStart, textEnd);
+                break;
+            }
+            case LINE_QUOTE:
+                addRun(MARKUP, markerStart, markerEnd);
+                while (end < length) {
+                    lineEnd = lineEnd(text, end);
+                    int line = classify(text, end, lineEnd);
+                    if (line == LINE_QUOTE) {
+                        addRun(MARKUP, markerStart, markerEnd);
+                    } else if (line != LINE_TEXT) {
+                        break;
+                    }
+                    textEnd = lineEnd;
+                    end = nextLine(lineEnd, length);
+                }
+                addRun(QUOTE, start, textEnd);
+                inline(text, start, textEnd);
+                break;
+            default:
+                while (end < length) {
+                    lineEnd = lineEnd(text, end);
+                    if (classify(text, end, lineEnd) != LINE_TEXT) {
+                        break;
+                    }
+                    textEnd = lineEnd;
+                    end = nextLine(lineEnd, length);
+                }
+                inline(text, start, textEnd);
+                break;
+        }
+
+        int[] blockRuns = new int[runCount * RUN_STRIDE];
+        for (int i = 0; i < blockRuns.length; i += RUN_STRIDE) {
+            blockRuns[i] = runs[i];
+            blockRuns[i + 1] = runs[i + 1] - start;
+            blockRuns[i + 2] = runs[i + 2] - start;
+        }
+        return new Block(start, end - start, blockRuns);
+    }
+
+    // What kind of line [start, end) is, filling in its marker if it has one
+    private int classify(CharSequence text, int start, int end) {
+        int i = start;
+        while (i < end && isSpace(text.charAt(i))) {
+            i++;
+        }
+        if (i == end) {
+            return LINE_BLANK;
+        }
+        char c = text.charAt(i);
+        markerStart = i;
+        // Deeper than three spaces these are plain text, but list items nest
+        if (i - start < 4) {
+            if (c == '#') {
+                int run = run(text, i, end, '#');
+                if (run <= 6 && (i + run == end || isSpace(text.charAt(i + run)))) {
+                    headingLevel = run;
+                    markerEnd = i + run;
+                    return LINE_HEADING;
+                }
+            } else if (c == '`' || c == '~') {
+                int run = run(text, i, end, c);
+                if (run >= 3 && (c == '~' || indexOf(text, '`', i + run, end) < 0)) {
+                    fenceChar = c;
+                    fenceLength = run;
+                    markerEnd = i + run;
+                    return LINE_FENCE;
+                }
+            } else if (c == '>') {
+                markerEnd = i + 1;
+                return LINE_QUOTE;
+            }
+        }
+        if (c == '-' || c == '*' || c == '+') {
+            if (i + 1 == end || isSpace(text.charAt(i + 1))) {
+                markerEnd = i + 1;
+                return LINE_LIST;
+            }
+        } else if (c >= '0' && c <= '9') {
+            int j = i;
+            while (j < end && j - i < 9 && text.charAt(j) >= '0' && text.charAt(j) <= '9') {
+                j++;
+            }
+            if (j < end && (text.charAt(j) == '.' || text.charAt(j) == ')')
+                    && (j + 1 == end || isSpace(text.charAt(j + 1)))) {
+                markerEnd = j + 1;
+                return LINE_LIST;
+            }
+        }
+        return LINE_TEXT;
+    }
+
+    // Code spans, then emphasis, strong and strikethrough, in [start, end)
+    private void inline(CharSequence text, int start, int end) {
+        delimiterCount = 0;
+        int i = start;
+        while (i < end) {
+            char c = text.charAt(i);
+            if (c == '\\') {
+                i += 2;
+            } else if (c == '`') {
+                // A code span closes at the next run of exactly as many backticks
+                int run = run(text, i, end, '`');
+                int close = i + run;
+                while (close < end) {
+                    close = indexOf(text, '`', close, end);
+                    if (close < 0) {
+                        break;
+                    }
+                    int closeRun = run(text, close, end, '`');
+                    if (closeRun == run) {
+                        break;
+                    }
+                    close += closeRun;
+                }
+                if (close >= 0 && close < end) {
+                    addRun(MARKUP, i, i + run);
+                    addRun(CODE, i + run, close);
+                    addRun(MARKUP, close, close + run);
+                    i = close + run;
+                } else {
+                    i += run;
+                }
+            } else if (c == '*' || c == '_' || c == '~') {
+                int run = run(text, i, end, c);
+                if (c != '~' || run == 2) {
+                    char before = i > start ? text.charAt(i - 1) : ' ';
+                    char after = i + run < end ? text.charAt(i + run) : ' ';
+                    boolean opens = !Character.isWhitespace(after);
+                    boolean closes = !Character.isWhitespace(before);
+                    if (c == '_') {
+                        // Underscores inside a word are just underscores
+                        opens &= !Character.isLetterOrDigit(before);
+                        closes &= !Character.isLetterOrDigit(after);
+                    }
+                    if (opens || closes) {
+                        addDelimiter(c, i, run, opens, closes);
+                    }
+                }
+                i += run;
+            } else {
+                i++;
+            }
+        }
+        matchDelimiters();
+    }
+
+    // Pair each closing delimiter with the nearest open one of its kind before it
+    private void matchDelimiters() {
+        for (int closer = 0; closer < delimiterCount; closer++) {
+            if (!delimiterCloses[closer]) {
+                continue;
+            }
+            char c = delimiterChars[closer];
+            while (delimiterLengths[closer] > 0) {
+                int opener = closer - 1;
+                while (opener >= 0 && (delimiterChars[opener] != c || !delimiterOpens[opener]
+                        || delimiterLengths[opener] == 0)) {
+                    opener--;
+                }
+                if (opener < 0) {
+                    break;
+                }
+                int use = c == '~' || (delimiterLengths[opener] >= 2 && delimiterLengths[closer] >= 2) ? 2 : 1;
+                // Openers are used up from their inner end, closers from their start
+                int openEnd = delimiterStarts[opener] + delimiterLengths[opener];
+                int closeStart = delimiterStarts[closer];
+                addRun(MARKUP, openEnd - use, openEnd);
+                addRun(MARKUP, closeStart, closeStart + use);
+                addRun(c == '~' ? STRIKETHROUGH : use == 2 ? STRONG : EMPHASIS, openEnd, closeStart);
+                delimiterLengths[opener] -= use;
+                delimiterLengths[closer] -= use;
+                delimiterStarts[closer] += use;
+                // Delimiters between the two can no longer pair across them
+                for (int k = opener + 1; k < closer; k++) {
+                    delimiterLengths[k] = 0;
+                }
+            }
+        }
+    }
+
+    private void addDelimiter(char c, int start, int length, boolean opens, boolean closes) {
+        if (delimiterCount == delimiterChars.length) {
+            int capacity = delimiterCount * 2;
+            delimiterChars = Arrays.copyOf(delimiterChars, capacity);
+            delimiterStarts = Arrays.copyOf(delimiterStarts, capacity);
+            delimiterLengths = Arrays.copyOf(delimiterLengths, capacity);
+            delimiterOpens = Arrays.copyOf(delimiterOpens, capacity);
+            delimiterCloses = Arrays.copyOf(delimiterCloses, capacity);
+        }
+        delimiterChars[delimiterCount] = c;
+        delimiterStarts[delimiterCount] = start;
+        delimiterLengths[delimiterCount] = length;
+        delimiterOpens[delimiterCount] = opens;
+        delimiterCloses[delimiterCount] = closes;
+        delimiterCount++;
+    }
+
+    // Empty runs are dropped; a span can't cover nothing
+    private void addRun(int style, int start, int end) {
+        if (start >= end) {
+            return;
+        }
+        int at = runCount * RUN_STRIDE;
+        if (at == runs.length) {
+            runs = Arrays.copyOf(runs, runs.length * 2);
+        }
+        runs[at] = style;
+        runs[at + 1] = start;
+        runs[at + 2] = end;
+        runCount++;
+    }
+
+    private static int lineEnd(CharSequence text, int start) {
+        int end = indexOf(text, '\n', start, text.length());
+        return end < 0 ? text.length() : end;
+    }
+
+    private static int nextLine(int lineEnd, int length) {
+        return lineEnd < length ? lineEnd + 1 : length;
+    }
+
+    private static int indexOf(CharSequence text, char c, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (text.charAt(i) == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int run(CharSequence text, int start, int end, char c) {
+        int i = start;
+        while (i < end && text.charAt(i) == c) {
+            i++;
+        }
+        return i - start;
+    }
+
+    private static boolean isBlank(CharSequence text, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (!isSpace(text.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isSpace(char c) {
+        return c == ' ' || c == '\t';
+    }
+}
@@ -0,0 +1,243 @@
+package com.hypertron.hypernotes;
+
+import android.content.ContentProvider;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.UriMatcher;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.CancellationSignal;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Read-only access to the notes for widgets, share targets and other apps.
+ *
+ * {@link #CONTENT_URI} lists every note and {@link #uriFor(long)} is one of
+ * them. Without a projection a query gets every column but
+ * {@link #COLUMN_CONTENT}; bodies are only read for cursors that ask for
+ * them, a row at a time as the cursor reaches it.
+ *
+ * Long lists are read a window at a time: pass
+ * {@link ContentResolver#QUERY_ARG_OFFSET} and {@link ContentResolver#QUERY_ARG_LIMIT}
+ * in the query arguments, or {@code offset} and {@code limit} URI parameters
+ * where those aren't available. The cursor's extras hold the total under
+ * {@link ContentResolver#EXTRA_TOTAL_COUNT}. Sort orders are the note grid's:
+ * {@link #SORT_MODIFIED}, {@link #SORT_CREATED}, {@link #SORT_TITLE} and
+ * {@link #SORT_COLOR}. Selections aren't supported.
+ *
+ * Each saved or deleted note is notified on its own URI, so an observer of
+ * {@link #CONTENT_URI} that takes descendants learns which note changed and
+ * can reload just that row. After a bulk change such as an import the
+ * collection URI itself is notified instead.
+ *
+ * Queries read a copy of the note list taken under the store's lock, over
+ * its immutable snapshot, so they are safe on binder threads while notes are
+ * being written.
+ */
+public class NoteProvider extends ContentProvider {
+
+    public static final String AUTHORITY = "com.hypertron.hypernotes.notes";
+    public static final Uri CONTENT_URI = Uri.parse("content://" + AUTHORITY + "/notes");
+
+    public static final String CONTENT_TYPE = "vnd.android.cursor.dir/vnd.com.hypertron.hypernotes.note";
+    public static final String CONTENT_ITEM_TYPE = "vnd.android.cursor.item/vnd.com.hypertron.hypernotes.note";
+
+    // Note id, which is also when it was created
+    public static final String COLUMN_ID = "_id";
+    public static final String COLUMN_TITLE = "title";
+    // Epoch milliseconds
+    public static final String COLUMN_MODIFIED = "modified";
+    public static final String COLUMN_CREATED = "created";
+    // ARGB
+    public static final String COLUMN_COLOR = "color";
+    // The emoji the note's card shows
+    public static final String COLUMN_SYMBOL = "symbol";
+    public static final String COLUMN_CONTENT = "content";
+
+    public static final String[] ALL_COLUMNS = {
+        COLUMN_ID, COLUMN_TITLE, COLUMN_MODIFIED, COLUMN_CREATED, COLUMN_COLOR, COLUMN_SYMBOL, COLUMN_CONTENT
+    };
+    static final String[] DEFAULT_COLUMNS = Arrays.copyOf(ALL_COLUMNS, ALL_COLUMNS.length - 1);
+
+    public static final String SORT_MODIFIED = COLUMN_MODIFIED + " DESC";
+    public static final String SORT_CREATED = COLUMN_CREATED + " DESC";
+    public static final String SORT_TITLE = COLUMN_TITLE + " ASC";
+    // Palette order, newest first within a color
+    public static final String SORT_COLOR = COLUMN_COLOR + " ASC";
+
+    // URI parameters for paging where query arguments can't be passed
+    public static final String PARAM_OFFSET = "offset";
+    public static final String PARAM_LIMIT = "limit";
+
+    private static final int NOTES = 1;
+    private static final int NOTE = 2;
+
+    private static final UriMatcher URIS = new UriMatcher(UriMatcher.NO_MATCH);
+
+    static {
+        URIS.addURI(AUTHORITY, "notes", NOTES);
+        URIS.addURI(AUTHORITY, "notes/#", NOTE);
+    }
+
+    private static final LatencyHistogram QUERY_TIME = Metrics.histogram("provider.query");
+
+    public static Uri uriFor(long id) {
+        return ContentUris.withAppendedId(CONTENT_URI, id);
+    }
+
+    @Override
+    public boolean onCreate() {
+        // Providers are created before anything else in the process; the
+        // store is opened on the first query instead, off the startup path
+        return true;
+    }
+
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
+                        String sortOrder) {
+        return query(uri, projection, selection, sortOrder,
+                parseInt(uri.getQueryParameter(PARAM_OFFSET), 0),
+                parseInt(uri.getQueryParameter(PARAM_LIMIT), -1));
+    }
+
+    @Override
+    public Cursor query(Uri uri, String[] projection, Bundle queryArgs, CancellationSignal cancellationSignal) {
+        if (queryArgs == null) {
+            return query(uri, projection, null, null, null);
+        }
+        return query(uri, projection,
+                queryArgs.getString(ContentResolver.QUERY_ARG_SQL_SELECTION),
+                queryArgs.getString(ContentResolver.QUERY_ARG_SQL_SORT_ORDER),
+                queryArgs.getInt(ContentResolver.QUERY_ARG_OFFSET,
+                        parseInt(uri.getQueryParameter(PARAM_OFFSET), 0)),
+                queryArgs.getInt(ContentResolver.QUERY_ARG_LIMIT,
+                        parseInt(uri.getQueryParameter(PARAM_LIMIT), -1)));
+    }
+
+    private Cursor query(Uri uri, String[] projection, String selection, String sortOrder,
+                         int offset, int limit) {
+        long start = System.nanoTime();
+        int match = URIS.match(uri);
+        if (match == UriMatcher.NO_MATCH) {
+            throw new IllegalArgumentException("Unknown URI " + uri);
+        }
+        if (selection != null) {
+            throw new IllegalArgumentException("Selections are not supported");
+        }
+        String[] columns = projection != null ? projection : DEFAULT_COLUMNS;
+        int sort = sortFor(sortOrder);
+
+        Context context = getContext();
+        // Nothing to share until the user resets a store whose key is lost
+        if (NoteRepository.isKeyLost(context)) {
+            return null;
+        }
+        NoteRepository repository = NoteRepository.getInstance(context);
+        List<Note> notes;
+        if (match == NOTE) {
+            Note note = repository.getNote(ContentUris.parseId(uri));
+            notes = note != null ? Collections.singletonList(note) : Collections.emptyList();
+        } else {
+            notes = repository.getNotes(NoteView.DEFAULT.withSort(sort));
+        }
+
+        int total = notes.size();
+        int first = Math.min(Math.max(offset, 0), total);
+        int count = limit >= 0 ? Math.min(limit, total - first) : total - first;
+
+        int[] colorResIds = NoteRepository.getColorResourceIds();
+        int[] colors = new int[colorResIds.length];
+        for (int i = 0; i < colorResIds.length; i++) {
+            colors[i] = context.getColor(colorResIds[i]);
+        }
+        // Only needed to name the symbol; skip the lookup otherwise
+        String[] symbols = Arrays.asList(columns).contains(COLUMN_SYMBOL)
+                ? context.getResources().getStringArray(R.array.note_symbols)
+                : new String[0];
+        NoteCursor cursor = new NoteCursor(notes, first, count, columns, repository,
+                colorResIds, colors, symbols);
+        cursor.setNotificationUri(context.getContentResolver(), match == NOTE ? uri : CONTENT_URI);
+
+        Bundle extras = new Bundle();
+        extras.putInt(ContentResolver.EXTRA_TOTAL_COUNT, total);
+        extras.putStringArray(ContentResolver.EXTRA_HONORED_ARGS, new String[] {
+            ContentResolver.QUERY_ARG_OFFSET, ContentResolver.QUERY_ARG_LIMIT,
+            ContentResolver.QUERY_ARG_SQL_SORT_ORDER
+        });
+        cursor.setExtras(extras);
+        QUERY_TIME.recordSince(start);
+        return cursor;
+    }
+
+    /**
+     * The note grid's sort order for a SQL-style one, or an exception for
+     * anything the grid can't sort by.
+     */
+    private static int sortFor(String sortOrder) {
+        if (sortOrder == null) {
+            return NoteView.SORT_MODIFIED;
+        }
+        // SQL keywords are case-insensitive, so compare in lower case
+        String normalized = sortOrder.trim().replaceAll("\\s+", " ").toLowerCase(Locale.ROOT);
+        switch (normalized) {
+            case COLUMN_MODIFIED + " desc":
+                return NoteView.SORT_MODIFIED;
+            case COLUMN_CREATED + " desc":
+            case COLUMN_ID + " desc":
+                return NoteView.SORT_CREATED;
+            case COLUMN_TITLE:
+            case COLUMN_TITLE + " asc":
+                return NoteView.SORT_TITLE;
+            case COLUMN_COLOR:
+            case COLUMN_COLOR + " asc":
+                return NoteView.SORT_COLOR;
+            default:
+                throw new IllegalArgumentException("Unsupported sort order " + sortOrder);
+        }
+    }
+
+    private static int parseInt(String value, int fallback) {
+        if (value == null) {
+            return fallback;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return fallback;
+        }
+    }
+
+    @Override
+    public String getType(Uri uri) {
+        switch (URIS.match(uri)) {
+            case NOTES:
+                return CONTENT_TYPE;
+            case NOTE:
+                return CONTENT_ITEM_TYPE;
+            default:
+                return null;
+        }
+    }
+
+    @Override
+    public Uri insert(Uri uri, ContentValues values) {
+        throw new UnsupportedOperationException("Notes are read-only here");
+    }
+
+    @Override
+    public int delete(Uri uri, String selection, String[] selectionArgs) {
+        throw new UnsupportedOperationException("Notes are read-only here");
+    }
+
+    @Override
+    public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        throw new UnsupportedOperationException("Notes are read-only here");
+    }
+}
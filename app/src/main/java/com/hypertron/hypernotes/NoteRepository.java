@@ -0,0 +1,1208 @@
+package com.hypertron.hypernotes;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.provider.OpenableColumns;
+import android.widget.Toast;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Process-wide access point to the persistent {@link NoteStore}.
+ *
+ * Activities go through here instead of opening the store themselves so that
+ * every screen sees the same notes, and so housekeeping such as log compaction
+ * runs on a single background thread.
+ *
+ * Saves are write-behind: they are visible to reads at once, and a writer
+ * thread makes them durable in batches, one fsync per batch. Edits arriving
+ * while a batch is being written pile up and go out together in the next one.
+ *
+ * Autosaves of notes already on record go to a {@link NoteJournal} instead,
+ * one small entry per autosave, and are folded into a full record once the
+ * journal grows or the editor closes. Reads apply any journal still pending.
+ *
+ * Every full save, folds included, also goes into the note's {@link NoteHistory}
+ * on a thread of its own, so earlier versions can be brought back.
+ *
+ * Screens editing a note say so with {@link #editorOpened} and
+ * {@link #editorClosed}. Imports and syncs never replace a note while it is
+ * open, since the editor's document would no longer match the record its
+ * journal is written against.
+ *
+ * Every save and delete is also notified on the note's {@link NoteProvider}
+ * URI, for widgets and other apps reading the notes from there, and marked
+ * for the next {@link NoteSync} with the user's other devices.
+ *
+ * The store is encrypted with a {@link DeviceKey}, so its files are no use
+ * off this device; moving notes to another one goes through an export.
+ */
+public class NoteRepository {
+
+    private static final String STORE_DIR = "notes";
+    private static final String JOURNAL_DIR = "journal";
+    private static final String HISTORY_DIR = "history";
+    private static final String SYNC_DIR = "sync";
+    private static final String KEY_FILE = "notes.key";
+
+    // A journal this big is folded into the note's record right away
+    private static final long FOLD_BYTES = 64 * 1024;
+
+    /**
+     * Intent extra carrying a note id between screens. Screens pass only the
+     * id and read the note itself from here, so no note body ever rides in an
+     * Intent.
+     */
+    public static final String EXTRA_NOTE_ID = "note_id";
+
+    // Characters handed to the UI at a time while streaming a body
+    private static final int CONTENT_CHUNK = 16 * 1024;
+
+    // Main-thread cost of a save, then the disk work it hands to the writer thread
+    private static final LatencyHistogram SAVE_TIME = Metrics.histogram("save.stage");
+    private static final LatencyHistogram AUTOSAVE_TIME = Metrics.histogram("save.autosave");
+    private static final LatencyHistogram JOURNAL_APPEND_TIME = Metrics.histogram("save.journalAppend");
+    private static final LatencyHistogram FLUSH_TIME = Metrics.histogram("save.flush");
+    private static final LatencyHistogram FOLD_TIME = Metrics.histogram("save.fold");
+    private static final StripedCounter SAVE_ERRORS = Metrics.counter("save.errors");
+    // Time on the search thread, and from the call until results reach the main thread
+    private static final LatencyHistogram SEARCH_TIME = Metrics.histogram("search.run");
+    private static final LatencyHistogram SEARCH_LATENCY = Metrics.histogram("search.latency");
+    private static final LatencyHistogram QUICK_OPEN_TIME = Metrics.histogram("search.quickOpen");
+
+    // Titles offered by the quick-open palette
+    private static final int QUICK_OPEN_LIMIT = 20;
+    // From the call until the first chunk, and until the whole body, is handed to the main thread
+    private static final LatencyHistogram LOAD_FIRST_CHUNK = Metrics.histogram("load.firstChunk");
+    private static final LatencyHistogram LOAD_TIME = Metrics.histogram("load.content");
+    private static final StripedCounter LOAD_ERRORS = Metrics.counter("load.errors");
+
+    private static final LatencyHistogram VIEW_TIME = Metrics.histogram("view.select");
+
+    private static final LatencyHistogram EXPORT_TIME = Metrics.histogram("archive.export");
+    private static final LatencyHistogram IMPORT_TIME = Metrics.histogram("archive.import");
+
+    private static final LatencyHistogram SYNC_TIME = Metrics.histogram("sync.run");
+    private static final StripedCounter SYNC_ERRORS = Metrics.counter("sync.errors");
+
+    // Notes imported per write, each batch made durable with one fsync
+    private static final int IMPORT_BATCH = 512;
+    // Notes imported between checkpoints, which fold the store's in-memory
+    // record of new notes into its snapshot and so bound it
+    private static final int IMPORT_CHECKPOINT = 16 * 1024;
+    // Notes between progress reports
+    private static final int PROGRESS_INTERVAL = 256;
+
+    // Changed notes notified one URI each; past this many, the whole collection is notified once
+    private static final int MAX_CHANGE_URIS = 64;
+
+    private static NoteRepository instance;
+    // Set when the notes were sealed with a key this device lost; cleared by resetStore
+    private static boolean keyLost;
+
+    private final Context context;
+    private final NoteStore store;
+    private final NoteJournal journal;
+    private final NoteHistory history;
+    private final NoteSync sync;
+    private final ExecutorService background = Executors.newSingleThreadExecutor();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final ExecutorService writer = Executors.newSingleThreadExecutor();
+    private final ExecutorService contentLoader = Executors.newSingleThreadExecutor();
+    private final ExecutorService historyThread = Executors.newSingleThreadExecutor();
+
+    // The search indexes are only ever touched from this thread
+    private final ExecutorService searchThread = Executors.newSingleThreadExecutor();
+    private final NoteSearchIndex searchIndex = new NoteSearchIndex();
+    private final NoteTitleIndex titleIndex = new NoteTitleIndex();
+    // Whether the content index has been built yet; until then it stays empty
+    private boolean contentIndexed;
+    // Whether building it has been queued, guarded by this
+    private boolean searchPrepared;
+
+    // Notes changed since NoteProvider's observers were last told
+    private final ExecutorService changeNotifier = Executors.newSingleThreadExecutor();
+    private LongMap<Uri> changedNotes = new LongMap<>();
+    private boolean manyNotesChanged;
+    private boolean notifyScheduled;
+    private boolean compactionScheduled;
+    private boolean checkpointScheduled;
+    private boolean trainingScheduled;
+    private boolean flushScheduled;
+    // Editors open on each note, guarded by this
+    private final LongIntMap openEditors = new LongIntMap();
+
+    public interface SearchCallback {
+        void onSearchResults(String query, NoteList results);
+    }
+
+    public interface QuickOpenCallback {
+        void onQuickOpenResults(String query, List<Note> notes);
+    }
+
+    public interface ContentCallback {
+        /**
+         * The next piece of the body, in order, on the main thread.
+         */
+        void onContentChunk(String chunk);
+
+        /**
+         * Called once after the last chunk; {@code complete} is false if the
+         * note is gone or could not be read, in which case the chunks seen so
+         * far are not the whole body.
+         */
+        void onContentLoaded(boolean complete);
+    }
+
+    public interface RevisionsCallback {
+        /**
+         * Saved versions of a note, oldest first, on the main thread; null if they could not be read.
+         */
+        void onRevisions(List<NoteHistory.Revision> revisions);
+    }
+
+    public interface TransferCallback {
+        /**
+         * Notes exported or imported so far, and the percentage done or -1 if
+         * not known, on the main thread.
+         */
+        void onProgress(int notes, int percent);
+
+        /**
+         * Called once on the main thread when done. On failure, notes already
+         * imported stay imported, and a partial export is left as it is.
+         */
+        void onFinished(int notes, boolean success);
+    }
+
+    public interface RevisionCallback {
+        /**
+         * Text of the requested revision on the main thread, or null if it could not be read.
+         */
+        void onRevisionLoaded(String content);
+    }
+
+    public interface ResetCallback {
+        /**
+         * Called on the main thread once the store is gone, or failed to go.
+         */
+        void onReset(boolean success);
+    }
+
+    /**
+     * Palette every note's colorResId is drawn from, in the order of the color pickers.
+     */
+    public static int[] getColorResourceIds() {
+        return new int[] {
+            R.color.note_blue,
+            R.color.note_green,
+            R.color.note_yellow,
+            R.color.note_orange,
+            R.color.note_red,
+            R.color.note_purple,
+            R.color.note_pink,
+            R.color.note_teal
+        };
+    }
+
+    public static synchronized NoteRepository getInstance(Context context) {
+        if (instance == null) {
+            File directory = new File(context.getApplicationContext().getFilesDir(), STORE_DIR);
+            try {
+                NoteCipher cipher = DeviceKey.open(new File(directory, KEY_FILE));
+                instance = new NoteRepository(context.getApplicationContext(),
+                        NoteStore.open(directory, getColorResourceIds(), cipher),
+                        new NoteJournal(new File(directory, JOURNAL_DIR), cipher),
+                        new NoteHistory(new File(directory, HISTORY_DIR), NoteHistory.DEFAULT_MAX_CHAIN, cipher),
+                        NoteSync.open(new File(directory, SYNC_DIR), getColorResourceIds()));
+            } catch (DeviceKey.LostKeyException e) {
+                keyLost = true;
+                throw new IllegalStateException("Note key is lost", e);
+            } catch (IOException e) {
+                throw new IllegalStateException("Unable to open note store", e);
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Whether the notes can't be opened because the key they were sealed with
+     * is gone from this device. Until {@link #resetStore} is called,
+     * {@link #getInstance} throws.
+     */
+    public static synchronized boolean isKeyLost(Context context) {
+        if (instance == null && !keyLost) {
+            try {
+                getInstance(context);
+            } catch (IllegalStateException e) {
+                // Anything but a lost key is thrown again by getInstance itself
+            }
+        }
+        return keyLost;
+    }
+
+    /**
+     * Delete the notes sealed with a lost key, along with their journals,
+     * histories and sync state, so the next {@link #getInstance} starts an
+     * empty store under a new key. Synced notes come back with the next sync.
+     */
+    public static void resetStore(Context context, ResetCallback callback) {
+        Context app = context.getApplicationContext();
+        Handler handler = new Handler(Looper.getMainLooper());
+        new Thread(() -> {
+            boolean success;
+            synchronized (NoteRepository.class) {
+                success = instance == null && deleteTree(new File(app.getFilesDir(), STORE_DIR));
+                if (success) {
+                    keyLost = false;
+                }
+            }
+            handler.post(() -> callback.onReset(success));
+        }, "ResetStore").start();
+    }
+
+    private static boolean deleteTree(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteTree(child);
+            }
+        }
+        return file.delete() || !file.exists();
+    }
+
+    private NoteRepository(Context context, NoteStore store, NoteJournal journal, NoteHistory history,
+                           NoteSync sync) {
+        this.context = context;
+        this.store = store;
+        this.journal = journal;
+        this.history = history;
+        this.sync = sync;
+        if (store.needsSealing()) {
+            // Written before notes were sealed; readable as it is until then
+            background.execute(() -> {
+                try {
+                    store.seal();
+                } catch (IOException e) {
+                    // Sealed again on the next start
+                }
+            });
+        }
+        if (sync.isFresh()) {
+            // Nothing has been pushed from here yet, so everything is to be
+            background.execute(() -> {
+                NoteList.Keys keys = store.getAll().keys();
+                long[] ids = new long[keys.size()];
+                for (int i = 0; i < ids.length; i++) {
+                    ids[i] = keys.getId(i);
+                }
+                try {
+                    sync.seed(ids);
+                } catch (IOException e) {
+                    // Seeded again on the next start
+                }
+            });
+        }
+        // Journals left behind when the app was killed mid-edit
+        writer.execute(() -> {
+            for (long id : journal.ids()) {
+                fold(id);
+            }
+        });
+        // Histories an older version kept in the clear; a no-op once done
+        historyThread.execute(() -> {
+            try {
+                history.sealAll();
+            } catch (IOException e) {
+                // Tried again on the next start; each history is also sealed when next read
+            }
+        });
+        // Titles are already in memory, so quick-open is ready at once
+        searchThread.execute(() -> {
+            for (Note note : store.getAll()) {
+                titleIndex.update(note.getId(), note.getTitle(), note.getTimestamp());
+            }
+        });
+    }
+
+    /**
+     * Build the content index in the background, if it isn't built or queued
+     * already. It reads every note, so call it once startup has settled, or
+     * when search is about to be used; searches made meanwhile wait for it.
+     */
+    public void prepareSearch() {
+        synchronized (this) {
+            if (searchPrepared) {
+                return;
+            }
+            searchPrepared = true;
+        }
+        searchThread.execute(() -> {
+            if (!contentIndexed) {
+                buildSearchIndex();
+            }
+        });
+    }
+
+    /**
+     * Index every note's content. This reads, decompresses and decrypts every
+     * body, and keeps the terms of each in memory from then on, so it is left
+     * out of startup and waits for {@link #prepareSearch}. Search thread only.
+     */
+    private void buildSearchIndex() {
+        for (Note note : store.getAll()) {
+            try {
+                String content = getContent(note.getId());
+                if (content != null) {
+                    searchIndex.update(note.getId(), note.getTitle(), content);
+                }
+            } catch (IOException e) {
+                // Leave this note out of search rather than failing the whole index
+            }
+        }
+        contentIndexed = true;
+    }
+
+    /**
+     * All notes, newest first. The returned notes carry no content; use
+     * {@link #getContent(long)} to load a body.
+     */
+    public NoteList getNotes() {
+        return store.getAll();
+    }
+
+    /**
+     * The notes {@code view} shows, in its order. The first call for a sort
+     * order other than newest first sorts every note, so make it off the main
+     * thread; later ones only copy out the kept order.
+     */
+    public NoteList getNotes(NoteView view) {
+        long start = System.nanoTime();
+        NoteList notes = store.getAll(view);
+        VIEW_TIME.recordSince(start);
+        return notes;
+    }
+
+    /**
+     * {@link #getNotes(NoteView)} once every save and fold queued so far has
+     * reached the store, so a note just left in an editor shows with its new
+     * title and in its new place. Blocks, so never on the main thread.
+     */
+    public NoteList getNotesAfterWrites(NoteView view) {
+        try {
+            await(writer.submit(() -> {}));
+        } catch (IOException e) {
+            // Interrupted; the notes as they are will do
+        }
+        return getNotes(view);
+    }
+
+    /**
+     * A fresh id for a new note; never one already taken, however fast notes are created.
+     */
+    public long newNoteId() {
+        return store.newId();
+    }
+
+    /**
+     * Note that a screen is about to load {@code id} for editing. Call it
+     * before the body is loaded, and {@link #editorClosed} once the screen is
+     * gone; until then imports and syncs leave the note alone.
+     */
+    public synchronized void editorOpened(long id) {
+        openEditors.put(id, openEditors.get(id, 0) + 1);
+    }
+
+    public synchronized void editorClosed(long id) {
+        int count = openEditors.get(id, 0);
+        if (count > 1) {
+            openEditors.put(id, count - 1);
+        } else {
+            openEditors.remove(id);
+        }
+    }
+
+    private synchronized boolean isOpenInEditor(long id) {
+        return openEditors.containsKey(id);
+    }
+
+    public Note getNote(long id) {
+        return store.get(id);
+    }
+
+    public String getContent(long id) throws IOException {
+        if (journal.exists(id)) {
+            Note note = replay(id);
+            return note != null ? note.getContent() : null;
+        }
+        return store.getContent(id);
+    }
+
+    /**
+     * The note with its journal applied, or null if it's gone.
+     */
+    private Note replay(long id) throws IOException {
+        Note note = store.getWithContent(id);
+        if (note == null) {
+            return null;
+        }
+        NoteJournal.Replay replay = journal.replay(id, note.getVersion(), note.getContent());
+        if (replay == null) {
+            return note;
+        }
+        Note replayed = new Note(id, replay.title != null ? replay.title : note.getTitle(),
+                replay.content, note.getTimestamp(), note.getColorResId());
+        replayed.setSymbolIndex(note.getSymbolIndex());
+        replayed.setCustomEmoji(note.getCustomEmoji());
+        replayed.setVersion(note.getVersion());
+        return replayed;
+    }
+
+    /**
+     * Stream a note's body to {@code callback} in chunks, read on a background
+     * thread, so even very large notes never sit in memory twice or stall the UI.
+     */
+    public void loadContent(long id, ContentCallback callback) {
+        long start = System.nanoTime();
+        contentLoader.execute(() -> {
+            boolean complete = false;
+            try (Reader reader = journal.exists(id) ? replayReader(id) : store.openContent(id)) {
+                if (reader != null) {
+                    char[] buffer = new char[CONTENT_CHUNK];
+                    int read;
+                    boolean first = true;
+                    while ((read = reader.read(buffer)) > 0) {
+                        String chunk = new String(buffer, 0, read);
+                        mainHandler.post(() -> callback.onContentChunk(chunk));
+                        if (first) {
+                            LOAD_FIRST_CHUNK.recordSince(start);
+                            first = false;
+                        }
+                    }
+                    complete = true;
+                }
+            } catch (IOException e) {
+                // Reported as an incomplete load below
+            }
+            boolean loaded = complete;
+            if (loaded) {
+                LOAD_TIME.recordSince(start);
+            } else {
+                LOAD_ERRORS.increment();
+            }
+            mainHandler.post(() -> callback.onContentLoaded(loaded));
+        });
+    }
+
+    private Reader replayReader(long id) throws IOException {
+        Note note = replay(id);
+        return note != null ? new StringReader(note.getContent() != null ? note.getContent() : "") : null;
+    }
+
+    /**
+     * Save the edits made to {@code document} since it was last saved, and
+     * mark it saved. For a note already on record only the changed text is
+     * written, to the note's journal; a new note is saved whole.
+     */
+    public void autosave(Note note, String title, NoteDocument document) {
+        long start = System.nanoTime();
+        long id = note.getId();
+        if (store.get(id) == null) {
+            // Nothing on record to patch yet
+            Note saved = new Note(id, title, document.toString(), System.currentTimeMillis(), note.getColorResId());
+            saved.setSymbolIndex(note.getSymbolIndex());
+            saved.setCustomEmoji(note.getCustomEmoji());
+            saveNote(saved);
+            document.markSaved();
+            return;
+        }
+
+        NoteJournal.Entry entry = NoteJournal.Entry.capture(title, document);
+        document.markSaved();
+        writer.execute(() -> {
+            try {
+                // The base is read here, behind any save or fold queued before this entry
+                Note current = store.get(id);
+                if (current == null) {
+                    return;
+                }
+                // Marked for sync before the edit lands, so a crash can't lose the mark
+                sync.markChanged(id, current.getTimestamp());
+                sync.persist();
+                long appendStart = System.nanoTime();
+                long journalBytes = journal.append(id, current.getVersion(), entry);
+                JOURNAL_APPEND_TIME.recordSince(appendStart);
+                notifyChanged(id);
+                if (journalBytes >= FOLD_BYTES) {
+                    fold(id);
+                }
+            } catch (IOException e) {
+                SAVE_ERRORS.increment();
+                mainHandler.post(() -> Toast.makeText(context, R.string.error_saving_note, Toast.LENGTH_SHORT).show());
+            }
+        });
+        AUTOSAVE_TIME.recordSince(start);
+    }
+
+    /**
+     * Fold a note's journal into a full record in the background.
+     */
+    public void foldJournal(long id) {
+        writer.execute(() -> fold(id));
+    }
+
+    // Runs on the writer thread, like every journal append, so nothing is appended mid-fold
+    private void fold(long id) {
+        if (!journal.exists(id)) {
+            return;
+        }
+        long start = System.nanoTime();
+        try {
+            // Anything staged must be on disk before a journal based on it can be dropped
+            store.flush();
+            Note current = store.get(id);
+            NoteJournal.Replay replay = current != null
+                    ? journal.replay(id, current.getVersion(), store.getContent(id))
+                    : null;
+            if (replay != null) {
+                Note folded = new Note(id, replay.title != null ? replay.title : current.getTitle(),
+                        replay.content, System.currentTimeMillis(), current.getColorResId());
+                folded.setSymbolIndex(current.getSymbolIndex());
+                folded.setCustomEmoji(current.getCustomEmoji());
+                store.stage(folded);
+                store.flush();
+                notifyChanged(id);
+                searchThread.execute(() -> index(folded));
+                recordRevision(folded);
+            }
+            journal.discard(id);
+        } catch (IOException e) {
+            // The journal is still intact; the next fold or read picks it up again
+            SAVE_ERRORS.increment();
+            return;
+        }
+        FOLD_TIME.recordSince(start);
+        scheduleCompactionIfNeeded();
+    }
+
+    /**
+     * Save a new or edited note. Returns without touching the disk; the note
+     * is written in the background with whatever else is saved meanwhile.
+     */
+    public void saveNote(Note note) {
+        long start = System.nanoTime();
+        Note previous = store.get(note.getId());
+        store.stage(note);
+        sync.markChanged(note.getId(), previous != null ? previous.getTimestamp() : 0);
+        notifyChanged(note.getId());
+        searchThread.execute(() -> index(note));
+        recordRevision(note);
+        scheduleFlush();
+        SAVE_TIME.recordSince(start);
+    }
+
+    public void deleteNote(long id) {
+        store.stageDelete(id);
+        sync.markDeleted(id, System.currentTimeMillis());
+        notifyChanged(id);
+        // Behind any autosave already queued, which finds the note gone and writes nothing
+        writer.execute(() -> journal.discard(id));
+        searchThread.execute(() -> {
+            searchIndex.remove(id);
+            titleIndex.remove(id);
+        });
+        historyThread.execute(() -> history.discard(id));
+        scheduleFlush();
+    }
+
+    /**
+     * Bring both search indexes up to date with a saved note. Search thread only.
+     */
+    private void index(Note note) {
+        if (contentIndexed) {
+            searchIndex.update(note.getId(), note.getTitle(), note.getContent());
+        }
+        titleIndex.update(note.getId(), note.getTitle(), note.getTimestamp());
+    }
+
+    /**
+     * Tell observers of {@link NoteProvider} that a note changed. Changes are
+     * sent from a thread of their own, so a save never waits on the system,
+     * and changes made meanwhile go out together.
+     */
+    private synchronized void notifyChanged(long id) {
+        if (!manyNotesChanged) {
+            changedNotes.put(id, NoteProvider.uriFor(id));
+            // Stop collecting ids once the whole collection will be notified anyway
+            manyNotesChanged = changedNotes.size() > MAX_CHANGE_URIS;
+        }
+        if (notifyScheduled) {
+            return;
+        }
+        notifyScheduled = true;
+        changeNotifier.execute(() -> {
+            List<Uri> uris;
+            synchronized (NoteRepository.this) {
+                uris = manyNotesChanged
+                        ? Collections.singletonList(NoteProvider.CONTENT_URI)
+                        : changedNotes.values();
+                changedNotes = new LongMap<>();
+                manyNotesChanged = false;
+                notifyScheduled = false;
+            }
+            ContentResolver resolver = context.getContentResolver();
+            for (Uri uri : uris) {
+                resolver.notifyChange(uri, null);
+            }
+        });
+    }
+
+    private void recordRevision(Note note) {
+        historyThread.execute(() -> {
+            try {
+                history.append(note.getId(), note.getTimestamp(), note.getTitle(), note.getContent());
+            } catch (IOException e) {
+                // The note itself is saved; only this version is missing from its history
+            }
+        });
+    }
+
+    /**
+     * List the saved versions of a note in the background.
+     */
+    public void getRevisions(long id, RevisionsCallback callback) {
+        historyThread.execute(() -> {
+            List<NoteHistory.Revision> revisions;
+            try {
+                revisions = history.list(id);
+            } catch (IOException e) {
+                revisions = null;
+            }
+            List<NoteHistory.Revision> result = revisions;
+            mainHandler.post(() -> callback.onRevisions(result));
+        });
+    }
+
+    /**
+     * Load the text of one saved version of a note in the background.
+     */
+    public void loadRevision(long id, int number, RevisionCallback callback) {
+        historyThread.execute(() -> {
+            String content;
+            try {
+                content = history.load(id, number);
+            } catch (IOException e) {
+                content = null;
+            }
+            String result = content;
+            mainHandler.post(() -> callback.onRevisionLoaded(result));
+        });
+    }
+
+    private synchronized void scheduleFlush() {
+        if (flushScheduled) {
+            return;
+        }
+        flushScheduled = true;
+        writer.execute(() -> {
+            synchronized (NoteRepository.this) {
+                // Saves from here on need another flush; they'll join the next batch
+                flushScheduled = false;
+            }
+            long start = System.nanoTime();
+            try {
+                // Sync marks go first, so no note is on disk without its mark
+                sync.persist();
+                store.flush();
+            } catch (IOException e) {
+                // The notes stay staged in memory and are retried with the next save
+                SAVE_ERRORS.increment();
+                mainHandler.post(() -> Toast.makeText(context, R.string.error_saving_note, Toast.LENGTH_SHORT).show());
+                return;
+            }
+            FLUSH_TIME.recordSince(start);
+            scheduleCompactionIfNeeded();
+            scheduleTrainingIfNeeded();
+        });
+    }
+
+    /**
+     * Find the notes matching every word of {@code query} as a prefix of a word
+     * in their title or content, and shown by {@code view}. Results, in the
+     * view's order, are delivered on the main thread in the order the searches
+     * were made. Until {@link #prepareSearch} has built the content index,
+     * searches wait for it.
+     */
+    public void search(String query, NoteView view, SearchCallback callback) {
+        long requested = System.nanoTime();
+        prepareSearch();
+        searchThread.execute(() -> {
+            long start = System.nanoTime();
+            NoteList results = store.getNotes(searchIndex.search(query), view);
+            SEARCH_TIME.recordSince(start);
+            mainHandler.post(() -> {
+                SEARCH_LATENCY.recordSince(requested);
+                callback.onSearchResults(query, results);
+            });
+        });
+    }
+
+    /**
+     * Write every note to {@code uri} as a {@link NoteArchive}, in the
+     * background, one note at a time.
+     */
+    public void exportNotes(Uri uri, TransferCallback callback) {
+        background.execute(() -> {
+            long start = System.nanoTime();
+            int exported = 0;
+            boolean success = false;
+            try (OutputStream out = context.getContentResolver().openOutputStream(uri)) {
+                if (out == null) {
+                    throw new IOException("Cannot open " + uri);
+                }
+                // Only the ids are held; each note is read as it is written
+                NoteList.Keys ids = store.getAll().keys();
+                int total = ids.size();
+                NoteArchive.Writer archive = new NoteArchive.Writer(out, getColorResourceIds());
+                for (int i = 0; i < total; i++) {
+                    long id = ids.getId(i);
+                    if (journal.exists(id)) {
+                        Note note = replay(id);
+                        if (note != null) {
+                            archive.add(note, new StringReader(note.getContent()));
+                            exported++;
+                        }
+                    } else {
+                        Note note = store.get(id);
+                        Reader content = note != null ? store.openContent(id) : null;
+                        // Deleted since the export began
+                        if (content != null) {
+                            try {
+                                archive.add(note, content);
+                            } finally {
+                                content.close();
+                            }
+                            exported++;
+                        }
+                    }
+                    if ((i + 1) % PROGRESS_INTERVAL == 0) {
+                        postProgress(callback, exported, (int) (100L * (i + 1) / total));
+                    }
+                }
+                archive.close();
+                success = true;
+            } catch (IOException e) {
+                SAVE_ERRORS.increment();
+            }
+            EXPORT_TIME.recordSince(start);
+            int count = exported;
+            boolean done = success;
+            mainHandler.post(() -> callback.onFinished(count, done));
+        });
+    }
+
+    /**
+     * Add the notes in the {@link NoteArchive} at {@code uri}, in the
+     * background. Notes are read one at a time and written in batches. A note
+     * whose id is already taken replaces the one here only if it was modified
+     * later, counting edits still in its journal, and never while it is open
+     * in an editor; a note without an id gets a new one.
+     */
+    public void importNotes(Uri uri, TransferCallback callback) {
+        background.execute(() -> {
+            long start = System.nanoTime();
+            long size = sizeOf(uri);
+            int imported = 0;
+            boolean success = false;
+            Future<?> indexing = null;
+            try (InputStream in = context.getContentResolver().openInputStream(uri)) {
+                if (in == null) {
+                    throw new IOException("Cannot open " + uri);
+                }
+                NoteArchive.Reader archive = new NoteArchive.Reader(in, getColorResourceIds());
+                List<Note> batch = new ArrayList<>(IMPORT_BATCH);
+                int sinceCheckpoint = 0;
+                Note note;
+                while ((note = archive.next()) != null) {
+                    Note existing = note.getId() > 0 ? store.get(note.getId()) : null;
+                    if (existing != null && existing.getTimestamp() >= note.getTimestamp()) {
+                        continue;
+                    }
+                    batch.add(note.getId() > 0 ? note : withId(note, store.newId()));
+                    if (batch.size() == IMPORT_BATCH) {
+                        indexing = writeBatch(batch, indexing);
+                        imported -= IMPORT_BATCH - batch.size();
+                        batch = new ArrayList<>(IMPORT_BATCH);
+                    }
+                    imported++;
+                    if (++sinceCheckpoint == IMPORT_CHECKPOINT) {
+                        sinceCheckpoint = 0;
+                        store.checkpoint();
+                    }
+                    if (imported % PROGRESS_INTERVAL == 0) {
+                        postProgress(callback, imported,
+                                size > 0 ? (int) Math.min(100, 100 * archive.getBytesRead() / size) : -1);
+                    }
+                }
+                int last = batch.size();
+                indexing = writeBatch(batch, indexing);
+                imported -= last - batch.size();
+                await(indexing);
+                store.checkpoint();
+                success = true;
+            } catch (IOException e) {
+                SAVE_ERRORS.increment();
+            }
+            IMPORT_TIME.recordSince(start);
+            int count = imported;
+            boolean done = success;
+            mainHandler.post(() -> callback.onFinished(count, done));
+        });
+    }
+
+    /**
+     * Write a batch of imported notes through the store, then hand it to the
+     * search thread once the previous batch is indexed, so no more than two
+     * batches are ever held at once. Notes that turn out not to be newer once
+     * their journals are folded, or that are open in an editor, are dropped
+     * from {@code batch}.
+     */
+    private Future<?> writeBatch(List<Note> batch, Future<?> previous) throws IOException {
+        if (batch.isEmpty()) {
+            return previous;
+        }
+        // On the writer thread, so no autosave lands in a journal between folding it and replacing its note
+        await(writer.submit(() -> {
+            for (Note note : batch) {
+                fold(note.getId());
+            }
+            synchronized (NoteRepository.this) {
+                Iterator<Note> notes = batch.iterator();
+                while (notes.hasNext()) {
+                    Note note = notes.next();
+                    Note existing = store.get(note.getId());
+                    if (isOpenInEditor(note.getId())
+                            || existing != null && existing.getTimestamp() >= note.getTimestamp()) {
+                        notes.remove();
+                        continue;
+                    }
+                    sync.markChanged(note.getId(), existing != null ? existing.getTimestamp() : 0);
+                }
+                // Staged with the editors held off, so none can start loading a note about to change
+                store.stageAll(batch);
+            }
+            sync.persist();
+            store.flush();
+            return null;
+        }));
+        for (Note note : batch) {
+            notifyChanged(note.getId());
+        }
+        await(previous);
+        return searchThread.submit(() -> {
+            for (Note note : batch) {
+                index(note);
+            }
+        });
+    }
+
+    /**
+     * Wait for a task handed to another thread, rethrowing its failure.
+     */
+    private static <T> T await(Future<T> task) throws IOException {
+        if (task == null) {
+            return null;
+        }
+        try {
+            return task.get();
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
+    }
+
+    private static Note withId(Note note, long id) {
+        Note copy = new Note(id, note.getTitle(), note.getContent(), note.getTimestamp(), note.getColorResId());
+        copy.setSymbolIndex(note.getSymbolIndex());
+        copy.setCustomEmoji(note.getCustomEmoji());
+        return copy;
+    }
+
+    /**
+     * Size in bytes of the document at {@code uri}, or -1 if the provider doesn't say.
+     */
+    private long sizeOf(Uri uri) {
+        try (Cursor cursor = context.getContentResolver().query(uri,
+                new String[] { OpenableColumns.SIZE }, null, null, null)) {
+            if (cursor != null && cursor.moveToFirst() && !cursor.isNull(0)) {
+                return cursor.getLong(0);
+            }
+        }
+        return -1;
+    }
+
+    private void postProgress(TransferCallback callback, int notes, int percent) {
+        mainHandler.post(() -> callback.onProgress(notes, percent));
+    }
+
+    /**
+     * Push the notes changed here to the sync server at {@code serverUrl} and
+     * pull those changed elsewhere, in the background, signed in with the
+     * account's {@code token}. Progress counts notes
+     * pushed and pulled. A sync that fails keeps every exchange it completed,
+     * and the next one carries on from there.
+     */
+    public void syncNotes(String serverUrl, String token, TransferCallback callback) {
+        background.execute(() -> {
+            long start = System.nanoTime();
+            int[] synced = new int[1];
+            boolean success = false;
+            try {
+                // Fold open journals, so pushed notes carry their latest text and time
+                await(writer.submit(() -> {
+                    for (long id : journal.ids()) {
+                        fold(id);
+                    }
+                }));
+                sync.sync(new HttpSyncTransport(serverUrl, token), new SyncedNotes(), notes -> {
+                    synced[0] = notes;
+                    postProgress(callback, notes, -1);
+                });
+                success = true;
+                SYNC_TIME.recordSince(start);
+            } catch (IOException e) {
+                SYNC_ERRORS.increment();
+            }
+            int count = synced[0];
+            boolean done = success;
+            mainHandler.post(() -> callback.onFinished(count, done));
+        });
+    }
+
+    /**
+     * The notes as {@link NoteSync} sees them. Pulled changes are written on
+     * the writer thread, in turn with saves and folds, and never over a note
+     * that was edited since sync loaded it, or over one open in an editor;
+     * sync defers those until they can be merged or replaced.
+     */
+    private class SyncedNotes implements NoteSync.Local {
+        // Journal length and record version of each note as last loaded, guarded by itself
+        private final LongMap<long[]> loaded = new LongMap<>();
+
+        @Override
+        public Note load(long id) throws IOException {
+            // Measured before reading, so an edit landing meanwhile counts as one made since
+            long journalLength = journal.length(id);
+            Note note = journalLength >= 0 ? replay(id) : store.getWithContent(id);
+            synchronized (loaded) {
+                loaded.put(id, new long[] {journalLength, note != null ? note.getVersion() : -1});
+            }
+            return note;
+        }
+
+        // Called on the writer thread, where autosaves and folds land
+        private boolean editedSinceLoad(long id) {
+            long[] seen;
+            synchronized (loaded) {
+                seen = loaded.get(id);
+            }
+            if (seen == null) {
+                // Not pending when sync looked, so only an edit made since marks it
+                return sync.isPending(id);
+            }
+            Note current = store.get(id);
+            return journal.length(id) != seen[0] || (current != null ? current.getVersion() : -1) != seen[1];
+        }
+
+        @Override
+        public long modifiedAt(long id) {
+            Note note = store.get(id);
+            if (note == null) {
+                return -1;
+            }
+            // Edits still in a journal are newer than anything on record
+            return journal.exists(id) ? System.currentTimeMillis() : note.getTimestamp();
+        }
+
+        @Override
+        public String revision(long id, long modified) throws IOException {
+            // Behind any revision still being recorded
+            return await(historyThread.submit(() -> {
+                List<NoteHistory.Revision> revisions = history.list(id);
+                // Saves that changed nothing aren't recorded, so a version is the latest revision up to it
+                for (int i = revisions.size() - 1; i >= 0; i--) {
+                    if (revisions.get(i).timestamp <= modified) {
+                        return history.load(id, i);
+                    }
+                }
+                return null;
+            }));
+        }
+
+        @Override
+        public long[] apply(List<Note> pulled, long[] pulledDeletions) throws IOException {
+            List<Note> notes = new ArrayList<>(pulled.size());
+            List<Long> deletions = new ArrayList<>(pulledDeletions.length);
+            List<Long> skipped = new ArrayList<>();
+            await(writer.submit(() -> {
+                synchronized (NoteRepository.this) {
+                    for (Note note : pulled) {
+                        if (isOpenInEditor(note.getId()) || editedSinceLoad(note.getId())) {
+                            skipped.add(note.getId());
+                        } else {
+                            notes.add(note);
+                        }
+                    }
+                    for (long id : pulledDeletions) {
+                        if (isOpenInEditor(id) || editedSinceLoad(id)) {
+                            skipped.add(id);
+                        } else {
+                            deletions.add(id);
+                        }
+                    }
+                    // Journaled edits merged into these notes, or lost to a later change elsewhere
+                    for (Note note : notes) {
+                        journal.discard(note.getId());
+                    }
+                    for (long id : deletions) {
+                        journal.discard(id);
+                    }
+                    // Staged with the editors held off, so none can start loading a note about to change
+                    store.stageAll(notes);
+                    for (long id : deletions) {
+                        store.stageDelete(id);
+                    }
+                }
+                store.flush();
+                return null;
+            }));
+            synchronized (loaded) {
+                loaded.clear();
+            }
+            searchThread.execute(() -> {
+                for (Note note : notes) {
+                    index(note);
+                }
+                for (long id : deletions) {
+                    searchIndex.remove(id);
+                    titleIndex.remove(id);
+                }
+            });
+            for (Note note : notes) {
+                recordRevision(note);
+                notifyChanged(note.getId());
+            }
+            for (long id : deletions) {
+                historyThread.execute(() -> history.discard(id));
+                notifyChanged(id);
+            }
+            long[] skippedIds = new long[skipped.size()];
+            for (int i = 0; i < skippedIds.length; i++) {
+                skippedIds[i] = skipped.get(i);
+            }
+            return skippedIds;
+        }
+    }
+
+    /**
+     * Find the notes whose titles best match {@code query}, forgiving typos,
+     * best match first with recent notes ahead of equally good older ones.
+     * Results are delivered on the main thread.
+     */
+    public void quickOpen(String query, QuickOpenCallback callback) {
+        searchThread.execute(() -> {
+            long start = System.nanoTime();
+            List<Note> notes = new ArrayList<>(QUICK_OPEN_LIMIT);
+            for (long id : titleIndex.search(query, QUICK_OPEN_LIMIT, System.currentTimeMillis())) {
+                Note note = store.get(id);
+                if (note != null) {
+                    notes.add(note);
+                }
+            }
+            QUICK_OPEN_TIME.recordSince(start);
+            mainHandler.post(() -> callback.onQuickOpenResults(query, notes));
+        });
+    }
+
+    /**
+     * Refresh the metadata snapshot in the background if enough has changed
+     * since the last one, so the next cold start replays less of the log.
+     */
+    public synchronized void checkpointIfNeeded() {
+        if (checkpointScheduled || !store.needsCheckpoint()) {
+            return;
+        }
+        checkpointScheduled = true;
+        background.execute(() -> {
+            try {
+                store.checkpoint();
+            } catch (IOException e) {
+                // Without a snapshot the next start replays more of the log, but loses nothing
+            } finally {
+                synchronized (NoteRepository.this) {
+                    checkpointScheduled = false;
+                }
+            }
+        });
+    }
+
+    /**
+     * Train a new compression dictionary in the background once the notes have
+     * drifted from the one in use, then compact so every note is re-encoded with it.
+     */
+    private synchronized void scheduleTrainingIfNeeded() {
+        if (trainingScheduled || !store.needsTraining()) {
+            return;
+        }
+        trainingScheduled = true;
+        background.execute(() -> {
+            try {
+                store.trainDictionary();
+                store.compact();
+            } catch (IOException e) {
+                // Notes stay readable with the dictionaries they were written with
+            } finally {
+                synchronized (NoteRepository.this) {
+                    trainingScheduled = false;
+                }
+            }
+        });
+    }
+
+    private synchronized void scheduleCompactionIfNeeded() {
+        if (compactionScheduled || !store.needsCompaction()) {
+            return;
+        }
+        compactionScheduled = true;
+        background.execute(() -> {
+            try {
+                store.compact();
+            } catch (IOException e) {
+                // The uncompacted log is still valid; we'll try again after the next write
+            } finally {
+                synchronized (NoteRepository.this) {
+                    compactionScheduled = false;
+                }
+            }
+        });
+    }
+}
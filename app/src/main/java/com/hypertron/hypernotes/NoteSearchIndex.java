@@ -0,0 +1,201 @@
+package com.hypertron.hypernotes;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * In-memory inverted index over note titles and content.
+ *
+ * Every note is given a dense document number, and each term maps to the
+ * document numbers containing it. A query term matches every indexed term it
+ * is a prefix of, so the postings of a prefix are OR-ed into a bitset and the
+ * bitsets of the query terms are AND-ed together; no note is ever scanned.
+ *
+ * Not thread-safe. {@link NoteRepository} confines it to its search thread.
+ */
+public class NoteSearchIndex {
+
+    private static final long NO_ID = Long.MIN_VALUE;
+
+    private final TreeMap<String, Postings> terms = new TreeMap<>();
+    private final LongIntMap docsById = new LongIntMap();
+    private long[] idsByDoc = new long[64];
+    private String[][] termsByDoc = new String[64][];
+    private int[] freeDocs = new int[16];
+    private int freeCount;
+    private int docCount;
+
+    // Document numbers containing a term, in no particular order
+    private static final class Postings {
+        int[] docs = new int[4];
+        int size;
+
+        void add(int doc) {
+            if (size == docs.length) {
+                docs = Arrays.copyOf(docs, size * 2);
+            }
+            docs[size++] = doc;
+        }
+
+        void remove(int doc) {
+            for (int i = 0; i < size; i++) {
+                if (docs[i] == doc) {
+                    docs[i] = docs[--size];
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Index a new note or re-index an edited one.
+     */
+    public void update(long id, String title, String content) {
+        remove(id);
+
+        String[] docTerms = distinctTerms(title, content);
+        int doc = allocateDoc();
+        idsByDoc[doc] = id;
+        termsByDoc[doc] = docTerms;
+        docsById.put(id, doc);
+
+        for (String term : docTerms) {
+            Postings postings = terms.get(term);
+            if (postings == null) {
+                postings = new Postings();
+                terms.put(term, postings);
+            }
+            postings.add(doc);
+        }
+    }
+
+    public void remove(long id) {
+        int doc = docsById.get(id, -1);
+        if (doc < 0) {
+            return;
+        }
+        docsById.remove(id);
+        for (String term : termsByDoc[doc]) {
+            Postings postings = terms.get(term);
+            postings.remove(doc);
+            if (postings.size == 0) {
+                terms.remove(term);
+            }
+        }
+        idsByDoc[doc] = NO_ID;
+        termsByDoc[doc] = null;
+        if (freeCount == freeDocs.length) {
+            freeDocs = Arrays.copyOf(freeDocs, freeCount * 2);
+        }
+        freeDocs[freeCount++] = doc;
+    }
+
+    public int size() {
+        return docsById.size();
+    }
+
+    /**
+     * Ids of the notes matching every term of {@code query}, each term taken as a prefix.
+     * An empty query matches nothing.
+     */
+    public long[] search(String query) {
+        List<String> queryTerms = tokenize(query);
+        if (queryTerms.isEmpty()) {
+            return new long[0];
+        }
+
+        long[] matches = null;
+        for (String prefix : queryTerms) {
+            long[] bits = new long[(docCount + 63) >>> 6];
+            boolean any = false;
+            for (Postings postings : prefixRange(prefix).values()) {
+                for (int i = 0; i < postings.size; i++) {
+                    int doc = postings.docs[i];
+                    bits[doc >>> 6] |= 1L << doc;
+                }
+                any = true;
+            }
+            if (!any) {
+                return new long[0];
+            }
+            if (matches == null) {
+                matches = bits;
+            } else {
+                for (int w = 0; w < matches.length; w++) {
+                    matches[w] &= bits[w];
+                }
+            }
+        }
+
+        int count = 0;
+        for (long word : matches) {
+            count += Long.bitCount(word);
+        }
+        long[] ids = new long[count];
+        int next = 0;
+        for (int w = 0; w < matches.length; w++) {
+            long word = matches[w];
+            while (word != 0) {
+                int doc = (w << 6) + Long.numberOfTrailingZeros(word);
+                ids[next++] = idsByDoc[doc];
+                word &= word - 1;
+            }
+        }
+        return ids;
+    }
+
+    private SortedMap<String, Postings> prefixRange(String prefix) {
+        return terms.subMap(prefix, prefix + Character.MAX_VALUE);
+    }
+
+    private int allocateDoc() {
+        if (freeCount > 0) {
+            return freeDocs[--freeCount];
+        }
+        if (docCount == idsByDoc.length) {
+            idsByDoc = Arrays.copyOf(idsByDoc, docCount * 2);
+            termsByDoc = Arrays.copyOf(termsByDoc, docCount * 2);
+        }
+        return docCount++;
+    }
+
+    private static String[] distinctTerms(String title, String content) {
+        List<String> all = tokenize(title);
+        all.addAll(tokenize(content));
+        String[] unique = all.toArray(new String[0]);
+        Arrays.sort(unique);
+        int count = 0;
+        for (int i = 0; i < unique.length; i++) {
+            if (i == 0 || !unique[i].equals(unique[i - 1])) {
+                unique[count++] = unique[i];
+            }
+        }
+        return Arrays.copyOf(unique, count);
+    }
+
+    /**
+     * Split text into lower-case runs of letters and digits.
+     */
+    static List<String> tokenize(String text) {
+        List<String> tokens = new ArrayList<>();
+        if (text == null) {
+            return tokens;
+        }
+        int length = text.length();
+        int start = -1;
+        for (int i = 0; i <= length; i++) {
+            boolean wordChar = i < length && Character.isLetterOrDigit(text.charAt(i));
+            if (wordChar && start < 0) {
+                start = i;
+            } else if (!wordChar && start >= 0) {
+                tokens.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+                start = -1;
+            }
+        }
+        return tokens;
+    }
+}
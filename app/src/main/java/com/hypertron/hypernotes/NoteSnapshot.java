@@ -0,0 +1,492 @@
+package com.hypertron.hypernotes;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Read-only, memory-mapped table of the list metadata of every note.
+ *
+ * Holds exactly what a card in the grid needs (id, title, timestamp, color,
+ * symbol) plus where the full record lives in the {@link NoteStore} log.
+ * Rows are stored in display order (newest first) and decoded on demand, so
+ * opening a snapshot costs the same no matter how many notes it covers.
+ *
+ * Layout: header, fixed-size rows, an open-addressed hash table from id to
+ * row, and a heap of length-prefixed UTF-8 strings referenced from the rows.
+ * The table is probed straight from the mapping, so finding a note by id is
+ * O(1) without building anything when the snapshot is opened.
+ *
+ * With a {@link NoteCipher} that layout is sealed in pages of
+ * {@link #PAGE_SIZE} bytes, which are opened as rows, index slots or strings
+ * on them are read, and kept in a small cache. Showing a screenful of cards
+ * or finding one note opens a few pages, however many the snapshot holds.
+ */
+public final class NoteSnapshot {
+
+    private static final int MAGIC = 0x484E534E; // "HNSN"
+    private static final int FORMAT_VERSION = 2;
+    // The same layout, sealed in pages
+    private static final int SEALED_VERSION = 3;
+
+    // magic, version, context, length of the layout
+    private static final int SEALED_HEADER_SIZE = 4 + 4 + 8 + 8;
+    private static final int PAGE_SIZE = 4096;
+    // Each set holds its two most recently read pages, so the rows and the
+    // strings they point at can be read side by side without evicting each other
+    private static final int CACHE_SETS = 64;
+
+    // magic, version, count, generation, logLength, liveBytes, index capacity, highest id
+    private static final int HEADER_SIZE = 4 + 4 + 4 + 8 + 8 + 8 + 4 + 8;
+
+    // id, timestamp, recordOffset, recordSize, colorIndex, symbolIndex, titleRef, emojiRef, version
+    private static final int ROW_SIZE = 8 + 8 + 8 + 4 + 4 + 4 + 4 + 4 + 4;
+
+    // id, row (-1 for an empty slot)
+    private static final int INDEX_ENTRY_SIZE = 8 + 4;
+
+    private final Table table;
+    private final int[] colorResIds;
+    private final int count;
+    private final long generation;
+    private final long logLength;
+    private final long liveBytes;
+    private final long maxId;
+    private final int indexStart;
+    private final int indexMask;
+    private final int heapStart;
+
+    /**
+     * Map a snapshot file written without a cipher.
+     *
+     * @return the snapshot, or null if the file is missing or not a valid snapshot
+     */
+    public static NoteSnapshot map(File file, int[] colorResIds) throws IOException {
+        return map(file, colorResIds, null);
+    }
+
+    /**
+     * Map a snapshot file, sealed or not.
+     *
+     * @param cipher what a sealed snapshot was written with, or null to accept only plain ones
+     * @return the snapshot, or null if the file is missing, not a valid
+     *         snapshot or sealed with another key
+     */
+    public static NoteSnapshot map(File file, int[] colorResIds, NoteCipher cipher) throws IOException {
+        if (!file.isFile() || file.length() < HEADER_SIZE) {
+            return null;
+        }
+        MappedByteBuffer buffer;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (buffer.getInt(0) != MAGIC) {
+            return null;
+        }
+        Table table;
+        if (buffer.getInt(4) == SEALED_VERSION) {
+            if (cipher == null) {
+                return null;
+            }
+            long length = buffer.getLong(16);
+            if (length < HEADER_SIZE || length > Integer.MAX_VALUE
+                    || buffer.capacity() != SEALED_HEADER_SIZE + NoteCipher.sealedLength(length, PAGE_SIZE)) {
+                return null;
+            }
+            table = new SealedTable(buffer, cipher, buffer.getLong(8), (int) length);
+            try {
+                table.getInt(0);
+            } catch (UncheckedIOException e) {
+                return null;
+            }
+        } else {
+            table = new MappedTable(buffer);
+        }
+        if (table.getInt(0) != MAGIC || table.getInt(4) != FORMAT_VERSION) {
+            return null;
+        }
+        int count = table.getInt(8);
+        int capacity = table.getInt(36);
+        long minimumSize = HEADER_SIZE + (long) count * ROW_SIZE + (long) capacity * INDEX_ENTRY_SIZE;
+        if (count < 0 || capacity <= count || Integer.bitCount(capacity) != 1 || table.length() < minimumSize) {
+            return null;
+        }
+        return new NoteSnapshot(table, colorResIds, count);
+    }
+
+    private NoteSnapshot(Table table, int[] colorResIds, int count) {
+        this.table = table;
+        this.colorResIds = colorResIds;
+        this.count = count;
+        this.generation = table.getLong(12);
+        this.logLength = table.getLong(20);
+        this.liveBytes = table.getLong(28);
+        int capacity = table.getInt(36);
+        this.maxId = table.getLong(40);
+        this.indexStart = HEADER_SIZE + count * ROW_SIZE;
+        this.indexMask = capacity - 1;
+        this.heapStart = indexStart + capacity * INDEX_ENTRY_SIZE;
+    }
+
+    /**
+     * Generation of the log this snapshot was taken from.
+     */
+    public long getGeneration() { return generation; }
+
+    /**
+     * Length of the log covered by this snapshot; later records must be replayed on top.
+     */
+    public long getLogLength() { return logLength; }
+
+    public long getLiveBytes() { return liveBytes; }
+
+    public int size() { return count; }
+
+    /**
+     * Highest note id in the snapshot, or 0 if it is empty.
+     */
+    public long getMaxId() { return maxId; }
+
+    public long getId(int row) { return table.getLong(rowOffset(row)); }
+    public long getTimestamp(int row) { return table.getLong(rowOffset(row) + 8); }
+    public long getRecordOffset(int row) { return table.getLong(rowOffset(row) + 16); }
+    public int getRecordSize(int row) { return table.getInt(rowOffset(row) + 24); }
+    public int getColorIndex(int row) { return table.getInt(rowOffset(row) + 28); }
+    public int getSymbolIndex(int row) { return table.getInt(rowOffset(row) + 32); }
+    public String getTitle(int row) { return readString(table.getInt(rowOffset(row) + 36)); }
+    public String getCustomEmoji(int row) { return readString(table.getInt(rowOffset(row) + 40)); }
+    public boolean hasCustomEmoji(int row) { return table.getInt(rowOffset(row) + 40) >= 0; }
+    public int getVersion(int row) { return table.getInt(rowOffset(row) + 44); }
+
+    /**
+     * Decode a row into a {@link Note}. The note carries no content; load it
+     * through {@link NoteStore#getContent(long)} when it is actually needed.
+     */
+    public Note getNote(int row) {
+        int colorIndex = getColorIndex(row);
+        int colorResId = colorIndex >= 0 && colorIndex < colorResIds.length
+                ? colorResIds[colorIndex] : colorResIds[0];
+        Note note = new Note(getId(row), getTitle(row), null, getTimestamp(row), colorResId);
+        note.setSymbolIndex(getSymbolIndex(row));
+        note.setCustomEmoji(getCustomEmoji(row));
+        note.setVersion(getVersion(row));
+        return note;
+    }
+
+    /**
+     * Row holding the given note id, or -1.
+     */
+    public int indexOf(long id) {
+        for (int slot = slotOf(id, indexMask); ; slot = (slot + 1) & indexMask) {
+            int entry = indexStart + slot * INDEX_ENTRY_SIZE;
+            int row = table.getInt(entry + 8);
+            if (row < 0 || table.getLong(entry) == id) {
+                return row;
+            }
+        }
+    }
+
+    private static int slotOf(long id, int mask) {
+        long hash = id * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32)) & mask;
+    }
+
+    private int rowOffset(int row) {
+        if (row < 0 || row >= count) {
+            throw new IndexOutOfBoundsException("Row " + row + ", size " + count);
+        }
+        return HEADER_SIZE + row * ROW_SIZE;
+    }
+
+    private String readString(int ref) {
+        if (ref < 0) {
+            return null;
+        }
+        int position = heapStart + ref;
+        byte[] bytes = new byte[table.getInt(position)];
+        table.get(position + 4, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // The snapshot layout, read straight from the mapping or opened page by page
+    private abstract static class Table {
+        abstract long length();
+        abstract int getInt(int position);
+        abstract long getLong(int position);
+        abstract void get(int position, byte[] target);
+    }
+
+    private static final class MappedTable extends Table {
+        private final ByteBuffer buffer;
+
+        MappedTable(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        long length() {
+            return buffer.capacity();
+        }
+
+        @Override
+        int getInt(int position) {
+            return buffer.getInt(position);
+        }
+
+        @Override
+        long getLong(int position) {
+            return buffer.getLong(position);
+        }
+
+        @Override
+        void get(int position, byte[] target) {
+            ByteBuffer view = buffer.duplicate();
+            view.position(position);
+            view.get(target);
+        }
+    }
+
+    private static final class Page {
+        final int index;
+        final ByteBuffer bytes;
+
+        Page(int index, ByteBuffer bytes) {
+            this.index = index;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * Pages are opened on first use. Pages in the cache never change, so
+     * threads racing to fill a slot at worst open the same page twice.
+     */
+    private static final class SealedTable extends Table {
+        private final ByteBuffer buffer;
+        private final NoteCipher cipher;
+        private final long context;
+        private final int length;
+        private final AtomicReferenceArray<Page> cache = new AtomicReferenceArray<>(CACHE_SETS * 2);
+
+        SealedTable(ByteBuffer buffer, NoteCipher cipher, long context, int length) {
+            this.buffer = buffer;
+            this.cipher = cipher;
+            this.context = context;
+            this.length = length;
+        }
+
+        @Override
+        long length() {
+            return length;
+        }
+
+        @Override
+        int getInt(int position) {
+            int offset = position % PAGE_SIZE;
+            ByteBuffer page = page(position / PAGE_SIZE);
+            if (offset + 4 <= page.capacity()) {
+                return page.getInt(offset);
+            }
+            byte[] bytes = new byte[4];
+            get(position, bytes);
+            return ByteBuffer.wrap(bytes).getInt();
+        }
+
+        @Override
+        long getLong(int position) {
+            int offset = position % PAGE_SIZE;
+            ByteBuffer page = page(position / PAGE_SIZE);
+            if (offset + 8 <= page.capacity()) {
+                return page.getLong(offset);
+            }
+            byte[] bytes = new byte[8];
+            get(position, bytes);
+            return ByteBuffer.wrap(bytes).getLong();
+        }
+
+        @Override
+        void get(int position, byte[] target) {
+            for (int done = 0; done < target.length; ) {
+                int offset = (position + done) % PAGE_SIZE;
+                ByteBuffer page = page((position + done) / PAGE_SIZE).duplicate();
+                int count = Math.min(target.length - done, page.capacity() - offset);
+                if (count <= 0) {
+                    throw new IndexOutOfBoundsException("Position " + (position + done) + ", length " + length);
+                }
+                page.position(offset);
+                page.get(target, done, count);
+                done += count;
+            }
+        }
+
+        private ByteBuffer page(int index) {
+            int set = (index % CACHE_SETS) * 2;
+            Page recent = cache.get(set);
+            if (recent != null && recent.index == index) {
+                return recent.bytes;
+            }
+            Page older = cache.get(set + 1);
+            if (older != null && older.index == index) {
+                cache.set(set, older);
+                cache.set(set + 1, recent);
+                return older.bytes;
+            }
+            Page opened = new Page(index, ByteBuffer.wrap(open(index)));
+            cache.set(set, opened);
+            cache.set(set + 1, recent);
+            return opened.bytes;
+        }
+
+        private byte[] open(int index) {
+            long start = (long) index * PAGE_SIZE;
+            if (index < 0 || start >= length) {
+                throw new IndexOutOfBoundsException("Page " + index + ", length " + length);
+            }
+            int sealedLength = (int) Math.min(PAGE_SIZE, length - start) + NoteCipher.OVERHEAD;
+            byte[] sealed = new byte[sealedLength];
+            ByteBuffer view = buffer.duplicate();
+            view.position(SEALED_HEADER_SIZE + index * (PAGE_SIZE + NoteCipher.OVERHEAD));
+            view.get(sealed);
+            try {
+                return cipher.open(context, index, sealed, 0, sealedLength);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Corrupt note snapshot page " + index, e);
+            }
+        }
+    }
+
+    /**
+     * Accumulates rows in display order and writes them out as a snapshot file.
+     */
+    public static final class Writer {
+        private final ByteArrayOutputStream rows;
+        private final DataOutputStream rowOut;
+        private final ByteArrayOutputStream heap = new ByteArrayOutputStream(4096);
+        private final DataOutputStream heapOut = new DataOutputStream(heap);
+        private long[] ids;
+        private int count;
+
+        public Writer(int expectedCount) {
+            rows = new ByteArrayOutputStream(Math.max(expectedCount, 16) * ROW_SIZE);
+            rowOut = new DataOutputStream(rows);
+            ids = new long[Math.max(expectedCount, 16)];
+        }
+
+        public void add(long id, long timestamp, long recordOffset, int recordSize,
+                        int colorIndex, int symbolIndex, String title, String customEmoji,
+                        int version) throws IOException {
+            rowOut.writeLong(id);
+            rowOut.writeLong(timestamp);
+            rowOut.writeLong(recordOffset);
+            rowOut.writeInt(recordSize);
+            rowOut.writeInt(colorIndex);
+            rowOut.writeInt(symbolIndex);
+            rowOut.writeInt(appendString(title));
+            rowOut.writeInt(appendString(customEmoji));
+            rowOut.writeInt(version);
+
+            if (count == ids.length) {
+                ids = Arrays.copyOf(ids, count * 2);
+            }
+            ids[count++] = id;
+        }
+
+        /**
+         * Copy a row from an existing snapshot, pointing it at a (possibly new) log position.
+         */
+        public void add(NoteSnapshot source, int row, long recordOffset) throws IOException {
+            add(source.getId(row), source.getTimestamp(row), recordOffset, source.getRecordSize(row),
+                    source.getColorIndex(row), source.getSymbolIndex(row),
+                    source.getTitle(row), source.getCustomEmoji(row), source.getVersion(row));
+        }
+
+        private int appendString(String value) throws IOException {
+            if (value == null) {
+                return -1;
+            }
+            int ref = heap.size();
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            heapOut.writeInt(bytes.length);
+            heapOut.write(bytes);
+            return ref;
+        }
+
+        /**
+         * Atomically replace {@code file} with the accumulated rows.
+         */
+        public void writeTo(File file, long generation, long logLength, long liveBytes)
+                throws IOException {
+            writeTo(file, generation, logLength, liveBytes, null);
+        }
+
+        /**
+         * Atomically replace {@code file} with the accumulated rows, sealed with
+         * {@code cipher} unless it is null.
+         */
+        public void writeTo(File file, long generation, long logLength, long liveBytes, NoteCipher cipher)
+                throws IOException {
+            // At most half full, so probe runs stay short
+            int capacity = LongIntMap.capacityFor(count);
+            int mask = capacity - 1;
+            long[] slotIds = new long[capacity];
+            int[] slotRows = new int[capacity];
+            Arrays.fill(slotRows, -1);
+            long highestId = 0;
+            for (int row = 0; row < count; row++) {
+                int slot = slotOf(ids[row], mask);
+                while (slotRows[slot] >= 0) {
+                    slot = (slot + 1) & mask;
+                }
+                slotIds[slot] = ids[row];
+                slotRows[slot] = row;
+                highestId = Math.max(highestId, ids[row]);
+            }
+            long maxId = highestId;
+
+            AtomicFiles.replace(file, stream -> {
+                OutputStream target = stream;
+                NoteCipher.SealingStream sealing = null;
+                if (cipher != null) {
+                    long context = cipher.newContext();
+                    DataOutputStream header = new DataOutputStream(target);
+                    header.writeInt(MAGIC);
+                    header.writeInt(SEALED_VERSION);
+                    header.writeLong(context);
+                    header.writeLong(HEADER_SIZE + rows.size() + (long) capacity * INDEX_ENTRY_SIZE + heap.size());
+                    sealing = cipher.sealing(target, context, PAGE_SIZE);
+                    target = new BufferedOutputStream(sealing, 64 * 1024);
+                }
+                DataOutputStream out = new DataOutputStream(target);
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT_VERSION);
+                out.writeInt(count);
+                out.writeLong(generation);
+                out.writeLong(logLength);
+                out.writeLong(liveBytes);
+                out.writeInt(capacity);
+                out.writeLong(maxId);
+                rows.writeTo(out);
+                for (int slot = 0; slot < capacity; slot++) {
+                    out.writeLong(slotIds[slot]);
+                    out.writeInt(slotRows[slot]);
+                }
+                heap.writeTo(out);
+                out.flush();
+                if (sealing != null) {
+                    sealing.finish();
+                }
+            });
+        }
+    }
+}
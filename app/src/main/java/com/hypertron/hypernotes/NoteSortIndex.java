@@ -0,0 +1,318 @@
+package com.hypertron.hypernotes;
+
+import java.text.Collator;
+import java.util.Arrays;
+
+/**
+ * The notes in every {@link NoteView} sort order, kept sorted as notes change.
+ *
+ * Each note gets a slot holding the keys it sorts and filters on, in parallel
+ * primitive arrays. An order is an array of slots, built with one sort the
+ * first time it is asked for. After that a put or remove moves only the note
+ * concerned, by binary search and an array copy, so switching between orders
+ * that have been used costs a filtered walk of the slots and no sorting.
+ *
+ * Titles are compared by collation key bytes, computed once per title with
+ * the collator of the locale the index was built for, never by calling the
+ * {@link Collator} per comparison.
+ *
+ * Every order is total, with the id as the last tiebreak, so a note is always
+ * found at exactly one position. Each slot also carries a ref, an int the
+ * owner uses to find the note itself. Not thread-safe.
+ */
+public final class NoteSortIndex {
+    private static final int INITIAL_CAPACITY = 64;
+    private static final byte[] NO_KEY = new byte[0];
+
+    private final Collator collator;
+    private final LongIntMap slotOf = new LongIntMap();
+
+    private long[] ids = new long[INITIAL_CAPACITY];
+    private long[] modified = new long[INITIAL_CAPACITY];
+    private int[] colors = new int[INITIAL_CAPACITY];
+    private int[] symbols = new int[INITIAL_CAPACITY];
+    private boolean[] customEmoji = new boolean[INITIAL_CAPACITY];
+    // Null for a free slot
+    private byte[][] titleKeys = new byte[INITIAL_CAPACITY][];
+    private int[] refs = new int[INITIAL_CAPACITY];
+
+    // Slots freed by removals, reused before growing
+    private int[] free = new int[INITIAL_CAPACITY];
+    private int freeCount;
+    private int slotCount;
+    private int size;
+
+    // Sorted slots per order, or null until the order is first asked for
+    private final int[][] orders = new int[NoteView.SORT_COUNT][];
+    // Scratch for merge sorts
+    private int[] buffer = new int[0];
+
+    public NoteSortIndex(Collator collator) {
+        this.collator = collator;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean contains(long id) {
+        return slotOf.containsKey(id);
+    }
+
+    /**
+     * Insert a note or update its keys, moving it in every built order.
+     *
+     * @param symbolIndex the symbol index as saved, negative for random
+     * @param ref         owner's handle on the note, returned by {@link #getRef}
+     */
+    public void put(long id, long modifiedAt, int colorIndex, int symbolIndex,
+                    boolean hasCustomEmoji, String title, int ref) {
+        int slot = slotOf.get(id, -1);
+        if (slot < 0) {
+            slot = allocate();
+            slotOf.put(id, slot);
+            size++;
+        } else {
+            unlink(slot);
+        }
+
+        ids[slot] = id;
+        modified[slot] = modifiedAt;
+        colors[slot] = colorIndex;
+        symbols[slot] = symbolIndex;
+        customEmoji[slot] = hasCustomEmoji;
+        refs[slot] = ref;
+        titleKeys[slot] = title != null ? collator.getCollationKey(title).toByteArray() : NO_KEY;
+
+        for (int sort = 0; sort < orders.length; sort++) {
+            if (orders[sort] != null) {
+                insert(sort, slot);
+            }
+        }
+    }
+
+    public void remove(long id) {
+        int slot = slotOf.get(id, -1);
+        if (slot < 0) {
+            return;
+        }
+        unlink(slot);
+        slotOf.remove(id);
+        titleKeys[slot] = null;
+        free[freeCount++] = slot;
+        size--;
+    }
+
+    /**
+     * Point the note's ref somewhere else without moving it.
+     */
+    public void setRef(long id, int ref) {
+        int slot = slotOf.get(id, -1);
+        if (slot >= 0) {
+            refs[slot] = ref;
+        }
+    }
+
+    public long getId(int slot) { return ids[slot]; }
+    public int getRef(int slot) { return refs[slot]; }
+
+    /**
+     * Fill {@code out} with the slots of the notes {@code view} shows, in its
+     * order, building the order first if it has never been asked for.
+     *
+     * @param out at least {@link #size()} long
+     * @return the number of slots written
+     */
+    public int select(NoteView view, int[] out) {
+        int[] order = order(view.getSort());
+        if (!view.isFiltered()) {
+            System.arraycopy(order, 0, out, 0, size);
+            return size;
+        }
+        int count = 0;
+        for (int i = 0; i < size; i++) {
+            int slot = order[i];
+            if (view.matches(ids[slot], colors[slot], symbols[slot], customEmoji[slot])) {
+                out[count++] = slot;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Fill {@code out} with the slots of those of {@code noteIds} that {@code view}
+     * shows, in its order. Ids not in the index are skipped.
+     *
+     * @param out at least {@code noteIds.length} long
+     * @return the number of slots written
+     */
+    public int select(long[] noteIds, NoteView view, int[] out) {
+        int count = 0;
+        for (long id : noteIds) {
+            int slot = slotOf.get(id, -1);
+            if (slot >= 0 && view.matches(id, colors[slot], symbols[slot], customEmoji[slot])) {
+                out[count++] = slot;
+            }
+        }
+        sort(view.getSort(), out, count);
+        return count;
+    }
+
+    private int[] order(int sort) {
+        int[] order = orders[sort];
+        if (order == null) {
+            order = new int[Math.max(size, INITIAL_CAPACITY)];
+            int count = 0;
+            for (int slot = 0; slot < slotCount; slot++) {
+                if (titleKeys[slot] != null) {
+                    order[count++] = slot;
+                }
+            }
+            sort(sort, order, count);
+            orders[sort] = order;
+        }
+        return order;
+    }
+
+    /**
+     * Negative when slot {@code a} comes before slot {@code b} in the order.
+     */
+    private int compare(int sort, int a, int b) {
+        int result;
+        switch (sort) {
+            case NoteView.SORT_CREATED:
+                // Ids are creation times, so this is creation order
+                return Long.compare(ids[b], ids[a]);
+            case NoteView.SORT_TITLE:
+                result = compareKeys(titleKeys[a], titleKeys[b]);
+                break;
+            case NoteView.SORT_COLOR:
+                result = Integer.compare(colors[a], colors[b]);
+                break;
+            default:
+                result = 0;
+                break;
+        }
+        if (result == 0) {
+            result = Long.compare(modified[b], modified[a]);
+        }
+        return result != 0 ? result : Long.compare(ids[b], ids[a]);
+    }
+
+    private static int compareKeys(byte[] a, byte[] b) {
+        int length = Math.min(a.length, b.length);
+        for (int i = 0; i < length; i++) {
+            if (a[i] != b[i]) {
+                return (a[i] & 0xFF) - (b[i] & 0xFF);
+            }
+        }
+        return a.length - b.length;
+    }
+
+    /**
+     * First position in the order whose slot doesn't come before {@code slot}.
+     */
+    private int positionOf(int sort, int slot, int count) {
+        int[] order = orders[sort];
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (compare(sort, order[mid], slot) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private void insert(int sort, int slot) {
+        // The slot is already counted in size
+        int count = size - 1;
+        int[] order = orders[sort];
+        if (order.length == count) {
+            order = orders[sort] = Arrays.copyOf(order, count * 2);
+        }
+        int position = positionOf(sort, slot, count);
+        System.arraycopy(order, position, order, position + 1, count - position);
+        order[position] = slot;
+    }
+
+    /**
+     * Take {@code slot} out of every built order, while its keys are still the ones it was sorted by.
+     */
+    private void unlink(int slot) {
+        for (int sort = 0; sort < orders.length; sort++) {
+            int[] order = orders[sort];
+            if (order == null) {
+                continue;
+            }
+            int position = positionOf(sort, slot, size);
+            if (position < size && order[position] == slot) {
+                System.arraycopy(order, position + 1, order, position, size - position - 1);
+            }
+        }
+    }
+
+    private int allocate() {
+        if (freeCount > 0) {
+            return free[--freeCount];
+        }
+        if (slotCount == ids.length) {
+            int capacity = slotCount * 2;
+            ids = Arrays.copyOf(ids, capacity);
+            modified = Arrays.copyOf(modified, capacity);
+            colors = Arrays.copyOf(colors, capacity);
+            symbols = Arrays.copyOf(symbols, capacity);
+            customEmoji = Arrays.copyOf(customEmoji, capacity);
+            titleKeys = Arrays.copyOf(titleKeys, capacity);
+            refs = Arrays.copyOf(refs, capacity);
+            free = Arrays.copyOf(free, capacity);
+        }
+        return slotCount++;
+    }
+
+    /**
+     * Stable merge sort of the first {@code count} slots, without boxing them.
+     */
+    private void sort(int sort, int[] slots, int count) {
+        if (buffer.length < count) {
+            buffer = new int[count];
+        }
+        mergeSort(sort, slots, buffer, 0, count);
+    }
+
+    private void mergeSort(int sort, int[] slots, int[] scratch, int from, int to) {
+        if (to - from < 16) {
+            // Insertion sort for short runs
+            for (int i = from + 1; i < to; i++) {
+                int slot = slots[i];
+                int j = i - 1;
+                while (j >= from && compare(sort, slots[j], slot) > 0) {
+                    slots[j + 1] = slots[j];
+                    j--;
+                }
+                slots[j + 1] = slot;
+            }
+            return;
+        }
+        int mid = (from + to) >>> 1;
+        mergeSort(sort, slots, scratch, from, mid);
+        mergeSort(sort, slots, scratch, mid, to);
+        if (compare(sort, slots[mid - 1], slots[mid]) <= 0) {
+            // Already in order, as when a list is mostly sorted
+            return;
+        }
+        System.arraycopy(slots, from, scratch, from, to - from);
+        int left = from;
+        int right = mid;
+        for (int i = from; i < to; i++) {
+            if (right >= to || (left < mid && compare(sort, scratch[left], scratch[right]) <= 0)) {
+                slots[i] = scratch[left++];
+            } else {
+                slots[i] = scratch[right++];
+            }
+        }
+    }
+}
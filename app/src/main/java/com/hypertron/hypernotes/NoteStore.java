@@ -0,0 +1,1551 @@
+package com.hypertron.hypernotes;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.text.Collator;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Append-only, log-structured store for notes.
+ *
+ * Every create, update or delete is appended to a single log file as a
+ * checksummed record, and superseded records are dropped by {@link #compact()}
+ * once they make up most of the file.
+ *
+ * Writes can be staged with {@link #stage(Note)} and {@link #stageDelete(long)},
+ * which only touch memory, and made durable later by {@link #flush()}: staged
+ * edits to the same note collapse into one record and a whole batch costs a
+ * single fsync. Readers see staged changes immediately.
+ *
+ * Only list metadata is kept in memory. A {@link NoteSnapshot} of that
+ * metadata is written by {@link #checkpoint()} and after each compaction, so
+ * opening the store maps the snapshot and replays just the records appended
+ * since. Note bodies stay on disk until {@link #getContent(long)} asks for one.
+ *
+ * Bodies are compressed with a {@link NoteDictionary} trained on the notes
+ * themselves by {@link #trainDictionary()}. Each compressed record names its
+ * dictionary, so older ones stay readable until the next compaction
+ * re-encodes them with the current dictionary and drops the rest.
+ *
+ * Opened with a {@link NoteCipher}, the store seals everything it writes: a
+ * record's metadata as one chunk and its body as chunks of its own, the
+ * snapshot in pages and the dictionaries whole. Replaying the log opens only
+ * the metadata, and a body is opened only when it is read. A log written
+ * without a cipher stays readable when opened with one, and is sealed in one
+ * go by {@link #seal()}.
+ */
+public class NoteStore implements Closeable {
+
+    private static final String LOG_FILE = "notes.log";
+    private static final String COMPACT_FILE = "notes.log.compact";
+    private static final String SNAPSHOT_FILE = "notes.meta";
+    private static final String DICTIONARY_PREFIX = "notes.dict.";
+
+    private static final int MAGIC = 0x484E4C47; // "HNLG"
+    private static final int FORMAT_VERSION = 1;
+    // Same framing, with every record sealed
+    private static final int SEALED_VERSION = 2;
+
+    // magic (4) + version (4) + generation (8)
+    private static final int FILE_HEADER_SIZE = 16;
+
+    // length (4) + crc (4), followed by op (1) and the payload
+    private static final int RECORD_HEADER_SIZE = 8;
+
+    private static final byte OP_PUT = 1;
+    private static final byte OP_DELETE = 2;
+    // Like OP_PUT, with the content compressed
+    private static final byte OP_PUT_PACKED = 3;
+    // A sealed head, then for a put the sealed body
+    private static final byte OP_SEALED_PUT = 4;
+    private static final byte OP_SEALED_DELETE = 5;
+
+    // Heads are sealed under this context with their op as the index, so one
+    // can't pass for a body chunk or for the other kind of record. Body chunks
+    // are sealed under the first half of their head's tag, which ties them to it.
+    private static final long HEAD_CONTEXT = 0x484E4844L; // "HNHD"
+    private static final int BODY_CHUNK_SIZE = 16 * 1024;
+
+    // Bodies shorter than this aren't worth compressing
+    private static final int MIN_PACKED_BYTES = 64;
+    // Corpus size before a dictionary is worth training
+    private static final long MIN_TRAINING_BYTES = 16 * 1024;
+    // Text sampled for training, and the most taken from any one note
+    private static final int TRAINING_SAMPLE_BYTES = 1024 * 1024;
+    private static final int MAX_SAMPLE_BYTES = 16 * 1024;
+
+    // Don't bother compacting small logs
+    private static final long MIN_COMPACT_BYTES = 256 * 1024;
+
+    // Records replayed on top of the snapshot before a checkpoint pays for itself
+    private static final int CHECKPOINT_THRESHOLD = 256;
+
+    // Batches this big rebuild the sort index instead of updating it
+    private static final int BULK_STAGE_SIZE = 256;
+
+    private final File directory;
+    private final int[] colorResIds;
+    // Null when the store is kept in the clear
+    private final NoteCipher cipher;
+    private final ByteArrayOutputStream recordBuffer = new ByteArrayOutputStream(512);
+    private final CRC32 crc = new CRC32();
+
+    // Held, before the store's monitor, by everything that writes the log, so a
+    // flush can fsync without locking out readers
+    private final Object writeLock = new Object();
+
+    // Notes written since the snapshot, and snapshot ids they replaced or deleted, mapped to their old row
+    private final LongMap<Entry> overlay = new LongMap<>();
+    private final LongIntMap superseded = new LongIntMap();
+    private final NoteIdAllocator idAllocator = new NoteIdAllocator();
+    // Ids staged since the last flush, in staging order
+    private final Set<Long> dirty = new LinkedHashSet<>();
+    private NoteSnapshot snapshot;
+
+    // Every note in the other sort orders, built the first time a view other
+    // than the default asks for it and kept up to date from then on. Slot refs
+    // are snapshot rows, or HELD for notes in the overlay.
+    private NoteSortIndex sortIndex;
+    private Locale sortLocale;
+    private static final int HELD = -1;
+
+    // Every dictionary some record may use, and the one new records are written with
+    private final Map<Integer, NoteDictionary> dictionaries = new HashMap<>();
+    private NoteDictionary dictionary;
+    // Content written since the current dictionary was trained
+    private long bytesSinceTraining;
+
+    private RandomAccessFile log;
+    private long generation;
+    private long logLength;
+    private long liveBytes;
+    private int size;
+    // Written in the clear and not yet sealed; records appended since are sealed already
+    private boolean plainLog;
+
+    private static final class Entry {
+        final Note note;
+        final long offset;
+        final int recordSize;
+        // Full note waiting to be flushed, or null once it is in the log
+        final Note pending;
+
+        Entry(Note note, long offset, int recordSize) {
+            this(note, offset, recordSize, null);
+        }
+
+        Entry(Note note, long offset, int recordSize, Note pending) {
+            this.note = note;
+            this.offset = offset;
+            this.recordSize = recordSize;
+            this.pending = pending;
+        }
+    }
+
+    /**
+     * Open (or create) the store in the given directory.
+     *
+     * @param colorResIds palette the notes' colorResId values are drawn from;
+     *                    only the index into it is persisted, since resource ids
+     *                    are not stable across builds
+     */
+    public static NoteStore open(File directory, int[] colorResIds) throws IOException {
+        return open(directory, colorResIds, null);
+    }
+
+    /**
+     * Open (or create) the store in the given directory, encrypting it with
+     * {@code cipher}. A store written in the clear is left for {@link #seal()}.
+     *
+     * @param cipher the store's cipher, or null to keep it in the clear
+     */
+    public static NoteStore open(File directory, int[] colorResIds, NoteCipher cipher) throws IOException {
+        NoteStore store = new NoteStore(directory, colorResIds, cipher);
+        store.load();
+        return store;
+    }
+
+    private NoteStore(File directory, int[] colorResIds, NoteCipher cipher) {
+        this.directory = directory;
+        this.colorResIds = colorResIds;
+        this.cipher = cipher;
+    }
+
+    private void load() throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+
+        // A leftover compaction file means we died mid-compaction; the log is still authoritative
+        File leftover = new File(directory, COMPACT_FILE);
+        if (leftover.exists()) {
+            leftover.delete();
+        }
+        loadDictionaries();
+
+        File file = new File(directory, LOG_FILE);
+        log = new RandomAccessFile(file, "rw");
+        if (log.length() < FILE_HEADER_SIZE) {
+            generation = System.currentTimeMillis();
+            log.setLength(0);
+            log.writeInt(MAGIC);
+            log.writeInt(cipher != null ? SEALED_VERSION : FORMAT_VERSION);
+            log.writeLong(generation);
+            log.getFD().sync();
+            logLength = FILE_HEADER_SIZE;
+            return;
+        }
+
+        if (log.readInt() != MAGIC) {
+            throw new IOException("Not a note log: " + file);
+        }
+        int version = log.readInt();
+        if (version != FORMAT_VERSION && version != SEALED_VERSION) {
+            throw new IOException("Unsupported note log version " + version);
+        }
+        if (version == SEALED_VERSION && cipher == null) {
+            throw new IOException("Note log is encrypted: " + file);
+        }
+        generation = log.readLong();
+
+        // Start from the snapshot if it was taken from this log, otherwise replay everything
+        long start = FILE_HEADER_SIZE;
+        NoteSnapshot mapped = NoteSnapshot.map(new File(directory, SNAPSHOT_FILE), colorResIds, cipher);
+        if (mapped != null && mapped.getGeneration() == generation
+                && mapped.getLogLength() <= log.length()) {
+            snapshot = mapped;
+            idAllocator.observe(snapshot.getMaxId());
+            start = snapshot.getLogLength();
+            liveBytes = snapshot.getLiveBytes();
+            size = snapshot.size();
+        }
+
+        try (FileInputStream stream = new FileInputStream(file)) {
+            stream.getChannel().position(start);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(stream, 64 * 1024));
+            logLength = replay(in, start, log.length());
+        }
+
+        // Drop a torn tail left behind by a crash mid-append
+        if (logLength < log.length()) {
+            log.setLength(logLength);
+        }
+
+        plainLog = cipher != null && version == FORMAT_VERSION;
+    }
+
+    private void loadDictionaries() throws IOException {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (!file.getName().startsWith(DICTIONARY_PREFIX) || file.getName().endsWith(".tmp")) {
+                continue;
+            }
+            NoteDictionary loaded = NoteDictionary.read(file, cipher);
+            dictionaries.put(loaded.getId(), loaded);
+            if (dictionary == null || loaded.getId() > dictionary.getId()) {
+                dictionary = loaded;
+            }
+        }
+    }
+
+    private File dictionaryFile(int id) {
+        return new File(directory, DICTIONARY_PREFIX + id);
+    }
+
+    private NoteDictionary dictionaryFor(int id) throws IOException {
+        NoteDictionary found = dictionaries.get(id);
+        if (found == null) {
+            throw new IOException("Missing note dictionary " + id);
+        }
+        return found;
+    }
+
+    /**
+     * Apply records from the stream until the end of the log, {@code end}
+     * bytes long, or the first incomplete / corrupt record.
+     *
+     * @return offset just past the last good record
+     */
+    private long replay(DataInputStream in, long offset, long end) throws IOException {
+        byte[] buffer = new byte[4096];
+        while (true) {
+            int length;
+            int checksum;
+            try {
+                length = in.readInt();
+                checksum = in.readInt();
+            } catch (EOFException e) {
+                return offset;
+            }
+            // A torn header can claim any length; don't allocate for more than the log holds
+            if (length <= 0 || length > end - offset - RECORD_HEADER_SIZE) {
+                return offset;
+            }
+            if (buffer.length < length) {
+                buffer = new byte[Math.max(length, buffer.length * 2)];
+            }
+            try {
+                in.readFully(buffer, 0, length);
+            } catch (EOFException e) {
+                return offset;
+            }
+            crc.reset();
+            crc.update(buffer, 0, length);
+            if ((int) crc.getValue() != checksum) {
+                return offset;
+            }
+
+            int recordSize = RECORD_HEADER_SIZE + length;
+            applyRecord(buffer, length, offset, recordSize);
+            offset += recordSize;
+        }
+    }
+
+    private void applyRecord(byte[] buffer, int length, long offset, int recordSize) throws IOException {
+        DataInputStream record = new DataInputStream(new ByteArrayInputStream(buffer, 0, length));
+        byte op = record.readByte();
+        if (op == OP_PUT || op == OP_PUT_PACKED) {
+            Note note = readNote(record, op, false);
+            track(note.getId(), new Entry(note, offset, recordSize));
+        } else if (op == OP_DELETE) {
+            track(record.readLong(), null);
+        } else if (op == OP_SEALED_PUT) {
+            Note note = openHead(buffer, 1, length).note;
+            track(note.getId(), new Entry(note, offset, recordSize));
+        } else if (op == OP_SEALED_DELETE) {
+            track(openDelete(buffer, 1, length), null);
+        } else {
+            throw new IOException("Unknown record type " + op);
+        }
+    }
+
+    /**
+     * Make {@code entry} the live version of {@code id}, or remove it when null.
+     */
+    private void track(long id, Entry entry) {
+        idAllocator.observe(id);
+        int previousSize = -1;
+        Entry previous = entry != null ? overlay.put(id, entry) : overlay.remove(id);
+        if (previous != null) {
+            previousSize = previous.recordSize;
+        } else if (snapshot != null && !superseded.containsKey(id)) {
+            int row = snapshot.indexOf(id);
+            if (row >= 0) {
+                superseded.put(id, row);
+                previousSize = snapshot.getRecordSize(row);
+            }
+        }
+
+        if (previousSize >= 0) {
+            liveBytes -= previousSize;
+            size--;
+        }
+        if (entry != null) {
+            liveBytes += entry.recordSize;
+            size++;
+        }
+
+        if (sortIndex != null) {
+            if (entry != null) {
+                Note note = entry.note;
+                sortIndex.put(id, note.getTimestamp(), colorIndexOf(note.getColorResId()),
+                        note.getSymbolIndex(), note.getCustomEmoji() != null, note.getTitle(), HELD);
+            } else {
+                sortIndex.remove(id);
+            }
+        }
+    }
+
+    /**
+     * A fresh id for a new note, distinct from every note in the store even
+     * if several are created within the same millisecond.
+     */
+    public long newId() {
+        return idAllocator.next();
+    }
+
+    /**
+     * Insert or replace a note and make it durable.
+     */
+    public void put(Note note) throws IOException {
+        synchronized (writeLock) {
+            stage(note);
+            flush();
+        }
+    }
+
+    /**
+     * Remove a note and make the removal durable. Deleting an unknown id is a no-op.
+     */
+    public void delete(long id) throws IOException {
+        synchronized (writeLock) {
+            stageDelete(id);
+            flush();
+        }
+    }
+
+    /**
+     * Insert or replace a note in memory only; it reaches the log on the next
+     * {@link #flush()}. Staging the same id again before then replaces the
+     * earlier edit instead of adding another record.
+     */
+    public synchronized void stage(Note note) {
+        note.setVersion(versionOf(note.getId()) + 1);
+        // Copied, so later changes to the caller's note can't leak into the record
+        track(note.getId(), new Entry(withoutContent(note), -1, 0, copyOf(note, note.getContent())));
+        dirty.add(note.getId());
+    }
+
+    /**
+     * Stage a batch of notes, as {@link #stage(Note)} one at a time would. A
+     * batch this big would move many notes in the sort index one by one, so
+     * the index is dropped instead, to be rebuilt by the next view that needs it.
+     */
+    public synchronized void stageAll(List<Note> notes) {
+        if (notes.size() >= BULK_STAGE_SIZE) {
+            sortIndex = null;
+        }
+        for (Note note : notes) {
+            stage(note);
+        }
+    }
+
+    /**
+     * Remove a note in memory only, like {@link #stage(Note)}.
+     */
+    public synchronized void stageDelete(long id) {
+        if (!contains(id)) {
+            return;
+        }
+        track(id, null);
+        dirty.add(id);
+    }
+
+    public synchronized boolean hasStagedWrites() {
+        return !dirty.isEmpty();
+    }
+
+    /**
+     * Append everything staged so far to the log as one batch and make it
+     * durable with a single fsync. Reads and staging are not blocked while the
+     * batch is written.
+     */
+    public void flush() throws IOException {
+        synchronized (writeLock) {
+            List<Long> ids;
+            List<Entry> staged = new ArrayList<>();
+            long[] offsets;
+            int[] sizes;
+            ByteArrayOutputStream batch = new ByteArrayOutputStream();
+            long start;
+            synchronized (this) {
+                if (dirty.isEmpty()) {
+                    return;
+                }
+                ids = new ArrayList<>(dirty);
+                offsets = new long[ids.size()];
+                sizes = new int[ids.size()];
+                start = logLength;
+                for (int i = 0; i < ids.size(); i++) {
+                    Entry entry = overlay.get(ids.get(i));
+                    recordBuffer.reset();
+                    DataOutputStream out = new DataOutputStream(recordBuffer);
+                    if (entry == null) {
+                        writeDelete(out, ids.get(i));
+                    } else {
+                        writePut(out, entry.pending);
+                        String content = entry.pending.getContent();
+                        bytesSinceTraining += content != null ? content.length() : 0;
+                    }
+                    offsets[i] = start + batch.size();
+                    sizes[i] = encodeRecord(batch);
+                    staged.add(entry);
+                }
+                dirty.clear();
+            }
+
+            try {
+                // Positional write, so readers seeking the same file under the monitor aren't disturbed
+                byte[] bytes = batch.toByteArray();
+                ByteBuffer buffer = ByteBuffer.wrap(bytes);
+                long position = start;
+                while (buffer.hasRemaining()) {
+                    position += log.getChannel().write(buffer, position);
+                }
+                log.getChannel().force(false);
+            } catch (IOException e) {
+                synchronized (this) {
+                    // Nothing is lost: the staged notes are still in memory, so retry them next time
+                    List<Long> retry = new ArrayList<>(ids);
+                    retry.addAll(dirty);
+                    dirty.clear();
+                    dirty.addAll(retry);
+                }
+                throw e;
+            }
+
+            synchronized (this) {
+                logLength = start + batch.size();
+                for (int i = 0; i < ids.size(); i++) {
+                    Entry entry = staged.get(i);
+                    // A note staged again during the write stays pending; this record is already garbage
+                    if (entry != null && overlay.get(ids.get(i)) == entry) {
+                        overlay.put(ids.get(i), new Entry(entry.note, offsets[i], sizes[i]));
+                        liveBytes += sizes[i];
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Frame the payload currently in {@link #recordBuffer} with its length and
+     * checksum and write it to {@code out}.
+     *
+     * @return on-disk size of the record
+     */
+    private int encodeRecord(ByteArrayOutputStream out) {
+        byte[] payload = recordBuffer.toByteArray();
+        crc.reset();
+        crc.update(payload, 0, payload.length);
+
+        byte[] header = new byte[RECORD_HEADER_SIZE];
+        writeInt(header, 0, payload.length);
+        writeInt(header, 4, (int) crc.getValue());
+        out.write(header, 0, header.length);
+        out.write(payload, 0, payload.length);
+        return RECORD_HEADER_SIZE + payload.length;
+    }
+
+    /**
+     * Version of the live note with this id, or 0 if there is none.
+     */
+    private int versionOf(long id) {
+        Entry entry = overlay.get(id);
+        if (entry != null) {
+            return entry.note.getVersion();
+        }
+        int row = snapshot != null && !superseded.containsKey(id) ? snapshot.indexOf(id) : -1;
+        return row >= 0 ? snapshot.getVersion(row) : 0;
+    }
+
+    private boolean contains(long id) {
+        if (overlay.containsKey(id)) {
+            return true;
+        }
+        return snapshot != null && !superseded.containsKey(id) && snapshot.indexOf(id) >= 0;
+    }
+
+    /**
+     * List metadata for a note, without its content, or null if there is no such note.
+     */
+    public synchronized Note get(long id) {
+        Entry entry = overlay.get(id);
+        if (entry != null) {
+            return entry.note;
+        }
+        if (snapshot == null || superseded.containsKey(id)) {
+            return null;
+        }
+        int row = snapshot.indexOf(id);
+        return row >= 0 ? snapshot.getNote(row) : null;
+    }
+
+    /**
+     * A note with its content, read atomically so the body matches the version, or null.
+     */
+    public synchronized Note getWithContent(long id) throws IOException {
+        Note note = get(id);
+        return note != null ? copyOf(note, getContent(id)) : null;
+    }
+
+    /**
+     * Read a note's body from the log, or null if there is no such note.
+     */
+    public synchronized String getContent(long id) throws IOException {
+        long offset;
+        int recordSize;
+        Entry entry = overlay.get(id);
+        if (entry != null && entry.pending != null) {
+            return entry.pending.getContent();
+        }
+        if (entry != null) {
+            offset = entry.offset;
+            recordSize = entry.recordSize;
+        } else {
+            int row = snapshot != null && !superseded.containsKey(id) ? snapshot.indexOf(id) : -1;
+            if (row < 0) {
+                return null;
+            }
+            offset = snapshot.getRecordOffset(row);
+            recordSize = snapshot.getRecordSize(row);
+        }
+
+        return decodeRecord(readRecord(offset, recordSize), offset).getContent();
+    }
+
+    // The full note held by a put record read with readRecord
+    private Note decodeRecord(byte[] record, long offset) throws IOException {
+        if (record[RECORD_HEADER_SIZE] == OP_SEALED_PUT) {
+            SealedHead head = openHead(record, RECORD_HEADER_SIZE + 1, record.length);
+            return copyOf(head.note, openBody(record, head, offset));
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+                record, RECORD_HEADER_SIZE, record.length - RECORD_HEADER_SIZE));
+        byte op = in.readByte();
+        if (op != OP_PUT && op != OP_PUT_PACKED) {
+            throw new IOException("Expected a note record at " + offset);
+        }
+        return readNote(in, op, true);
+    }
+
+    /**
+     * Stream a note's body from the log instead of reading it in one piece, or
+     * null if there is no such note. The record's checksum is verified as the
+     * stream is read, and a mismatch surfaces as an IOException at its end.
+     */
+    public synchronized Reader openContent(long id) throws IOException {
+        long offset;
+        Entry entry = overlay.get(id);
+        if (entry != null && entry.pending != null) {
+            String content = entry.pending.getContent();
+            return new StringReader(content != null ? content : "");
+        }
+        if (entry != null) {
+            offset = entry.offset;
+        } else {
+            int row = snapshot != null && !superseded.containsKey(id) ? snapshot.indexOf(id) : -1;
+            if (row < 0) {
+                return null;
+            }
+            offset = snapshot.getRecordOffset(row);
+        }
+
+        // A descriptor of its own, so the stream still reads the old file if a compaction swaps the log
+        FileInputStream file = new FileInputStream(new File(directory, LOG_FILE));
+        try {
+            file.getChannel().position(offset);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(file, 64 * 1024));
+            in.readInt();
+            int checksum = in.readInt();
+            CheckedInputStream checked = new CheckedInputStream(in, new CRC32());
+            DataInputStream record = new DataInputStream(checked);
+            byte op = record.readByte();
+            if (op == OP_SEALED_PUT) {
+                return openSealedContent(record, checked, checksum, offset);
+            }
+            if (op != OP_PUT && op != OP_PUT_PACKED) {
+                throw new IOException("Expected a note record at " + offset);
+            }
+            // id, timestamp, color, symbol and version come before the title
+            record.skipBytes(8 + 8 + 4 + 4 + 4);
+            readString(record);
+            int contentLength = Math.max(record.readInt(), 0);
+            if (op == OP_PUT) {
+                BoundedStream stored = new BoundedStream(record, contentLength, offset);
+                return new InputStreamReader(new ContentStream(stored, stored, null, record, checked,
+                        checksum, offset, true), StandardCharsets.UTF_8);
+            }
+            if (contentLength < 8) {
+                throw new IOException("Bad compressed note at " + offset);
+            }
+            Inflater inflater = dictionaryFor(record.readInt()).newInflater();
+            record.readInt();
+            BoundedStream stored = new BoundedStream(record, contentLength - 8, offset);
+            return new InputStreamReader(new ContentStream(new InflaterInputStream(stored, inflater, 8192), stored,
+                    inflater, record, checked, checksum, offset, true), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    // The body of a sealed record, opened a chunk at a time as it is read
+    private Reader openSealedContent(DataInputStream record, CheckedInputStream checked, int checksum, long offset)
+            throws IOException {
+        int headLength = record.readInt();
+        if (headLength < NoteCipher.OVERHEAD) {
+            throw new IOException("Bad note record at " + offset);
+        }
+        byte[] sealedHead = new byte[headLength];
+        record.readFully(sealedHead);
+        SealedHead head = openHeadAt(sealedHead, 0, headLength);
+        int storedLength = Math.max(head.storedLength, 0);
+        BoundedStream stored = new BoundedStream(record,
+                (int) NoteCipher.sealedLength(storedLength, BODY_CHUNK_SIZE), offset);
+        InputStream body = cipher.opening(stored, head.bodyContext, BODY_CHUNK_SIZE, storedLength);
+        if (head.dictionaryId == 0) {
+            return new InputStreamReader(new ContentStream(body, stored, null, record, checked,
+                    checksum, offset, false), StandardCharsets.UTF_8);
+        }
+        Inflater inflater = dictionaryFor(head.dictionaryId).newInflater();
+        return new InputStreamReader(new ContentStream(new InflaterInputStream(body, inflater, 8192), stored,
+                inflater, record, checked, checksum, offset, false), StandardCharsets.UTF_8);
+    }
+
+    // The content of one record, decompressed if need be; the rest of the record is checksummed once it runs out
+    private static final class ContentStream extends InputStream {
+        private final InputStream content;
+        private final BoundedStream stored;
+        private final Inflater inflater;
+        private final DataInputStream record;
+        private final CheckedInputStream checked;
+        private final int checksum;
+        private final long offset;
+        // Whether the custom emoji follows the content, as in records that aren't sealed
+        private final boolean trailer;
+        private boolean verified;
+
+        ContentStream(InputStream content, BoundedStream stored, Inflater inflater, DataInputStream record,
+                      CheckedInputStream checked, int checksum, long offset, boolean trailer) {
+            this.content = content;
+            this.stored = stored;
+            this.inflater = inflater;
+            this.record = record;
+            this.checked = checked;
+            this.checksum = checksum;
+            this.offset = offset;
+            this.trailer = trailer;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] buffer, int off, int len) throws IOException {
+            if (verified) {
+                return -1;
+            }
+            int read = content.read(buffer, off, len);
+            if (read < 0) {
+                verify();
+            }
+            return read;
+        }
+
+        private void verify() throws IOException {
+            stored.skipRest();
+            if (trailer) {
+                // The custom emoji is all that follows the content
+                readString(record);
+            }
+            if ((int) checked.getChecksum().getValue() != checksum) {
+                throw new IOException("Corrupt note record at " + offset);
+            }
+            verified = true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (inflater != null) {
+                inflater.end();
+            }
+            record.close();
+        }
+    }
+
+    // The next length bytes of a record; running out early means the record was truncated
+    private static final class BoundedStream extends InputStream {
+        private final InputStream in;
+        private final long offset;
+        private int remaining;
+
+        BoundedStream(InputStream in, int length, long offset) {
+            this.in = in;
+            this.remaining = length;
+            this.offset = offset;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] buffer, int off, int len) throws IOException {
+            if (remaining == 0) {
+                return -1;
+            }
+            int read = in.read(buffer, off, Math.min(len, remaining));
+            if (read < 0) {
+                throw new EOFException("Truncated note record at " + offset);
+            }
+            remaining -= read;
+            return read;
+        }
+
+        void skipRest() throws IOException {
+            byte[] buffer = new byte[256];
+            while (read(buffer, 0, buffer.length) >= 0) {
+                // Drained so the checksum covers it
+            }
+        }
+    }
+
+    private byte[] readRecord(long offset, int recordSize) throws IOException {
+        byte[] record = new byte[recordSize];
+        log.seek(offset);
+        log.readFully(record);
+        crc.reset();
+        crc.update(record, RECORD_HEADER_SIZE, recordSize - RECORD_HEADER_SIZE);
+        if ((int) crc.getValue() != readInt(record, 4)) {
+            throw new IOException("Corrupt note record at " + offset);
+        }
+        return record;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * All live notes, newest first. Notes covered by the snapshot are decoded
+     * lazily as the list is read, and none of them carry content.
+     */
+    public synchronized NoteList getAll() {
+        List<Entry> fresh = freshEntries();
+        int[] order = displayOrder(fresh);
+        List<Note> held = new ArrayList<>(fresh.size());
+        for (Entry entry : fresh) {
+            held.add(entry.note);
+        }
+        // Fresh entries are already encoded as ~index, which is what NoteList expects
+        return new NoteList(snapshot, order, held, order.length);
+    }
+
+    /**
+     * The notes with the given ids, newest first and decoded lazily like
+     * {@link #getAll()}. Ids without a live note are skipped.
+     */
+    public synchronized NoteList getNotes(long[] ids) {
+        int[] rows = new int[ids.length];
+        List<Note> held = new ArrayList<>();
+        long[] timestamps = new long[ids.length];
+        int count = 0;
+        for (long id : ids) {
+            Entry entry = overlay.get(id);
+            if (entry != null) {
+                rows[count] = ~held.size();
+                held.add(entry.note);
+                timestamps[count++] = entry.note.getTimestamp();
+                continue;
+            }
+            int row = snapshot != null && !superseded.containsKey(id) ? snapshot.indexOf(id) : -1;
+            if (row >= 0) {
+                rows[count] = row;
+                timestamps[count++] = snapshot.getTimestamp(row);
+            }
+        }
+
+        Integer[] order = new Integer[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(timestamps[b], timestamps[a]));
+
+        int[] sortedRows = new int[count];
+        for (int i = 0; i < count; i++) {
+            sortedRows[i] = rows[order[i]];
+        }
+        return new NoteList(snapshot, sortedRows, held, count);
+    }
+
+    /**
+     * The notes {@code view} shows, in its order, decoded lazily like {@link #getAll()}.
+     */
+    public synchronized NoteList getAll(NoteView view) {
+        if (view.isDefault()) {
+            return getAll();
+        }
+        NoteSortIndex index = sortIndex();
+        int[] slots = new int[index.size()];
+        return listOf(index, slots, index.select(view, slots));
+    }
+
+    /**
+     * Those of the given notes that {@code view} shows, in its order.
+     * Ids without a live note are skipped.
+     */
+    public synchronized NoteList getNotes(long[] ids, NoteView view) {
+        if (view.isDefault()) {
+            return getNotes(ids);
+        }
+        NoteSortIndex index = sortIndex();
+        int[] slots = new int[ids.length];
+        return listOf(index, slots, index.select(ids, view, slots));
+    }
+
+    private NoteList listOf(NoteSortIndex index, int[] slots, int count) {
+        List<Note> held = new ArrayList<>();
+        // Reuse the slot array for the rows
+        for (int i = 0; i < count; i++) {
+            int slot = slots[i];
+            int row = index.getRef(slot);
+            if (row == HELD) {
+                row = ~held.size();
+                held.add(overlay.get(index.getId(slot)).note);
+            }
+            slots[i] = row;
+        }
+        return new NoteList(snapshot, slots, held, count);
+    }
+
+    /**
+     * The sort index, built from every live note on first use, or rebuilt
+     * when the language changed and titles collate differently.
+     */
+    private NoteSortIndex sortIndex() {
+        Locale locale = Locale.getDefault();
+        if (sortIndex != null && locale.equals(sortLocale)) {
+            return sortIndex;
+        }
+        NoteSortIndex index = new NoteSortIndex(Collator.getInstance(locale));
+        int rowCount = snapshot != null ? snapshot.size() : 0;
+        for (int row = 0; row < rowCount; row++) {
+            long id = snapshot.getId(row);
+            if (superseded.isEmpty() || !superseded.containsKey(id)) {
+                index.put(id, snapshot.getTimestamp(row), snapshot.getColorIndex(row),
+                        snapshot.getSymbolIndex(row), snapshot.hasCustomEmoji(row),
+                        snapshot.getTitle(row), row);
+            }
+        }
+        for (Entry entry : overlay.values()) {
+            Note note = entry.note;
+            index.put(note.getId(), note.getTimestamp(), colorIndexOf(note.getColorResId()),
+                    note.getSymbolIndex(), note.getCustomEmoji() != null, note.getTitle(), HELD);
+        }
+        sortIndex = index;
+        sortLocale = locale;
+        return index;
+    }
+
+    /**
+     * Overlay entries, newest first.
+     */
+    private List<Entry> freshEntries() {
+        List<Entry> fresh = new ArrayList<>(overlay.values());
+        Collections.sort(fresh, (a, b) -> Long.compare(b.note.getTimestamp(), a.note.getTimestamp()));
+        return fresh;
+    }
+
+    /**
+     * Merge live snapshot rows with {@code fresh} into display order. Snapshot
+     * rows are returned as their row number, fresh entries as {@code ~index}.
+     */
+    private int[] displayOrder(List<Entry> fresh) {
+        int[] order = new int[size];
+        int rowCount = snapshot != null ? snapshot.size() : 0;
+        int row = 0;
+        int next = 0;
+        int position = 0;
+        while (position < size) {
+            // Skip snapshot rows that were rewritten or deleted since
+            while (row < rowCount && !superseded.isEmpty()
+                    && superseded.containsKey(snapshot.getId(row))) {
+                row++;
+            }
+            boolean takeFresh = row >= rowCount || (next < fresh.size()
+                    && fresh.get(next).note.getTimestamp() >= snapshot.getTimestamp(row));
+            order[position++] = takeFresh ? ~next++ : row++;
+        }
+        return order;
+    }
+
+    /**
+     * Whether enough has been written since the last snapshot that opening
+     * the store would be noticeably faster with a new one.
+     */
+    public synchronized boolean needsCheckpoint() {
+        return overlay.size() + superseded.size() >= CHECKPOINT_THRESHOLD;
+    }
+
+    /**
+     * Write a fresh metadata snapshot covering the whole log, flushing staged writes first.
+     */
+    public void checkpoint() throws IOException {
+        synchronized (writeLock) {
+            writeCheckpoint();
+        }
+    }
+
+    private synchronized void writeCheckpoint() throws IOException {
+        // Flushed under the monitor so nothing can be staged between the flush and the snapshot
+        flush();
+        List<Entry> fresh = freshEntries();
+        int[] order = displayOrder(fresh);
+        NoteSnapshot.Writer writer = new NoteSnapshot.Writer(order.length);
+        for (int source : order) {
+            if (source >= 0) {
+                writer.add(snapshot, source, snapshot.getRecordOffset(source));
+            } else {
+                Entry entry = fresh.get(~source);
+                addRow(writer, entry.note, entry.offset, entry.recordSize);
+            }
+        }
+        installSnapshot(writer);
+    }
+
+    /**
+     * Whether superseded records take up enough of the log to be worth a compaction.
+     */
+    public synchronized boolean needsCompaction() {
+        long garbage = logLength - FILE_HEADER_SIZE - liveBytes;
+        return logLength >= MIN_COMPACT_BYTES && garbage > liveBytes;
+    }
+
+    /**
+     * Rewrite the log with only the live records, atomically swap it in and
+     * snapshot the result. Staged writes are flushed first.
+     */
+    public void compact() throws IOException {
+        synchronized (writeLock) {
+            rewriteLog();
+        }
+    }
+
+    /**
+     * Whether the store was written in the clear and has a cipher to be sealed with.
+     */
+    public synchronized boolean needsSealing() {
+        return plainLog;
+    }
+
+    /**
+     * Seal a store written in the clear, rewriting the dictionaries and the
+     * whole log. Slow on a large store, so kept off the main thread; until it
+     * is done, only records written since opening are sealed.
+     */
+    public void seal() throws IOException {
+        synchronized (writeLock) {
+            if (!needsSealing()) {
+                return;
+            }
+            // Dictionaries first, since they stay readable either way; a crash
+            // before the log is swapped just means sealing it again next time
+            synchronized (this) {
+                for (NoteDictionary existing : dictionaries.values()) {
+                    existing.writeTo(dictionaryFile(existing.getId()), cipher);
+                }
+            }
+            rewriteLog();
+        }
+    }
+
+    private synchronized void rewriteLog() throws IOException {
+        flush();
+        List<Entry> fresh = freshEntries();
+        int[] order = displayOrder(fresh);
+        NoteSnapshot.Writer writer = new NoteSnapshot.Writer(order.length);
+        long newGeneration = Math.max(System.currentTimeMillis(), generation + 1);
+        long newLength = FILE_HEADER_SIZE;
+
+        File compacted = new File(directory, COMPACT_FILE);
+        try (FileOutputStream file = new FileOutputStream(compacted)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 64 * 1024));
+            out.writeInt(MAGIC);
+            out.writeInt(cipher != null ? SEALED_VERSION : FORMAT_VERSION);
+            out.writeLong(newGeneration);
+
+            // Live records are copied verbatim, checksum included, unless they need re-encoding
+            // with the current dictionary
+            for (int source : order) {
+                long offset = source >= 0 ? snapshot.getRecordOffset(source) : fresh.get(~source).offset;
+                int recordSize = source >= 0 ? snapshot.getRecordSize(source) : fresh.get(~source).recordSize;
+                byte[] record = readRecord(offset, recordSize);
+                if (!isCurrentEncoding(record)) {
+                    Note note = decodeRecord(record, offset);
+                    recordBuffer.reset();
+                    writePut(new DataOutputStream(recordBuffer), note);
+                    ByteArrayOutputStream encoded = new ByteArrayOutputStream(recordBuffer.size() + RECORD_HEADER_SIZE);
+                    encodeRecord(encoded);
+                    record = encoded.toByteArray();
+                    out.write(record);
+                    addRow(writer, note, newLength, record.length);
+                } else if (source >= 0) {
+                    out.write(record);
+                    writer.add(snapshot, source, newLength);
+                } else {
+                    out.write(record);
+                    addRow(writer, fresh.get(~source).note, newLength, recordSize);
+                }
+                newLength += record.length;
+            }
+            out.flush();
+            file.getFD().sync();
+        }
+
+        File logFile = new File(directory, LOG_FILE);
+        log.close();
+        boolean replaced = compacted.renameTo(logFile);
+        log = new RandomAccessFile(logFile, "rw");
+        if (!replaced) {
+            compacted.delete();
+            throw new IOException("Cannot replace " + logFile);
+        }
+
+        generation = newGeneration;
+        logLength = newLength;
+        plainLog = false;
+        liveBytes = newLength - FILE_HEADER_SIZE;
+        installSnapshot(writer);
+
+        // Every record now uses the current dictionary, if any
+        for (Iterator<Integer> ids = dictionaries.keySet().iterator(); ids.hasNext(); ) {
+            int id = ids.next();
+            if (id != dictionary.getId()) {
+                dictionaryFile(id).delete();
+                ids.remove();
+            }
+        }
+    }
+
+    // Whether a put record is already encoded the way writePut would encode it now
+    private boolean isCurrentEncoding(byte[] record) throws IOException {
+        byte op = record[RECORD_HEADER_SIZE];
+        if (cipher != null && op != OP_SEALED_PUT) {
+            // Written before the store was encrypted
+            return false;
+        }
+        if (dictionary == null) {
+            return true;
+        }
+        if (op == OP_SEALED_PUT) {
+            SealedHead head = openHead(record, RECORD_HEADER_SIZE + 1, record.length);
+            return head.dictionaryId != 0 ? head.dictionaryId == dictionary.getId()
+                    : head.rawLength < MIN_PACKED_BYTES;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(record);
+        // op, then id, timestamp, color, symbol and version before the title
+        int position = RECORD_HEADER_SIZE + 1 + 8 + 8 + 4 + 4 + 4;
+        position += 4 + Math.max(buffer.getInt(position), 0);
+        int contentLength = buffer.getInt(position);
+        if (op == OP_PUT_PACKED) {
+            return buffer.getInt(position + 4) == dictionary.getId();
+        }
+        return contentLength < MIN_PACKED_BYTES;
+    }
+
+    /**
+     * Whether the notes have grown or changed enough since the current
+     * dictionary was trained (or there is none yet) to be worth training one.
+     */
+    public synchronized boolean needsTraining() {
+        if (dictionary == null) {
+            return liveBytes >= MIN_TRAINING_BYTES;
+        }
+        long trained = Math.max(dictionary.getTrainedBytes(), MIN_TRAINING_BYTES);
+        return bytesSinceTraining >= trained || liveBytes >= 2 * trained;
+    }
+
+    /**
+     * Train a new dictionary on a sample of the notes and compress new records
+     * with it. Existing records keep their encoding until the next compaction.
+     * Reads and writes go on while the sample is read and trained on.
+     */
+    public void trainDictionary() throws IOException {
+        List<Long> ids = liveIds();
+        Collections.shuffle(ids, new Random(ids.size()));
+        List<byte[]> samples = new ArrayList<>();
+        long sampled = 0;
+        for (long id : ids) {
+            if (sampled >= TRAINING_SAMPLE_BYTES) {
+                break;
+            }
+            String content = getContent(id);
+            if (content == null || content.isEmpty()) {
+                continue;
+            }
+            byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+            // A few long notes would otherwise crowd out everything else
+            samples.add(bytes.length > MAX_SAMPLE_BYTES ? Arrays.copyOf(bytes, MAX_SAMPLE_BYTES) : bytes);
+            sampled += Math.min(bytes.length, MAX_SAMPLE_BYTES);
+        }
+
+        int id;
+        long corpusBytes;
+        synchronized (this) {
+            id = dictionary != null ? dictionary.getId() + 1 : 1;
+            corpusBytes = liveBytes;
+        }
+        NoteDictionary trained = NoteDictionary.train(id, samples, corpusBytes);
+        synchronized (writeLock) {
+            synchronized (this) {
+                if (dictionary != null && dictionary.getId() >= id) {
+                    // Someone else got there first
+                    return;
+                }
+                trained.writeTo(dictionaryFile(id), cipher);
+                dictionaries.put(id, trained);
+                dictionary = trained;
+                bytesSinceTraining = 0;
+            }
+        }
+    }
+
+    private synchronized List<Long> liveIds() {
+        List<Long> ids = new ArrayList<>(size);
+        for (long id : overlay.keys()) {
+            ids.add(id);
+        }
+        int rows = snapshot != null ? snapshot.size() : 0;
+        for (int row = 0; row < rows; row++) {
+            long id = snapshot.getId(row);
+            if (!superseded.containsKey(id)) {
+                ids.add(id);
+            }
+        }
+        return ids;
+    }
+
+    private void addRow(NoteSnapshot.Writer writer, Note note, long offset, int recordSize)
+            throws IOException {
+        writer.add(note.getId(), note.getTimestamp(), offset, recordSize,
+                colorIndexOf(note.getColorResId()), note.getSymbolIndex(),
+                note.getTitle(), note.getCustomEmoji(), note.getVersion());
+    }
+
+    private void installSnapshot(NoteSnapshot.Writer writer) throws IOException {
+        File file = new File(directory, SNAPSHOT_FILE);
+        writer.writeTo(file, generation, logLength, liveBytes, cipher);
+        snapshot = NoteSnapshot.map(file, colorResIds, cipher);
+        overlay.clear();
+        superseded.clear();
+        // Every live note is a snapshot row now; the orders themselves still hold
+        if (sortIndex != null) {
+            for (int row = 0; row < snapshot.size(); row++) {
+                sortIndex.setRef(snapshot.getId(row), row);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (writeLock) {
+            synchronized (this) {
+                if (log != null) {
+                    flush();
+                    log.close();
+                    log = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * Write a put record's op and payload, compressing the content with the
+     * current dictionary when that makes it smaller. A compressed body is
+     * stored as its length, then the dictionary id, the raw length and the
+     * deflated bytes, so readers that skip content skip it the same way.
+     */
+    private void writePut(DataOutputStream out, Note note) throws IOException {
+        byte[] content = note.getContent() != null ? note.getContent().getBytes(StandardCharsets.UTF_8) : null;
+        byte[] packed = null;
+        if (dictionary != null && content != null && content.length >= MIN_PACKED_BYTES) {
+            packed = dictionary.compress(content);
+            if (packed.length + 8 >= content.length) {
+                // Incompressible; store it as it is
+                packed = null;
+            }
+        }
+        if (cipher != null) {
+            writeSealedPut(out, note, packed != null ? packed : content, packed != null ? dictionary.getId() : 0,
+                    content != null ? content.length : -1);
+            return;
+        }
+        out.writeByte(packed != null ? OP_PUT_PACKED : OP_PUT);
+        out.writeLong(note.getId());
+        out.writeLong(note.getTimestamp());
+        out.writeInt(colorIndexOf(note.getColorResId()));
+        out.writeInt(note.getSymbolIndex());
+        out.writeInt(note.getVersion());
+        writeString(out, note.getTitle());
+        if (packed != null) {
+            out.writeInt(8 + packed.length);
+            out.writeInt(dictionary.getId());
+            out.writeInt(content.length);
+            out.write(packed);
+        } else if (content != null) {
+            out.writeInt(content.length);
+            out.write(content);
+        } else {
+            out.writeInt(-1);
+        }
+        writeString(out, note.getCustomEmoji());
+    }
+
+    /**
+     * Write a sealed put record: the op, the length of the sealed head and
+     * the head, then the stored body sealed in chunks of
+     * {@link #BODY_CHUNK_SIZE}. The head holds the note's metadata, the stored
+     * length (-1 for no content), the dictionary the body is compressed with
+     * (0 for none) and its raw length.
+     */
+    private void writeSealedPut(DataOutputStream out, Note note, byte[] stored, int dictionaryId, int rawLength)
+            throws IOException {
+        ByteArrayOutputStream headBytes = new ByteArrayOutputStream(128);
+        DataOutputStream head = new DataOutputStream(headBytes);
+        head.writeLong(note.getId());
+        head.writeLong(note.getTimestamp());
+        head.writeInt(colorIndexOf(note.getColorResId()));
+        head.writeInt(note.getSymbolIndex());
+        head.writeInt(note.getVersion());
+        writeString(head, note.getTitle());
+        writeString(head, note.getCustomEmoji());
+        head.writeInt(stored != null ? stored.length : -1);
+        head.writeInt(dictionaryId);
+        head.writeInt(rawLength);
+        byte[] sealedHead = cipher.seal(HEAD_CONTEXT, OP_SEALED_PUT, headBytes.toByteArray(), 0, headBytes.size());
+
+        out.writeByte(OP_SEALED_PUT);
+        out.writeInt(sealedHead.length);
+        out.write(sealedHead);
+        if (stored != null) {
+            long bodyContext = readLong(sealedHead, sealedHead.length - NoteCipher.TAG_SIZE);
+            for (int done = 0, index = 0; done < stored.length; index++) {
+                int length = Math.min(BODY_CHUNK_SIZE, stored.length - done);
+                out.write(cipher.seal(bodyContext, index, stored, done, length));
+                done += length;
+            }
+        }
+    }
+
+    private void writeDelete(DataOutputStream out, long id) throws IOException {
+        if (cipher == null) {
+            out.writeByte(OP_DELETE);
+            out.writeLong(id);
+            return;
+        }
+        byte[] plain = new byte[8];
+        writeLong(plain, 0, id);
+        out.writeByte(OP_SEALED_DELETE);
+        out.write(cipher.seal(HEAD_CONTEXT, OP_SEALED_DELETE, plain, 0, plain.length));
+    }
+
+    // The opened head of a sealed put record, and where its body starts
+    private static final class SealedHead {
+        final Note note;
+        final int storedLength;
+        final int dictionaryId;
+        final int rawLength;
+        final long bodyContext;
+        final int bodyOffset;
+
+        SealedHead(Note note, int storedLength, int dictionaryId, int rawLength, long bodyContext, int bodyOffset) {
+            this.note = note;
+            this.storedLength = storedLength;
+            this.dictionaryId = dictionaryId;
+            this.rawLength = rawLength;
+            this.bodyContext = bodyContext;
+            this.bodyOffset = bodyOffset;
+        }
+    }
+
+    /**
+     * Open the head of the sealed put record whose payload runs from just
+     * after its op at {@code start} to {@code end} of {@code buffer}.
+     */
+    private SealedHead openHead(byte[] buffer, int start, int end) throws IOException {
+        int headLength = end - start >= 4 ? readInt(buffer, start) : -1;
+        if (headLength < NoteCipher.OVERHEAD || headLength > end - start - 4) {
+            throw new IOException("Bad sealed note record");
+        }
+        return openHeadAt(buffer, start + 4, headLength);
+    }
+
+    // The head sealed at offset of buffer; the body follows straight after
+    private SealedHead openHeadAt(byte[] buffer, int offset, int headLength) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+                cipher.open(HEAD_CONTEXT, OP_SEALED_PUT, buffer, offset, headLength)));
+        long id = in.readLong();
+        long timestamp = in.readLong();
+        int colorIndex = in.readInt();
+        int symbolIndex = in.readInt();
+        int version = in.readInt();
+        String title = readString(in);
+        String customEmoji = readString(in);
+        int storedLength = in.readInt();
+        int dictionaryId = in.readInt();
+        int rawLength = in.readInt();
+
+        Note note = new Note(id, title, null, timestamp, colorResIdAt(colorIndex));
+        note.setSymbolIndex(symbolIndex);
+        note.setCustomEmoji(customEmoji);
+        note.setVersion(version);
+        int end = offset + headLength;
+        return new SealedHead(note, storedLength, dictionaryId, rawLength,
+                readLong(buffer, end - NoteCipher.TAG_SIZE), end);
+    }
+
+    // The body of a sealed put record read whole with readRecord, or null if it has none
+    private String openBody(byte[] record, SealedHead head, long offset) throws IOException {
+        if (head.storedLength < 0) {
+            return null;
+        }
+        if (head.bodyOffset + NoteCipher.sealedLength(head.storedLength, BODY_CHUNK_SIZE) > record.length) {
+            throw new IOException("Truncated note record at " + offset);
+        }
+        byte[] stored = new byte[head.storedLength];
+        int position = head.bodyOffset;
+        for (int done = 0, index = 0; done < stored.length; index++) {
+            int length = Math.min(BODY_CHUNK_SIZE, stored.length - done);
+            cipher.open(head.bodyContext, index, record, position, length + NoteCipher.OVERHEAD, stored, done);
+            position += length + NoteCipher.OVERHEAD;
+            done += length;
+        }
+        if (head.dictionaryId != 0) {
+            stored = dictionaryFor(head.dictionaryId).decompress(stored, 0, stored.length, head.rawLength);
+        }
+        return new String(stored, StandardCharsets.UTF_8);
+    }
+
+    private long openDelete(byte[] buffer, int start, int end) throws IOException {
+        byte[] plain = cipher.open(HEAD_CONTEXT, OP_SEALED_DELETE, buffer, start, end - start);
+        if (plain.length != 8) {
+            throw new IOException("Bad sealed delete record");
+        }
+        return readLong(plain, 0);
+    }
+
+    private Note readNote(DataInputStream in, byte op, boolean withContent) throws IOException {
+        long id = in.readLong();
+        long timestamp = in.readLong();
+        int colorIndex = in.readInt();
+        int symbolIndex = in.readInt();
+        int version = in.readInt();
+        String title = readString(in);
+        String content = null;
+        if (withContent && op == OP_PUT_PACKED) {
+            int length = in.readInt();
+            if (length < 8) {
+                throw new IOException("Bad compressed note length " + length);
+            }
+            NoteDictionary used = dictionaryFor(in.readInt());
+            int rawLength = in.readInt();
+            byte[] packed = new byte[length - 8];
+            in.readFully(packed);
+            content = new String(used.decompress(packed, 0, packed.length, rawLength), StandardCharsets.UTF_8);
+        } else if (withContent) {
+            content = readString(in);
+        } else {
+            int length = in.readInt();
+            in.skipBytes(Math.max(length, 0));
+        }
+        String customEmoji = readString(in);
+
+        Note note = new Note(id, title, content, timestamp, colorResIdAt(colorIndex));
+        note.setSymbolIndex(symbolIndex);
+        note.setCustomEmoji(customEmoji);
+        note.setVersion(version);
+        return note;
+    }
+
+    private static Note withoutContent(Note note) {
+        return copyOf(note, null);
+    }
+
+    private static Note copyOf(Note note, String content) {
+        Note copy = new Note(note.getId(), note.getTitle(), content, note.getTimestamp(), note.getColorResId());
+        copy.setSymbolIndex(note.getSymbolIndex());
+        copy.setCustomEmoji(note.getCustomEmoji());
+        copy.setVersion(note.getVersion());
+        return copy;
+    }
+
+    private int colorIndexOf(int colorResId) {
+        for (int i = 0; i < colorResIds.length; i++) {
+            if (colorResIds[i] == colorResId) {
+                return i;
+            }
+        }
+        return 0;
+    }
+
+    private int colorResIdAt(int colorIndex) {
+        if (colorIndex < 0 || colorIndex >= colorResIds.length) {
+            return colorResIds[0];
+        }
+        return colorResIds[colorIndex];
+    }
+
+    // Strings are stored as a byte length (-1 for null) followed by UTF-8, so bodies aren't capped at 64K like writeUTF
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeInt(byte[] target, int offset, int value) {
+        target[offset] = (byte) (value >>> 24);
+        target[offset + 1] = (byte) (value >>> 16);
+        target[offset + 2] = (byte) (value >>> 8);
+        target[offset + 3] = (byte) value;
+    }
+
+    private static int readInt(byte[] source, int offset) {
+        return ((source[offset] & 0xFF) << 24)
+                | ((source[offset + 1] & 0xFF) << 16)
+                | ((source[offset + 2] & 0xFF) << 8)
+                | (source[offset + 3] & 0xFF);
+    }
+
+    private static void writeLong(byte[] target, int offset, long value) {
+        writeInt(target, offset, (int) (value >>> 32));
+        writeInt(target, offset + 4, (int) value);
+    }
+
+    private static long readLong(byte[] source, int offset) {
+        return ((long) readInt(source, offset) << 32) | (readInt(source, offset + 4) & 0xFFFFFFFFL);
+    }
+}
@@ -0,0 +1,1062 @@
+package com.hypertron.hypernotes;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Two-way sync of the notes with a server, exchanging only what changed.
+ *
+ * Locally, every save and delete marks the note as pending until a sync
+ * pushes it. The server numbers every change it accepts, and the highest
+ * number this device has seen is its cursor, so a sync pulls only the
+ * changes made elsewhere since. Each exchange is one request carrying a
+ * batch of pushes and the cursor, answered by a batch of changes from other
+ * devices and the new cursor, both deflated.
+ *
+ * Edits to the same note made on two devices are merged: bodies travel with
+ * their {@link NoteText}, and the merged body keeps both sides' edits.
+ * Everything else about the note, and a deletion against an edit, goes to
+ * the last writer. The later modification or deletion time wins, with ties
+ * broken by device id. The server and the devices settle conflicts the
+ * same way.
+ * Pushing or pulling a change twice does nothing the second time, so after
+ * an interruption the next sync simply carries on from the last exchange
+ * that completed; pending marks and the cursor are only dropped or moved
+ * once the exchange that covers them has been answered and applied.
+ *
+ * Pending marks and the cursor are kept in a small directory: a state file
+ * rewritten after each sync, and a log of what changed since, appended with
+ * one fsync by {@link #persist()} and after each exchange.
+ *
+ * A pulled change the notes turn down, because the note is being edited
+ * here, is deferred: kept in a file of its own before the cursor passes it,
+ * and applied again by each exchange until the notes take it or a newer
+ * change to the note comes in. A note with a deferred change isn't pushed
+ * meanwhile, so its edits are merged with that change rather than racing it.
+ *
+ * A note's text is only worked out when it is pushed or merged, by diffing
+ * its body against the revision the text last described. The note history
+ * keeps that revision. Until then a note needs no text of its own. A
+ * version nobody has edited since it arrived stands for one run typed by an
+ * agent derived from the note and its modification time, so every device
+ * holding it agrees on its text without storing any. The texts that are
+ * stored sit in a subdirectory, one file per note.
+ */
+public class NoteSync {
+
+    private static final int MAGIC = 0x484E5331; // "HNS1"
+    private static final int FORMAT_VERSION = 1;
+
+    private static final String STATE_FILE = "state";
+    private static final String DEFERRED_FILE = "deferred";
+    private static final String TEXT_DIR = "text";
+    private static final String LOG_FILE_PREFIX = "log.";
+    // Pending marks, in the state and the log: note id (8) + mark (8), or
+    // CLEARED once it is no longer pending. In the log only, a record for id
+    // CURSOR_RECORD moves the cursor. A mark is the deletion time, or for an
+    // edit, the negated modification time of the version it was made to,
+    // less one; 0 if there was none. See editMark().
+    private static final int LOG_RECORD_SIZE = 16;
+    private static final long CLEARED = -1;
+    private static final long CURSOR_RECORD = 0;
+
+    // Origin of changes merged on the server, which every device pulls
+    public static final long SERVER_ORIGIN = 0;
+
+    // Most notes, and roughly the most text, pushed in one exchange
+    static final int PUSH_BATCH = 128;
+    static final int PUSH_BATCH_BYTES = 256 * 1024;
+    // Most changes the server is asked for per exchange
+    static final int PULL_LIMIT = 256;
+    // Longest string or text taken off the wire; a length past it is corrupt or hostile, not a note
+    static final int MAX_FIELD_BYTES = 16 * 1024 * 1024;
+
+    /**
+     * Carries one request to the server and brings back its response.
+     */
+    public interface Transport {
+        byte[] exchange(byte[] request) throws IOException;
+    }
+
+    /**
+     * The notes being synced.
+     */
+    public interface Local {
+        /**
+         * The note with its content, or null if there's none.
+         */
+        Note load(long id) throws IOException;
+
+        /**
+         * When the note was last modified, or -1 if there's none.
+         */
+        long modifiedAt(long id);
+
+        /**
+         * The note's body as saved at {@code modified}, or null if that
+         * version isn't known.
+         */
+        String revision(long id, long modified) throws IOException;
+
+        /**
+         * Save and delete notes as the server says, without marking them
+         * pending. Notes edited since they were last loaded, or otherwise
+         * busy, may be left alone.
+         *
+         * @return ids of the notes left alone
+         */
+        long[] apply(List<Note> notes, long[] deleted) throws IOException;
+    }
+
+    public interface Progress {
+        /**
+         * Notes pushed and pulled so far.
+         */
+        void onProgress(int notes);
+    }
+
+    /**
+     * One note as it travels: its latest state, or that it was deleted.
+     */
+    public static final class Change {
+        public final long id;
+        // Modification or deletion time
+        public final long modified;
+        // Device that made the change
+        public final long origin;
+        public final boolean deleted;
+        public final String title;
+        public final String content;
+        public final int colorIndex;
+        public final int symbolIndex;
+        public final String customEmoji;
+        // The body's encoded NoteText, or null for one typed in one go; see textOf()
+        public final byte[] text;
+
+        public Change(long id, long modified, long origin, boolean deleted, String title, String content,
+                      int colorIndex, int symbolIndex, String customEmoji, byte[] text) {
+            this.id = id;
+            this.modified = modified;
+            this.origin = origin;
+            this.deleted = deleted;
+            this.title = title;
+            this.content = content;
+            this.colorIndex = colorIndex;
+            this.symbolIndex = symbolIndex;
+            this.customEmoji = customEmoji;
+            this.text = text;
+        }
+
+        public static Change deletion(long id, long deletedAt, long origin) {
+            return new Change(id, deletedAt, origin, true, null, null, 0, -1, null, null);
+        }
+
+        /**
+         * The same change, as made by {@code origin}.
+         */
+        public Change from(long origin) {
+            return new Change(id, modified, origin, deleted, title, content, colorIndex, symbolIndex, customEmoji,
+                    text);
+        }
+
+        /**
+         * Whether this change wins over one made at {@code modified} by {@code origin}.
+         */
+        public boolean supersedes(long modified, long origin) {
+            return this.modified != modified ? this.modified > modified : this.origin > origin;
+        }
+    }
+
+    public static final class Request {
+        public final long deviceId;
+        public final long cursor;
+        public final int pullLimit;
+        public final List<Change> changes;
+
+        public Request(long deviceId, long cursor, int pullLimit, List<Change> changes) {
+            this.deviceId = deviceId;
+            this.cursor = cursor;
+            this.pullLimit = pullLimit;
+            this.changes = changes;
+        }
+    }
+
+    public static final class Response {
+        public final long cursor;
+        // Whether the server has more changes past these
+        public final boolean more;
+        public final List<Change> changes;
+
+        public Response(long cursor, boolean more, List<Change> changes) {
+            this.cursor = cursor;
+            this.more = more;
+            this.changes = changes;
+        }
+    }
+
+    public static final class Result {
+        public int pushed;
+        public int pulled;
+        public int exchanges;
+        public long bytesSent;
+        public long bytesReceived;
+    }
+
+    private final File directory;
+    private final int[] colorResIds;
+    private final long deviceId;
+    private long cursor;
+    // Of the state file, and of the log of changes to it since
+    private long generation;
+    private volatile boolean fresh;
+    // Pending notes: deletion time, or 0 for an edit
+    private LongMap<Long> pending = new LongMap<>();
+    // Marks not yet in the log
+    private LongMap<Long> unwritten = new LongMap<>();
+    // Pulled changes the notes turned down, to apply again; only touched under syncLock
+    private LongMap<Change> deferred = new LongMap<>();
+
+    // Held while writing the state or the log
+    private final Object fileLock = new Object();
+    // Held for a whole sync, so two never interleave
+    private final Object syncLock = new Object();
+
+    private NoteSync(File directory, int[] colorResIds, long deviceId) {
+        this.directory = directory;
+        this.colorResIds = colorResIds;
+        this.deviceId = deviceId;
+    }
+
+    /**
+     * Open the sync state kept in {@code directory}, starting afresh with a
+     * new device id if there is none.
+     *
+     * @param colorResIds palette the notes' colorResId values are drawn from
+     */
+    public static NoteSync open(File directory, int[] colorResIds) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        File stateFile = new File(directory, STATE_FILE);
+        if (!stateFile.exists()) {
+            NoteSync sync = new NoteSync(directory, colorResIds, newDeviceId());
+            sync.fresh = true;
+            sync.writeState();
+            return sync;
+        }
+
+        NoteSync sync;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(stateFile)))) {
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+                throw new IOException("Not a sync state: " + stateFile);
+            }
+            sync = new NoteSync(directory, colorResIds, in.readLong());
+            sync.generation = in.readLong();
+            sync.cursor = in.readLong();
+            sync.fresh = in.readBoolean();
+            int count = in.readInt();
+            CRC32 crc = new CRC32();
+            byte[] record = new byte[LOG_RECORD_SIZE];
+            for (int i = 0; i < count; i++) {
+                in.readFully(record);
+                crc.update(record, 0, record.length);
+                sync.pending.put(readLong(record, 0), readLong(record, 8));
+            }
+            if ((int) crc.getValue() != in.readInt()) {
+                throw new IOException("Corrupt sync state: " + stateFile);
+            }
+        } catch (EOFException e) {
+            throw new IOException("Truncated sync state: " + stateFile, e);
+        }
+
+        File deferredFile = new File(directory, DEFERRED_FILE);
+        if (deferredFile.exists()) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(deferredFile)))) {
+                if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+                    throw new IOException("Not a sync state: " + deferredFile);
+                }
+                for (Change change : readChanges(in)) {
+                    sync.deferred.put(change.id, change);
+                }
+            } catch (EOFException e) {
+                throw new IOException("Truncated sync state: " + deferredFile, e);
+            }
+        }
+
+        // Changes since; a torn record at the end is from a crash mid-append
+        File log = sync.logFile();
+        if (log.exists()) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(log)))) {
+                long records = log.length() / LOG_RECORD_SIZE;
+                for (long i = 0; i < records; i++) {
+                    long id = in.readLong();
+                    long value = in.readLong();
+                    if (id == CURSOR_RECORD) {
+                        sync.cursor = value;
+                    } else if (value == CLEARED) {
+                        sync.pending.remove(id);
+                    } else {
+                        sync.pending.put(id, value);
+                    }
+                }
+            }
+        }
+        return sync;
+    }
+
+    private static long newDeviceId() {
+        long id;
+        do {
+            id = new SecureRandom().nextLong();
+        } while (id == 0);
+        return id;
+    }
+
+    /**
+     * Whether the notes already here have yet to be marked for pushing, as
+     * on a device that has never synced; see {@link #seed(long[])}.
+     */
+    public boolean isFresh() {
+        return fresh;
+    }
+
+    public long getDeviceId() {
+        return deviceId;
+    }
+
+    public synchronized long getCursor() {
+        return cursor;
+    }
+
+    public synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    public synchronized boolean isPending(long id) {
+        return pending.containsKey(id);
+    }
+
+    /**
+     * Mark every note already here for pushing, all durably at once.
+     */
+    public void seed(long[] ids) throws IOException {
+        synchronized (this) {
+            for (long id : ids) {
+                if (!pending.containsKey(id)) {
+                    pending.put(id, 0L);
+                }
+            }
+            fresh = false;
+        }
+        writeState();
+    }
+
+    /**
+     * Note that a note was saved here and needs pushing. Takes effect at once
+     * but is only durable after {@link #persist()}.
+     *
+     * @param base modification time of the version the edit was made to, or 0 for a new note
+     */
+    public synchronized void markChanged(long id, long base) {
+        Long existing = pending.get(id);
+        if (existing != null && existing <= 0) {
+            // Already pending, from an earlier version
+            return;
+        }
+        long mark = editMark(base);
+        pending.put(id, mark);
+        unwritten.put(id, mark);
+    }
+
+    private static long editMark(long base) {
+        return base > 0 ? -1 - base : 0;
+    }
+
+    private static long baseOf(long mark) {
+        return mark < 0 ? -1 - mark : 0;
+    }
+
+    /**
+     * Note that a note was deleted here at {@code deletedAt} and needs pushing.
+     */
+    public synchronized void markDeleted(long id, long deletedAt) {
+        pending.put(id, deletedAt);
+        unwritten.put(id, deletedAt);
+    }
+
+    /**
+     * Make the marks so far durable, with one append and one fsync if there
+     * are any new ones.
+     */
+    public void persist() throws IOException {
+        commit(null, 0);
+    }
+
+    /**
+     * Push every pending note and pull every change made elsewhere, an
+     * exchange at a time. If this throws, everything up to the last completed
+     * exchange is kept, and the next sync picks up from there.
+     */
+    public Result sync(Transport transport, Local local, Progress progress) throws IOException {
+        synchronized (syncLock) {
+            persist();
+            Result result = new Result();
+            long[] queue = pendingIds();
+            int next = 0;
+            boolean more = true;
+            while (more) {
+                // Marks made during the sync go out with it
+                if (next == queue.length) {
+                    queue = pendingIds();
+                    next = 0;
+                }
+
+                // Notes this exchange settles, with their marks
+                LongMap<Long> batch = new LongMap<>();
+                List<Change> pushes = new ArrayList<>();
+                Response response;
+                try {
+                    long batchBytes = 0;
+                    while (next < queue.length && pushes.size() < PUSH_BATCH && batchBytes < PUSH_BATCH_BYTES) {
+                        long id = queue[next++];
+                        if (deferred.containsKey(id)) {
+                            // Stays pending, to be merged with the deferred change once the notes take it
+                            continue;
+                        }
+                        Long mark;
+                        synchronized (this) {
+                            mark = pending.remove(id);
+                        }
+                        if (mark == null) {
+                            // Pushed already, or taken over by a pulled change
+                            continue;
+                        }
+                        batch.put(id, mark);
+                        if (mark > 0) {
+                            pushes.add(Change.deletion(id, mark, deviceId));
+                            textFile(id).delete();
+                            continue;
+                        }
+                        Change change = changeOf(local.load(id), mark, local);
+                        if (change != null) {
+                            pushes.add(change);
+                            batchBytes += change.content.length() + change.title.length();
+                        }
+                    }
+
+                    byte[] request = encodeRequest(new Request(deviceId, getCursor(), PULL_LIMIT, pushes));
+                    byte[] reply = transport.exchange(request);
+                    result.bytesSent += request.length;
+                    result.bytesReceived += reply.length;
+                    response = decodeResponse(reply);
+                    apply(response.changes, local, batch);
+                } catch (IOException | RuntimeException e) {
+                    restore(batch);
+                    throw e;
+                }
+
+                commit(batch, response.cursor);
+                result.exchanges++;
+                result.pushed += pushes.size();
+                result.pulled += response.changes.size();
+                more = response.more || next < queue.length || hasPushable();
+                if (progress != null) {
+                    progress.onProgress(result.pushed + result.pulled);
+                }
+            }
+            // Fold the log into the state, so it never grows past one sync's worth
+            writeState();
+            return result;
+        }
+    }
+
+    private synchronized long[] pendingIds() {
+        return pending.keys();
+    }
+
+    // Whether any pending note can go out now, not held back by a deferred change
+    private synchronized boolean hasPushable() {
+        for (long id : pending.keys()) {
+            if (!deferred.containsKey(id)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Marks of an exchange that failed go back, unless the note was marked again meanwhile
+    private synchronized void restore(LongMap<Long> batch) {
+        for (long id : batch.keys()) {
+            if (!pending.containsKey(id)) {
+                pending.put(id, batch.get(id));
+            }
+        }
+    }
+
+    /**
+     * Apply changes pulled from the server. A note pending here whose body
+     * was edited on both sides is merged, saved, and left pending so the
+     * merge is pushed. Otherwise the later change wins: the local one stays
+     * pending, or the server's is saved and the note joins {@code settled}.
+     * Deferred changes are tried again first, and whatever the notes turn
+     * down is deferred, durably, before this returns.
+     */
+    private void apply(List<Change> pulled, Local local, LongMap<Long> settled) throws IOException {
+        List<Change> changes = pulled;
+        if (!deferred.isEmpty()) {
+            // A newer change to the same note takes the place of the deferred one
+            for (Change change : pulled) {
+                deferred.remove(change.id);
+            }
+            changes = new ArrayList<>(deferred.values());
+            changes.addAll(pulled);
+        }
+        LongMap<Change> turnedDown = new LongMap<>();
+        List<Note> saved = new ArrayList<>();
+        List<Long> deleted = new ArrayList<>();
+        // Changes now on record here, whose texts are kept once they're saved
+        List<Change> applied = new ArrayList<>();
+        // The pulled change behind each note saved or deleted, and the marks it settles
+        LongMap<Change> sources = new LongMap<>();
+        LongMap<Long> settling = new LongMap<>();
+        for (Change change : changes) {
+            if (change.origin == deviceId) {
+                continue;
+            }
+            sources.put(change.id, change);
+            Long mark;
+            synchronized (this) {
+                mark = pending.get(change.id);
+            }
+            if (mark != null) {
+                Change mine = mark > 0
+                        ? Change.deletion(change.id, mark, deviceId)
+                        : changeOf(local.load(change.id), mark, local);
+                Change winner = mine != null ? merge(change, mine, deviceId) : change;
+                if (winner == mine) {
+                    continue;
+                }
+                if (winner != change) {
+                    saved.add(noteOf(winner));
+                    applied.add(winner);
+                    continue;
+                }
+                synchronized (this) {
+                    pending.remove(change.id);
+                }
+                settled.put(change.id, mark);
+                settling.put(change.id, mark);
+            }
+            if (change.deleted) {
+                if (local.modifiedAt(change.id) >= 0) {
+                    deleted.add(change.id);
+                }
+            } else {
+                saved.add(noteOf(change));
+            }
+            applied.add(change);
+        }
+        if (!saved.isEmpty() || !deleted.isEmpty()) {
+            long[] deletedIds = new long[deleted.size()];
+            for (int i = 0; i < deletedIds.length; i++) {
+                deletedIds[i] = deleted.get(i);
+            }
+            for (long id : local.apply(saved, deletedIds)) {
+                turnedDown.put(id, sources.get(id));
+                Long mark = settling.get(id);
+                if (mark != null) {
+                    // Not settled after all; the local change goes out once it is merged with this one
+                    settled.remove(id);
+                    synchronized (this) {
+                        if (!pending.containsKey(id)) {
+                            pending.put(id, mark);
+                        }
+                    }
+                }
+            }
+        }
+        if (!deferred.isEmpty() || !turnedDown.isEmpty()) {
+            deferred = turnedDown;
+            writeDeferred();
+        }
+        for (Change change : applied) {
+            if (turnedDown.containsKey(change.id)) {
+                continue;
+            }
+            if (change.deleted || change.text == null) {
+                textFile(change.id).delete();
+            } else {
+                writeText(change.id, change.modified, change.content, change.text);
+            }
+        }
+    }
+
+    /**
+     * Two changes to the same note settled into one, the same way on the
+     * server as on a device. If both edited the body, the result holds both
+     * bodies merged and everything else from the later change. That is the
+     * later change itself if its body already has all the other's edits, or
+     * else a new change by {@code origin}, later than either. Against a
+     * deletion the later change simply wins.
+     *
+     * @param origin device doing the merge, or {@link #SERVER_ORIGIN}
+     * @throws IOException if either carries a text that doesn't fit its body
+     */
+    public static Change merge(Change first, Change second, long origin) throws IOException {
+        Change later = second.supersedes(first.modified, first.origin) ? second : first;
+        if (first.deleted || second.deleted) {
+            return later;
+        }
+        NoteText firstText = textOf(first);
+        NoteText secondText = textOf(second);
+        NoteText.Merge body = NoteText.merge(firstText, first.content, secondText, second.content);
+        byte[] text = body.text.encode();
+        NoteText laterText = later == first ? firstText : secondText;
+        if (later.content.equals(body.content) && Arrays.equals(text, laterText.encode())) {
+            return later;
+        }
+        return new Change(later.id, Math.max(first.modified, second.modified) + 1, origin, false, later.title,
+                body.content, later.colorIndex, later.symbolIndex, later.customEmoji, text);
+    }
+
+    /**
+     * The text of a change's body: the one it carries, or else that of the
+     * body typed in one go by an agent standing for this version of the note.
+     */
+    public static NoteText textOf(Change change) throws IOException {
+        NoteText text = change.text != null
+                ? NoteText.decode(change.text)
+                : NoteText.base(baseAgent(change.id, change.modified), change.content.length());
+        if (text.length() != change.content.length()) {
+            throw new IOException("Text of note " + change.id + " doesn't fit its body");
+        }
+        return text;
+    }
+
+    // Agent standing for a version nobody has edited since; the same on every device holding it
+    private static long baseAgent(long id, long modified) {
+        long agent = id * 0x9E3779B97F4A7C15L ^ modified;
+        agent ^= agent >>> 32;
+        agent *= 0xD6E8FEB86659FD93L;
+        agent ^= agent >>> 32;
+        return agent != 0 ? agent : 1;
+    }
+
+    /**
+     * The change pushing a note, with its text brought up to date with its body.
+     */
+    private Change changeOf(Note note, long mark, Local local) throws IOException {
+        if (note == null) {
+            return null;
+        }
+        long id = note.getId();
+        String content = note.getContent() != null ? note.getContent() : "";
+        byte[] text = null;
+        NoteText current = currentText(note, content, mark, local);
+        if (current != null) {
+            text = current.encode();
+            writeText(id, note.getTimestamp(), content, text);
+        } else {
+            textFile(id).delete();
+        }
+        return new Change(id, note.getTimestamp(), deviceId, false, note.getTitle(), content,
+                colorIndexOf(note.getColorResId()), note.getSymbolIndex(), note.getCustomEmoji(), text);
+    }
+
+    /**
+     * The text of a note as it is now: the stored one, with the edits made
+     * since the version it was stored for. Null if the note's own version is
+     * to stand for its text, as when it is new here or its history is gone.
+     */
+    private NoteText currentText(Note note, String content, long mark, Local local) throws IOException {
+        long id = note.getId();
+        NoteText text = null;
+        long base = baseOf(mark);
+        int baseHash = 0;
+        File file = textFile(id);
+        if (file.exists()) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                base = in.readLong();
+                baseHash = in.readInt();
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                text = NoteText.decode(bytes);
+            } catch (IOException e) {
+                // Torn or corrupt; start over from the version itself
+                return null;
+            }
+            if (base == note.getTimestamp() && baseHash == content.hashCode()) {
+                return text;
+            }
+        }
+        if (base <= 0) {
+            return null;
+        }
+        String before = local.revision(id, base);
+        if (before == null) {
+            return null;
+        }
+        if (text == null) {
+            text = NoteText.base(baseAgent(id, base), before.length());
+        } else if (baseHash != before.hashCode() || text.length() != before.length()) {
+            // That revision isn't the body the text was stored for
+            return null;
+        }
+        text.update(before, content, deviceId);
+        return text;
+    }
+
+    private File textFile(long id) {
+        return new File(new File(directory, TEXT_DIR), Long.toString(id));
+    }
+
+    // Stored as the modification time and hash of the body the text is for, then the encoded text
+    private void writeText(long id, long modified, String content, byte[] text) throws IOException {
+        File file = textFile(id);
+        File dir = file.getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        AtomicFiles.replace(file, out -> {
+            out.writeLong(modified);
+            out.writeInt(content.hashCode());
+            out.writeInt(text.length);
+            out.write(text);
+        });
+    }
+
+    /**
+     * Durably log the marks made so far, then, after an exchange, that the
+     * notes it settled are no longer pending and where the cursor now is.
+     * One append and one fsync, if there's anything to write.
+     *
+     * @param settled notes the exchange pushed or took over, or null for marks only
+     */
+    private void commit(LongMap<Long> settled, long newCursor) throws IOException {
+        synchronized (fileLock) {
+            LongMap<Long> marks;
+            long[] cleared = new long[0];
+            int clearedCount = 0;
+            synchronized (this) {
+                marks = unwritten;
+                unwritten = new LongMap<>();
+                if (settled != null) {
+                    cursor = newCursor;
+                    // Notes marked again meanwhile stay pending
+                    cleared = settled.keys();
+                    for (long id : cleared) {
+                        if (!pending.containsKey(id)) {
+                            cleared[clearedCount++] = id;
+                        }
+                    }
+                }
+            }
+            if (marks.isEmpty() && settled == null) {
+                return;
+            }
+
+            long[] ids = marks.keys();
+            int count = ids.length + clearedCount + (settled != null ? 1 : 0);
+            byte[] records = new byte[count * LOG_RECORD_SIZE];
+            int offset = 0;
+            for (long id : ids) {
+                writeLong(records, offset, id);
+                writeLong(records, offset + 8, marks.get(id));
+                offset += LOG_RECORD_SIZE;
+            }
+            for (int i = 0; i < clearedCount; i++) {
+                writeLong(records, offset, cleared[i]);
+                writeLong(records, offset + 8, CLEARED);
+                offset += LOG_RECORD_SIZE;
+            }
+            if (settled != null) {
+                writeLong(records, offset, CURSOR_RECORD);
+                writeLong(records, offset + 8, newCursor);
+            }
+
+            try (RandomAccessFile file = new RandomAccessFile(logFile(), "rw")) {
+                // Write over a torn record left by a crash, so records stay aligned
+                file.seek(file.length() - file.length() % LOG_RECORD_SIZE);
+                file.write(records);
+                file.setLength(file.getFilePointer());
+                file.getFD().sync();
+            } catch (IOException e) {
+                // Try the marks again with the next call; an exchange is simply redone
+                synchronized (this) {
+                    for (long id : ids) {
+                        if (!unwritten.containsKey(id)) {
+                            unwritten.put(id, marks.get(id));
+                        }
+                    }
+                }
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Durably replace the file of deferred changes, or drop it if there are
+     * none. Done before the cursor moves past them.
+     */
+    private void writeDeferred() throws IOException {
+        File file = new File(directory, DEFERRED_FILE);
+        if (deferred.isEmpty()) {
+            if (file.exists() && !file.delete()) {
+                throw new IOException("Cannot delete " + file);
+            }
+            return;
+        }
+        AtomicFiles.replace(file, out -> {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            writeChanges(out, deferred.values());
+        });
+    }
+
+    private File logFile() {
+        return new File(directory, LOG_FILE_PREFIX + generation);
+    }
+
+    /**
+     * Durably replace the state file with everything as it is now, under the
+     * next generation, and drop the log of the one before. A crash before
+     * the rename leaves the old state and its log, which still add up.
+     */
+    private void writeState() throws IOException {
+        synchronized (fileLock) {
+            long stateCursor;
+            boolean stateFresh;
+            long[] ids;
+            long[] values;
+            synchronized (this) {
+                stateCursor = cursor;
+                stateFresh = fresh;
+                ids = pending.keys();
+                values = new long[ids.length];
+                for (int i = 0; i < ids.length; i++) {
+                    values[i] = pending.get(ids[i]);
+                }
+                // All in this state now
+                unwritten = new LongMap<>();
+            }
+
+            CRC32 crc = new CRC32();
+            byte[] record = new byte[LOG_RECORD_SIZE];
+            AtomicFiles.replace(new File(directory, STATE_FILE), out -> {
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT_VERSION);
+                out.writeLong(deviceId);
+                out.writeLong(generation + 1);
+                out.writeLong(stateCursor);
+                out.writeBoolean(stateFresh);
+                out.writeInt(ids.length);
+                for (int i = 0; i < ids.length; i++) {
+                    writeLong(record, 0, ids[i]);
+                    writeLong(record, 8, values[i]);
+                    crc.update(record, 0, record.length);
+                    out.write(record);
+                }
+                out.writeInt((int) crc.getValue());
+            });
+            File oldLog = logFile();
+            generation++;
+            oldLog.delete();
+        }
+    }
+
+    private Note noteOf(Change change) {
+        int colorResId = change.colorIndex >= 0 && change.colorIndex < colorResIds.length
+                ? colorResIds[change.colorIndex] : colorResIds[0];
+        Note note = new Note(change.id, change.title, change.content, change.modified, colorResId);
+        note.setSymbolIndex(change.symbolIndex);
+        note.setCustomEmoji(change.customEmoji);
+        return note;
+    }
+
+    private int colorIndexOf(int colorResId) {
+        for (int i = 0; i < colorResIds.length; i++) {
+            if (colorResIds[i] == colorResId) {
+                return i;
+            }
+        }
+        return 0;
+    }
+
+    // Wire format, shared with servers: a deflated stream of
+    // request:  magic, version, device id, cursor, pull limit, change count, changes
+    // response: magic, version, cursor, more, change count, changes
+    // change:   id, modified, origin, deleted, then unless deleted: title,
+    //           color index, symbol index, custom emoji, content, text
+    //           length (-1 for none) and encoded NoteText
+
+    public static byte[] encodeRequest(Request request) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(bytes))) {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeLong(request.deviceId);
+            out.writeLong(request.cursor);
+            out.writeInt(request.pullLimit);
+            writeChanges(out, request.changes);
+        }
+        return bytes.toByteArray();
+    }
+
+    public static Request decodeRequest(byte[] bytes) throws IOException {
+        try (DataInputStream in = openMessage(bytes)) {
+            long deviceId = in.readLong();
+            long cursor = in.readLong();
+            int pullLimit = in.readInt();
+            return new Request(deviceId, cursor, pullLimit, readChanges(in));
+        } catch (EOFException e) {
+            throw new IOException("Truncated sync request", e);
+        }
+    }
+
+    public static byte[] encodeResponse(Response response) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(bytes))) {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeLong(response.cursor);
+            out.writeBoolean(response.more);
+            writeChanges(out, response.changes);
+        }
+        return bytes.toByteArray();
+    }
+
+    public static Response decodeResponse(byte[] bytes) throws IOException {
+        try (DataInputStream in = openMessage(bytes)) {
+            long cursor = in.readLong();
+            boolean more = in.readBoolean();
+            return new Response(cursor, more, readChanges(in));
+        } catch (EOFException e) {
+            throw new IOException("Truncated sync response", e);
+        }
+    }
+
+    private static DataInputStream openMessage(byte[] bytes) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new InflaterInputStream(new ByteArrayInputStream(bytes))));
+        if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+            in.close();
+            throw new IOException("Not a sync message");
+        }
+        return in;
+    }
+
+    private static void writeChanges(DataOutputStream out, List<Change> changes) throws IOException {
+        out.writeInt(changes.size());
+        for (Change change : changes) {
+            out.writeLong(change.id);
+            out.writeLong(change.modified);
+            out.writeLong(change.origin);
+            out.writeBoolean(change.deleted);
+            if (!change.deleted) {
+                writeString(out, change.title);
+                out.writeInt(change.colorIndex);
+                out.writeInt(change.symbolIndex);
+                writeString(out, change.customEmoji);
+                writeString(out, change.content);
+                if (change.text == null) {
+                    out.writeInt(-1);
+                } else {
+                    out.writeInt(change.text.length);
+                    out.write(change.text);
+                }
+            }
+        }
+    }
+
+    private static List<Change> readChanges(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        if (count < 0) {
+            throw new IOException("Bad change count " + count);
+        }
+        List<Change> changes = new ArrayList<>(Math.min(count, PULL_LIMIT));
+        for (int i = 0; i < count; i++) {
+            long id = in.readLong();
+            long modified = in.readLong();
+            long origin = in.readLong();
+            if (in.readBoolean()) {
+                changes.add(Change.deletion(id, modified, origin));
+                continue;
+            }
+            String title = readString(in);
+            int colorIndex = in.readInt();
+            int symbolIndex = in.readInt();
+            String customEmoji = readString(in);
+            String content = readString(in);
+            // Only a deletion goes without them
+            if (title == null || content == null) {
+                throw new IOException("Change to note " + id + " without a title or body");
+            }
+            int textLength = in.readInt();
+            byte[] text = null;
+            if (textLength > MAX_FIELD_BYTES) {
+                throw new IOException("Text of note " + id + " too long: " + textLength);
+            }
+            if (textLength >= 0) {
+                text = new byte[textLength];
+                in.readFully(text);
+            }
+            changes.add(new Change(id, modified, origin, false, title, content, colorIndex, symbolIndex,
+                    customEmoji, text));
+        }
+        return changes;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > MAX_FIELD_BYTES) {
+            throw new IOException("String too long: " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static long readLong(byte[] bytes, int offset) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = value << 8 | (bytes[offset + i] & 0xFF);
+        }
+        return value;
+    }
+
+    private static void writeLong(byte[] bytes, int offset, long value) {
+        for (int i = 7; i >= 0; i--) {
+            bytes[offset + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+}
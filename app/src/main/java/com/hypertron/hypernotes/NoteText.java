@@ -0,0 +1,745 @@
+package com.hypertron.hypernotes;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Sequence CRDT for a note's body. Two copies edited apart can be merged
+ * with everyone's edits kept, and the merge comes out the same on every
+ * device and on the server.
+ *
+ * Every character ever inserted has an id: the agent (device) that typed it
+ * and a Lamport timestamp higher than that of anything the agent had seen.
+ * Each character also remembers the character it was typed after, its
+ * origin. A merge puts each character right after its origin, ahead of any
+ * siblings with lower ids (RGA). Deleted characters stay behind as
+ * tombstones, so edits made around them elsewhere still land in the right
+ * place.
+ *
+ * Only this metadata is kept, not the characters: the visible characters,
+ * in order, are the note's content. Characters typed in one go have
+ * consecutive timestamps, each with the one before as its origin, so they
+ * share a run. A note written straight through is one run however long it
+ * is, and a deleted stretch is a single run too. The runs are a linked list
+ * in document order, indexed by agent and timestamp for merging. Not
+ * thread-safe.
+ */
+public final class NoteText {
+
+    private static final int FORMAT_VERSION = 1;
+
+    // Most differences looked for on either side of a split before the
+    // stretch being compared is simply replaced whole
+    private static final int MAX_DIFF = 1024;
+
+    private static final class Run {
+        final long agent;
+        // Timestamp of the first character; the rest follow on
+        final long lamport;
+        int length;
+        // Id of the character the first was typed after, agent 0 for the start
+        final long originAgent;
+        final long originLamport;
+        boolean deleted;
+        Run prev;
+        Run next;
+        // Only while merging: the characters, unless deleted
+        String text;
+
+        Run(long agent, long lamport, int length, long originAgent, long originLamport) {
+            this.agent = agent;
+            this.lamport = lamport;
+            this.length = length;
+            this.originAgent = originAgent;
+            this.originLamport = originLamport;
+        }
+
+        long end() {
+            return lamport + length;
+        }
+
+        // Whether each character's origin is simply the one before it in this run's agent
+        boolean continues() {
+            return originAgent == agent && originLamport == lamport - 1;
+        }
+    }
+
+    /**
+     * The result of {@link #merge}: the merged text and the content it describes.
+     */
+    public static final class Merge {
+        public final NoteText text;
+        public final String content;
+
+        Merge(NoteText text, String content) {
+            this.text = text;
+            this.content = content;
+        }
+    }
+
+    // Before the first run
+    private final Run head = new Run(0, 0, 0, 0, 0);
+    private Run tail = head;
+    // Runs by agent, then by the timestamp of their first character
+    private final LongMap<TreeMap<Long, Run>> index = new LongMap<>();
+    // Highest timestamp of any character
+    private long clock;
+    // Visible characters
+    private int length;
+    private int runCount;
+
+    private NoteText() {
+    }
+
+    /**
+     * Text of {@code length} characters typed in one go by {@code agent}, as
+     * held by a device that knows nothing of how they came to be.
+     */
+    public static NoteText base(long agent, int length) {
+        NoteText text = new NoteText();
+        if (length > 0) {
+            text.linkAfter(text.head, new Run(agent, 1, length, 0, 0));
+        }
+        return text;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    public int runCount() {
+        return runCount;
+    }
+
+    /**
+     * Record the edits that turn {@code before}, the content this text now
+     * describes, into {@code after}, as made by {@code agent}.
+     */
+    public void update(String before, String after, long agent) {
+        if (before.length() != length) {
+            throw new IllegalArgumentException("Text has " + length + " characters, not " + before.length());
+        }
+        List<int[]> hunks = diff(before, after);
+        // From the end, so the positions of those still to come stay put
+        for (int i = hunks.size() - 1; i >= 0; i--) {
+            int[] hunk = hunks.get(i);
+            if (hunk[1] > hunk[0]) {
+                delete(hunk[0], hunk[1] - hunk[0]);
+            }
+            if (hunk[3] > hunk[2]) {
+                insert(hunk[0], hunk[3] - hunk[2], agent);
+            }
+        }
+        coalesce();
+    }
+
+    /**
+     * Insert {@code count} characters typed by {@code agent} at visible {@code position}.
+     */
+    public void insert(int position, int count, long agent) {
+        if (position < 0 || position > length || count <= 0) {
+            throw new IndexOutOfBoundsException("Insert of " + count + " at " + position + " of " + length);
+        }
+        Run left = boundaryBefore(position);
+        long lamport = clock + 1;
+        if (left != head && left.agent == agent && !left.deleted && left.end() == lamport) {
+            // Typing on from the end of the latest run
+            left.length += count;
+            length += count;
+            clock += count;
+            return;
+        }
+        Run run = left == head
+                ? new Run(agent, lamport, count, 0, 0)
+                : new Run(agent, lamport, count, left.agent, left.end() - 1);
+        linkAfter(left, run);
+    }
+
+    /**
+     * Delete {@code count} visible characters from {@code position}.
+     */
+    public void delete(int position, int count) {
+        if (position < 0 || count < 0 || position + count > length) {
+            throw new IndexOutOfBoundsException("Delete of " + count + " at " + position + " of " + length);
+        }
+        Run run = boundaryBefore(position).next;
+        int remaining = count;
+        while (remaining > 0) {
+            if (!run.deleted) {
+                if (run.length > remaining) {
+                    split(run, remaining);
+                }
+                run.deleted = true;
+                length -= run.length;
+                remaining -= run.length;
+            }
+            run = run.next;
+        }
+    }
+
+    /**
+     * Merge two texts of the same note, each with the content it describes.
+     * The result holds every character either has, deleted if either
+     * deleted it, in the same order whichever way round they're passed.
+     */
+    public static Merge merge(NoteText first, String firstContent, NoteText second, String secondContent) {
+        NoteText merged = first.copy(firstContent);
+        if (secondContent.length() != second.length) {
+            throw new IllegalArgumentException("Text has " + second.length + " characters, not "
+                    + secondContent.length());
+        }
+
+        // Characters only the second has, in runs, each after its origin
+        List<Run> missing = new ArrayList<>();
+        int offset = 0;
+        for (Run run = second.head.next; run != null; run = run.next) {
+            String text = null;
+            if (!run.deleted) {
+                text = secondContent.substring(offset, offset + run.length);
+                offset += run.length;
+            }
+            merged.collectMissing(run, text, missing);
+        }
+        // An origin always has a lower timestamp, so it is placed first
+        missing.sort((a, b) -> a.lamport != b.lamport
+                ? Long.compare(a.lamport, b.lamport)
+                : Long.compare(a.agent, b.agent));
+        for (Run piece : missing) {
+            merged.integrate(piece);
+        }
+
+        for (Run run = second.head.next; run != null; run = run.next) {
+            if (run.deleted) {
+                merged.deleteIds(run.agent, run.lamport, run.length);
+            }
+        }
+        merged.coalesce();
+
+        StringBuilder content = new StringBuilder(merged.length);
+        for (Run run = merged.head.next; run != null; run = run.next) {
+            if (!run.deleted) {
+                content.append(run.text);
+            }
+            run.text = null;
+        }
+        return new Merge(merged, content.toString());
+    }
+
+    // A copy with each visible run holding its slice of content
+    private NoteText copy(String content) {
+        if (content.length() != length) {
+            throw new IllegalArgumentException("Text has " + length + " characters, not " + content.length());
+        }
+        NoteText copy = new NoteText();
+        int offset = 0;
+        for (Run run = head.next; run != null; run = run.next) {
+            Run same = new Run(run.agent, run.lamport, run.length, run.originAgent, run.originLamport);
+            same.deleted = run.deleted;
+            if (!run.deleted) {
+                same.text = content.substring(offset, offset + run.length);
+                offset += run.length;
+            }
+            copy.linkAfter(copy.tail, same);
+        }
+        return copy;
+    }
+
+    // Add to missing the parts of run not in this text, as runs of their own
+    private void collectMissing(Run run, String text, List<Run> missing) {
+        TreeMap<Long, Run> runs = index.get(run.agent);
+        long at = run.lamport;
+        long end = run.end();
+        while (at < end) {
+            Run covering = find(run.agent, at);
+            if (covering != null) {
+                at = Math.min(end, covering.end());
+                continue;
+            }
+            long stop = end;
+            Long next = runs != null ? runs.higherKey(at) : null;
+            if (next != null && next < end) {
+                stop = next;
+            }
+            int from = (int) (at - run.lamport);
+            int to = (int) (stop - run.lamport);
+            Run piece = from == 0
+                    ? new Run(run.agent, at, to - from, run.originAgent, run.originLamport)
+                    : new Run(run.agent, at, to - from, run.agent, at - 1);
+            piece.deleted = run.deleted;
+            piece.text = text != null ? text.substring(from, to) : null;
+            missing.add(piece);
+            at = stop;
+        }
+    }
+
+    // Place a run right after its origin, past any siblings with higher ids and what follows them
+    private void integrate(Run run) {
+        Run left = head;
+        if (run.originAgent != 0) {
+            left = find(run.originAgent, run.originLamport);
+            int offset = (int) (run.originLamport - left.lamport) + 1;
+            if (offset < left.length) {
+                split(left, offset);
+            }
+        }
+        while (left.next != null && (left.next.lamport > run.lamport
+                || left.next.lamport == run.lamport && left.next.agent > run.agent)) {
+            left = left.next;
+        }
+        linkAfter(left, run);
+    }
+
+    // Delete the characters with the given ids, all of which are here
+    private void deleteIds(long agent, long lamport, int count) {
+        long at = lamport;
+        long end = lamport + count;
+        while (at < end) {
+            Run run = find(agent, at);
+            if (run.lamport < at) {
+                run = split(run, (int) (at - run.lamport));
+            }
+            if (run.end() > end) {
+                split(run, (int) (end - run.lamport));
+            }
+            if (!run.deleted) {
+                run.deleted = true;
+                run.text = null;
+                length -= run.length;
+            }
+            at = run.end();
+        }
+    }
+
+    // The run ending just before visible position, split there if need be; head for 0
+    private Run boundaryBefore(int position) {
+        Run run = head;
+        int remaining = position;
+        while (remaining > 0) {
+            run = run.next;
+            if (run.deleted) {
+                continue;
+            }
+            if (run.length > remaining) {
+                split(run, remaining);
+                return run;
+            }
+            remaining -= run.length;
+        }
+        return run;
+    }
+
+    // The run holding character (agent, lamport), or null
+    private Run find(long agent, long lamport) {
+        TreeMap<Long, Run> runs = index.get(agent);
+        if (runs == null) {
+            return null;
+        }
+        Map.Entry<Long, Run> entry = runs.floorEntry(lamport);
+        return entry != null && entry.getValue().end() > lamport ? entry.getValue() : null;
+    }
+
+    // Whether any of the characters from (agent, lamport) on is here already
+    private boolean overlaps(long agent, long lamport, long count) {
+        TreeMap<Long, Run> runs = index.get(agent);
+        if (runs == null) {
+            return false;
+        }
+        Map.Entry<Long, Run> entry = runs.floorEntry(lamport + count - 1);
+        return entry != null && entry.getValue().end() > lamport;
+    }
+
+    // Keep the first offset characters in run and move the rest to a run after it
+    private Run split(Run run, int offset) {
+        Run rest = new Run(run.agent, run.lamport + offset, run.length - offset, run.agent, run.lamport + offset - 1);
+        rest.deleted = run.deleted;
+        if (run.text != null) {
+            rest.text = run.text.substring(offset);
+            run.text = run.text.substring(0, offset);
+        }
+        run.length = offset;
+        rest.prev = run;
+        rest.next = run.next;
+        if (run.next != null) {
+            run.next.prev = rest;
+        } else {
+            tail = rest;
+        }
+        run.next = rest;
+        index.get(run.agent).put(rest.lamport, rest);
+        runCount++;
+        return rest;
+    }
+
+    private void linkAfter(Run left, Run run) {
+        run.prev = left;
+        run.next = left.next;
+        if (left.next != null) {
+            left.next.prev = run;
+        } else {
+            tail = run;
+        }
+        left.next = run;
+        TreeMap<Long, Run> runs = index.get(run.agent);
+        if (runs == null) {
+            runs = new TreeMap<>();
+            index.put(run.agent, runs);
+        }
+        runs.put(run.lamport, run);
+        runCount++;
+        clock = Math.max(clock, run.end() - 1);
+        if (!run.deleted) {
+            length += run.length;
+        }
+    }
+
+    // Join runs that split or typing left as neighbours that read as one
+    private void coalesce() {
+        Run run = head.next;
+        while (run != null) {
+            Run next = run.next;
+            if (next != null && next.continues() && next.agent == run.agent && next.lamport == run.end()
+                    && next.deleted == run.deleted) {
+                run.length += next.length;
+                if (run.text != null) {
+                    run.text = run.text.concat(next.text);
+                }
+                run.next = next.next;
+                if (next.next != null) {
+                    next.next.prev = run;
+                } else {
+                    tail = run;
+                }
+                index.get(next.agent).remove(next.lamport);
+                runCount--;
+            } else {
+                run = next;
+            }
+        }
+    }
+
+    // Encoded: version, agent count, agents, run count, then per run
+    // length << 2 | deleted << 1 | continues, agent index, timestamp, and
+    // unless it continues, origin agent index + 1 (0 for the start) and
+    // origin timestamp; all but the agents as varints
+
+    public byte[] encode() {
+        LongIntMap agentIndex = new LongIntMap();
+        List<Long> agents = new ArrayList<>();
+        for (Run run = head.next; run != null; run = run.next) {
+            if (!agentIndex.containsKey(run.agent)) {
+                agentIndex.put(run.agent, agents.size());
+                agents.add(run.agent);
+            }
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(16 + agents.size() * 8 + runCount * 6);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(FORMAT_VERSION);
+            writeVarint(out, agents.size());
+            for (long agent : agents) {
+                out.writeLong(agent);
+            }
+            writeVarint(out, runCount);
+            for (Run run = head.next; run != null; run = run.next) {
+                boolean continues = run.continues();
+                writeVarint(out, (long) run.length << 2 | (run.deleted ? 2 : 0) | (continues ? 1 : 0));
+                writeVarint(out, agentIndex.get(run.agent, -1));
+                writeVarint(out, run.lamport);
+                if (!continues) {
+                    // An origin is always a character here, so its agent is in the table
+                    writeVarint(out, run.originAgent == 0 ? 0 : agentIndex.get(run.originAgent, -1) + 1);
+                    if (run.originAgent != 0) {
+                        writeVarint(out, run.originLamport);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            // Not thrown by an in-memory stream
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @throws IOException if the bytes aren't an encoded text, or one whose
+     *                     origins don't all come before the characters typed after them
+     */
+    public static NoteText decode(byte[] bytes) throws IOException {
+        NoteText text = new NoteText();
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes))) {
+            if (in.readByte() != FORMAT_VERSION) {
+                throw new IOException("Unknown note text version");
+            }
+            int agentCount = (int) readVarint(in);
+            if (agentCount < 0 || agentCount > bytes.length / 8) {
+                throw new IOException("Bad agent count " + agentCount);
+            }
+            long[] agents = new long[agentCount];
+            for (int i = 0; i < agentCount; i++) {
+                agents[i] = in.readLong();
+            }
+            long runs = readVarint(in);
+            for (long i = 0; i < runs; i++) {
+                long header = readVarint(in);
+                long length = header >>> 2;
+                long agent = agentAt(agents, readVarint(in));
+                long lamport = readVarint(in);
+                long originAgent = agent;
+                long originLamport = lamport - 1;
+                if ((header & 1) == 0) {
+                    long origin = readVarint(in);
+                    originAgent = origin == 0 ? 0 : agentAt(agents, origin - 1);
+                    originLamport = origin == 0 ? 0 : readVarint(in);
+                }
+                if (length <= 0 || length > Integer.MAX_VALUE || lamport <= 0 || originLamport >= lamport
+                        || text.overlaps(agent, lamport, length)) {
+                    throw new IOException("Corrupt note text");
+                }
+                Run run = new Run(agent, lamport, (int) length, originAgent, originLamport);
+                run.deleted = (header & 2) != 0;
+                text.linkAfter(text.tail, run);
+            }
+        } catch (EOFException e) {
+            throw new IOException("Truncated note text", e);
+        }
+        for (Run run = text.head.next; run != null; run = run.next) {
+            if (run.originAgent != 0 && text.find(run.originAgent, run.originLamport) == null) {
+                throw new IOException("Note text lacks an origin");
+            }
+        }
+        return text;
+    }
+
+    private static long agentAt(long[] agents, long index) throws IOException {
+        if (index < 0 || index >= agents.length) {
+            throw new IOException("Bad agent index " + index);
+        }
+        return agents[(int) index];
+    }
+
+    private static void writeVarint(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static long readVarint(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Bad varint");
+    }
+
+    // Differing stretches of two texts, in order, as
+    // {beforeStart, beforeEnd, afterStart, afterEnd}: line by line, then
+    // character by character within the lines that changed
+    static List<int[]> diff(String before, String after) {
+        List<int[]> hunks = new ArrayList<>();
+        int prefix = 0;
+        int limit = Math.min(before.length(), after.length());
+        while (prefix < limit && before.charAt(prefix) == after.charAt(prefix)) {
+            prefix++;
+        }
+        int suffix = 0;
+        limit -= prefix;
+        while (suffix < limit
+                && before.charAt(before.length() - 1 - suffix) == after.charAt(after.length() - 1 - suffix)) {
+            suffix++;
+        }
+        int beforeEnd = before.length() - suffix;
+        int afterEnd = after.length() - suffix;
+        if (prefix == beforeEnd && prefix == afterEnd) {
+            return hunks;
+        }
+
+        // Lines of the middle, as ids shared by equal lines of both
+        Map<String, Integer> ids = new HashMap<>();
+        int[] beforeStarts = lineStarts(before, prefix, beforeEnd);
+        int[] afterStarts = lineStarts(after, prefix, afterEnd);
+        int[] beforeLines = lineIds(before, beforeStarts, ids);
+        int[] afterLines = lineIds(after, afterStarts, ids);
+        List<int[]> lineHunks = myers(beforeLines, afterLines);
+        if (lineHunks == null) {
+            hunks.add(new int[] {prefix, beforeEnd, prefix, afterEnd});
+            return hunks;
+        }
+
+        for (int[] lines : lineHunks) {
+            int from = beforeStarts[lines[0]];
+            int to = beforeStarts[lines[1]];
+            int afterFrom = afterStarts[lines[2]];
+            int afterTo = afterStarts[lines[3]];
+            List<int[]> chars = myers(chars(before, from, to), chars(after, afterFrom, afterTo));
+            if (chars == null) {
+                hunks.add(new int[] {from, to, afterFrom, afterTo});
+                continue;
+            }
+            for (int[] hunk : chars) {
+                hunks.add(new int[] {from + hunk[0], from + hunk[1], afterFrom + hunk[2], afterFrom + hunk[3]});
+            }
+        }
+        return hunks;
+    }
+
+    // Where each line of text[from, to) starts, then to
+    private static int[] lineStarts(String text, int from, int to) {
+        int count = 1;
+        for (int i = from; i < to - 1; i++) {
+            if (text.charAt(i) == '\n') {
+                count++;
+            }
+        }
+        int[] starts = new int[count + 1];
+        int line = 0;
+        starts[line++] = from;
+        for (int i = from; i < to - 1; i++) {
+            if (text.charAt(i) == '\n') {
+                starts[line++] = i + 1;
+            }
+        }
+        starts[count] = to;
+        return starts;
+    }
+
+    private static int[] lineIds(String text, int[] starts, Map<String, Integer> ids) {
+        int[] lines = new int[starts.length - 1];
+        for (int i = 0; i < lines.length; i++) {
+            String line = text.substring(starts[i], starts[i + 1]);
+            Integer id = ids.get(line);
+            if (id == null) {
+                id = ids.size();
+                ids.put(line, id);
+            }
+            lines[i] = id;
+        }
+        return lines;
+    }
+
+    private static int[] chars(String text, int from, int to) {
+        int[] chars = new int[to - from];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = text.charAt(from + i);
+        }
+        return chars;
+    }
+
+    // Myers' diff in linear space: the stretches where a and b differ, as in
+    // diff(). Each range is split at the middle of a shortest edit path and
+    // the halves diffed in turn; a range with more than MAX_DIFF differences
+    // is taken as one stretch. Null if all of it is.
+    private static List<int[]> myers(int[] a, int[] b) {
+        List<int[]> hunks = new ArrayList<>();
+        int[] forward = new int[2 * MAX_DIFF + 3];
+        int[] backward = new int[2 * MAX_DIFF + 3];
+        if (!myers(a, 0, a.length, b, 0, b.length, forward, backward, hunks)) {
+            return null;
+        }
+        // Neighbouring stretches come out of separate halves; join them
+        List<int[]> joined = new ArrayList<>(hunks.size());
+        for (int[] hunk : hunks) {
+            int[] last = joined.isEmpty() ? null : joined.get(joined.size() - 1);
+            if (last != null && last[1] == hunk[0] && last[3] == hunk[2]) {
+                last[1] = hunk[1];
+                last[3] = hunk[3];
+            } else {
+                joined.add(hunk);
+            }
+        }
+        return joined;
+    }
+
+    // Add the hunks of a[aFrom, aTo) against b[bFrom, bTo); false if it took the whole range as one
+    private static boolean myers(int[] a, int aFrom, int aTo, int[] b, int bFrom, int bTo,
+                                 int[] forward, int[] backward, List<int[]> hunks) {
+        while (aFrom < aTo && bFrom < bTo && a[aFrom] == b[bFrom]) {
+            aFrom++;
+            bFrom++;
+        }
+        while (aFrom < aTo && bFrom < bTo && a[aTo - 1] == b[bTo - 1]) {
+            aTo--;
+            bTo--;
+        }
+        if (aFrom == aTo || bFrom == bTo) {
+            if (aFrom < aTo || bFrom < bTo) {
+                hunks.add(new int[] {aFrom, aTo, bFrom, bTo});
+            }
+            return true;
+        }
+        int[] snake = middleSnake(a, aFrom, aTo, b, bFrom, bTo, forward, backward);
+        if (snake == null) {
+            hunks.add(new int[] {aFrom, aTo, bFrom, bTo});
+            return false;
+        }
+        myers(a, aFrom, snake[0], b, bFrom, snake[1], forward, backward, hunks);
+        myers(a, snake[2], aTo, b, snake[3], bTo, forward, backward, hunks);
+        return true;
+    }
+
+    // {x, y, u, v}: a diagonal run from (x, y) to (u, v) on a shortest edit
+    // path, with about as many differences either side; null past MAX_DIFF
+    private static int[] middleSnake(int[] a, int aFrom, int aTo, int[] b, int bFrom, int bTo,
+                                     int[] forward, int[] backward) {
+        int n = aTo - aFrom;
+        int m = bTo - bFrom;
+        int delta = n - m;
+        boolean odd = (delta & 1) != 0;
+        int offset = MAX_DIFF + 1;
+        // forward[k]: furthest x on diagonal k = x - y from the start;
+        // backward[k]: furthest distance back from the end on diagonal k of the reversed texts
+        forward[offset + 1] = 0;
+        backward[offset + 1] = 0;
+        int maxD = Math.min((n + m + 1) / 2, MAX_DIFF);
+        for (int d = 0; d <= maxD; d++) {
+            for (int k = -d; k <= d; k += 2) {
+                int x = k == -d || k != d && forward[offset + k - 1] < forward[offset + k + 1]
+                        ? forward[offset + k + 1]
+                        : forward[offset + k - 1] + 1;
+                int y = x - k;
+                int startX = x;
+                int startY = y;
+                while (x < n && y < m && a[aFrom + x] == b[bFrom + y]) {
+                    x++;
+                    y++;
+                }
+                forward[offset + k] = x;
+                int back = delta - k;
+                if (odd && back >= -(d - 1) && back <= d - 1 && x + backward[offset + back] >= n) {
+                    return new int[] {aFrom + startX, bFrom + startY, aFrom + x, bFrom + y};
+                }
+            }
+            for (int k = -d; k <= d; k += 2) {
+                int x = k == -d || k != d && backward[offset + k - 1] < backward[offset + k + 1]
+                        ? backward[offset + k + 1]
+                        : backward[offset + k - 1] + 1;
+                int y = x - k;
+                int startX = x;
+                int startY = y;
+                while (x < n && y < m && a[aTo - 1 - x] == b[bTo - 1 - y]) {
+                    x++;
+                    y++;
+                }
+                backward[offset + k] = x;
+                int ahead = delta - k;
+                if (!odd && ahead >= -d && ahead <= d && x + forward[offset + ahead] >= n) {
+                    return new int[] {aTo - x, bTo - y, aTo - startX, bTo - startY};
+                }
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,269 @@
+package com.hypertron.hypernotes;
+
+import java.text.Normalizer;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Trigram index over note titles, for finding a note by a rough or misspelled
+ * fragment of its title.
+ *
+ * Titles are folded to lower case without accents and split into words, and
+ * each word padded as {@code "  word "} is cut into overlapping three-letter
+ * grams, so word starts count for a little more. Each gram maps to the titles
+ * containing it. A query is cut the same way and only the postings of its
+ * grams are walked, counting how many grams each title shares with it; titles
+ * sharing none are never looked at.
+ *
+ * A typo spoils at most three grams of a word, so a title still shares most
+ * of a misspelled query's grams. The score is the share of the query's grams
+ * found, less a little for grams of the title the query didn't ask for, plus
+ * a little for recently modified notes.
+ *
+ * Not thread-safe. {@link NoteRepository} confines it to its search thread.
+ */
+public class NoteTitleIndex {
+
+    private static final long NO_ID = Long.MIN_VALUE;
+
+    // Share of a query's grams a title needs to match at all
+    private static final double MIN_SHARED = 0.4;
+    // Most a title loses for grams the query doesn't have
+    private static final double LENGTH_PENALTY = 0.2;
+    // Most a title gains for being recently modified, and the age at which half of it is gone
+    private static final double RECENCY_BONUS = 0.1;
+    private static final double RECENCY_HALF_LIFE_MS = 30L * 24 * 60 * 60 * 1000;
+
+    // Gram ids, and the documents containing each
+    private final LongIntMap gramIds = new LongIntMap();
+    private Postings[] postings = new Postings[256];
+    private int gramCount;
+
+    private final LongIntMap docsById = new LongIntMap();
+    private long[] idsByDoc = new long[64];
+    private long[] timestamps = new long[64];
+    private int[][] gramsByDoc = new int[64][];
+    private int[] freeDocs = new int[16];
+    private int freeCount;
+    private int docCount;
+
+    // Scratch for searches: grams shared per document, and the documents touched
+    private int[] shared = new int[64];
+    private int[] touched = new int[64];
+
+    private static final class Postings {
+        int[] docs = new int[4];
+        int size;
+
+        void add(int doc) {
+            if (size == docs.length) {
+                docs = Arrays.copyOf(docs, size * 2);
+            }
+            docs[size++] = doc;
+        }
+
+        void remove(int doc) {
+            for (int i = 0; i < size; i++) {
+                if (docs[i] == doc) {
+                    docs[i] = docs[--size];
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Index a new note's title or re-index an edited one.
+     *
+     * @param timestamp when the note was last modified, for ranking
+     */
+    public void update(long id, String title, long timestamp) {
+        remove(id);
+
+        long[] grams = grams(title);
+        int[] docGrams = new int[grams.length];
+        int doc = allocateDoc();
+        for (int i = 0; i < grams.length; i++) {
+            int gram = gramIds.get(grams[i], -1);
+            if (gram < 0) {
+                gram = allocateGram(grams[i]);
+            }
+            docGrams[i] = gram;
+            postings[gram].add(doc);
+        }
+        idsByDoc[doc] = id;
+        timestamps[doc] = timestamp;
+        gramsByDoc[doc] = docGrams;
+        docsById.put(id, doc);
+    }
+
+    public void remove(long id) {
+        int doc = docsById.get(id, -1);
+        if (doc < 0) {
+            return;
+        }
+        docsById.remove(id);
+        // Emptied grams keep their id; titles come back to the same words
+        for (int gram : gramsByDoc[doc]) {
+            postings[gram].remove(doc);
+        }
+        idsByDoc[doc] = NO_ID;
+        gramsByDoc[doc] = null;
+        if (freeCount == freeDocs.length) {
+            freeDocs = Arrays.copyOf(freeDocs, freeCount * 2);
+        }
+        freeDocs[freeCount++] = doc;
+    }
+
+    public int size() {
+        return docsById.size();
+    }
+
+    /**
+     * Ids of the notes whose titles best match {@code query}, best first, at
+     * most {@code limit} of them. An empty query matches nothing.
+     *
+     * @param now current time in milliseconds, which recency is measured from
+     */
+    public long[] search(String query, int limit, long now) {
+        long[] queryGrams = grams(query);
+        if (queryGrams.length == 0 || limit <= 0) {
+            return new long[0];
+        }
+
+        int touchedCount = 0;
+        for (long queryGram : queryGrams) {
+            int gram = gramIds.get(queryGram, -1);
+            if (gram < 0) {
+                continue;
+            }
+            Postings docs = postings[gram];
+            for (int i = 0; i < docs.size; i++) {
+                int doc = docs.docs[i];
+                if (shared[doc]++ == 0) {
+                    touched[touchedCount++] = doc;
+                }
+            }
+        }
+
+        // Keep the best few in a small array sorted by score, best first
+        int minShared = Math.max(1, (int) Math.ceil(queryGrams.length * MIN_SHARED));
+        long[] bestIds = new long[limit];
+        double[] bestScores = new double[limit];
+        int bestCount = 0;
+        for (int i = 0; i < touchedCount; i++) {
+            int doc = touched[i];
+            int count = shared[doc];
+            shared[doc] = 0;
+            if (count < minShared) {
+                continue;
+            }
+            double score = score(count, queryGrams.length, gramsByDoc[doc].length, now - timestamps[doc]);
+            if (bestCount == limit && score <= bestScores[limit - 1]) {
+                continue;
+            }
+            int position = bestCount < limit ? bestCount++ : limit - 1;
+            while (position > 0 && bestScores[position - 1] < score) {
+                bestScores[position] = bestScores[position - 1];
+                bestIds[position] = bestIds[position - 1];
+                position--;
+            }
+            bestScores[position] = score;
+            bestIds[position] = idsByDoc[doc];
+        }
+        return Arrays.copyOf(bestIds, bestCount);
+    }
+
+    static double score(int shared, int queryGrams, int titleGrams, long ageMs) {
+        double found = (double) shared / queryGrams;
+        double extra = titleGrams > 0 ? 1 - (double) shared / titleGrams : 0;
+        double recency = RECENCY_HALF_LIFE_MS / (RECENCY_HALF_LIFE_MS + Math.max(ageMs, 0));
+        return found - LENGTH_PENALTY * extra + RECENCY_BONUS * recency;
+    }
+
+    private int allocateGram(long gram) {
+        if (gramCount == postings.length) {
+            postings = Arrays.copyOf(postings, gramCount * 2);
+        }
+        postings[gramCount] = new Postings();
+        gramIds.put(gram, gramCount);
+        return gramCount++;
+    }
+
+    private int allocateDoc() {
+        if (freeCount > 0) {
+            return freeDocs[--freeCount];
+        }
+        if (docCount == idsByDoc.length) {
+            int capacity = docCount * 2;
+            idsByDoc = Arrays.copyOf(idsByDoc, capacity);
+            timestamps = Arrays.copyOf(timestamps, capacity);
+            gramsByDoc = Arrays.copyOf(gramsByDoc, capacity);
+            shared = Arrays.copyOf(shared, capacity);
+            touched = Arrays.copyOf(touched, capacity);
+        }
+        return docCount++;
+    }
+
+    /**
+     * The distinct grams of {@code text}, each three chars packed into a long.
+     */
+    static long[] grams(String text) {
+        if (text == null || text.isEmpty()) {
+            return new long[0];
+        }
+        String folded = fold(text);
+        long[] grams = new long[folded.length() * 3 + 3];
+        int count = 0;
+        int length = folded.length();
+        int start = -1;
+        for (int i = 0; i <= length; i++) {
+            boolean wordChar = i < length && Character.isLetterOrDigit(folded.charAt(i));
+            if (wordChar && start < 0) {
+                start = i;
+            } else if (!wordChar && start >= 0) {
+                // "  word ": two spaces ahead and one behind
+                char a = ' ';
+                char b = ' ';
+                for (int j = start; j <= i; j++) {
+                    char c = j < i ? folded.charAt(j) : ' ';
+                    grams[count++] = (long) a << 32 | (long) b << 16 | c;
+                    a = b;
+                    b = c;
+                }
+                start = -1;
+            }
+        }
+        Arrays.sort(grams, 0, count);
+        int unique = 0;
+        for (int i = 0; i < count; i++) {
+            if (unique == 0 || grams[i] != grams[unique - 1]) {
+                grams[unique++] = grams[i];
+            }
+        }
+        return Arrays.copyOf(grams, unique);
+    }
+
+    /**
+     * Lower case, without accents, so "Café" finds "cafe" and back.
+     */
+    static String fold(String text) {
+        String lower = text.toLowerCase(Locale.ROOT);
+        boolean ascii = true;
+        for (int i = 0; i < lower.length() && ascii; i++) {
+            ascii = lower.charAt(i) < 0x80;
+        }
+        if (ascii) {
+            return lower;
+        }
+        String decomposed = Normalizer.normalize(lower, Normalizer.Form.NFD);
+        StringBuilder out = new StringBuilder(decomposed.length());
+        for (int i = 0; i < decomposed.length(); i++) {
+            char c = decomposed.charAt(i);
+            if (Character.getType(c) != Character.NON_SPACING_MARK) {
+                out.append(c);
+            }
+        }
+        return out.toString();
+    }
+}
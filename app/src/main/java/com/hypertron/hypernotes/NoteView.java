@@ -0,0 +1,100 @@
+package com.hypertron.hypernotes;
+
+/**
+ * How the note grid is ordered and which notes it shows. Immutable.
+ *
+ * Colors are indexes into the store's palette, as persisted. Symbols are
+ * indexes into the symbol array as displayed, so a note that asked for a
+ * random symbol matches the one its card actually shows; notes with a custom
+ * emoji never match a symbol filter.
+ */
+public final class NoteView {
+    // Last modified, newest first
+    public static final int SORT_MODIFIED = 0;
+    // Created, newest first
+    public static final int SORT_CREATED = 1;
+    // Title, in the order of the user's language
+    public static final int SORT_TITLE = 2;
+    // Palette order, newest first within a color
+    public static final int SORT_COLOR = 3;
+    static final int SORT_COUNT = 4;
+
+    // Filter value matching every note
+    public static final int ANY = -1;
+
+    public static final NoteView DEFAULT = new NoteView(SORT_MODIFIED, ANY, ANY, 0);
+
+    private final int sort;
+    private final int colorIndex;
+    private final int symbolIndex;
+    private final int symbolCount;
+
+    private NoteView(int sort, int colorIndex, int symbolIndex, int symbolCount) {
+        this.sort = sort;
+        this.colorIndex = colorIndex;
+        this.symbolIndex = symbolIndex;
+        this.symbolCount = symbolCount;
+    }
+
+    public int getSort() { return sort; }
+    public int getColorIndex() { return colorIndex; }
+    public int getSymbolIndex() { return symbolIndex; }
+
+    public NoteView withSort(int sort) {
+        if (sort < 0 || sort >= SORT_COUNT) {
+            sort = SORT_MODIFIED;
+        }
+        return new NoteView(sort, colorIndex, symbolIndex, symbolCount);
+    }
+
+    /**
+     * Only notes of the given color, or all of them for {@link #ANY}.
+     */
+    public NoteView withColor(int colorIndex) {
+        return new NoteView(sort, colorIndex, symbolIndex, symbolCount);
+    }
+
+    /**
+     * Only notes showing the given symbol, or all of them for {@link #ANY}.
+     *
+     * @param symbolCount length of the symbol array, needed to work out which
+     *                    symbol a note that asked for a random one shows
+     */
+    public NoteView withSymbol(int symbolIndex, int symbolCount) {
+        return new NoteView(sort, colorIndex, symbolIndex, symbolCount);
+    }
+
+    public boolean isFiltered() {
+        return colorIndex != ANY || symbolIndex != ANY;
+    }
+
+    /**
+     * Whether this is the plain newest-first list of every note, which the
+     * store can produce without a sort index.
+     */
+    public boolean isDefault() {
+        return sort == SORT_MODIFIED && !isFiltered();
+    }
+
+    /**
+     * Whether a note with these properties passes the filters.
+     *
+     * @param symbolIndex the note's symbol index as saved, negative for random
+     */
+    boolean matches(long id, int colorIndex, int symbolIndex, boolean customEmoji) {
+        if (this.colorIndex != ANY && colorIndex != this.colorIndex) {
+            return false;
+        }
+        if (this.symbolIndex == ANY) {
+            return true;
+        }
+        if (customEmoji || symbolCount <= 0) {
+            return false;
+        }
+        // Same rule as NoteCard.symbolIndexFor
+        if (symbolIndex < 0 || symbolIndex >= symbolCount) {
+            symbolIndex = Math.floorMod(Long.hashCode(id), symbolCount);
+        }
+        return symbolIndex == this.symbolIndex;
+    }
+}
@@ -0,0 +1,114 @@
+package com.hypertron.hypernotes;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.res.Configuration;
+import android.util.TypedValue;
+import android.view.ContextThemeWrapper;
+
+/**
+ * Resolves and caches the {@link ThemePalette} of the light and dark themes.
+ *
+ * Building a palette reads the accent preferences and looks up a dozen
+ * resources and theme attributes; after that every screen and every card bind
+ * reads plain fields. Both palettes are kept, so switching theme needs no
+ * lookups at all. A preference listener drops them when the accent changes,
+ * and they are rebuilt on next use.
+ */
+public class PaletteService {
+    private static PaletteService instance;
+
+    private final Context context;
+    private final SharedPreferences prefs;
+    // Indexed by isDark; either may be null until first asked for
+    private final ThemePalette[] palettes = new ThemePalette[2];
+
+    // Held here because SharedPreferences only keeps a weak reference to its listeners
+    private final SharedPreferences.OnSharedPreferenceChangeListener accentListener = (prefs, key) -> {
+        if (key == null || AccentColorActivity.isAccentKey(key)) {
+            invalidate();
+        }
+    };
+
+    private PaletteService(Context context) {
+        this.context = context;
+        this.prefs = context.getSharedPreferences(AccentColorActivity.PREFS_NAME, Context.MODE_PRIVATE);
+        prefs.registerOnSharedPreferenceChangeListener(accentListener);
+    }
+
+    public static synchronized PaletteService getInstance(Context context) {
+        if (instance == null) {
+            instance = new PaletteService(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    /**
+     * Palette of the theme {@code context} is currently showing.
+     */
+    public ThemePalette get(Context context) {
+        return get(isDark(context.getResources().getConfiguration()));
+    }
+
+    public synchronized ThemePalette get(boolean dark) {
+        int index = dark ? 1 : 0;
+        if (palettes[index] == null) {
+            palettes[index] = resolve(dark);
+        }
+        return palettes[index];
+    }
+
+    /**
+     * Forget both palettes, e.g. after the accent color changed.
+     */
+    public synchronized void invalidate() {
+        palettes[0] = null;
+        palettes[1] = null;
+    }
+
+    public static boolean isDark(Configuration configuration) {
+        return (configuration.uiMode & Configuration.UI_MODE_NIGHT_MASK) == Configuration.UI_MODE_NIGHT_YES;
+    }
+
+    private ThemePalette resolve(boolean dark) {
+        // Resources and theme as they would be in that mode, whichever mode is showing now
+        Configuration configuration = new Configuration(context.getResources().getConfiguration());
+        configuration.uiMode = (configuration.uiMode & ~Configuration.UI_MODE_NIGHT_MASK)
+                | (dark ? Configuration.UI_MODE_NIGHT_YES : Configuration.UI_MODE_NIGHT_NO);
+        Context themed = new ContextThemeWrapper(context.createConfigurationContext(configuration),
+                R.style.Theme_HyperNotes);
+
+        int[] noteColorResIds = NoteRepository.getColorResourceIds();
+        int[] noteColors = new int[noteColorResIds.length];
+        for (int i = 0; i < noteColorResIds.length; i++) {
+            noteColors[i] = themed.getColor(noteColorResIds[i]);
+        }
+
+        return new ThemePalette(dark,
+                prefs.getInt(AccentColorActivity.KEY_ACCENT_COLOR, AccentColorActivity.DEFAULT_ACCENT),
+                prefs.getInt(AccentColorActivity.KEY_ACCENT_LIGHT, AccentColorActivity.DEFAULT_ACCENT_LIGHT),
+                prefs.getInt(AccentColorActivity.KEY_ACCENT_DARK, AccentColorActivity.DEFAULT_ACCENT_DARK),
+                themeColor(themed, android.R.attr.windowBackground, dark ? ColorMath.BLACK : ColorMath.WHITE),
+                themeColor(themed, androidx.appcompat.R.attr.colorPrimary, dark ? ColorMath.BLACK : ColorMath.WHITE),
+                themeColor(themed, com.google.android.material.R.attr.colorOnPrimary,
+                        dark ? ColorMath.WHITE : ColorMath.BLACK),
+                themeColor(themed, android.R.attr.textColorPrimary, dark ? ColorMath.WHITE : ColorMath.BLACK),
+                themeColor(themed, android.R.attr.textColorSecondary, dark ? ColorMath.WHITE : ColorMath.BLACK),
+                noteColorResIds, noteColors);
+    }
+
+    private static int themeColor(Context themed, int attribute, int fallback) {
+        TypedValue value = new TypedValue();
+        if (!themed.getTheme().resolveAttribute(attribute, value, true)) {
+            return fallback;
+        }
+        if (value.type >= TypedValue.TYPE_FIRST_COLOR_INT && value.type <= TypedValue.TYPE_LAST_COLOR_INT) {
+            return value.data;
+        }
+        if (value.resourceId != 0) {
+            // A color state list, such as the text colors; take its default color
+            return themed.getColorStateList(value.resourceId).getDefaultColor();
+        }
+        return fallback;
+    }
+}
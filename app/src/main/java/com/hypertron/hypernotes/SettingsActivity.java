@@ -1,11 +1,19 @@
 package com.hypertron.hypernotes;
 
+import android.content.Intent;
 import android.content.SharedPreferences;
+import android.content.pm.PackageManager;
+import android.net.Uri;
 import android.os.Bundle;
+import android.text.InputType;
 import android.view.MenuItem;
+import android.widget.Toast;
+import androidx.activity.result.ActivityResultLauncher;
+import androidx.activity.result.contract.ActivityResultContracts;
 import androidx.appcompat.app.ActionBar;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.appcompat.widget.Toolbar;
+import androidx.preference.EditTextPreference;
 import androidx.preference.ListPreference;
 import androidx.preference.Preference;
 import androidx.preference.PreferenceFragmentCompat;
@@ -45,6 +53,34 @@ public class SettingsActivity extends AppCompatActivity {
     }
     
     public static class SettingsFragment extends PreferenceFragmentCompat {
+        // Taps on the version that open the metrics screen
+        private static final int METRICS_TAPS = 7;
+        private static final String EXPORT_FILE_NAME = "hypernotes-export.zip";
+        private static final String ARCHIVE_MIME_TYPE = "application/zip";
+        private static final String SYNC_SERVER_KEY = "sync_server_preference";
+        private static final String SYNC_TOKEN_KEY = "sync_token_preference";
+        
+        private int versionTaps;
+        private ActivityResultLauncher<String> exportLauncher;
+        private ActivityResultLauncher<String[]> importLauncher;
+        
+        @Override
+        public void onCreate(Bundle savedInstanceState) {
+            super.onCreate(savedInstanceState);
+            exportLauncher = registerForActivityResult(
+                    new ActivityResultContracts.CreateDocument(ARCHIVE_MIME_TYPE), uri -> {
+                        if (uri != null) {
+                            startTransfer(uri, true);
+                        }
+                    });
+            importLauncher = registerForActivityResult(
+                    new ActivityResultContracts.OpenDocument(), uri -> {
+                        if (uri != null) {
+                            startTransfer(uri, false);
+                        }
+                    });
+        }
+        
         @Override
         public void onCreatePreferences(Bundle savedInstanceState, String rootKey) {
             setPreferencesFromResource(R.xml.preferences, rootKey);
@@ -71,6 +107,145 @@ public class SettingsActivity extends AppCompatActivity {
                     return true;
                 });
             }
+            
+            Preference exportPreference = findPreference("export_preference");
+            if (exportPreference != null) {
+                exportPreference.setOnPreferenceClickListener(preference -> {
+                    exportLauncher.launch(EXPORT_FILE_NAME);
+                    return true;
+                });
+            }
+            
+            Preference importPreference = findPreference("import_preference");
+            if (importPreference != null) {
+                importPreference.setOnPreferenceClickListener(preference -> {
+                    importLauncher.launch(new String[] { ARCHIVE_MIME_TYPE });
+                    return true;
+                });
+            }
+            
+            EditTextPreference tokenPreference = findPreference(SYNC_TOKEN_KEY);
+            if (tokenPreference != null) {
+                tokenPreference.setOnBindEditTextListener(editText -> editText.setInputType(
+                        InputType.TYPE_CLASS_TEXT | InputType.TYPE_TEXT_VARIATION_PASSWORD));
+            }
+            
+            Preference syncPreference = findPreference("sync_now_preference");
+            if (syncPreference != null) {
+                syncPreference.setOnPreferenceClickListener(preference -> {
+                    startSync(preference);
+                    return true;
+                });
+            }
+            
+            // Hidden debug screen, opened like Android's developer options
+            Preference versionPreference = findPreference("version_preference");
+            if (versionPreference != null) {
+                try {
+                    versionPreference.setSummary(requireContext().getPackageManager()
+                            .getPackageInfo(requireContext().getPackageName(), 0).versionName);
+                } catch (PackageManager.NameNotFoundException e) {
+                    // Leave the summary empty
+                }
+                versionPreference.setOnPreferenceClickListener(preference -> {
+                    if (++versionTaps >= METRICS_TAPS) {
+                        versionTaps = 0;
+                        startActivity(new Intent(requireContext(), MetricsActivity.class));
+                    }
+                    return true;
+                });
+            }
+        }
+        
+        /**
+         * Export to or import from {@code uri}, showing progress in the
+         * preference's summary. Both preferences are off until it's done.
+         */
+        private void startTransfer(Uri uri, boolean export) {
+            Preference exportPreference = findPreference("export_preference");
+            Preference importPreference = findPreference("import_preference");
+            Preference shown = export ? exportPreference : importPreference;
+            if (exportPreference == null || importPreference == null) {
+                return;
+            }
+            exportPreference.setEnabled(false);
+            importPreference.setEnabled(false);
+            
+            NoteRepository.TransferCallback callback = new NoteRepository.TransferCallback() {
+                @Override
+                public void onProgress(int notes, int percent) {
+                    if (isAdded()) {
+                        shown.setSummary(percent >= 0
+                                ? getString(R.string.transfer_progress, notes, percent)
+                                : getString(R.string.transfer_progress_notes, notes));
+                    }
+                }
+                
+                @Override
+                public void onFinished(int notes, boolean success) {
+                    if (!isAdded()) {
+                        return;
+                    }
+                    exportPreference.setEnabled(true);
+                    importPreference.setEnabled(true);
+                    shown.setSummary(export ? R.string.pref_export_summary : R.string.pref_import_summary);
+                    int message = success
+                            ? (export ? R.string.export_done : R.string.import_done)
+                            : (export ? R.string.error_exporting : R.string.error_importing);
+                    Toast.makeText(requireContext(), getString(message, notes), Toast.LENGTH_LONG).show();
+                }
+            };
+            
+            NoteRepository repository = NoteRepository.getInstance(requireContext());
+            if (export) {
+                repository.exportNotes(uri, callback);
+            } else {
+                repository.importNotes(uri, callback);
+            }
+        }
+        
+        /**
+         * Sync with the server set above, showing progress in the preference's
+         * summary, which is off until the sync is done. Notes and the token
+         * only ever travel over https.
+         */
+        private void startSync(Preference syncPreference) {
+            SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(requireContext());
+            String server = preferences.getString(SYNC_SERVER_KEY, "").trim();
+            String token = preferences.getString(SYNC_TOKEN_KEY, "").trim();
+            if (server.isEmpty()) {
+                Toast.makeText(requireContext(), R.string.error_no_sync_server, Toast.LENGTH_SHORT).show();
+                return;
+            }
+            if (!HttpSyncTransport.isSecure(server)) {
+                Toast.makeText(requireContext(), R.string.error_sync_server_not_https, Toast.LENGTH_LONG).show();
+                return;
+            }
+            if (token.isEmpty()) {
+                Toast.makeText(requireContext(), R.string.error_no_sync_token, Toast.LENGTH_SHORT).show();
+                return;
+            }
+            syncPreference.setEnabled(false);
+            NoteRepository.getInstance(requireContext()).syncNotes(server, token, new NoteRepository.TransferCallback() {
+                @Override
+                public void onProgress(int notes, int percent) {
+                    if (isAdded()) {
+                        syncPreference.setSummary(getString(R.string.sync_progress, notes));
+                    }
+                }
+                
+                @Override
+                public void onFinished(int notes, boolean success) {
+                    if (!isAdded()) {
+                        return;
+                    }
+                    syncPreference.setEnabled(true);
+                    syncPreference.setSummary(R.string.pref_sync_now_summary);
+                    Toast.makeText(requireContext(),
+                            getString(success ? R.string.sync_done : R.string.error_syncing, notes),
+                            Toast.LENGTH_LONG).show();
+                }
+            });
         }
     }
-}
\ No newline at end of file
+}
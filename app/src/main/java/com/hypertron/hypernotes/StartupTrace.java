@@ -0,0 +1,174 @@
+package com.hypertron.hypernotes;
+
+import android.app.Activity;
+import android.os.Process;
+import android.os.SystemClock;
+import android.os.Trace;
+import android.view.View;
+import android.view.ViewTreeObserver;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Times the phases of a cold start, from process start to the first frame.
+ *
+ * Each phase is an {@code android.os.Trace} section named "startup:<phase>",
+ * so it shows up in a system trace. Its start and duration are also kept, as
+ * monotonic times since the process started. When the first activity is about
+ * to draw its first frame, the launch is appended to a log as one line:
+ *
+ * <pre>
+ * 1 1760000000000 first=0 process=143210 isFirstRun=152300+812 inflate=153200+9410 ... total=301772
+ * </pre>
+ *
+ * That is the format version, the wall-clock time of the launch, whether this
+ * was the first run, and then each phase as start+duration in microseconds.
+ * {@code process} is the time before the first phase began, spent in process
+ * creation and class loading. {@code total} runs from process start to the
+ * first frame. Pull the log with
+ * {@code adb shell run-as com.hypertron.hypernotes cat files/startup_trace.log}.
+ *
+ * Only the first launch of a process is timed; afterwards every call is a
+ * no-op. Calls are main-thread only.
+ */
+public final class StartupTrace {
+    private static final String LOG_FILE = "startup_trace.log";
+    private static final int FORMAT_VERSION = 1;
+    private static final int MAX_PHASES = 16;
+    // Once the log grows past this, its older half is dropped
+    private static final int MAX_LOG_BYTES = 32 * 1024;
+
+    private static final String[] names = new String[MAX_PHASES];
+    private static final long[] starts = new long[MAX_PHASES];
+    private static final long[] ends = new long[MAX_PHASES];
+    private static int phaseCount;
+    private static boolean firstRun;
+    private static boolean finished;
+
+    private StartupTrace() {
+    }
+
+    /**
+     * Start timing {@code phase}. Phases don't nest; end one before beginning the next.
+     */
+    public static void begin(String phase) {
+        if (finished || phaseCount == MAX_PHASES) {
+            return;
+        }
+        Trace.beginSection("startup:" + phase);
+        names[phaseCount] = phase;
+        starts[phaseCount] = SystemClock.elapsedRealtimeNanos();
+        ends[phaseCount] = -1;
+        phaseCount++;
+    }
+
+    /**
+     * Stop timing {@code phase}, begun by {@link #begin}.
+     */
+    public static void end(String phase) {
+        if (finished || phaseCount == 0) {
+            return;
+        }
+        int last = phaseCount - 1;
+        if (!phase.equals(names[last]) || ends[last] >= 0) {
+            return;
+        }
+        ends[last] = SystemClock.elapsedRealtimeNanos();
+        Trace.endSection();
+    }
+
+    /**
+     * Note that this launch is the app's first, which takes the accent color detour.
+     */
+    public static void setFirstRun(boolean firstRun) {
+        StartupTrace.firstRun = firstRun;
+    }
+
+    /**
+     * End the launch when {@code activity} is about to draw its first frame,
+     * then write its record off the main thread.
+     */
+    public static void finishOnFirstFrame(Activity activity) {
+        if (finished) {
+            return;
+        }
+        long frameStart = SystemClock.elapsedRealtimeNanos();
+        View decor = activity.getWindow().getDecorView();
+        decor.getViewTreeObserver().addOnPreDrawListener(new ViewTreeObserver.OnPreDrawListener() {
+            @Override
+            public boolean onPreDraw() {
+                decor.getViewTreeObserver().removeOnPreDrawListener(this);
+                if (finished || phaseCount == MAX_PHASES) {
+                    return true;
+                }
+                names[phaseCount] = "firstFrame";
+                starts[phaseCount] = frameStart;
+                ends[phaseCount] = SystemClock.elapsedRealtimeNanos();
+                phaseCount++;
+                finish(activity);
+                activity.reportFullyDrawn();
+                return true;
+            }
+        });
+    }
+
+    private static void finish(Activity activity) {
+        finished = true;
+        long processStart = Process.getStartElapsedRealtime() * 1_000_000L;
+        long end = ends[phaseCount - 1];
+
+        StringBuilder line = new StringBuilder(256);
+        line.append(FORMAT_VERSION).append(' ').append(System.currentTimeMillis())
+                .append(" first=").append(firstRun ? 1 : 0)
+                .append(" process=").append(micros(starts[0] - processStart));
+        for (int i = 0; i < phaseCount; i++) {
+            if (ends[i] < 0) {
+                // Never ended, e.g. skipped by an early return
+                continue;
+            }
+            line.append(' ').append(names[i]).append('=')
+                    .append(micros(starts[i] - processStart)).append('+').append(micros(ends[i] - starts[i]));
+        }
+        line.append(" total=").append(micros(end - processStart)).append('\n');
+
+        File log = new File(activity.getFilesDir(), LOG_FILE);
+        byte[] record = line.toString().getBytes(StandardCharsets.UTF_8);
+        new Thread(() -> append(log, record), "StartupTrace").start();
+    }
+
+    private static long micros(long nanos) {
+        return nanos / 1000;
+    }
+
+    private static void append(File log, byte[] record) {
+        try {
+            if (log.length() + record.length > MAX_LOG_BYTES) {
+                dropOlderHalf(log);
+            }
+            try (FileOutputStream out = new FileOutputStream(log, true)) {
+                out.write(record);
+            }
+        } catch (IOException e) {
+            // Timing is best effort; a lost record costs nothing
+        }
+    }
+
+    private static void dropOlderHalf(File log) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(log, "rw")) {
+            byte[] bytes = new byte[(int) file.length()];
+            file.readFully(bytes);
+            // Keep whole records from the middle on
+            int from = bytes.length / 2;
+            while (from < bytes.length && bytes[from - 1] != '\n') {
+                from++;
+            }
+            file.seek(0);
+            file.write(bytes, from, bytes.length - from);
+            file.setLength(bytes.length - from);
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package com.hypertron.hypernotes;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter that threads can bump at the same time without contending.
+ *
+ * Each thread adds to one of a few stripes, picked by thread id and spaced a
+ * cache line apart, so concurrent increments seldom touch the same line. The
+ * stripes are only summed when the value is read. Increments take no lock and
+ * allocate nothing.
+ */
+public final class StripedCounter {
+    // Longs per stripe: one in use, the rest padding out a 64-byte cache line
+    private static final int STRIDE = 8;
+
+    private final AtomicLongArray cells;
+    private final int mask;
+
+    public StripedCounter() {
+        int stripes = stripeCount();
+        this.cells = new AtomicLongArray(stripes * STRIDE);
+        this.mask = stripes - 1;
+    }
+
+    public void increment() {
+        add(1);
+    }
+
+    public void add(long delta) {
+        cells.getAndAdd(stripe() * STRIDE, delta);
+    }
+
+    /**
+     * Sum of every stripe. Not atomic with respect to concurrent updates.
+     */
+    public long sum() {
+        long sum = 0;
+        for (int i = 0; i < cells.length(); i += STRIDE) {
+            sum += cells.get(i);
+        }
+        return sum;
+    }
+
+    public void reset() {
+        for (int i = 0; i < cells.length(); i += STRIDE) {
+            cells.set(i, 0);
+        }
+    }
+
+    private int stripe() {
+        return (int) Thread.currentThread().getId() & mask;
+    }
+
+    /**
+     * Stripes to use: the processor count rounded up to a power of two, at most 4.
+     */
+    static int stripeCount() {
+        int processors = Math.min(Runtime.getRuntime().availableProcessors(), 4);
+        return Integer.highestOneBit(Math.max(processors, 1) * 2 - 1);
+    }
+}
@@ -0,0 +1,95 @@
+package com.hypertron.hypernotes;
+
+/**
+ * Every color the app draws with for one theme, light or dark, resolved once:
+ * the accent and its variants, the theme's background, toolbar and text, and
+ * each note color with text colors that read well on it.
+ *
+ * Immutable, so a palette can be shared with the threads that render cards.
+ * {@link PaletteService} builds and caches them.
+ */
+public final class ThemePalette {
+    // Alpha of secondary text, such as a card's date, over its card color
+    private static final int SECONDARY_TEXT_ALPHA = 0xB3;
+
+    private final boolean dark;
+    private final int accent;
+    private final int accentLight;
+    private final int accentDark;
+    private final int background;
+    private final int toolbar;
+    private final int onToolbar;
+    private final int textPrimary;
+    private final int textSecondary;
+    private final int[] noteColorResIds;
+    private final int[] noteColors;
+    private final int[] noteTextColors;
+    private final int[] noteSecondaryTextColors;
+
+    /**
+     * @param noteColors resolved colors of {@code noteColorResIds}, in the same order
+     */
+    public ThemePalette(boolean dark, int accent, int accentLight, int accentDark,
+                        int background, int toolbar, int onToolbar,
+                        int textPrimary, int textSecondary,
+                        int[] noteColorResIds, int[] noteColors) {
+        this.dark = dark;
+        this.accent = accent;
+        this.accentLight = accentLight;
+        this.accentDark = accentDark;
+        this.background = background;
+        this.toolbar = toolbar;
+        this.onToolbar = onToolbar;
+        this.textPrimary = textPrimary;
+        this.textSecondary = textSecondary;
+        this.noteColorResIds = noteColorResIds.clone();
+        this.noteColors = noteColors.clone();
+        this.noteTextColors = new int[noteColors.length];
+        this.noteSecondaryTextColors = new int[noteColors.length];
+        for (int i = 0; i < noteColors.length; i++) {
+            noteTextColors[i] = ColorMath.readableTextColor(noteColors[i]);
+            noteSecondaryTextColors[i] = ColorMath.withAlpha(noteTextColors[i], SECONDARY_TEXT_ALPHA);
+        }
+    }
+
+    public boolean isDark() { return dark; }
+    public int getAccent() { return accent; }
+    public int getAccentLight() { return accentLight; }
+    public int getAccentDark() { return accentDark; }
+    public int getBackground() { return background; }
+    public int getToolbar() { return toolbar; }
+    public int getOnToolbar() { return onToolbar; }
+    public int getTextPrimary() { return textPrimary; }
+    public int getTextSecondary() { return textSecondary; }
+
+    /**
+     * Card color for a note's colorResId; unknown ids get the first color.
+     */
+    public int noteColor(int colorResId) {
+        return noteColors[indexOf(colorResId)];
+    }
+
+    /**
+     * Text color for titles and symbols on {@link #noteColor}.
+     */
+    public int noteTextColor(int colorResId) {
+        return noteTextColors[indexOf(colorResId)];
+    }
+
+    /**
+     * Softer text color for dates and other details on {@link #noteColor}.
+     */
+    public int noteSecondaryTextColor(int colorResId) {
+        return noteSecondaryTextColors[indexOf(colorResId)];
+    }
+
+    // Only a handful of note colors, so a scan beats a map
+    private int indexOf(int colorResId) {
+        for (int i = 0; i < noteColorResIds.length; i++) {
+            if (noteColorResIds[i] == colorResId) {
+                return i;
+            }
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,105 @@
+package com.hypertron.hypernotes;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * In-process stand-in for a sync server, keeping the latest change to every
+ * note in memory and numbering changes as it accepts them. It settles
+ * conflicts with {@link NoteSync#merge}, like a real server. Exchanges can
+ * be made to fail, before or after the server has taken in their pushes.
+ * The benchmarks sync through it too.
+ */
+public final class LocalSyncServer implements NoteSync.Transport {
+
+    private static final class Record {
+        final NoteSync.Change change;
+        final long sequence;
+
+        Record(NoteSync.Change change, long sequence) {
+            this.change = change;
+            this.sequence = sequence;
+        }
+    }
+
+    private final Map<Long, Record> notes = new HashMap<>();
+    // Note id by the number of its latest change
+    private final TreeMap<Long, Long> changes = new TreeMap<>();
+    private long sequence;
+    private int exchanges;
+    // Exchange to fail, counting from 1, or 0 for none
+    private int failing;
+    private boolean failAfterPushes;
+
+    int size() {
+        return notes.size();
+    }
+
+    int getExchangeCount() {
+        return exchanges;
+    }
+
+    /**
+     * Fail the {@code exchange}th exchange from now, losing the request or,
+     * if {@code afterPushes}, only the response.
+     */
+    void failExchange(int exchange, boolean afterPushes) {
+        failing = exchanges + exchange;
+        failAfterPushes = afterPushes;
+    }
+
+    NoteSync.Change get(long id) {
+        Record record = notes.get(id);
+        return record != null ? record.change : null;
+    }
+
+    @Override
+    public synchronized byte[] exchange(byte[] requestBytes) throws IOException {
+        boolean fail = ++exchanges == failing;
+        if (fail && !failAfterPushes) {
+            throw new IOException("Connection reset");
+        }
+        NoteSync.Request request = NoteSync.decodeRequest(requestBytes);
+        for (NoteSync.Change pushed : request.changes) {
+            NoteSync.Change change = pushed.from(request.deviceId);
+            Record existing = notes.get(change.id);
+            if (existing != null) {
+                change = NoteSync.merge(existing.change, change, NoteSync.SERVER_ORIGIN);
+                if (change == existing.change) {
+                    continue;
+                }
+                changes.remove(existing.sequence);
+            }
+            notes.put(change.id, new Record(change, ++sequence));
+            changes.put(sequence, change.id);
+        }
+
+        List<NoteSync.Change> pulled = new ArrayList<>();
+        long cursor = sequence;
+        boolean more = false;
+        for (Map.Entry<Long, Long> entry : changes.tailMap(request.cursor, false).entrySet()) {
+            NoteSync.Change change = notes.get(entry.getValue()).change;
+            if (change.origin == request.deviceId) {
+                continue;
+            }
+            if (pulled.size() == request.pullLimit) {
+                more = true;
+                break;
+            }
+            pulled.add(change);
+            cursor = entry.getKey();
+        }
+        if (!more) {
+            cursor = sequence;
+        }
+        byte[] response = NoteSync.encodeResponse(new NoteSync.Response(cursor, more, pulled));
+        if (fail) {
+            throw new IOException("Connection reset");
+        }
+        return response;
+    }
+}
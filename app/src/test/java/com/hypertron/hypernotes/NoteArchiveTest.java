@@ -0,0 +1,78 @@
+package com.hypertron.hypernotes;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+public class NoteArchiveTest {
+
+    private static final int[] COLOR_RES_IDS = {1, 2, 3};
+
+    @Test
+    public void notesReadBackAsWritten() throws IOException {
+        Note plain = new Note(1700000000000L, "Groceries", "Milk, eggs\n", 1700000042000L, COLOR_RES_IDS[1]);
+        Note empty = new Note(2, "Empty", "", 2000, COLOR_RES_IDS[0]);
+        // Front matter lookalikes and line breaks in the title are the body's and the title's own
+        Note tricky = new Note(3, " Two\nlines \\ and a slash", "---\ntitle: not this one\n---\n", 3000,
+                COLOR_RES_IDS[2]);
+        tricky.setSymbolIndex(5);
+        tricky.setCustomEmoji("📌");
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (NoteArchive.Writer writer = new NoteArchive.Writer(bytes, COLOR_RES_IDS)) {
+            for (Note note : new Note[] {plain, empty, tricky}) {
+                writer.add(note, new StringReader(note.getContent()));
+            }
+        }
+
+        try (NoteArchive.Reader reader = new NoteArchive.Reader(
+                new ByteArrayInputStream(bytes.toByteArray()), COLOR_RES_IDS)) {
+            assertNote(plain, reader.next());
+            assertNote(empty, reader.next());
+            assertNote(tricky, reader.next());
+            assertNull(reader.next());
+        }
+    }
+
+    @Test
+    public void plainMarkdownIsTitledAfterItsFile() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ZipOutputStream zip = new ZipOutputStream(bytes)) {
+            zip.putNextEntry(new ZipEntry("Trip plan.md"));
+            zip.write("# Day one\n".getBytes(StandardCharsets.UTF_8));
+            zip.closeEntry();
+            zip.putNextEntry(new ZipEntry("photo.jpg"));
+            zip.write(new byte[] {1, 2, 3});
+            zip.closeEntry();
+        }
+
+        try (NoteArchive.Reader reader = new NoteArchive.Reader(
+                new ByteArrayInputStream(bytes.toByteArray()), COLOR_RES_IDS)) {
+            Note note = reader.next();
+            assertEquals(0, note.getId());
+            assertEquals("Trip plan", note.getTitle());
+            assertEquals("# Day one\n", note.getContent());
+            assertEquals(COLOR_RES_IDS[0], note.getColorResId());
+            assertNull(reader.next());
+        }
+    }
+
+    private static void assertNote(Note expected, Note actual) {
+        assertEquals(expected.getId(), actual.getId());
+        assertEquals(expected.getTitle(), actual.getTitle());
+        assertEquals(expected.getContent(), actual.getContent());
+        assertEquals(expected.getTimestamp(), actual.getTimestamp());
+        assertEquals(expected.getColorResId(), actual.getColorResId());
+        assertEquals(expected.getSymbolIndex(), actual.getSymbolIndex());
+        assertEquals(expected.getCustomEmoji(), actual.getCustomEmoji());
+    }
+}
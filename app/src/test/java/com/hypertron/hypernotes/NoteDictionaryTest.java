@@ -0,0 +1,72 @@
+package com.hypertron.hypernotes;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public class NoteDictionaryTest {
+
+    private final NoteCipher cipher = TestFiles.newCipher();
+    private File directory;
+
+    @Before
+    public void createDirectory() throws IOException {
+        directory = Files.createTempDirectory("hypernotes-dictionary").toFile();
+    }
+
+    @After
+    public void deleteDirectory() {
+        TestFiles.delete(directory);
+    }
+
+    @Test
+    public void compressesTheSameAfterReadingBack() throws IOException {
+        Random random = new Random(42);
+        List<byte[]> samples = new ArrayList<>();
+        long corpusBytes = 0;
+        for (int i = 0; i < 200; i++) {
+            byte[] sample = NoteStoreTest.sentences(random, 10).getBytes(StandardCharsets.UTF_8);
+            samples.add(sample);
+            corpusBytes += sample.length;
+        }
+        NoteDictionary trained = NoteDictionary.train(3, samples, corpusBytes);
+
+        for (NoteCipher with : new NoteCipher[] {null, cipher}) {
+            File file = new File(directory, "notes.dict.3");
+            trained.writeTo(file, with);
+            NoteDictionary read = NoteDictionary.read(file, with);
+            assertEquals(3, read.getId());
+            assertEquals(trained.size(), read.size());
+            assertEquals(corpusBytes, read.getTrainedBytes());
+
+            byte[] raw = NoteStoreTest.sentences(random, 20).getBytes(StandardCharsets.UTF_8);
+            byte[] packed = trained.compress(raw);
+            assertArrayEquals(raw, read.decompress(packed, 0, packed.length, raw.length));
+        }
+    }
+
+    @Test
+    public void sealedDictionaryNeedsItsCipher() throws IOException {
+        List<byte[]> samples = new ArrayList<>();
+        samples.add("A short note, kept whole".getBytes(StandardCharsets.UTF_8));
+        File file = new File(directory, "notes.dict.1");
+        NoteDictionary.train(1, samples, 24).writeTo(file, cipher);
+        try {
+            NoteDictionary.read(file);
+            fail("Read a sealed dictionary without a cipher");
+        } catch (IOException expected) {
+        }
+    }
+}
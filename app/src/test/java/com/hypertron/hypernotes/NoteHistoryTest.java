@@ -0,0 +1,83 @@
+package com.hypertron.hypernotes;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Random;
+
+import javax.crypto.spec.SecretKeySpec;
+
+public class NoteHistoryTest {
+
+    private final NoteCipher cipher = TestFiles.newCipher();
+    private File directory;
+
+    @Before
+    public void createDirectory() throws IOException {
+        directory = Files.createTempDirectory("hypernotes-history").toFile();
+    }
+
+    @After
+    public void deleteDirectory() {
+        TestFiles.delete(directory);
+    }
+
+    @Test
+    public void emptyBodyReadsBackAfterRestart() throws IOException {
+        new NoteHistory(directory, NoteHistory.DEFAULT_MAX_CHAIN, cipher).append(1, 1000, "Groceries", "");
+
+        NoteHistory reopened = new NoteHistory(directory, NoteHistory.DEFAULT_MAX_CHAIN, cipher);
+        assertEquals("", reopened.load(1, 0));
+        reopened.append(1, 2000, "Groceries", "milk");
+        assertEquals("milk", reopened.load(1, 1));
+        assertEquals(2, reopened.list(1).size());
+    }
+
+    @Test
+    public void everyRevisionReadsBackAfterRestart() throws IOException {
+        // A short chain, so the history has keyframes between runs of deltas
+        NoteHistory history = new NoteHistory(directory, 4, cipher);
+        Random random = new Random(42);
+        String[] contents = new String[30];
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < contents.length; i++) {
+            text.insert(random.nextInt(text.length() + 1), NoteStoreTest.sentences(random, 1));
+            contents[i] = text.toString();
+            history.append(1, 1000 + i, "Title " + (i / 10), contents[i]);
+        }
+        // Nothing new, so nothing written
+        history.append(1, 5000, "Title 2", contents[contents.length - 1]);
+
+        NoteHistory reopened = new NoteHistory(directory, 4, cipher);
+        List<NoteHistory.Revision> revisions = reopened.list(1);
+        assertEquals(contents.length, revisions.size());
+        for (int i = 0; i < contents.length; i++) {
+            assertEquals(i, revisions.get(i).number);
+            assertEquals(1000 + i, revisions.get(i).timestamp);
+            assertEquals("Title " + (i / 10), revisions.get(i).title);
+            assertEquals(contents[i], reopened.load(1, i));
+        }
+    }
+
+    @Test
+    public void historyDoesNotOpenWithAnotherKey() throws IOException {
+        new NoteHistory(directory, NoteHistory.DEFAULT_MAX_CHAIN, cipher).append(1, 1000, "Secret", "Only for this key");
+        byte[] key = new byte[32];
+        new Random(7).nextBytes(key);
+        NoteHistory other = new NoteHistory(directory, NoteHistory.DEFAULT_MAX_CHAIN,
+                new NoteCipher(new SecretKeySpec(key, "AES")));
+        try {
+            other.load(1, 0);
+            fail("Opened with another key");
+        } catch (IOException expected) {
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package com.hypertron.hypernotes;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+
+public class NoteJournalTest {
+
+    private final NoteCipher cipher = TestFiles.newCipher();
+    private File directory;
+
+    @Before
+    public void createDirectory() throws IOException {
+        directory = Files.createTempDirectory("hypernotes-journal").toFile();
+    }
+
+    @After
+    public void deleteDirectory() {
+        TestFiles.delete(directory);
+    }
+
+    @Test
+    public void entriesReplayAfterRestart() throws IOException {
+        NoteJournal journal = new NoteJournal(directory, cipher);
+        NoteDocument document = new NoteDocument("Buy bread");
+        document.insert(0, "Today: ");
+        journal.append(1, 3, NoteJournal.Entry.capture(null, document));
+        document.markSaved();
+        document.replace(7, 3, "Sell", 0, 4);
+        document.insert(document.length(), " ✓");
+        journal.append(1, 3, NoteJournal.Entry.capture("Ünïcödé", document));
+        document.markSaved();
+
+        NoteJournal reopened = new NoteJournal(directory, cipher);
+        NoteJournal.Replay replay = reopened.replay(1, 3, "Buy bread");
+        assertEquals("Ünïcödé", replay.title);
+        assertEquals("Today: Sell bread ✓", replay.content);
+        assertEquals(document.toString(), replay.content);
+        // Kept for version 3 of the note, so of no use to any other
+        assertNull(reopened.replay(1, 4, "Buy bread"));
+        assertNull(reopened.replay(2, 3, "Buy bread"));
+    }
+
+    @Test
+    public void tornLengthIsTreatedAsTornTail() throws IOException {
+        NoteJournal journal = new NoteJournal(directory, cipher);
+        NoteDocument document = new NoteDocument("Buy bread");
+        document.insert(9, " and milk");
+        journal.append(1, 3, NoteJournal.Entry.capture("Groceries", document));
+        document.markSaved();
+
+        // A crash mid-append left a header claiming nearly 2 GB
+        File file = new File(directory, "1.jnl");
+        try (RandomAccessFile torn = new RandomAccessFile(file, "rw")) {
+            torn.seek(torn.length());
+            torn.writeInt(Integer.MAX_VALUE - 8);
+            torn.writeInt(0);
+            torn.write(new byte[16]);
+        }
+        assertEquals("Buy bread and milk", journal.replay(1, 3, "Buy bread").content);
+
+        document.delete(0, 4);
+        journal.append(1, 3, NoteJournal.Entry.capture(null, document));
+        NoteJournal.Replay replay = new NoteJournal(directory, cipher).replay(1, 3, "Buy bread");
+        assertEquals("Groceries", replay.title);
+        assertEquals("bread and milk", replay.content);
+    }
+}
@@ -0,0 +1,66 @@
+package com.hypertron.hypernotes;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+public class NoteSnapshotTest {
+
+    private static final int[] COLOR_RES_IDS = {1, 2, 3};
+
+    private final NoteCipher cipher = TestFiles.newCipher();
+    private File directory;
+
+    @Before
+    public void createDirectory() throws IOException {
+        directory = Files.createTempDirectory("hypernotes-snapshot").toFile();
+    }
+
+    @After
+    public void deleteDirectory() {
+        TestFiles.delete(directory);
+    }
+
+    @Test
+    public void rowsReadBackAsWritten() throws IOException {
+        File file = new File(directory, "notes.meta");
+        NoteSnapshot.Writer writer = new NoteSnapshot.Writer(2);
+        writer.add(7, 2000, 16, 120, 2, 4, "Ünïcödé ✓", "📌", 3);
+        writer.add(3, 1000, 136, 64, 0, -1, "", null, 1);
+        writer.writeTo(file, 42, 200, 184, cipher);
+
+        NoteSnapshot snapshot = NoteSnapshot.map(file, COLOR_RES_IDS, cipher);
+        assertEquals(42, snapshot.getGeneration());
+        assertEquals(200, snapshot.getLogLength());
+        assertEquals(184, snapshot.getLiveBytes());
+        assertEquals(2, snapshot.size());
+        assertEquals(7, snapshot.getMaxId());
+
+        int row = snapshot.indexOf(7);
+        assertEquals(0, row);
+        assertEquals(16, snapshot.getRecordOffset(row));
+        assertEquals(120, snapshot.getRecordSize(row));
+        Note note = snapshot.getNote(row);
+        assertEquals("Ünïcödé ✓", note.getTitle());
+        assertEquals(2000, note.getTimestamp());
+        assertEquals(COLOR_RES_IDS[2], note.getColorResId());
+        assertEquals(4, note.getSymbolIndex());
+        assertEquals("📌", note.getCustomEmoji());
+        assertEquals(3, note.getVersion());
+
+        row = snapshot.indexOf(3);
+        assertEquals(1, row);
+        assertEquals("", snapshot.getTitle(row));
+        assertFalse(snapshot.hasCustomEmoji(row));
+        assertNull(snapshot.getNote(row).getCustomEmoji());
+        assertEquals(-1, snapshot.indexOf(5));
+    }
+}
@@ -0,0 +1,221 @@
+package com.hypertron.hypernotes;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Random;
+
+import javax.crypto.spec.SecretKeySpec;
+
+public class NoteStoreTest {
+
+    private static final int[] COLOR_RES_IDS = {1, 2, 3};
+
+    private final NoteCipher cipher = TestFiles.newCipher();
+    private File directory;
+
+    @Before
+    public void createDirectory() throws IOException {
+        directory = Files.createTempDirectory("hypernotes-store").toFile();
+    }
+
+    @After
+    public void deleteDirectory() {
+        TestFiles.delete(directory);
+    }
+
+    @Test
+    public void logReplaysAfterRestart() throws IOException {
+        Note plain = note(1, "Groceries", "Milk, eggs", 1000);
+        Note empty = note(2, "Empty", "", 2000);
+        Note marked = note(3, "Ünïcödé ✓", "Line one\nLine two — with a dash", 3000);
+        marked.setSymbolIndex(4);
+        marked.setCustomEmoji("📌");
+        try (NoteStore store = open()) {
+            store.put(plain);
+            store.put(empty);
+            store.put(marked);
+            store.put(note(4, "Gone", "Deleted before the restart", 4000));
+            store.delete(4);
+            plain = note(1, "Groceries", "Milk, eggs, bread", 5000);
+            store.put(plain);
+        }
+
+        try (NoteStore store = open()) {
+            assertEquals(3, store.size());
+            assertNote(plain, store);
+            assertNote(empty, store);
+            assertNote(marked, store);
+            assertNull(store.get(4));
+        }
+    }
+
+    @Test
+    public void snapshotAndLogAfterItReplayAfterRestart() throws IOException {
+        try (NoteStore store = open()) {
+            for (long id = 1; id <= 20; id++) {
+                store.put(note(id, "Note " + id, "Body of note " + id, 1000 + id));
+            }
+            store.checkpoint();
+            store.put(note(21, "After", "Written after the snapshot", 3000));
+            store.put(note(5, "Edited", "Edited after the snapshot", 4000));
+            store.delete(6);
+        }
+
+        try (NoteStore store = open()) {
+            assertEquals(20, store.size());
+            assertNote(note(21, "After", "Written after the snapshot", 3000), store);
+            assertNote(note(5, "Edited", "Edited after the snapshot", 4000), store);
+            assertNull(store.get(6));
+            assertNote(note(7, "Note 7", "Body of note 7", 1007), store);
+            // Newest first, from the snapshot's order merged with the records after it
+            assertEquals(5, store.getAll().get(0).getId());
+        }
+    }
+
+    @Test
+    public void compactedLogReplaysAfterRestart() throws IOException {
+        try (NoteStore store = open()) {
+            for (int round = 0; round < 5; round++) {
+                for (long id = 1; id <= 20; id++) {
+                    store.put(note(id, "Note " + id, "Round " + round + " of note " + id, 1000 * round + id));
+                }
+            }
+            store.compact();
+            store.put(note(3, "Note 3", "After the compaction", 9000));
+        }
+
+        try (NoteStore store = open()) {
+            assertEquals(20, store.size());
+            assertNote(note(3, "Note 3", "After the compaction", 9000), store);
+            assertNote(note(12, "Note 12", "Round 4 of note 12", 4012), store);
+        }
+    }
+
+    @Test
+    public void dictionaryCompressedRecordsReplayAfterRestart() throws IOException {
+        Random random = new Random(42);
+        Note[] notes = new Note[200];
+        try (NoteStore store = open()) {
+            for (int i = 0; i < 100; i++) {
+                notes[i] = note(i + 1, "Note " + i, sentences(random, 30), 1000 + i);
+                store.put(notes[i]);
+            }
+            assertTrue(store.needsTraining());
+            store.trainDictionary();
+            for (int i = 100; i < 200; i++) {
+                notes[i] = note(i + 1, "Note " + i, sentences(random, 30), 1000 + i);
+                store.put(notes[i]);
+            }
+        }
+
+        try (NoteStore store = open()) {
+            for (Note note : notes) {
+                assertNote(note, store);
+            }
+            // Re-encodes the records written before training
+            store.compact();
+        }
+        try (NoteStore store = open()) {
+            for (Note note : notes) {
+                assertNote(note, store);
+            }
+        }
+    }
+
+    @Test
+    public void storeWrittenInTheClearIsSealedInPlace() throws IOException {
+        try (NoteStore store = NoteStore.open(directory, COLOR_RES_IDS)) {
+            store.put(note(1, "Plain", "Written in the clear", 1000));
+        }
+
+        try (NoteStore store = open()) {
+            assertTrue(store.needsSealing());
+            // Readable as it is, and records written meanwhile are sealed already
+            assertNote(note(1, "Plain", "Written in the clear", 1000), store);
+            store.put(note(2, "Sealed", "Written with a cipher", 2000));
+        }
+        try (NoteStore store = open()) {
+            assertTrue(store.needsSealing());
+            store.seal();
+            assertFalse(store.needsSealing());
+        }
+
+        String log = new String(Files.readAllBytes(new File(directory, "notes.log").toPath()),
+                StandardCharsets.ISO_8859_1);
+        assertFalse(log.contains("Written in the clear"));
+        try (NoteStore store = open()) {
+            assertFalse(store.needsSealing());
+            assertNote(note(1, "Plain", "Written in the clear", 1000), store);
+            assertNote(note(2, "Sealed", "Written with a cipher", 2000), store);
+        }
+        try {
+            NoteStore.open(directory, COLOR_RES_IDS).close();
+            fail("Sealed store opened without a cipher");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void sealedStoreDoesNotOpenWithAnotherKey() throws IOException {
+        try (NoteStore store = open()) {
+            store.put(note(1, "Secret", "Only for this key", 1000));
+        }
+        byte[] key = new byte[32];
+        new Random(7).nextBytes(key);
+        try {
+            NoteStore.open(directory, COLOR_RES_IDS, new NoteCipher(new SecretKeySpec(key, "AES"))).close();
+            fail("Opened with another key");
+        } catch (IOException expected) {
+        }
+        // Left as it was
+        try (NoteStore store = open()) {
+            assertNote(note(1, "Secret", "Only for this key", 1000), store);
+        }
+    }
+
+    private NoteStore open() throws IOException {
+        return NoteStore.open(directory, COLOR_RES_IDS, cipher);
+    }
+
+    private static Note note(long id, String title, String content, long timestamp) {
+        return new Note(id, title, content, timestamp, COLOR_RES_IDS[(int) (id % COLOR_RES_IDS.length)]);
+    }
+
+    private static void assertNote(Note expected, NoteStore store) throws IOException {
+        Note actual = store.get(expected.getId());
+        assertEquals(expected.getTitle(), actual.getTitle());
+        assertEquals(expected.getTimestamp(), actual.getTimestamp());
+        assertEquals(expected.getColorResId(), actual.getColorResId());
+        assertEquals(expected.getSymbolIndex(), actual.getSymbolIndex());
+        assertEquals(expected.getCustomEmoji(), actual.getCustomEmoji());
+        assertEquals(expected.getContent(), store.getContent(expected.getId()));
+    }
+
+    private static final String[] WORDS = {
+        "meeting", "notes", "project", "milk", "call", "back", "review", "draft", "idea", "garden",
+        "the", "and", "with", "tomorrow", "list", "plan", "budget", "trip", "book", "recipe"
+    };
+
+    static String sentences(Random random, int count) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            for (int word = 0; word < 8; word++) {
+                text.append(WORDS[random.nextInt(WORDS.length)]).append(word < 7 ? ' ' : '.');
+            }
+            text.append(i % 5 == 4 ? "\n\n" : " ");
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,309 @@
+package com.hypertron.hypernotes;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+public class NoteSyncTest {
+
+    private static final int[] COLOR_RES_IDS = {1, 2, 3};
+
+    private final LocalSyncServer server = new LocalSyncServer();
+    private final List<Device> devices = new ArrayList<>();
+
+    @After
+    public void deleteDevices() {
+        for (Device device : devices) {
+            TestFiles.delete(device.directory);
+        }
+    }
+
+    @Test
+    public void pushResumesAfterRequestIsLost() throws IOException {
+        pushResumesAfterFailure(false);
+    }
+
+    @Test
+    public void pushResumesAfterResponseIsLost() throws IOException {
+        pushResumesAfterFailure(true);
+    }
+
+    // Three exchanges' worth of notes, with the second exchange failing
+    private void pushResumesAfterFailure(boolean afterPushes) throws IOException {
+        Device first = newDevice();
+        int count = NoteSync.PUSH_BATCH * 2 + 44;
+        for (long id = 1; id <= count; id++) {
+            first.save(new Note(id, "Note " + id, "Body of note " + id, 1000 + id, COLOR_RES_IDS[0]));
+        }
+        server.failExchange(2, afterPushes);
+        try {
+            first.sync();
+            fail("Exchange didn't fail");
+        } catch (IOException expected) {
+        }
+        // The first exchange is settled, and nothing after it
+        assertEquals(count - NoteSync.PUSH_BATCH, first.sync.getPendingCount());
+
+        first.sync();
+        assertEquals(0, first.sync.getPendingCount());
+        assertEquals(count, server.size());
+
+        Device second = newDevice();
+        second.sync();
+        assertEquals(first.notes.keySet(), second.notes.keySet());
+        for (Note note : first.notes.values()) {
+            assertEquals(note.getContent(), second.notes.get(note.getId()).getContent());
+        }
+    }
+
+    @Test
+    public void pullResumesAfterResponseIsLost() throws IOException {
+        Device first = newDevice();
+        int count = NoteSync.PULL_LIMIT * 2 + 10;
+        for (long id = 1; id <= count; id++) {
+            first.save(new Note(id, "Note " + id, "Body of note " + id, 1000 + id, COLOR_RES_IDS[0]));
+        }
+        first.sync();
+
+        Device second = newDevice();
+        server.failExchange(2, true);
+        try {
+            second.sync();
+            fail("Exchange didn't fail");
+        } catch (IOException expected) {
+        }
+        assertEquals(NoteSync.PULL_LIMIT, second.notes.size());
+        second.sync();
+        assertEquals(count, second.notes.size());
+        assertEquals(first.sync.getCursor(), second.sync.getCursor());
+    }
+
+    @Test
+    public void laterDeletionWinsOverConcurrentEdit() throws IOException {
+        Device first = newDevice();
+        Device second = newDevice();
+        first.save(new Note(1, "Shared", "Written on the first device", 1000, COLOR_RES_IDS[0]));
+        first.sync();
+        second.sync();
+
+        first.save(new Note(1, "Shared", "Edited on the first device", 2000, COLOR_RES_IDS[0]));
+        second.delete(1, 3000);
+        first.sync();
+        second.sync();
+        first.sync();
+
+        assertNull(first.notes.get(1L));
+        assertNull(second.notes.get(1L));
+        assertTrue(server.get(1).deleted);
+    }
+
+    @Test
+    public void laterEditWinsOverConcurrentDeletion() throws IOException {
+        Device first = newDevice();
+        Device second = newDevice();
+        first.save(new Note(1, "Shared", "Written on the first device", 1000, COLOR_RES_IDS[0]));
+        first.sync();
+        second.sync();
+
+        second.delete(1, 2000);
+        first.save(new Note(1, "Shared", "Edited on the first device", 3000, COLOR_RES_IDS[0]));
+        second.sync();
+        first.sync();
+        second.sync();
+
+        assertEquals("Edited on the first device", first.notes.get(1L).getContent());
+        assertNotNull(second.notes.get(1L));
+        assertEquals("Edited on the first device", second.notes.get(1L).getContent());
+    }
+
+    @Test
+    public void mergeIsSymmetric() throws IOException {
+        String base = "The quick brown fox jumps over the lazy dog.";
+        NoteSync.Change original = new NoteSync.Change(1, 1000, 7, false, "Fox", base, 0, -1, null, null);
+        NoteSync.Change first = edit(original, 2000, 11, "The very quick brown fox jumps over the lazy dog.");
+        NoteSync.Change second = edit(original, 3000, 13, "The quick brown fox jumps over the sleeping dog.");
+
+        NoteSync.Change forward = NoteSync.merge(first, second, NoteSync.SERVER_ORIGIN);
+        NoteSync.Change backward = NoteSync.merge(second, first, NoteSync.SERVER_ORIGIN);
+        assertEquals("The very quick brown fox jumps over the sleeping dog.", forward.content);
+        assertEquals(forward.content, backward.content);
+        assertArrayEquals(forward.text, backward.text);
+        assertEquals(forward.modified, backward.modified);
+        assertEquals(forward.origin, backward.origin);
+    }
+
+    @Test
+    public void concurrentEditsConvergeOnBothDevices() throws IOException {
+        Device first = newDevice();
+        Device second = newDevice();
+        first.save(new Note(1, "Fox", "The quick brown fox jumps over the lazy dog.", 1000, COLOR_RES_IDS[0]));
+        first.sync();
+        second.sync();
+
+        first.save(new Note(1, "Fox", "The very quick brown fox jumps over the lazy dog.", 2000, COLOR_RES_IDS[0]));
+        second.save(new Note(1, "Fox", "The quick brown fox jumps over the sleeping dog.", 3000, COLOR_RES_IDS[0]));
+        first.sync();
+        second.sync();
+        first.sync();
+
+        assertEquals("The very quick brown fox jumps over the sleeping dog.", first.notes.get(1L).getContent());
+        assertEquals(first.notes.get(1L).getContent(), second.notes.get(1L).getContent());
+        assertEquals(0, first.sync.getPendingCount());
+        assertEquals(0, second.sync.getPendingCount());
+    }
+
+    @Test
+    public void changeTurnedDownIsAppliedOnceTheNoteIsFree() throws IOException {
+        Device first = newDevice();
+        Device second = newDevice();
+        first.save(new Note(1, "Shared", "Written on the first device", 1000, COLOR_RES_IDS[0]));
+        first.sync();
+        second.sync();
+
+        first.save(new Note(1, "Shared", "Written again on the first device", 2000, COLOR_RES_IDS[0]));
+        first.sync();
+        second.busy.add(1L);
+        second.sync();
+        assertEquals("Written on the first device", second.notes.get(1L).getContent());
+
+        // Kept across a restart, though the cursor has moved past it
+        second.reopen();
+        second.busy.clear();
+        second.sync();
+        assertEquals("Written again on the first device", second.notes.get(1L).getContent());
+    }
+
+    @Test
+    public void changeWithoutBodyIsRejected() throws IOException {
+        Device device = newDevice();
+        NoteSync.Change broken = new NoteSync.Change(1, 1000, 7, false, "Title", null, 0, -1, null, null);
+        byte[] response = NoteSync.encodeResponse(
+                new NoteSync.Response(5, false, Collections.singletonList(broken)));
+        try {
+            device.sync.sync(request -> response, device, null);
+            fail("Took a change without a body");
+        } catch (IOException expected) {
+        }
+        // Nothing applied, and pulled again next time
+        assertNull(device.notes.get(1L));
+        assertEquals(0, device.sync.getCursor());
+    }
+
+    private static NoteSync.Change edit(NoteSync.Change change, long modified, long origin, String content)
+            throws IOException {
+        NoteText text = NoteSync.textOf(change);
+        text.update(change.content, content, origin);
+        return new NoteSync.Change(change.id, modified, origin, false, change.title, content, change.colorIndex,
+                change.symbolIndex, change.customEmoji, text.encode());
+    }
+
+    private Device newDevice() throws IOException {
+        Device device = new Device();
+        devices.add(device);
+        return device;
+    }
+
+    /**
+     * A device's notes, in memory, with the sync state on disk.
+     */
+    private final class Device implements NoteSync.Local {
+        final File directory;
+        NoteSync sync;
+        final Map<Long, Note> notes = new HashMap<>();
+        // Every version of every note's body, as the note history keeps them
+        final Map<Long, TreeMap<Long, String>> revisions = new HashMap<>();
+        // Notes being edited, which pulled changes must leave alone
+        final Set<Long> busy = new HashSet<>();
+
+        Device() throws IOException {
+            directory = Files.createTempDirectory("hypernotes-sync").toFile();
+            sync = NoteSync.open(directory, COLOR_RES_IDS);
+        }
+
+        void reopen() throws IOException {
+            sync = NoteSync.open(directory, COLOR_RES_IDS);
+        }
+
+        void save(Note note) {
+            Note previous = notes.put(note.getId(), note);
+            record(note);
+            sync.markChanged(note.getId(), previous != null ? previous.getTimestamp() : 0);
+        }
+
+        void delete(long id, long deletedAt) {
+            notes.remove(id);
+            revisions.remove(id);
+            sync.markDeleted(id, deletedAt);
+        }
+
+        void sync() throws IOException {
+            sync.sync(server, this, null);
+        }
+
+        private void record(Note note) {
+            revisions.computeIfAbsent(note.getId(), id -> new TreeMap<>()).put(note.getTimestamp(), note.getContent());
+        }
+
+        @Override
+        public Note load(long id) {
+            return notes.get(id);
+        }
+
+        @Override
+        public long modifiedAt(long id) {
+            Note note = notes.get(id);
+            return note != null ? note.getTimestamp() : -1;
+        }
+
+        @Override
+        public String revision(long id, long modified) {
+            TreeMap<Long, String> versions = revisions.get(id);
+            Map.Entry<Long, String> version = versions != null ? versions.floorEntry(modified) : null;
+            return version != null ? version.getValue() : null;
+        }
+
+        @Override
+        public long[] apply(List<Note> saved, long[] deleted) {
+            List<Long> skipped = new ArrayList<>();
+            for (Note note : saved) {
+                if (busy.contains(note.getId())) {
+                    skipped.add(note.getId());
+                    continue;
+                }
+                notes.put(note.getId(), note);
+                record(note);
+            }
+            for (long id : deleted) {
+                if (busy.contains(id)) {
+                    skipped.add(id);
+                    continue;
+                }
+                notes.remove(id);
+                revisions.remove(id);
+            }
+            long[] ids = new long[skipped.size()];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = skipped.get(i);
+            }
+            return ids;
+        }
+    }
+}
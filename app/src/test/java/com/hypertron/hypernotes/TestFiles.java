@@ -0,0 +1,31 @@
+package com.hypertron.hypernotes;
+
+import java.io.File;
+import java.util.Random;
+
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Temporary directories and keys shared by the tests.
+ */
+final class TestFiles {
+
+    private TestFiles() {}
+
+    static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    // The same key every run, so a failure can be replayed
+    static NoteCipher newCipher() {
+        byte[] key = new byte[32];
+        new Random(42).nextBytes(key);
+        return new NoteCipher(new SecretKeySpec(key, "AES"));
+    }
+}
@@ -0,0 +1,60 @@
+package com.hypertron.hypernotes.benchmark;
+
+import com.hypertron.hypernotes.ColorMath;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The accent variant math from the accent color screen, over {@code corpusSize} colors.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ColorMathBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    public int corpusSize;
+
+    private int[] colors;
+
+    @Setup
+    public void createColors() {
+        Random random = new Random(42);
+        colors = new int[corpusSize];
+        for (int i = 0; i < corpusSize; i++) {
+            colors[i] = 0xFF000000 | random.nextInt(0x1000000);
+        }
+    }
+
+    @Benchmark
+    public void lighter(Blackhole blackhole) {
+        for (int color : colors) {
+            blackhole.consume(ColorMath.lighter(color));
+        }
+    }
+
+    @Benchmark
+    public void darker(Blackhole blackhole) {
+        for (int color : colors) {
+            blackhole.consume(ColorMath.darker(color));
+        }
+    }
+
+    @Benchmark
+    public void readableTextColor(Blackhole blackhole) {
+        for (int color : colors) {
+            blackhole.consume(ColorMath.readableTextColor(color));
+        }
+    }
+}
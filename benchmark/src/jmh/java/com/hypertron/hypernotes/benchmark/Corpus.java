@@ -0,0 +1,68 @@
+package com.hypertron.hypernotes.benchmark;
+
+import com.hypertron.hypernotes.Note;
+
+import java.util.Random;
+
+/**
+ * Deterministic synthetic notes, so runs at the same corpus size are comparable.
+ */
+final class Corpus {
+    // Stand-ins for the R.color.note_* ids; the store only needs them to be distinct
+    static final int[] COLOR_RES_IDS = {
+        0x7f050010, 0x7f050011, 0x7f050012, 0x7f050013,
+        0x7f050014, 0x7f050015, 0x7f050016, 0x7f050017
+    };
+
+    // ARGB of each palette entry, standing in for the resource lookup
+    static final int[] COLORS = {
+        0xFFBBDEFB, 0xFFC8E6C9, 0xFFFFF9C4, 0xFFFFE0B2,
+        0xFFFFCDD2, 0xFFE1BEE7, 0xFFF8BBD0, 0xFFB2DFDB
+    };
+
+    static final int SYMBOL_COUNT = 24;
+
+    private static final String[] WORDS = {
+        "meeting", "grocery", "idea", "project", "deadline", "call", "recipe", "book",
+        "travel", "budget", "draft", "review", "garden", "workout", "birthday", "invoice",
+        "lecture", "notes", "plan", "shopping", "movie", "repair", "weekend", "report"
+    };
+
+    // Notes are a minute apart, ending at a fixed point in time
+    private static final long START_TIME = 1_700_000_000_000L;
+
+    private Corpus() {
+    }
+
+    static Note[] notes(int count, long seed) {
+        Random random = new Random(seed);
+        Note[] notes = new Note[count];
+        for (int i = 0; i < count; i++) {
+            notes[i] = note(random, START_TIME + i * 60_000L + random.nextInt(60_000), i);
+        }
+        return notes;
+    }
+
+    static Note note(Random random, long id, int index) {
+        Note note = new Note(id, sentence(random, 2 + random.nextInt(4)),
+                sentence(random, 20 + random.nextInt(200)), id,
+                COLOR_RES_IDS[random.nextInt(COLOR_RES_IDS.length)]);
+        // Roughly half the notes ask for a random symbol, like the create screen's default
+        note.setSymbolIndex(random.nextBoolean() ? -1 : random.nextInt(SYMBOL_COUNT));
+        if (index % 10 == 0) {
+            note.setCustomEmoji("📌");
+        }
+        return note;
+    }
+
+    static String sentence(Random random, int words) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < words; i++) {
+            if (i > 0) {
+                text.append(' ');
+            }
+            text.append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,62 @@
+package com.hypertron.hypernotes.benchmark;
+
+import com.hypertron.hypernotes.LatencyHistogram;
+import com.hypertron.hypernotes.StripedCounter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cost of recording a metric on a hot path, from one thread and from four at
+ * once, against a single shared AtomicLong.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class MetricsBenchmark {
+
+    private final LatencyHistogram histogram = new LatencyHistogram();
+    private final StripedCounter counter = new StripedCounter();
+    private final AtomicLong atomic = new AtomicLong();
+    private long value = 12_345;
+
+    @Benchmark
+    public void record() {
+        // Spread the values over a few buckets, as real timings are
+        value = value * 31 + 7 & 0xFFFFF;
+        histogram.record(value);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void recordContended() {
+        histogram.record(50_000);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void incrementContended() {
+        counter.increment();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void incrementAtomicContended() {
+        atomic.incrementAndGet();
+    }
+
+    @Benchmark
+    public void snapshot(Blackhole blackhole) {
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        blackhole.consume(snapshot.valueAt(0.99));
+    }
+}
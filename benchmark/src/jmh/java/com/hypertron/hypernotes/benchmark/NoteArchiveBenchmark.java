@@ -0,0 +1,123 @@
+package com.hypertron.hypernotes.benchmark;
+
+import com.hypertron.hypernotes.Note;
+import com.hypertron.hypernotes.NoteArchive;
+import com.hypertron.hypernotes.NoteStore;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Exporting {@code corpusSize} notes to an archive, reading them back, and
+ * importing them into an empty store in batches the way the app does.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class NoteArchiveBenchmark {
+
+    // Same batching as NoteRepository.importNotes
+    private static final int IMPORT_BATCH = 512;
+    private static final int IMPORT_CHECKPOINT = 16 * 1024;
+
+    @Param({"10000", "100000"})
+    public int corpusSize;
+
+    private Note[] corpus;
+    private byte[] archive;
+    private File directory;
+    private NoteStore store;
+
+    @Setup(Level.Trial)
+    public void createArchive() throws IOException {
+        corpus = Corpus.notes(corpusSize, 42);
+        archive = export();
+    }
+
+    @Setup(Level.Invocation)
+    public void createStore() throws IOException {
+        directory = Files.createTempDirectory("hypernotes-bench").toFile();
+        store = NoteStore.open(directory, Corpus.COLOR_RES_IDS);
+    }
+
+    @TearDown(Level.Invocation)
+    public void deleteStore() throws IOException {
+        store.close();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Benchmark
+    public byte[] exportAll() throws IOException {
+        return export();
+    }
+
+    private byte[] export() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (NoteArchive.Writer writer = new NoteArchive.Writer(out, Corpus.COLOR_RES_IDS)) {
+            for (Note note : corpus) {
+                writer.add(note, new StringReader(note.getContent()));
+            }
+        }
+        return out.toByteArray();
+    }
+
+    @Benchmark
+    public void readAll(Blackhole blackhole) throws IOException {
+        try (NoteArchive.Reader reader = new NoteArchive.Reader(
+                new ByteArrayInputStream(archive), Corpus.COLOR_RES_IDS)) {
+            Note note;
+            while ((note = reader.next()) != null) {
+                blackhole.consume(note);
+            }
+        }
+    }
+
+    @Benchmark
+    public int importAll() throws IOException {
+        try (NoteArchive.Reader reader = new NoteArchive.Reader(
+                new ByteArrayInputStream(archive), Corpus.COLOR_RES_IDS)) {
+            List<Note> batch = new ArrayList<>(IMPORT_BATCH);
+            int imported = 0;
+            Note note;
+            while ((note = reader.next()) != null) {
+                batch.add(note);
+                if (batch.size() == IMPORT_BATCH) {
+                    store.stageAll(batch);
+                    store.flush();
+                    batch.clear();
+                }
+                if (++imported % IMPORT_CHECKPOINT == 0) {
+                    store.checkpoint();
+                }
+            }
+            store.stageAll(batch);
+            store.checkpoint();
+            return imported;
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package com.hypertron.hypernotes.benchmark;
+
+import com.hypertron.hypernotes.Note;
+import com.hypertron.hypernotes.NoteCard;
+import com.hypertron.hypernotes.ThemePalette;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The per-card work of the note grid: picking a symbol, resolving the colors
+ * and formatting the date, and recoloring the cards when the theme changes.
+ * The palettes are built from fixed colors, since Android resources aren't
+ * available on the JVM.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class NoteCardBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    public int corpusSize;
+
+    private Note[] notes;
+    private String[] symbols;
+    private ThemePalette light;
+    private ThemePalette dark;
+    private NoteCard[] cards;
+    private final SimpleDateFormat dateFormat = new SimpleDateFormat("MMM dd, yyyy", Locale.US);
+    private final Date date = new Date();
+
+    @Setup
+    public void createNotes() {
+        notes = Corpus.notes(corpusSize, 42);
+        symbols = new String[Corpus.SYMBOL_COUNT];
+        for (int i = 0; i < symbols.length; i++) {
+            symbols[i] = new String(Character.toChars(0x1F4C0 + i));
+        }
+        light = new ThemePalette(false, 0xFF03DAC5, 0xFF4DEFE0, 0xFF00B5A3,
+                0xFFFFFFFF, 0xFFFFFFFF, 0xFF000000, 0xFF333333, 0xFF777777,
+                Corpus.COLOR_RES_IDS, Corpus.COLORS);
+        dark = new ThemePalette(true, 0xFF03DAC5, 0xFF4DEFE0, 0xFF00B5A3,
+                0xFF000000, 0xFF000000, 0xFFFFFFFF, 0xFFFFFFFF, 0xFFBBBBBB,
+                Corpus.COLOR_RES_IDS, Corpus.COLORS);
+        cards = new NoteCard[notes.length];
+        for (int i = 0; i < notes.length; i++) {
+            cards[i] = new NoteCard(notes[i].getVersion(), "", "", light, notes[i].getColorResId());
+        }
+    }
+
+    /**
+     * Symbol and color for every card, the part that runs on each rebind.
+     */
+    @Benchmark
+    public void resolveSymbolsAndColors(Blackhole blackhole) {
+        for (Note note : notes) {
+            String symbol = note.getCustomEmoji() != null
+                    ? note.getCustomEmoji()
+                    : symbols[NoteCard.symbolIndexFor(note, symbols.length)];
+            blackhole.consume(symbol);
+            blackhole.consume(light.noteColor(note.getColorResId()));
+            blackhole.consume(light.noteTextColor(note.getColorResId()));
+        }
+    }
+
+    /**
+     * Full card models for every note, as the page loader renders them.
+     */
+    @Benchmark
+    public void renderCards(Blackhole blackhole) {
+        for (Note note : notes) {
+            date.setTime(note.getTimestamp());
+            String symbol = note.getCustomEmoji() != null
+                    ? note.getCustomEmoji()
+                    : symbols[NoteCard.symbolIndexFor(note, symbols.length)];
+            blackhole.consume(new NoteCard(note.getVersion(), dateFormat.format(date), symbol,
+                    light, note.getColorResId()));
+        }
+    }
+
+    /**
+     * Every card switched to the dark palette, as a theme toggle rebinds them.
+     */
+    @Benchmark
+    public void recolorCards(Blackhole blackhole) {
+        for (int i = 0; i < cards.length; i++) {
+            blackhole.consume(cards[i].withPalette(dark, notes[i].getColorResId()));
+        }
+    }
+}
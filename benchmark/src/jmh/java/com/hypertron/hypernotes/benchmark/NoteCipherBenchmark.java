@@ -0,0 +1,109 @@
+package com.hypertron.hypernotes.benchmark;
+
+import com.hypertron.hypernotes.NoteCipher;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Sealing and opening {@code size} bytes in the chunks the note store seals
+ * bodies in, against a single AES-GCM operation over the same bytes with the
+ * same key. Both write into buffers allocated up front.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class NoteCipherBenchmark {
+
+    private static final int CHUNK_SIZE = 16 * 1024;
+
+    @Param({"1024", "65536", "1048576"})
+    public int size;
+
+    private SecretKey key;
+    private NoteCipher cipher;
+    private Cipher raw;
+    private final byte[] nonce = new byte[NoteCipher.NONCE_SIZE];
+    private long counter;
+    private byte[] plain;
+    private byte[] opened;
+    private byte[] rawSealed;
+    private byte[] sealed;
+
+    @Setup(Level.Trial)
+    public void createKey() throws GeneralSecurityException {
+        Random random = new Random(42);
+        byte[] keyBytes = new byte[32];
+        random.nextBytes(keyBytes);
+        key = new SecretKeySpec(keyBytes, "AES");
+        cipher = new NoteCipher(key);
+        raw = Cipher.getInstance("AES/GCM/NoPadding");
+        plain = new byte[size];
+        random.nextBytes(plain);
+        opened = new byte[size];
+        rawSealed = new byte[size + NoteCipher.TAG_SIZE];
+        sealed = new byte[(int) NoteCipher.sealedLength(size, CHUNK_SIZE)];
+        sealRaw();
+        sealChunked();
+    }
+
+    /**
+     * The baseline: one AES-GCM operation over the whole buffer.
+     */
+    @Benchmark
+    public int sealRaw() throws GeneralSecurityException {
+        // Every encryption needs a nonce of its own
+        long next = ++counter;
+        for (int i = 0; i < 8; i++) {
+            nonce[4 + i] = (byte) (next >>> (56 - 8 * i));
+        }
+        raw.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(128, nonce));
+        return raw.doFinal(plain, 0, size, rawSealed, 0);
+    }
+
+    @Benchmark
+    public int openRaw() throws GeneralSecurityException {
+        raw.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(128, nonce));
+        return raw.doFinal(rawSealed, 0, rawSealed.length, opened, 0);
+    }
+
+    @Benchmark
+    public int sealChunked() {
+        int position = 0;
+        for (int done = 0, index = 0; done < size; index++) {
+            int length = Math.min(CHUNK_SIZE, size - done);
+            position += cipher.seal(1, index, plain, done, length, sealed, position);
+            done += length;
+        }
+        return position;
+    }
+
+    @Benchmark
+    public int openChunked() throws IOException {
+        int position = 0;
+        for (int done = 0, index = 0; done < size; index++) {
+            int length = Math.min(CHUNK_SIZE, size - done);
+            cipher.open(1, index, sealed, position, length + NoteCipher.OVERHEAD, opened, done);
+            position += length + NoteCipher.OVERHEAD;
+            done += length;
+        }
+        return position;
+    }
+}
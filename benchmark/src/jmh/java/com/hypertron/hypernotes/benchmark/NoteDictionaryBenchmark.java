@@ -0,0 +1,73 @@
+package com.hypertron.hypernotes.benchmark;
+
+import com.hypertron.hypernotes.Note;
+import com.hypertron.hypernotes.NoteDictionary;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Training a compression dictionary on {@code corpusSize} notes, and
+ * compressing and decompressing single notes with it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class NoteDictionaryBenchmark {
+
+    @Param({"1000", "10000"})
+    public int corpusSize;
+
+    private List<byte[]> samples;
+    private long corpusBytes;
+    private NoteDictionary dictionary;
+    private byte[][] bodies;
+    private byte[][] packed;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void train() {
+        Note[] notes = Corpus.notes(corpusSize, 42);
+        samples = new ArrayList<>();
+        bodies = new byte[notes.length][];
+        for (int i = 0; i < notes.length; i++) {
+            bodies[i] = notes[i].getContent().getBytes(StandardCharsets.UTF_8);
+            samples.add(bodies[i]);
+            corpusBytes += bodies[i].length;
+        }
+        dictionary = NoteDictionary.train(1, samples, corpusBytes);
+        packed = new byte[bodies.length][];
+        for (int i = 0; i < bodies.length; i++) {
+            packed[i] = dictionary.compress(bodies[i]);
+        }
+    }
+
+    @Benchmark
+    public NoteDictionary trainDictionary() {
+        return NoteDictionary.train(2, samples, corpusBytes);
+    }
+
+    @Benchmark
+    public byte[] compress() {
+        return dictionary.compress(bodies[next++ % bodies.length]);
+    }
+
+    @Benchmark
+    public byte[] decompress() throws IOException {
+        int i = next++ % bodies.length;
+        return dictionary.decompress(packed[i], 0, packed[i].length, bodies[i].length);
+    }
+}
@@ -0,0 +1,70 @@
+package com.hypertron.hypernotes.benchmark;
+
+import com.hypertron.hypernotes.NoteDocument;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Editing a note body of {@code documentLength} characters; the cost per edit
+ * should stay flat as the body grows.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class NoteDocumentBenchmark {
+
+    @Param({"100000", "1000000", "5000000"})
+    public int documentLength;
+
+    private NoteDocument document;
+    private Random random;
+    private int cursor;
+
+    @Setup(Level.Iteration)
+    public void createDocument() {
+        random = new Random(42);
+        StringBuilder body = new StringBuilder(documentLength);
+        while (body.length() < documentLength) {
+            body.append(Corpus.sentence(random, 12)).append('\n');
+        }
+        document = new NoteDocument(body);
+        cursor = documentLength / 2;
+    }
+
+    /**
+     * One keystroke at a cursor that moves along as it types.
+     */
+    @Benchmark
+    public void type() {
+        document.insert(cursor++, "e");
+    }
+
+    /**
+     * An insert or a backspace somewhere random, as when jumping around the note.
+     */
+    @Benchmark
+    public void randomEdit() {
+        int position = random.nextInt(document.length());
+        if (random.nextBoolean()) {
+            document.insert(position, "x");
+        } else {
+            document.delete(position, 1);
+        }
+    }
+
+    @Benchmark
+    public char charAt() {
+        return document.charAt(random.nextInt(document.length()));
+    }
+}
@@ -0,0 +1,108 @@
+package com.hypertron.hypernotes.benchmark;
+
+import com.hypertron.hypernotes.NoteCipher;
+import com.hypertron.hypernotes.NoteDelta;
+import com.hypertron.hypernotes.NoteHistory;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Recording and loading revisions of a note of {@code noteLength} characters
+ * with {@link #REVISIONS} small edits on record. Loading should stay bounded
+ * by the chain length however long the history gets.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class NoteHistoryBenchmark {
+
+    private static final int REVISIONS = 300;
+    private static final long NOTE_ID = 1;
+
+    @Param({"10000", "100000", "1000000"})
+    public int noteLength;
+
+    private File directory;
+    private NoteHistory history;
+    private String latest;
+    private String edited;
+    private Random random;
+    private long timestamp;
+
+    @Setup(Level.Trial)
+    public void createHistory() throws IOException {
+        directory = Files.createTempDirectory("hypernotes-history-bench").toFile();
+        byte[] key = new byte[32];
+        new Random(42).nextBytes(key);
+        history = new NoteHistory(directory, NoteHistory.DEFAULT_MAX_CHAIN, new NoteCipher(new SecretKeySpec(key, "AES")));
+        random = new Random(42);
+        StringBuilder body = new StringBuilder(noteLength);
+        while (body.length() < noteLength) {
+            body.append(Corpus.sentence(random, 12)).append('\n');
+        }
+        latest = body.toString();
+        for (int i = 0; i < REVISIONS; i++) {
+            latest = edit(latest);
+            history.append(NOTE_ID, timestamp++, "Note", latest);
+        }
+        edited = edit(latest);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteHistory() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    private String edit(String text) {
+        int position = random.nextInt(text.length());
+        return text.substring(0, position) + Corpus.sentence(random, 3) + text.substring(position);
+    }
+
+    /**
+     * Delta of a one-sentence edit; the bytes written per revision.
+     */
+    @Benchmark
+    public byte[] encodeDelta() {
+        return NoteDelta.encode(latest, edited);
+    }
+
+    /**
+     * Record a revision, alternating between two texts so every call writes one.
+     */
+    @Benchmark
+    public void append() throws IOException {
+        String text = (timestamp & 1) == 0 ? edited : latest;
+        history.append(NOTE_ID, timestamp++, "Note", text);
+    }
+
+    /**
+     * Load a random revision, as when browsing the history.
+     */
+    @Benchmark
+    public String loadRevision() throws IOException {
+        return history.load(NOTE_ID, random.nextInt(REVISIONS));
+    }
+}
@@ -0,0 +1,72 @@
+package com.hypertron.hypernotes.benchmark;
+
+import com.hypertron.hypernotes.LongIntMap;
+import com.hypertron.hypernotes.NoteIdAllocator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Looking notes up by id among {@code corpusSize} of them, with the primitive
+ * index against the boxed map it replaced.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class NoteIndexBenchmark {
+
+    @Param({"10000", "1000000"})
+    public int corpusSize;
+
+    private long[] ids;
+    private LongIntMap index;
+    private Map<Long, Integer> boxed;
+    private Random random;
+
+    @Setup(Level.Trial)
+    public void createIndex() {
+        NoteIdAllocator allocator = new NoteIdAllocator();
+        ids = new long[corpusSize];
+        index = new LongIntMap(corpusSize);
+        boxed = new HashMap<>();
+        for (int i = 0; i < corpusSize; i++) {
+            ids[i] = allocator.next();
+            index.put(ids[i], i);
+            boxed.put(ids[i], i);
+        }
+        random = new Random(42);
+    }
+
+    @Benchmark
+    public int lookup() {
+        return index.get(ids[random.nextInt(corpusSize)], -1);
+    }
+
+    @Benchmark
+    public Integer lookupBoxed() {
+        return boxed.get(ids[random.nextInt(corpusSize)]);
+    }
+
+    /**
+     * Take a note out and put it back, as deleting and re-adding it does.
+     */
+    @Benchmark
+    public int removeAndPut() {
+        int position = random.nextInt(corpusSize);
+        index.remove(ids[position]);
+        index.put(ids[position], position);
+        return index.size();
+    }
+}
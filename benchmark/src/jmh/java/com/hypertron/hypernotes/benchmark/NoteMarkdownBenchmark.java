@@ -0,0 +1,124 @@
+package com.hypertron.hypernotes.benchmark;
+
+import com.hypertron.hypernotes.NoteMarkdown;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeping the Markdown of a {@code lineCount}-line note parsed as it is
+ * edited, against parsing all of it again. The cost of a keystroke should
+ * not grow with the note, and has to fit in a frame with room to spare.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class NoteMarkdownBenchmark {
+
+    private static final String TYPED = "Typing along with *emphasis*, `code` and **strong** words.\n\n";
+
+    @Param({"5000"})
+    public int lineCount;
+
+    private StringBuilder text;
+    private NoteMarkdown markdown;
+    private Random random;
+    private int cursor;
+    private int typed;
+    private Blackhole blackhole;
+    private final NoteMarkdown.Listener listener = new NoteMarkdown.Listener() {
+        @Override
+        public void onBlocksChanged(List<NoteMarkdown.Block> removed, List<NoteMarkdown.Block> added) {
+            blackhole.consume(added.size());
+        }
+    };
+
+    @Setup(Level.Iteration)
+    public void createNote(Blackhole blackhole) {
+        this.blackhole = blackhole;
+        random = new Random(42);
+        text = new StringBuilder();
+        for (int line = 0; line < lineCount; line++) {
+            text.append(line(random, line)).append('\n');
+        }
+        markdown = new NoteMarkdown(text);
+        cursor = text.length() / 2;
+        typed = 0;
+    }
+
+    // Headings, lists, quotes and fenced code between paragraphs, with emphasis and code spans
+    static String line(Random random, int line) {
+        switch (line % 40) {
+            case 0:
+                return "## " + Corpus.sentence(random, 4);
+            case 1:
+            case 20:
+                return "";
+            case 10:
+            case 16:
+                return "```";
+            case 11:
+            case 12:
+            case 13:
+            case 14:
+            case 15:
+                return "    int x = " + line + "; // " + Corpus.sentence(random, 3);
+            case 21:
+            case 22:
+            case 23:
+                return "- " + Corpus.sentence(random, 3) + " **" + Corpus.sentence(random, 2) + "**";
+            case 24:
+                return "> " + Corpus.sentence(random, 10);
+            default:
+                return Corpus.sentence(random, 6) + " *" + Corpus.sentence(random, 2) + "* and `"
+                        + Corpus.sentence(random, 1) + "` " + Corpus.sentence(random, 4);
+        }
+    }
+
+    /**
+     * One keystroke at a cursor that moves along as it types, a paragraph at a time.
+     */
+    @Benchmark
+    public void type() {
+        char c = TYPED.charAt(typed++ % TYPED.length());
+        text.insert(cursor, c);
+        markdown.edit(text, cursor++, 0, 1, listener);
+    }
+
+    /**
+     * A character typed or deleted somewhere random, which sometimes turns a
+     * line into markup or out of it.
+     */
+    @Benchmark
+    public void randomEdit() {
+        int position = random.nextInt(text.length());
+        if (random.nextBoolean()) {
+            char c = "e *`#\n".charAt(random.nextInt(6));
+            text.insert(position, c);
+            markdown.edit(text, position, 0, 1, listener);
+        } else {
+            text.deleteCharAt(position);
+            markdown.edit(text, position, 1, 0, listener);
+        }
+    }
+
+    /**
+     * What every keystroke would cost without the incremental parse.
+     */
+    @Benchmark
+    public NoteMarkdown parseAll() {
+        return new NoteMarkdown(text);
+    }
+}
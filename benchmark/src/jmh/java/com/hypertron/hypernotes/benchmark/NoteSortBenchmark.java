@@ -0,0 +1,108 @@
+package com.hypertron.hypernotes.benchmark;
+
+import com.hypertron.hypernotes.Note;
+import com.hypertron.hypernotes.NoteSortIndex;
+import com.hypertron.hypernotes.NoteView;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.text.Collator;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sorting and filtering {@code corpusSize} notes for the grid: building the
+ * index, switching between orders it has built, moving one edited note, and
+ * a plain re-sort by title with the collator called per comparison.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class NoteSortBenchmark {
+
+    @Param({"50000"})
+    public int corpusSize;
+
+    private Note[] notes;
+    private NoteSortIndex index;
+    private int[] slots;
+    private NoteView[] views;
+    private int nextView;
+    private Random random;
+    private long clock;
+
+    @Setup(Level.Trial)
+    public void createIndex() {
+        notes = Corpus.notes(corpusSize, 42);
+        index = build();
+        slots = new int[corpusSize];
+        views = new NoteView[NoteView.SORT_COLOR + 2];
+        for (int sort = 0; sort <= NoteView.SORT_COLOR; sort++) {
+            views[sort] = NoteView.DEFAULT.withSort(sort);
+            index.select(views[sort], slots);
+        }
+        views[views.length - 1] = NoteView.DEFAULT.withSort(NoteView.SORT_TITLE).withColor(3)
+                .withSymbol(5, Corpus.SYMBOL_COUNT);
+        random = new Random(42);
+        clock = notes[corpusSize - 1].getTimestamp();
+    }
+
+    private NoteSortIndex build() {
+        NoteSortIndex built = new NoteSortIndex(Collator.getInstance(Locale.US));
+        for (int i = 0; i < notes.length; i++) {
+            put(built, notes[i], notes[i].getTimestamp(), i);
+        }
+        return built;
+    }
+
+    private static void put(NoteSortIndex target, Note note, long modifiedAt, int ref) {
+        target.put(note.getId(), modifiedAt, colorIndexOf(note.getColorResId()), note.getSymbolIndex(),
+                note.getCustomEmoji() != null, note.getTitle(), ref);
+    }
+
+    private static int colorIndexOf(int colorResId) {
+        for (int i = 0; i < Corpus.COLOR_RES_IDS.length; i++) {
+            if (Corpus.COLOR_RES_IDS[i] == colorResId) {
+                return i;
+            }
+        }
+        return 0;
+    }
+
+    @Benchmark
+    public int buildTitleOrder() {
+        NoteSortIndex built = build();
+        return built.select(views[NoteView.SORT_TITLE], new int[corpusSize]);
+    }
+
+    @Benchmark
+    public int switchOrder() {
+        nextView = (nextView + 1) % views.length;
+        return index.select(views[nextView], slots);
+    }
+
+    @Benchmark
+    public void editNote() {
+        // An edit moves the note to the front of the modified order, and somewhere in the others
+        int i = random.nextInt(corpusSize);
+        put(index, notes[i], ++clock, i);
+    }
+
+    @Benchmark
+    public Note[] resortWithCollator() {
+        Collator collator = Collator.getInstance(Locale.US);
+        Note[] sorted = notes.clone();
+        Arrays.sort(sorted, (a, b) -> collator.compare(a.getTitle(), b.getTitle()));
+        return sorted;
+    }
+}
@@ -0,0 +1,158 @@
+package com.hypertron.hypernotes.benchmark;
+
+import com.hypertron.hypernotes.Note;
+import com.hypertron.hypernotes.NoteCipher;
+import com.hypertron.hypernotes.NoteList;
+import com.hypertron.hypernotes.NoteStore;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Saving, looking up and listing notes in a store holding {@code corpusSize}
+ * notes, kept in the clear or {@code encrypted}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class NoteStoreBenchmark {
+
+    private static final int BURST_SIZE = 100;
+    private static final int BURST_NOTES = 5;
+
+    @Param({"1000", "10000", "50000"})
+    public int corpusSize;
+
+    @Param({"false", "true"})
+    public boolean encrypted;
+
+    private File directory;
+    private NoteCipher cipher;
+    private NoteStore store;
+    private Note[] corpus;
+    private long[] ids;
+    private long[] searchHits;
+    private Random random;
+
+    @Setup(Level.Trial)
+    public void createStore() throws IOException {
+        directory = Files.createTempDirectory("hypernotes-bench").toFile();
+        if (encrypted) {
+            byte[] key = new byte[32];
+            new Random(42).nextBytes(key);
+            cipher = new NoteCipher(new SecretKeySpec(key, "AES"));
+        }
+        store = NoteStore.open(directory, Corpus.COLOR_RES_IDS, cipher);
+        corpus = Corpus.notes(corpusSize, 42);
+        ids = new long[corpusSize];
+        for (int i = 0; i < corpusSize; i++) {
+            store.put(corpus[i]);
+            ids[i] = corpus[i].getId();
+        }
+        store.checkpoint();
+
+        // A search matching about one note in a hundred, in index (not display) order
+        random = new Random(7);
+        searchHits = new long[Math.max(1, corpusSize / 100)];
+        for (int i = 0; i < searchHits.length; i++) {
+            searchHits[i] = ids[random.nextInt(corpusSize)];
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteStore() throws IOException {
+        store.close();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    /**
+     * Edit an existing note; includes the fsync every save pays.
+     */
+    @Benchmark
+    public void save() throws IOException {
+        store.put(corpus[random.nextInt(corpusSize)]);
+    }
+
+    /**
+     * A burst of edits to a few notes, staged and written as one batch.
+     */
+    @Benchmark
+    public void saveBurst() throws IOException {
+        for (int i = 0; i < BURST_SIZE; i++) {
+            store.stage(corpus[random.nextInt(BURST_NOTES)]);
+        }
+        store.flush();
+    }
+
+    @Benchmark
+    public Note lookup() {
+        return store.get(ids[random.nextInt(corpusSize)]);
+    }
+
+    @Benchmark
+    public String loadContent() throws IOException {
+        return store.getContent(ids[random.nextInt(corpusSize)]);
+    }
+
+    /**
+     * Build the newest-first list the grid shows.
+     */
+    @Benchmark
+    public NoteList sortAll() {
+        return store.getAll();
+    }
+
+    /**
+     * Order a set of search hits newest first.
+     */
+    @Benchmark
+    public NoteList sortSearchResults() {
+        return store.getNotes(searchHits);
+    }
+
+    /**
+     * Decode every note of the list, as a fling from top to bottom would.
+     */
+    @Benchmark
+    public void scanAll(Blackhole blackhole) {
+        NoteList notes = store.getAll();
+        for (int i = 0; i < notes.size(); i++) {
+            blackhole.consume(notes.get(i));
+        }
+    }
+
+    /**
+     * Cold start: replay the snapshot and log tail.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public int open() throws IOException {
+        try (NoteStore reopened = NoteStore.open(directory, Corpus.COLOR_RES_IDS, cipher)) {
+            return reopened.size();
+        }
+    }
+}
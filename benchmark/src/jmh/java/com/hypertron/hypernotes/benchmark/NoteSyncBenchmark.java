@@ -0,0 +1,185 @@
+package com.hypertron.hypernotes.benchmark;
+
+import com.hypertron.hypernotes.LocalSyncServer;
+import com.hypertron.hypernotes.Note;
+import com.hypertron.hypernotes.NoteSync;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Two devices sharing {@code corpusSize} notes through a {@link LocalSyncServer}:
+ * one edits a few notes and syncs, then the other syncs to pick them up.
+ * Besides the time, each iteration reports the deflated bytes both devices
+ * sent and received.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class NoteSyncBenchmark {
+
+    private static final int EDITS = 10;
+
+    @Param({"100000"})
+    public int corpusSize;
+
+    private LocalSyncServer server;
+    private Device phone;
+    private Device tablet;
+    private Note[] corpus;
+    private Random random;
+    private long clock;
+
+    /**
+     * Traffic of the one sync each iteration makes.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Traffic {
+        public long bytesSent;
+        public long bytesReceived;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            bytesSent = 0;
+            bytesReceived = 0;
+        }
+
+        void add(NoteSync.Result result) {
+            bytesSent += result.bytesSent;
+            bytesReceived += result.bytesReceived;
+        }
+    }
+
+    /**
+     * A device's notes, in memory.
+     */
+    private static final class Device implements NoteSync.Local {
+        final File directory;
+        final NoteSync sync;
+        final Map<Long, Note> notes = new HashMap<>();
+        // Every version of every note's body, as the note history keeps them
+        final Map<Long, TreeMap<Long, String>> revisions = new HashMap<>();
+
+        Device() throws IOException {
+            directory = Files.createTempDirectory("hypernotes-sync").toFile();
+            sync = NoteSync.open(directory, Corpus.COLOR_RES_IDS);
+        }
+
+        void save(Note note) {
+            Note previous = notes.put(note.getId(), note);
+            record(note);
+            sync.markChanged(note.getId(), previous != null ? previous.getTimestamp() : 0);
+        }
+
+        private void record(Note note) {
+            revisions.computeIfAbsent(note.getId(), id -> new TreeMap<>()).put(note.getTimestamp(), note.getContent());
+        }
+
+        NoteSync.Result sync(LocalSyncServer server) throws IOException {
+            return sync.sync(server, this, null);
+        }
+
+        @Override
+        public Note load(long id) {
+            return notes.get(id);
+        }
+
+        @Override
+        public long modifiedAt(long id) {
+            Note note = notes.get(id);
+            return note != null ? note.getTimestamp() : -1;
+        }
+
+        @Override
+        public String revision(long id, long modified) {
+            TreeMap<Long, String> versions = revisions.get(id);
+            Map.Entry<Long, String> version = versions != null ? versions.floorEntry(modified) : null;
+            return version != null ? version.getValue() : null;
+        }
+
+        @Override
+        public long[] apply(List<Note> saved, long[] deleted) {
+            for (Note note : saved) {
+                notes.put(note.getId(), note);
+                record(note);
+            }
+            for (long id : deleted) {
+                notes.remove(id);
+                revisions.remove(id);
+            }
+            return new long[0];
+        }
+
+        void delete() {
+            delete(directory);
+        }
+
+        private static void delete(File file) {
+            File[] files = file.listFiles();
+            if (files != null) {
+                for (File child : files) {
+                    delete(child);
+                }
+            }
+            file.delete();
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void syncCorpus() throws IOException {
+        corpus = Corpus.notes(corpusSize, 42);
+        server = new LocalSyncServer();
+        phone = new Device();
+        tablet = new Device();
+        for (Note note : corpus) {
+            phone.save(note);
+        }
+        phone.sync(server);
+        tablet.sync(server);
+        if (tablet.notes.size() != corpusSize) {
+            throw new IllegalStateException("Tablet has " + tablet.notes.size() + " of " + corpusSize + " notes");
+        }
+        random = new Random(42);
+        clock = corpus[corpusSize - 1].getTimestamp();
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteDevices() {
+        phone.delete();
+        tablet.delete();
+    }
+
+    @Benchmark
+    public int editAndSync(Traffic traffic) throws IOException {
+        for (int i = 0; i < EDITS; i++) {
+            Note original = corpus[random.nextInt(corpusSize)];
+            Note edited = new Note(original.getId(), original.getTitle(),
+                    original.getContent() + "\n" + Corpus.sentence(random, 8), ++clock, original.getColorResId());
+            phone.save(edited);
+        }
+        traffic.add(phone.sync(server));
+        NoteSync.Result pulled = tablet.sync(server);
+        traffic.add(pulled);
+        return pulled.pulled;
+    }
+}
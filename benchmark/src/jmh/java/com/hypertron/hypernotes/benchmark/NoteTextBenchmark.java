@@ -0,0 +1,84 @@
+package com.hypertron.hypernotes.benchmark;
+
+import com.hypertron.hypernotes.NoteText;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@code noteLength}-character note edited apart on two devices, each
+ * making {@code edits} scattered word insertions and deletions: recording
+ * one side's edits in its text, and merging the two sides.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class NoteTextBenchmark {
+
+    private static final long BASE_AGENT = 1;
+    private static final long PHONE = 2;
+    private static final long TABLET = 3;
+
+    @Param({"100000"})
+    public int noteLength;
+
+    @Param({"10", "100", "1000"})
+    public int edits;
+
+    private String base;
+    private String phoneContent;
+    private String tabletContent;
+    private NoteText phoneText;
+    private NoteText tabletText;
+
+    @Setup(Level.Trial)
+    public void diverge() {
+        Random random = new Random(42);
+        StringBuilder text = new StringBuilder(noteLength + 100);
+        while (text.length() < noteLength) {
+            text.append(Corpus.sentence(random, 12)).append(random.nextInt(4) == 0 ? "\n\n" : " ");
+        }
+        base = text.substring(0, noteLength);
+        phoneContent = edit(random, base);
+        tabletContent = edit(random, base);
+        phoneText = NoteText.base(BASE_AGENT, base.length());
+        phoneText.update(base, phoneContent, PHONE);
+        tabletText = NoteText.base(BASE_AGENT, base.length());
+        tabletText.update(base, tabletContent, TABLET);
+    }
+
+    private String edit(Random random, String text) {
+        StringBuilder edited = new StringBuilder(text);
+        for (int i = 0; i < edits; i++) {
+            int position = random.nextInt(edited.length());
+            if (random.nextBoolean()) {
+                edited.delete(position, Math.min(edited.length(), position + 1 + random.nextInt(12)));
+            } else {
+                edited.insert(position, Corpus.sentence(random, 1 + random.nextInt(3)) + " ");
+            }
+        }
+        return edited.toString();
+    }
+
+    @Benchmark
+    public int update() {
+        NoteText text = NoteText.base(BASE_AGENT, base.length());
+        text.update(base, phoneContent, PHONE);
+        return text.runCount();
+    }
+
+    @Benchmark
+    public int merge() {
+        return NoteText.merge(phoneText, phoneContent, tabletText, tabletContent).content.length();
+    }
+}
@@ -0,0 +1,91 @@
+package com.hypertron.hypernotes.benchmark;
+
+import com.hypertron.hypernotes.Note;
+import com.hypertron.hypernotes.NoteTitleIndex;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Quick-open over {@code corpusSize} titles: a query spelled right, one with
+ * a typo in each word, and for scale, an edit distance to every title.
+ *
+ * The corpus draws its titles from a couple of dozen words, so every query
+ * word is in thousands of titles; real titles are far less alike.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class NoteTitleIndexBenchmark {
+
+    // Same as NoteRepository's
+    private static final int LIMIT = 20;
+
+    @Param({"100000"})
+    public int corpusSize;
+
+    private String[] titles;
+    private NoteTitleIndex index;
+    private long now;
+
+    @Setup(Level.Trial)
+    public void createIndex() {
+        Note[] notes = Corpus.notes(corpusSize, 42);
+        titles = new String[corpusSize];
+        index = new NoteTitleIndex();
+        for (int i = 0; i < corpusSize; i++) {
+            titles[i] = notes[i].getTitle();
+            index.update(notes[i].getId(), titles[i], notes[i].getTimestamp());
+        }
+        now = notes[corpusSize - 1].getTimestamp();
+    }
+
+    @Benchmark
+    public long[] searchExact() {
+        return index.search("garden invoice", LIMIT, now);
+    }
+
+    @Benchmark
+    public long[] searchTypo() {
+        return index.search("gardne invocie", LIMIT, now);
+    }
+
+    @Benchmark
+    public int bruteForceEditDistance() {
+        String query = "gardne invocie";
+        int best = Integer.MAX_VALUE;
+        for (String title : titles) {
+            best = Math.min(best, editDistance(query, title.toLowerCase(Locale.ROOT)));
+        }
+        return best;
+    }
+
+    private static int editDistance(String a, String b) {
+        int[] previous = new int[b.length() + 1];
+        int[] current = new int[b.length() + 1];
+        for (int j = 0; j <= b.length(); j++) {
+            previous[j] = j;
+        }
+        for (int i = 1; i <= a.length(); i++) {
+            current[0] = i;
+            for (int j = 1; j <= b.length(); j++) {
+                int substitute = previous[j - 1] + (a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1);
+                current[j] = Math.min(substitute, Math.min(previous[j], current[j - 1]) + 1);
+            }
+            int[] swap = previous;
+            previous = current;
+            current = swap;
+        }
+        return previous[b.length()];
+    }
+}